@@ -0,0 +1,38 @@
+package org.wayneyu.chat.bench;
+
+import org.wayneyu.chat.model.Message;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Deterministic message streams, so that runs of the same benchmark are comparable.
+ */
+public final class BenchmarkData {
+
+    public static final long ROOM_CREATED = 1_500_000_000_000L;
+    public static final long MAX_PAUSE_MILLIS = 2 * 60 * 1000;
+
+    private static final String[] AUTHORS = {"alice", "bob", "carol", "dave", "erin", "frank"};
+    private static final String WORDS = "the quick brown fox jumps over the lazy dog while a chat room keeps on talking about nothing much ";
+
+    private BenchmarkData() {
+    }
+
+    /**
+     * Messages with indexes from firstIndex and pauses of up to two minutes after the given timestamp.
+     */
+    public static List<Message> messages(int count, int firstIndex, long after, long seed) {
+        Random random = new Random(seed);
+        List<Message> messages = new ArrayList<>(count);
+        long timestamp = after;
+        for (int i = 0; i < count; i++) {
+            timestamp += 1 + random.nextInt((int) MAX_PAUSE_MILLIS);
+            int start = random.nextInt(WORDS.length() / 2);
+            String text = WORDS.substring(start, start + 20 + random.nextInt(WORDS.length() / 2 - 20));
+            messages.add(new Message(firstIndex + i, timestamp, AUTHORS[random.nextInt(AUTHORS.length)], text));
+        }
+        return messages;
+    }
+}
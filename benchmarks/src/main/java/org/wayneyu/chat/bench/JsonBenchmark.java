@@ -0,0 +1,125 @@
+package org.wayneyu.chat.bench;
+
+import com.google.gson.Gson;
+import com.google.gson.stream.JsonWriter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.wayneyu.chat.db.ChatRepository;
+import org.wayneyu.chat.db.MessageConsumer;
+import org.wayneyu.chat.ingest.MessagesReader;
+import org.wayneyu.chat.model.Message;
+import org.wayneyu.chat.model.MessagePage;
+import org.wayneyu.chat.model.Messages;
+import org.wayneyu.chat.model.Room;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Serializing a room's messages as one string against streaming them through a JsonWriter, and reading a
+ * PUT /messages body into a Messages object graph, as the endpoint used to, against adding its messages in batches
+ * while reading it with {@link MessagesReader}, as it does now.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class JsonBenchmark {
+
+    private static final OutputStream DISCARD = new OutputStream() {
+        @Override
+        public void write(int b) {
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+        }
+    };
+
+    @Param({"100", "10000"})
+    private int roomSize;
+
+    private final Gson gson = new Gson();
+    private final DiscardingRepository discard = new DiscardingRepository();
+    private List<Message> messages;
+    private String body;
+
+    @Setup
+    public void setUp() {
+        messages = BenchmarkData.messages(roomSize, 1, BenchmarkData.ROOM_CREATED, 1);
+        body = gson.toJson(new Messages(1, messages));
+    }
+
+    @Benchmark
+    public String toJsonString() {
+        return gson.toJson(messages);
+    }
+
+    @Benchmark
+    public JsonWriter streamJson() throws IOException {
+        JsonWriter writer = new JsonWriter(new BufferedWriter(new OutputStreamWriter(DISCARD, StandardCharsets.UTF_8)));
+        writer.beginArray();
+        for (Message message : messages) {
+            gson.toJson(message, Message.class, writer);
+        }
+        writer.endArray();
+        writer.flush();
+        return writer;
+    }
+
+    @Benchmark
+    public Messages readMessagesObject() {
+        return gson.fromJson(new StringReader(body), Messages.class);
+    }
+
+    @Benchmark
+    public int streamMessagesBody() throws IOException {
+        return MessagesReader.addMessages(new StringReader(body), discard, 1000);
+    }
+
+    private static class DiscardingRepository implements ChatRepository {
+
+        public void createRoom(Room room) {
+        }
+
+        public void addMessages(int chatRoomId, List<Message> messages) {
+        }
+
+        public List<Message> getMessages(int chatRoomId, long startTime, long endTime) {
+            return Collections.emptyList();
+        }
+
+        public void streamMessages(int chatRoomId, long startTime, long endTime, MessageConsumer consumer) {
+        }
+
+        public MessagePage getMessages(int chatRoomId, long startTime, long endTime, int limit, String cursor, boolean reverse) {
+            return new MessagePage(Collections.emptyList(), null);
+        }
+
+        public Room getRoom(int id) {
+            return null;
+        }
+
+        public int countLongPauses(int chatRoomId, long startTime, long endTime) {
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,54 @@
+package org.wayneyu.chat.bench;
+
+import org.apache.hadoop.hbase.util.Bytes;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.wayneyu.chat.db.RowkeyCodec;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of a message rowkey, against the zero padded string keys the tables used before the binary codec.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RowkeyBenchmark {
+
+    private int roomId = 42;
+    private long timestamp = BenchmarkData.ROOM_CREATED;
+    private int index = 1234;
+    private final byte[] buffer = new byte[RowkeyCodec.MESSAGE_KEY_LENGTH];
+    private final byte[] key = RowkeyCodec.messageKey(roomId, timestamp, index);
+
+    @Benchmark
+    public byte[] stringKey() {
+        return Bytes.toBytes(String.format("%010d_%013d", roomId, timestamp));
+    }
+
+    @Benchmark
+    public byte[] messageKey() {
+        return RowkeyCodec.messageKey(roomId, timestamp, index);
+    }
+
+    @Benchmark
+    public byte[] encodeMessageKeyIntoBuffer() {
+        RowkeyCodec.encodeMessageKey(roomId, timestamp, index, buffer, 0);
+        return buffer;
+    }
+
+    @Benchmark
+    public long decodeTimestamp() {
+        return RowkeyCodec.decodeTimestamp(key, 0);
+    }
+}
@@ -0,0 +1,216 @@
+package org.wayneyu.chat.db;
+
+import org.apache.hadoop.hbase.Cell;
+import org.apache.hadoop.hbase.CellUtil;
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.client.Increment;
+import org.apache.hadoop.hbase.client.Mutation;
+import org.apache.hadoop.hbase.client.Put;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.wayneyu.chat.model.Message;
+import org.wayneyu.chat.model.MessagePage;
+import org.wayneyu.chat.model.Room;
+import org.wayneyu.chat.model.RoomMeta;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+/**
+ * ChatRepository over sorted in-memory maps, standing in for HBase in the benchmarks. Rows are built and decoded
+ * with the same codecs as {@link HBaseRepositoryImpl} and long pauses are counted from the same rollup layout, so
+ * what is measured is the service's own work per message without RPCs.
+ *
+ * Messages are expected in timestamp order. Late messages are stored, but the pauses of rows after them are not
+ * rewritten.
+ */
+public class InMemoryChatRepository implements ChatRepository {
+
+    private static final Comparator<Message> MESSAGE_ROWKEY_ORDER =
+            Comparator.comparingLong(Message::getTimestamp).thenComparingInt(Message::getIndex);
+
+    private final long rollupBucketMillis;
+    private final NavigableMap<byte[], Result> messageRows = new TreeMap<>(Bytes.BYTES_COMPARATOR);
+    private final NavigableMap<byte[], NavigableMap<byte[], Long>> rollupRows = new TreeMap<>(Bytes.BYTES_COMPARATOR);
+    private final Map<Integer, Room> rooms = new HashMap<>();
+    private final Map<Integer, RoomMeta> metas = new HashMap<>();
+
+    public InMemoryChatRepository() {
+        this(HBaseRepositoryImpl.DEFAULT_ROLLUP_BUCKET_MILLIS);
+    }
+
+    public InMemoryChatRepository(long rollupBucketMillis) {
+        this.rollupBucketMillis = rollupBucketMillis;
+    }
+
+    /**
+     * The row a scan of the put's columns would return.
+     */
+    static Result toResult(Mutation mutation) {
+        List<Cell> cells = new ArrayList<>();
+        for (List<Cell> family : mutation.getFamilyCellMap().values()) {
+            cells.addAll(family);
+        }
+        cells.sort(KeyValue.COMPARATOR);
+        return Result.create(cells);
+    }
+
+    public void createRoom(Room room) {
+        rooms.put(room.getId(), room);
+        metas.put(room.getId(), new RoomMeta(0, room.getCreated(), room.getCreated()));
+    }
+
+    public void addMessages(int roomId, List<Message> messages) {
+        if (messages.isEmpty()) {
+            return;
+        }
+        List<Message> batch = new ArrayList<>(messages);
+        batch.sort(MESSAGE_ROWKEY_ORDER);
+        Message firstMessage = batch.get(0);
+        RoomMeta meta = metas.get(roomId);
+
+        long previousTimestamp;
+        if (meta != null && firstMessage.getTimestamp() > meta.getLastMessageTimestamp()) {
+            previousTimestamp = meta.getLastMessageTimestamp();
+        } else {
+            byte[] predecessor = messageRows.lowerKey(RowkeyCodec.messageKey(roomId, firstMessage.getTimestamp(), firstMessage.getIndex()));
+            if (predecessor != null && RowkeyCodec.decodeRoomId(predecessor, 0) == roomId) {
+                previousTimestamp = RowkeyCodec.decodeTimestamp(predecessor, 0);
+            } else {
+                previousTimestamp = meta != null ? meta.getCreated() : firstMessage.getTimestamp();
+            }
+        }
+
+        PauseRollup rollup = new PauseRollup(rollupBucketMillis);
+        for (Message message : batch) {
+            long pause = message.getTimestamp() - previousTimestamp;
+            Put put = MessageRows.toPut(RowkeyCodec.messageKey(roomId, message.getTimestamp(), message.getIndex()), message, pause);
+            messageRows.put(put.getRow(), toResult(put));
+            rollup.addMessage(message.getTimestamp(), pause);
+            previousTimestamp = message.getTimestamp();
+        }
+        for (Increment increment : rollup.toIncrements(roomId)) {
+            applyPauseIncrement(increment);
+        }
+
+        Message lastMessage = batch.get(batch.size() - 1);
+        if (meta != null && lastMessage.getTimestamp() > meta.getLastMessageTimestamp()) {
+            metas.put(roomId, new RoomMeta(lastMessage.getIndex(), meta.getCreated(), lastMessage.getTimestamp()));
+        }
+    }
+
+    private void applyPauseIncrement(Increment increment) {
+        List<Cell> pauses = increment.getFamilyCellMap().get(Bytes.toBytes(PauseRollup.PAUSE_COLUMN_FAMILY));
+        if (pauses == null) {
+            return;
+        }
+        NavigableMap<byte[], Long> row = rollupRows.computeIfAbsent(increment.getRow(), key -> new TreeMap<>(Bytes.BYTES_COMPARATOR));
+        for (Cell cell : pauses) {
+            row.merge(CellUtil.cloneQualifier(cell), Bytes.toLong(CellUtil.cloneValue(cell)), Long::sum);
+        }
+    }
+
+    public List<Message> getMessages(int roomId, long startTime, long endTime) {
+        List<Message> messages = new ArrayList<>();
+        for (Result result : messageRange(roomId, startTime, endTime).values()) {
+            messages.add(MessageRows.toMessage(result, 0));
+        }
+        return messages;
+    }
+
+    public void streamMessages(int roomId, long startTime, long endTime, MessageConsumer consumer) throws IOException {
+        for (Result result : messageRange(roomId, startTime, endTime).values()) {
+            consumer.accept(MessageRows.toMessage(result, 0));
+        }
+    }
+
+    public MessagePage getMessages(int roomId, long startTime, long endTime, int limit, String cursor, boolean reverse) {
+        MessageCursor.checkLimit(limit);
+        NavigableMap<byte[], Result> range = messageRange(roomId, startTime, endTime);
+        if (cursor != null) {
+            byte[] key = MessageCursor.decode(roomId, cursor);
+            range = reverse ? range.headMap(key, false) : range.tailMap(key, false);
+        }
+        List<Message> messages = new ArrayList<>(limit + 1);
+        for (Result result : (reverse ? range.descendingMap() : range).values()) {
+            if (messages.size() > limit) {
+                break;
+            }
+            messages.add(MessageRows.toMessage(result, 0));
+        }
+        return MessageCursor.toPage(roomId, messages, limit);
+    }
+
+    private NavigableMap<byte[], Result> messageRange(int roomId, long startTime, long endTime) {
+        return messageRows.subMap(RowkeyCodec.messageKeyPrefix(roomId, startTime), true, RowkeyCodec.messageKeyPrefix(roomId, endTime), false);
+    }
+
+    public Room getRoom(int id) {
+        Room info = rooms.get(id);
+        if (info == null) {
+            return null;
+        }
+        Room room = new Room(info.getId(), info.getName(), info.getCreated(), info.getParticipants());
+        room.setMeta(metas.get(id));
+        return room;
+    }
+
+    /**
+     * Same split as {@link HBaseRepositoryImpl#countLongPauses}: whole buckets from the rollup, partial buckets at the
+     * edges from meta:pause of the messages.
+     */
+    public int countLongPauses(int chatRoomId, long startTime, long endTime) {
+        RoomMeta roomMeta = metas.get(chatRoomId);
+        if (roomMeta == null) {
+            throw new RuntimeException(String.format("Could not find room meta for room id %d", chatRoomId));
+        }
+        if (roomMeta.getMessageCount() == 0) {
+            return -1;
+        }
+
+        long averagePause = (roomMeta.getLastMessageTimestamp() - roomMeta.getCreated()) / roomMeta.getMessageCount();
+        PauseRollup rollup = new PauseRollup(rollupBucketMillis);
+        long firstBucket = rollup.bucketCeiling(startTime);
+        long lastBucketEnd = rollup.bucketStart(endTime);
+        int longPausesCount;
+        if (firstBucket < lastBucketEnd) {
+            longPausesCount = countPausesLongerThan(chatRoomId, startTime, firstBucket, averagePause)
+                    + countRollupPausesLongerThan(chatRoomId, firstBucket, lastBucketEnd, averagePause)
+                    + countPausesLongerThan(chatRoomId, lastBucketEnd, endTime, averagePause);
+        } else {
+            longPausesCount = countPausesLongerThan(chatRoomId, startTime, endTime, averagePause);
+        }
+        if (longPausesCount == 0 && messageRange(chatRoomId, startTime, endTime).isEmpty()) {
+            return -1;
+        }
+        return longPausesCount;
+    }
+
+    private int countPausesLongerThan(int roomId, long startTime, long endTime, long threshold) {
+        int count = 0;
+        for (Result result : messageRange(roomId, startTime, endTime).values()) {
+            Long pause = MessageRows.getPause(result);
+            if (pause != null && pause > threshold) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private int countRollupPausesLongerThan(int roomId, long firstBucket, long lastBucketEnd, long threshold) {
+        byte[] minQualifier = RowkeyCodec.sortableLong(threshold);
+        long count = 0;
+        for (NavigableMap<byte[], Long> row : rollupRows.subMap(PauseRollup.rowkey(roomId, firstBucket), PauseRollup.rowkey(roomId, lastBucketEnd)).values()) {
+            for (long pauses : row.tailMap(minQualifier, false).values()) {
+                count += pauses;
+            }
+        }
+        return (int) count;
+    }
+}
@@ -0,0 +1,135 @@
+package org.wayneyu.chat.db;
+
+import org.apache.hadoop.hbase.client.Put;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.wayneyu.chat.bench.BenchmarkData;
+import org.wayneyu.chat.model.Message;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Building the puts of a batch of messages and decoding scanned rows back into messages, in the compact single cell
+ * encoding and in the four cell layout, and the column names converted per cell against the same names held as
+ * constants.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MessageRowsBenchmark {
+
+    private static final byte[] MESSAGE_FAMILY = Bytes.toBytes(HBaseRepositoryImpl.MESSAGE_MESSAGE_COLUMN_FAMILY);
+    private static final byte[] META_FAMILY = Bytes.toBytes(HBaseRepositoryImpl.MESSAGE_META_COLUMN_FAMILY);
+    private static final byte[][] QUALIFIERS = {
+            Bytes.toBytes("index"), Bytes.toBytes("author"), Bytes.toBytes("timestamp"), Bytes.toBytes("message"), Bytes.toBytes("pause")
+    };
+
+    @Param({"1", "100", "1000"})
+    private int batchSize;
+
+    private int roomId = 42;
+    private List<Message> messages;
+    private List<Result> rows;
+    private List<Result> cellsRows;
+
+    @Setup
+    public void setUp() {
+        messages = BenchmarkData.messages(batchSize, 1, BenchmarkData.ROOM_CREATED, 1);
+        rows = new ArrayList<>(batchSize);
+        for (Put put : toPuts()) {
+            rows.add(InMemoryChatRepository.toResult(put));
+        }
+        cellsRows = new ArrayList<>(batchSize);
+        for (Put put : toCellsPuts()) {
+            cellsRows.add(InMemoryChatRepository.toResult(put));
+        }
+    }
+
+    @Benchmark
+    public List<Put> toPuts() {
+        List<Put> puts = new ArrayList<>(messages.size());
+        long previousTimestamp = BenchmarkData.ROOM_CREATED;
+        for (Message message : messages) {
+            puts.add(MessageRows.toPut(RowkeyCodec.messageKey(roomId, message.getTimestamp(), message.getIndex()), message, message.getTimestamp() - previousTimestamp));
+            previousTimestamp = message.getTimestamp();
+        }
+        return puts;
+    }
+
+    @Benchmark
+    public List<Put> toCellsPuts() {
+        List<Put> puts = new ArrayList<>(messages.size());
+        long previousTimestamp = BenchmarkData.ROOM_CREATED;
+        for (Message message : messages) {
+            puts.add(MessageRows.toCellsPut(RowkeyCodec.messageKey(roomId, message.getTimestamp(), message.getIndex()), message, message.getTimestamp() - previousTimestamp));
+            previousTimestamp = message.getTimestamp();
+        }
+        return puts;
+    }
+
+    @Benchmark
+    public void toMessages(Blackhole blackhole) {
+        for (Result row : rows) {
+            blackhole.consume(MessageRows.toMessage(row, 0));
+        }
+    }
+
+    @Benchmark
+    public void cellsToMessages(Blackhole blackhole) {
+        for (Result row : cellsRows) {
+            blackhole.consume(MessageRows.toMessage(row, 0));
+        }
+    }
+
+    @Benchmark
+    public void readPauses(Blackhole blackhole) {
+        for (Result row : rows) {
+            blackhole.consume(MessageRows.getPause(row));
+        }
+    }
+
+    @Benchmark
+    public void columnNamesPerCell(Blackhole blackhole) {
+        for (int i = 0; i < messages.size(); i++) {
+            blackhole.consume(Bytes.toBytes(HBaseRepositoryImpl.MESSAGE_MESSAGE_COLUMN_FAMILY));
+            blackhole.consume(Bytes.toBytes("index"));
+            blackhole.consume(Bytes.toBytes(HBaseRepositoryImpl.MESSAGE_MESSAGE_COLUMN_FAMILY));
+            blackhole.consume(Bytes.toBytes("author"));
+            blackhole.consume(Bytes.toBytes(HBaseRepositoryImpl.MESSAGE_MESSAGE_COLUMN_FAMILY));
+            blackhole.consume(Bytes.toBytes("timestamp"));
+            blackhole.consume(Bytes.toBytes(HBaseRepositoryImpl.MESSAGE_MESSAGE_COLUMN_FAMILY));
+            blackhole.consume(Bytes.toBytes("message"));
+            blackhole.consume(Bytes.toBytes(HBaseRepositoryImpl.MESSAGE_META_COLUMN_FAMILY));
+            blackhole.consume(Bytes.toBytes("pause"));
+        }
+    }
+
+    @Benchmark
+    public void columnNameConstants(Blackhole blackhole) {
+        for (int i = 0; i < messages.size(); i++) {
+            for (int q = 0; q < QUALIFIERS.length - 1; q++) {
+                blackhole.consume(MESSAGE_FAMILY);
+                blackhole.consume(QUALIFIERS[q]);
+            }
+            blackhole.consume(META_FAMILY);
+            blackhole.consume(QUALIFIERS[QUALIFIERS.length - 1]);
+        }
+    }
+}
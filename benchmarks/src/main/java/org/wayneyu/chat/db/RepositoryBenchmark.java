@@ -0,0 +1,122 @@
+package org.wayneyu.chat.db;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.wayneyu.chat.bench.BenchmarkData;
+import org.wayneyu.chat.model.Message;
+import org.wayneyu.chat.model.Room;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Repository operations against {@link InMemoryChatRepository}: appending batches, reading a room back and counting
+ * its long pauses over whole buckets and over a range that ends mid-bucket.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RepositoryBenchmark {
+
+    private static final int ROOM_ID = 42;
+
+    private static InMemoryChatRepository newRepository() {
+        InMemoryChatRepository repo = new InMemoryChatRepository();
+        repo.createRoom(new Room(ROOM_ID, "bench", BenchmarkData.ROOM_CREATED, Collections.singletonList("alice")));
+        return repo;
+    }
+
+    @State(Scope.Thread)
+    public static class Append {
+
+        private static final int MESSAGES_PER_ROOM = 100_000;
+
+        @Param({"1", "100", "1000"})
+        int batchSize;
+
+        List<Message> messages;
+        InMemoryChatRepository repo;
+        int position;
+
+        @Setup(Level.Iteration)
+        public void setUp() {
+            messages = BenchmarkData.messages(MESSAGES_PER_ROOM, 1, BenchmarkData.ROOM_CREATED, 1);
+            repo = newRepository();
+            position = 0;
+        }
+
+        /**
+         * The next batch after the last one appended, starting over in an empty room once the messages run out.
+         */
+        List<Message> nextBatch() {
+            if (position + batchSize > messages.size()) {
+                repo = newRepository();
+                position = 0;
+            }
+            List<Message> batch = messages.subList(position, position + batchSize);
+            position += batchSize;
+            return batch;
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class PopulatedRoom {
+
+        @Param({"1000", "100000"})
+        int roomSize;
+
+        InMemoryChatRepository repo;
+        long firstTimestamp;
+        long lastTimestamp;
+
+        @Setup
+        public void setUp() {
+            List<Message> messages = BenchmarkData.messages(roomSize, 1, BenchmarkData.ROOM_CREATED, 1);
+            repo = newRepository();
+            repo.addMessages(ROOM_ID, messages);
+            firstTimestamp = messages.get(0).getTimestamp();
+            lastTimestamp = messages.get(messages.size() - 1).getTimestamp();
+        }
+    }
+
+    @Benchmark
+    public InMemoryChatRepository addMessages(Append state) {
+        state.repo.addMessages(ROOM_ID, state.nextBatch());
+        return state.repo;
+    }
+
+    @Benchmark
+    public List<Message> getMessages(PopulatedRoom room) {
+        return room.repo.getMessages(ROOM_ID, room.firstTimestamp, room.lastTimestamp + 1);
+    }
+
+    @Benchmark
+    public void streamMessages(PopulatedRoom room, Blackhole blackhole) throws IOException {
+        room.repo.streamMessages(ROOM_ID, room.firstTimestamp, room.lastTimestamp + 1, blackhole::consume);
+    }
+
+    @Benchmark
+    public int countLongPauses(PopulatedRoom room) {
+        return room.repo.countLongPauses(ROOM_ID, room.firstTimestamp, room.lastTimestamp + 1);
+    }
+
+    @Benchmark
+    public int countLongPausesWithinBucket(PopulatedRoom room) {
+        return room.repo.countLongPauses(ROOM_ID, room.firstTimestamp, room.firstTimestamp + HBaseRepositoryImpl.DEFAULT_ROLLUP_BUCKET_MILLIS / 2);
+    }
+}
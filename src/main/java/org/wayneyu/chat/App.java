@@ -1,19 +1,47 @@
 package org.wayneyu.chat;
 
 import com.google.gson.Gson;
+import com.google.gson.stream.JsonWriter;
+import org.apache.hadoop.conf.Configuration;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
+import org.eclipse.jetty.util.thread.ThreadPool;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.wayneyu.chat.db.ChatRepository;
 import org.wayneyu.chat.db.HBaseRepositoryImpl;
+import org.wayneyu.chat.hot.HotTierChatRepository;
+import org.wayneyu.chat.hot.TailChatRepository;
+import org.wayneyu.chat.http.VirtualThreadPool;
+import org.wayneyu.chat.ingest.MessagesReader;
+import org.wayneyu.chat.live.PublishingChatRepository;
+import org.wayneyu.chat.live.RoomHub;
+import org.wayneyu.chat.live.RoomSocket;
+import org.wayneyu.chat.ingest.WriteBehindChatRepository;
+import org.wayneyu.chat.metrics.Counter;
+import org.wayneyu.chat.metrics.Histogram;
+import org.wayneyu.chat.metrics.MetricRegistry;
 import org.wayneyu.chat.model.Message;
-import org.wayneyu.chat.model.Messages;
+import org.wayneyu.chat.model.MessagePage;
 import org.wayneyu.chat.model.Room;
+import org.wayneyu.chat.model.RoomActivity;
 import org.wayneyu.chat.model.RoomMeta;
+import spark.Request;
+import spark.Route;
+import spark.embeddedserver.EmbeddedServers;
+import spark.embeddedserver.jetty.EmbeddedJettyFactory;
 
-import java.util.Arrays;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
 
-import static com.sun.org.apache.xml.internal.serializer.utils.Utils.messages;
 import static spark.Spark.*;
 
 public class App {
@@ -22,21 +50,213 @@ public class App {
 
     private static final String ROOM_TABLE_NAME = "ROOM";
     private static final String MESSAGE_TABLE_NAME = "MESSAGE";
-    private static final ChatRepository repo = new HBaseRepositoryImpl(ROOM_TABLE_NAME, MESSAGE_TABLE_NAME);
+    private static final HBaseRepositoryImpl hbaseRepo = new HBaseRepositoryImpl(ROOM_TABLE_NAME, MESSAGE_TABLE_NAME);
+    private static final boolean live = hbaseRepo.getConfiguration().getBoolean(RoomSocket.ENABLED_KEY, false);
+    private static final RoomHub hub = new RoomHub();
+    private static final boolean asyncIngest = hbaseRepo.getConfiguration().getBoolean(WriteBehindChatRepository.ASYNC_KEY, false);
+    private static final ChatRepository repo = createRepository();
     private static final String acceptType = "application/json";
+    private static final String MAX_PAGE_SIZE_KEY = "chat.messages.maxPageSize";
+    private static final String NEXT_CURSOR_HEADER = "X-Next-Cursor";
+    private static final int maxPageSize = hbaseRepo.getConfiguration().getInt(MAX_PAGE_SIZE_KEY, 1000);
+    private static final int DEFAULT_LATEST_MESSAGES = 50;
+    private static final String MAX_ROOM_IDS_KEY = "chat.rooms.maxIds";
+    private static final int maxRoomIds = hbaseRepo.getConfiguration().getInt(MAX_ROOM_IDS_KEY, 100);
+    private static final String PUT_BATCH_SIZE_KEY = "chat.messages.putBatchSize";
+    private static final int putBatchSize = hbaseRepo.getConfiguration().getInt(PUT_BATCH_SIZE_KEY, 1000);
+    private static final String SLOW_REQUEST_MILLIS_KEY = "chat.metrics.slowRequestMillis";
+    private static final long slowRequestNanos = TimeUnit.MILLISECONDS.toNanos(hbaseRepo.getConfiguration().getLong(SLOW_REQUEST_MILLIS_KEY, 1000));
+    private static final String VIRTUAL_THREADS_KEY = "chat.http.virtualThreads";
+    private static final String MAX_THREADS_KEY = "chat.http.maxThreads";
+    private static final String MIN_THREADS_KEY = "chat.http.minThreads";
+    private static final String THREAD_IDLE_TIMEOUT_MILLIS_KEY = "chat.http.threadIdleTimeoutMillis";
+    private static final String STARTUP_RETRY_MILLIS_KEY = "chat.startup.retryMillis";
+    private static final String WARMUP_ROOM_IDS_KEY = "chat.warmup.roomIds";
+
+    // set once HBase is connected, the schema checked and the warm-up done
+    private static volatile boolean ready;
 
     private static Gson gson = new Gson();
 
+    private static ChatRepository createRepository() {
+        ChatRepository store = hbaseRepo;
+        if (hbaseRepo.getConfiguration().getBoolean(HotTierChatRepository.ENABLED_KEY, false)) {
+            store = HotTierChatRepository.create(hbaseRepo, hbaseRepo.getConfiguration());
+        }
+        if (hbaseRepo.getConfiguration().getBoolean(TailChatRepository.ENABLED_KEY, false)) {
+            store = TailChatRepository.create(store, hbaseRepo.getConfiguration());
+        }
+        if (live) {
+            // inside the write-behind queue, so messages are published once stored
+            store = new PublishingChatRepository(store, hub);
+        }
+        if (!asyncIngest) {
+            return store;
+        }
+        try {
+            WriteBehindChatRepository writeBehind = WriteBehindChatRepository.create(store, hbaseRepo.getConfiguration());
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                try {
+                    writeBehind.close();
+                } catch (IOException e) {
+                    log.error("Failed to close the ingest queue", e);
+                }
+            }));
+            return writeBehind;
+        } catch (IOException e) {
+            log.error("Failed to open the ingest log", e);
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Virtual threads when enabled and running on Java 21 or later, otherwise a bounded pool of platform threads.
+     */
+    private static ThreadPool createThreadPool(Configuration config) {
+        if (config.getBoolean(VIRTUAL_THREADS_KEY, false)) {
+            if (VirtualThreadPool.isSupported()) {
+                log.info("Handling requests on virtual threads");
+                return new VirtualThreadPool();
+            }
+            log.warn("{} is set, but virtual threads need Java 21 or later, running on {}", VIRTUAL_THREADS_KEY, System.getProperty("java.version"));
+        }
+        QueuedThreadPool threadPool = new QueuedThreadPool(
+                config.getInt(MAX_THREADS_KEY, 200),
+                config.getInt(MIN_THREADS_KEY, 8),
+                config.getInt(THREAD_IDLE_TIMEOUT_MILLIS_KEY, 60000));
+        threadPool.setName("http");
+        return threadPool;
+    }
+
+    /**
+     * Records the route's latency, up to the response being serialized, and logs requests slower than
+     * {@value #SLOW_REQUEST_MILLIS_KEY} with their path, which names the room.
+     */
+    private static Route timed(String method, String path, Route route) {
+        MetricRegistry metrics = MetricRegistry.getDefault();
+        Histogram latency = metrics.latency("chat_http_request_duration_seconds", "Time spent handling requests",
+                "method", method, "route", path);
+        Counter failures = metrics.counter("chat_http_request_failures_total", "Requests that failed with an exception",
+                "method", method, "route", path);
+        return (request, response) -> {
+            long start = System.nanoTime();
+            try {
+                return route.handle(request, response);
+            } catch (Exception e) {
+                failures.increment();
+                throw e;
+            } finally {
+                long elapsed = System.nanoTime() - start;
+                latency.record(elapsed);
+                if (elapsed > slowRequestNanos) {
+                    log.warn("Slow request {} {} took {} ms", method, request.pathInfo(), TimeUnit.NANOSECONDS.toMillis(elapsed));
+                }
+            }
+        };
+    }
+
+    /**
+     * Connects to HBase and checks the schema, retrying every {@value #STARTUP_RETRY_MILLIS_KEY} while HBase can't
+     * be reached, then warms up and marks the service ready. Runs while the server already accepts connections.
+     */
+    private static void startUp() {
+        long start = System.nanoTime();
+        long retryMillis = hbaseRepo.getConfiguration().getLong(STARTUP_RETRY_MILLIS_KEY, 5000);
+        while (true) {
+            try {
+                hbaseRepo.start();
+                break;
+            } catch (RuntimeException e) {
+                log.warn("HBase is not available, retrying in {} ms", retryMillis, e);
+                try {
+                    Thread.sleep(retryMillis);
+                } catch (InterruptedException interrupted) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+        warmUp();
+        ready = true;
+        log.info("Ready after {} ms", TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+    }
+
+    /**
+     * Caches the region locations of all tables and loads the rooms in {@value #WARMUP_ROOM_IDS_KEY}, with their
+     * latest messages in the in-memory tiers if enabled. Failures only leave the service cold.
+     */
+    private static void warmUp() {
+        List<Integer> roomIds = new ArrayList<>();
+        for (int roomId : hbaseRepo.getConfiguration().getInts(WARMUP_ROOM_IDS_KEY)) {
+            roomIds.add(roomId);
+        }
+        try {
+            hbaseRepo.warmUp(roomIds);
+            for (int roomId : roomIds) {
+                repo.getLatestMessages(roomId, DEFAULT_LATEST_MESSAGES);
+            }
+            log.info("Warmed up {} rooms", roomIds.size());
+        } catch (RuntimeException e) {
+            log.warn("Failed to warm up", e);
+        }
+    }
+
+    private static int parseLimit(Request request) {
+        String limitParam = request.queryParams("limit");
+        return limitParam != null ? Math.min(Integer.parseInt(limitParam), maxPageSize) : maxPageSize;
+    }
+
+    /**
+     * Room ids of the comma separated ids parameter, at most {@value #MAX_ROOM_IDS_KEY}.
+     */
+    private static List<Integer> parseRoomIds(Request request) {
+        String idsParam = request.queryParams("ids");
+        if (idsParam == null || idsParam.isEmpty()) {
+            throw new IllegalArgumentException("ids is missing");
+        }
+        String[] ids = idsParam.split(",");
+        if (ids.length > maxRoomIds) {
+            throw new IllegalArgumentException(String.format("At most %d ids, got %d", maxRoomIds, ids.length));
+        }
+        List<Integer> roomIds = new ArrayList<>(ids.length);
+        for (String id : ids) {
+            roomIds.add(Integer.parseInt(id.trim()));
+        }
+        return roomIds;
+    }
+
     public static void main(String[] args) {
+        EmbeddedServers.add(EmbeddedServers.defaultIdentifier(),
+                new EmbeddedJettyFactory().withThreadPool(createThreadPool(hbaseRepo.getConfiguration())));
         port(9999);
+        if (live) {
+            webSocket("/room/live", RoomSocket.create(repo, hub, () -> ready, hbaseRepo.getConfiguration(), maxPageSize));
+        }
+
+        // requests wait for startUp, except for the ones telling how it is going
+        before((request, response) -> {
+            if (!ready && !"/ready".equals(request.pathInfo()) && !"/metrics".equals(request.pathInfo())) {
+                halt(503, "Starting");
+            }
+        });
+
+        exception(IllegalArgumentException.class, (e, request, response) -> {
+            response.status(400);
+            response.body(e.getMessage());
+        });
+
+        exception(RejectedExecutionException.class, (e, request, response) -> {
+            response.status(503);
+            response.body(e.getMessage());
+        });
 
-        put("/room", acceptType, (request, response) -> {
+        put("/room", acceptType, timed("PUT", "/room", (request, response) -> {
             Room room = gson.fromJson(request.body(), Room.class);
             repo.createRoom(room);
             return "created";
-        }, gson::toJson);
+        }), gson::toJson);
 
-        get("/room/:id", (request, response) -> {
+        get("/room/:id", timed("GET", "/room/:id", (request, response) -> {
             Room room = repo.getRoom(Integer.parseInt(request.params("id")));
             if (room != null) {
                 return room;
@@ -44,28 +264,114 @@ public class App {
                 response.status(404);
                 return "Room not found";
             }
-        }, gson::toJson);
+        }), gson::toJson);
 
-        put("/messages", acceptType, (request, response) -> {
-            Messages messages = gson.fromJson(request.body(), Messages.class);
-            repo.addMessages(messages.getChatRoomId(), messages.getMessages());
+        put("/messages", acceptType, timed("PUT", "/messages", (request, response) -> {
+            String charset = request.raw().getCharacterEncoding();
+            try (Reader body = new InputStreamReader(request.raw().getInputStream(), charset != null ? charset : "UTF-8")) {
+                MessagesReader.addMessages(body, repo, putBatchSize);
+            }
+            if (asyncIngest) {
+                response.status(202);
+                return "accepted";
+            }
             return "added";
-        });
+        }));
 
-        get("/room/:roomId/messages/:start/:end", (request, response) -> {
+        get("/room/:roomId/messages/:start/:end", timed("GET", "/room/:roomId/messages/:start/:end", (request, response) -> {
             int roomId = Integer.parseInt(request.params("roomId"));
             long start = Long.parseLong(request.params("start"));
             long end = Long.parseLong(request.params("end"));
-            List<Message> messages = repo.getMessages(roomId, start, end);
-            return messages;
-        }, gson::toJson);
+            response.type(acceptType);
+            if (request.queryParams("limit") == null && request.queryParams("cursor") == null && request.queryParams("order") == null) {
+                // the whole range, written as the rows come off the scanner instead of materializing it
+                try (JsonWriter writer = new JsonWriter(new BufferedWriter(new OutputStreamWriter(response.raw().getOutputStream(), StandardCharsets.UTF_8)))) {
+                    writer.beginArray();
+                    repo.streamMessages(roomId, start, end, message -> gson.toJson(message, Message.class, writer));
+                    writer.endArray();
+                } catch (IOException e) {
+                    log.debug("Client disconnected while streaming messages of room {}", roomId, e);
+                }
+                return "";
+            }
+            boolean reverse = "desc".equals(request.queryParams("order"));
+            MessagePage page = repo.getMessages(roomId, start, end, parseLimit(request), request.queryParams("cursor"), reverse);
+            if (page.getNextCursor() != null) {
+                response.header(NEXT_CURSOR_HEADER, page.getNextCursor());
+            }
+            return gson.toJson(page.getMessages());
+        }));
 
-        get("/room/:roomId/long-pauses/:start/:end", (request, response) -> {
+        get("/room/:roomId/messages/latest", timed("GET", "/room/:roomId/messages/latest", (request, response) -> {
+            int roomId = Integer.parseInt(request.params("roomId"));
+            String nParam = request.queryParams("n");
+            int n = nParam != null ? Math.min(Integer.parseInt(nParam), maxPageSize) : DEFAULT_LATEST_MESSAGES;
+            response.type(acceptType);
+            return repo.getLatestMessages(roomId, n);
+        }), gson::toJson);
+
+        get("/rooms", timed("GET", "/rooms", (request, response) -> {
+            response.type(acceptType);
+            return repo.getRooms(parseRoomIds(request));
+        }), gson::toJson);
+
+        get("/rooms/messages/:start/:end", timed("GET", "/rooms/messages/:start/:end", (request, response) -> {
+            long start = Long.parseLong(request.params("start"));
+            long end = Long.parseLong(request.params("end"));
+            response.type(acceptType);
+            return repo.getMessages(parseRoomIds(request), start, end, parseLimit(request));
+        }), gson::toJson);
+
+        get("/room/:roomId/long-pauses/:start/:end", timed("GET", "/room/:roomId/long-pauses/:start/:end", (request, response) -> {
             int roomId = Integer.parseInt(request.params("roomId"));
             long start = Long.parseLong(request.params("start"));
             long end = Long.parseLong(request.params("end"));
             int longPausesCount = repo.countLongPauses(roomId, start, end);
             return longPausesCount;
+        }));
+
+        get("/room/:roomId/search", timed("GET", "/room/:roomId/search", (request, response) -> {
+            int roomId = Integer.parseInt(request.params("roomId"));
+            String start = request.queryParams("start");
+            String end = request.queryParams("end");
+            response.type(acceptType);
+            return repo.searchMessages(roomId, request.queryParams("q"),
+                    start != null ? Long.parseLong(start) : Long.MIN_VALUE,
+                    end != null ? Long.parseLong(end) : Long.MAX_VALUE,
+                    parseLimit(request));
+        }), gson::toJson);
+
+        get("/room/:roomId/stats/:start/:end", timed("GET", "/room/:roomId/stats/:start/:end", (request, response) -> {
+            int roomId = Integer.parseInt(request.params("roomId"));
+            long start = Long.parseLong(request.params("start"));
+            long end = Long.parseLong(request.params("end"));
+            RoomActivity activity = repo.getActivity(roomId, start, end);
+            if (activity != null) {
+                response.type(acceptType);
+                return activity;
+            } else {
+                response.status(404);
+                return "Room not found";
+            }
+        }), gson::toJson);
+
+        get("/metrics", (request, response) -> {
+            response.type("text/plain; version=0.0.4; charset=utf-8");
+            StringWriter out = new StringWriter();
+            MetricRegistry.getDefault().writeTo(out);
+            return out.toString();
+        });
+
+        get("/ready", (request, response) -> {
+            if (ready) {
+                return "ready";
+            }
+            response.status(503);
+            return "starting";
         });
+
+        Thread startup = new Thread(App::startUp, "startup");
+        startup.setDaemon(true);
+        startup.start();
     }
 }
@@ -0,0 +1,243 @@
+package org.wayneyu.chat.archive;
+
+import org.apache.hadoop.conf.Configuration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.wayneyu.chat.cache.LruCache;
+import org.wayneyu.chat.model.Message;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * Archived messages of all rooms, a directory per room holding its segments as {startTime}_{endTime}.seg. The
+ * segments of a room cover consecutive, non-overlapping time ranges from the first one on, so everything archived
+ * is before {@link #archivedBefore}.
+ *
+ * Readers list a room's segments at most every refreshMillis, so a new segment is visible to them at most that
+ * long after it was committed, or right away in the process that committed it. Blocks decoded to get single
+ * messages are kept in a small cache shared by all segments.
+ */
+public class MessageArchive {
+
+    private static final Logger logger = LoggerFactory.getLogger(MessageArchive.class);
+
+    public static final String DIR_KEY = "chat.archive.dir";
+    public static final String REFRESH_MILLIS_KEY = "chat.archive.refreshMillis";
+    public static final long DEFAULT_REFRESH_MILLIS = 10 * 1000;
+
+    private static final String SUFFIX = ".seg";
+    private static final int MAX_CACHED_ROOMS = 10000;
+    private static final int ITERATOR_PAGE_SIZE = 1000;
+    private static final int MAX_CACHED_BLOCKS = 128;
+    private static final long BLOCK_CACHE_MILLIS = 60 * 1000;
+
+    private final Path dir;
+    private final LruCache<Integer, List<Segment>> segments;
+    private final LruCache<String, Segment.Block> blocks = new LruCache<>(MAX_CACHED_BLOCKS, BLOCK_CACHE_MILLIS);
+
+    public MessageArchive(Path dir, long refreshMillis) {
+        this.dir = dir;
+        this.segments = new LruCache<>(MAX_CACHED_ROOMS, refreshMillis);
+    }
+
+    /**
+     * The archive in {@value #DIR_KEY}, null if it isn't set.
+     */
+    public static MessageArchive create(Configuration config) {
+        String dir = config.get(DIR_KEY);
+        if (dir == null || dir.isEmpty()) {
+            return null;
+        }
+        return new MessageArchive(Paths.get(dir), config.getLong(REFRESH_MILLIS_KEY, DEFAULT_REFRESH_MILLIS));
+    }
+
+    /**
+     * The room's segments, oldest first.
+     */
+    public List<Segment> getSegments(int roomId) {
+        List<Segment> roomSegments = segments.get(roomId);
+        if (roomSegments == null) {
+            roomSegments = listSegments(roomId);
+            segments.put(roomId, roomSegments);
+        }
+        return roomSegments;
+    }
+
+    /**
+     * End of the room's last segment, Long.MIN_VALUE if nothing is archived.
+     */
+    public long archivedBefore(int roomId) {
+        return archivedBefore(getSegments(roomId));
+    }
+
+    /**
+     * Writer of the room's next segment, [startTime, endTime) where startTime is {@link #archivedBefore} as listed
+     * now. Committing it lists the room's segments again on their next read.
+     */
+    public SegmentWriter newSegment(int roomId, long endTime, long archivedAt) throws IOException {
+        List<Segment> roomSegments = listSegments(roomId);
+        segments.put(roomId, roomSegments);
+        long startTime = archivedBefore(roomSegments);
+        Path roomDir = dir.resolve(Integer.toString(roomId));
+        Files.createDirectories(roomDir);
+        return new SegmentWriter(roomDir.resolve(startTime + "_" + endTime + SUFFIX), roomId, startTime, endTime, archivedAt,
+                () -> segments.invalidate(roomId));
+    }
+
+    private static long archivedBefore(List<Segment> roomSegments) {
+        return roomSegments.isEmpty() ? Long.MIN_VALUE : roomSegments.get(roomSegments.size() - 1).getEndTime();
+    }
+
+    /**
+     * Up to limit archived messages in [startTime, endTime) after the given one, oldest first, see {@link Segment#read}.
+     */
+    public List<Message> read(int roomId, long startTime, long endTime, Message after, int limit) {
+        List<Message> messages = new ArrayList<>();
+        for (Segment segment : getSegments(roomId)) {
+            if (messages.size() >= limit || segment.getStartTime() >= endTime) {
+                break;
+            }
+            if (segment.getEndTime() > startTime) {
+                messages.addAll(segment.read(startTime, endTime, after, limit - messages.size()));
+            }
+        }
+        return messages;
+    }
+
+    /**
+     * Up to limit archived messages in [startTime, endTime) before the given one, newest first, see
+     * {@link Segment#readReverse}.
+     */
+    public List<Message> readReverse(int roomId, long startTime, long endTime, Message before, int limit) {
+        List<Message> messages = new ArrayList<>();
+        List<Segment> roomSegments = getSegments(roomId);
+        for (int i = roomSegments.size() - 1; i >= 0; i--) {
+            Segment segment = roomSegments.get(i);
+            if (messages.size() >= limit || segment.getEndTime() <= startTime) {
+                break;
+            }
+            if (segment.getStartTime() < endTime) {
+                messages.addAll(segment.readReverse(startTime, endTime, before, limit - messages.size()));
+            }
+        }
+        return messages;
+    }
+
+    /**
+     * Archived messages in [startTime, endTime), oldest first, read a page at a time.
+     */
+    public Cursor iterator(int roomId, long startTime, long endTime) {
+        return new Cursor(roomId, startTime, endTime);
+    }
+
+    public Message get(int roomId, long timestamp, int index) {
+        for (Segment segment : getSegments(roomId)) {
+            if (timestamp >= segment.getStartTime() && timestamp < segment.getEndTime()) {
+                return segment.get(timestamp, index, blocks);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Whether any segment of the room overlaps [startTime, endTime).
+     */
+    public boolean overlaps(int roomId, long startTime, long endTime) {
+        for (Segment segment : getSegments(roomId)) {
+            if (segment.getStartTime() < endTime && segment.getEndTime() > startTime) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public int countPausesLongerThan(int roomId, long startTime, long endTime, long threshold, long maxPause, Segment.KeyFilter skip) {
+        int count = 0;
+        for (Segment segment : getSegments(roomId)) {
+            if (segment.getStartTime() < endTime && segment.getEndTime() > startTime) {
+                count += segment.countPausesLongerThan(startTime, endTime, threshold, maxPause, skip);
+            }
+        }
+        return count;
+    }
+
+    private List<Segment> listSegments(int roomId) {
+        List<Segment> roomSegments = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir.resolve(Integer.toString(roomId)), "*" + SUFFIX)) {
+            for (Path file : files) {
+                roomSegments.add(Segment.open(file));
+            }
+        } catch (NoSuchFileException e) {
+            return Collections.emptyList();
+        } catch (IOException e) {
+            logger.error("Failed to list the archive of room {}", roomId, e);
+            throw new RuntimeException(e);
+        }
+        roomSegments.sort(Comparator.comparingLong(Segment::getStartTime));
+        return Collections.unmodifiableList(roomSegments);
+    }
+
+    /**
+     * Iterator over archived messages that can look at the next one without taking it.
+     */
+    public class Cursor implements Iterator<Message> {
+
+        private final int roomId;
+        private final long startTime;
+        private final long endTime;
+        private Iterator<Message> page = Collections.emptyIterator();
+        private Message last;
+        private Message next;
+        private boolean done;
+
+        private Cursor(int roomId, long startTime, long endTime) {
+            this.roomId = roomId;
+            this.startTime = startTime;
+            this.endTime = endTime;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return peek() != null;
+        }
+
+        /**
+         * The next message, null at the end.
+         */
+        public Message peek() {
+            if (next == null) {
+                if (!page.hasNext() && !done) {
+                    List<Message> messages = read(roomId, startTime, endTime, last, ITERATOR_PAGE_SIZE);
+                    done = messages.size() < ITERATOR_PAGE_SIZE;
+                    page = messages.iterator();
+                }
+                if (page.hasNext()) {
+                    next = page.next();
+                    last = next;
+                }
+            }
+            return next;
+        }
+
+        @Override
+        public Message next() {
+            Message message = peek();
+            if (message == null) {
+                throw new NoSuchElementException();
+            }
+            next = null;
+            return message;
+        }
+    }
+}
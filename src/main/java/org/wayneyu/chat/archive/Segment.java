@@ -0,0 +1,397 @@
+package org.wayneyu.chat.archive;
+
+import org.wayneyu.chat.cache.LruCache;
+import org.wayneyu.chat.metrics.Counter;
+import org.wayneyu.chat.metrics.MetricRegistry;
+import org.wayneyu.chat.model.Message;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Immutable file of the archived messages of one room in [startTime, endTime), read through a memory map.
+ *
+ * Segment format, big endian
+ * header   magic int, version int, roomId int, startTime long, endTime long, archivedAt long
+ * blocks   deflated runs of about {@value SegmentWriter#BLOCK_BYTES} bytes of records
+ *          timestamp long, index int, pause long, author, message
+ *          where strings are their UTF-8 length int (-1 for null) and bytes
+ * index    per block: first timestamp long, first index int, last timestamp long, last index int,
+ *          offset long, deflated length int, length int, messages int
+ * footer   index offset long, blocks int, messages int, magic int
+ *
+ * Records are sorted by (timestamp, index) like the MESSAGE rows they were archived from. The sparse index is read
+ * when the segment is opened, so a read decodes only the blocks that overlap its range.
+ */
+public final class Segment {
+
+    static final int MAGIC = 0x43485347;
+    static final int VERSION = 1;
+    static final int HEADER_BYTES = 36;
+    static final int FOOTER_BYTES = 20;
+    private static final int INDEX_ENTRY_BYTES = 44;
+
+    private static final Counter BLOCKS_READ = MetricRegistry.getDefault().counter("chat_archive_blocks_read_total",
+            "Segment blocks decoded by archive reads");
+
+    private final Path path;
+    private final MappedByteBuffer buffer;
+    private final int roomId;
+    private final long startTime;
+    private final long endTime;
+    private final long archivedAt;
+    private final int messageCount;
+    private final long[] firstTimestamps;
+    private final int[] firstIndexes;
+    private final long[] lastTimestamps;
+    private final int[] lastIndexes;
+    private final int[] offsets;
+    private final int[] compressedLengths;
+    private final int[] lengths;
+    private final int[] counts;
+
+    private Segment(Path path, MappedByteBuffer buffer) throws IOException {
+        this.path = path;
+        this.buffer = buffer;
+        if (buffer.capacity() < HEADER_BYTES + FOOTER_BYTES || buffer.getInt(0) != MAGIC
+                || buffer.getInt(buffer.capacity() - Integer.BYTES) != MAGIC) {
+            throw new IOException("Not a segment: " + path);
+        }
+        if (buffer.getInt(4) != VERSION) {
+            throw new IOException(String.format("Unsupported segment version %d: %s", buffer.getInt(4), path));
+        }
+        this.roomId = buffer.getInt(8);
+        this.startTime = buffer.getLong(12);
+        this.endTime = buffer.getLong(20);
+        this.archivedAt = buffer.getLong(28);
+        int footer = buffer.capacity() - FOOTER_BYTES;
+        int indexOffset = (int) buffer.getLong(footer);
+        int blockCount = buffer.getInt(footer + 8);
+        this.messageCount = buffer.getInt(footer + 12);
+        if (indexOffset + (long) blockCount * INDEX_ENTRY_BYTES != footer) {
+            throw new IOException("Corrupt segment index: " + path);
+        }
+        this.firstTimestamps = new long[blockCount];
+        this.firstIndexes = new int[blockCount];
+        this.lastTimestamps = new long[blockCount];
+        this.lastIndexes = new int[blockCount];
+        this.offsets = new int[blockCount];
+        this.compressedLengths = new int[blockCount];
+        this.lengths = new int[blockCount];
+        this.counts = new int[blockCount];
+        ByteBuffer index = buffer.duplicate();
+        index.position(indexOffset);
+        for (int i = 0; i < blockCount; i++) {
+            firstTimestamps[i] = index.getLong();
+            firstIndexes[i] = index.getInt();
+            lastTimestamps[i] = index.getLong();
+            lastIndexes[i] = index.getInt();
+            offsets[i] = (int) index.getLong();
+            compressedLengths[i] = index.getInt();
+            lengths[i] = index.getInt();
+            counts[i] = index.getInt();
+        }
+    }
+
+    /**
+     * Maps the file. Segments are at most 2 GB, the size of a single map.
+     */
+    public static Segment open(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("Segment larger than 2 GB: " + path);
+            }
+            return new Segment(path, channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+    }
+
+    public Path getPath() {
+        return path;
+    }
+
+    public int getRoomId() {
+        return roomId;
+    }
+
+    public long getStartTime() {
+        return startTime;
+    }
+
+    public long getEndTime() {
+        return endTime;
+    }
+
+    /**
+     * When the messages were read from HBase; rows written later are newer than the segment.
+     */
+    public long getArchivedAt() {
+        return archivedAt;
+    }
+
+    public int getMessageCount() {
+        return messageCount;
+    }
+
+    /**
+     * Up to limit messages in [startTime, endTime) that sort after the given one (or from startTime when it is
+     * null), oldest first.
+     */
+    public List<Message> read(long startTime, long endTime, Message after, int limit) {
+        List<Message> messages = new ArrayList<>();
+        boolean exclusive = after != null && compare(after.getTimestamp(), after.getIndex(), startTime, Integer.MIN_VALUE) >= 0;
+        long fromTimestamp = exclusive ? after.getTimestamp() : startTime;
+        int fromIndex = exclusive ? after.getIndex() : Integer.MIN_VALUE;
+        for (int b = firstBlockEndingAfter(fromTimestamp, fromIndex, exclusive); b < counts.length && messages.size() < limit; b++) {
+            if (firstTimestamps[b] >= endTime) {
+                break;
+            }
+            Block block = decode(b);
+            for (int i = exclusive ? block.upperBound(fromTimestamp, fromIndex) : block.lowerBound(fromTimestamp, fromIndex);
+                 i < block.size && messages.size() < limit; i++) {
+                if (block.timestamps[i] >= endTime) {
+                    return messages;
+                }
+                messages.add(block.message(i));
+            }
+        }
+        return messages;
+    }
+
+    /**
+     * Up to limit messages in [startTime, endTime) that sort before the given one (or from endTime when it is
+     * null), newest first.
+     */
+    public List<Message> readReverse(long startTime, long endTime, Message before, int limit) {
+        List<Message> messages = new ArrayList<>();
+        boolean fromBefore = before != null && compare(before.getTimestamp(), before.getIndex(), endTime, Integer.MIN_VALUE) < 0;
+        long toTimestamp = fromBefore ? before.getTimestamp() : endTime;
+        int toIndex = fromBefore ? before.getIndex() : Integer.MIN_VALUE;
+        for (int b = lastBlockStartingBefore(toTimestamp, toIndex); b >= 0 && messages.size() < limit; b--) {
+            if (lastTimestamps[b] < startTime) {
+                break;
+            }
+            Block block = decode(b);
+            for (int i = block.lowerBound(toTimestamp, toIndex) - 1; i >= 0 && messages.size() < limit; i--) {
+                if (block.timestamps[i] < startTime) {
+                    return messages;
+                }
+                messages.add(block.message(i));
+            }
+        }
+        return messages;
+    }
+
+    /**
+     * The message with the timestamp and index, null if it isn't in the segment.
+     */
+    public Message get(long timestamp, int index) {
+        int b = firstBlockEndingAfter(timestamp, index, false);
+        if (b == counts.length || compare(firstTimestamps[b], firstIndexes[b], timestamp, index) > 0) {
+            return null;
+        }
+        return find(decode(b), timestamp, index);
+    }
+
+    /**
+     * Same, taking the block from blocks if it was decoded before and keeping it there otherwise, for lookups that
+     * tend to hit the same blocks.
+     */
+    Message get(long timestamp, int index, LruCache<String, Block> blocks) {
+        int b = firstBlockEndingAfter(timestamp, index, false);
+        if (b == counts.length || compare(firstTimestamps[b], firstIndexes[b], timestamp, index) > 0) {
+            return null;
+        }
+        String key = path + "#" + b;
+        Block block = blocks.get(key);
+        if (block == null) {
+            block = decode(b);
+            blocks.put(key, block);
+        }
+        return find(block, timestamp, index);
+    }
+
+    private static Message find(Block block, long timestamp, int index) {
+        int i = block.lowerBound(timestamp, index);
+        return i < block.size && block.timestamps[i] == timestamp && block.indexes[i] == index ? block.message(i) : null;
+    }
+
+    /**
+     * Number of messages in [startTime, endTime) whose pause, as stored when archived, is longer than threshold.
+     * Messages whose (timestamp, index) is in skip are left out.
+     */
+    public int countPausesLongerThan(long startTime, long endTime, long threshold, KeyFilter skip) {
+        return countPausesLongerThan(startTime, endTime, threshold, Long.MAX_VALUE, skip);
+    }
+
+    /**
+     * Same, only counting pauses of at most maxPause.
+     */
+    public int countPausesLongerThan(long startTime, long endTime, long threshold, long maxPause, KeyFilter skip) {
+        int count = 0;
+        for (int b = firstBlockEndingAfter(startTime, Integer.MIN_VALUE, false); b < counts.length; b++) {
+            if (firstTimestamps[b] >= endTime) {
+                break;
+            }
+            Block block = decode(b);
+            for (int i = block.lowerBound(startTime, Integer.MIN_VALUE); i < block.size && block.timestamps[i] < endTime; i++) {
+                if (block.pauses[i] > threshold && block.pauses[i] <= maxPause && !skip.contains(block.timestamps[i], block.indexes[i])) {
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Keys of messages to leave out of a count.
+     */
+    public interface KeyFilter {
+
+        KeyFilter NONE = (timestamp, index) -> false;
+
+        boolean contains(long timestamp, int index);
+    }
+
+    static int compare(long timestamp, int index, long otherTimestamp, int otherIndex) {
+        int byTimestamp = Long.compare(timestamp, otherTimestamp);
+        return byTimestamp != 0 ? byTimestamp : Integer.compare(index, otherIndex);
+    }
+
+    /**
+     * First block whose last message sorts after the key, or at it unless exclusive.
+     */
+    private int firstBlockEndingAfter(long timestamp, int index, boolean exclusive) {
+        int low = 0;
+        int high = counts.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            int cmp = compare(lastTimestamps[mid], lastIndexes[mid], timestamp, index);
+            if (cmp < 0 || (exclusive && cmp == 0)) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Last block whose first message sorts before the key, -1 if there is none.
+     */
+    private int lastBlockStartingBefore(long timestamp, int index) {
+        int low = 0;
+        int high = counts.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (compare(firstTimestamps[mid], firstIndexes[mid], timestamp, index) < 0) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low - 1;
+    }
+
+    private Block decode(int b) {
+        BLOCKS_READ.increment();
+        byte[] compressed = new byte[compressedLengths[b]];
+        ByteBuffer source = buffer.duplicate();
+        source.position(offsets[b]);
+        source.get(compressed);
+        byte[] raw = new byte[lengths[b]];
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(compressed);
+            if (inflater.inflate(raw) != raw.length) {
+                throw new RuntimeException(String.format("Truncated block %d of segment %s", b, path));
+            }
+        } catch (DataFormatException e) {
+            throw new RuntimeException(String.format("Corrupt block %d of segment %s", b, path), e);
+        } finally {
+            inflater.end();
+        }
+        return new Block(ByteBuffer.wrap(raw), counts[b]);
+    }
+
+    static final class Block {
+        private final int size;
+        private final long[] timestamps;
+        private final int[] indexes;
+        private final long[] pauses;
+        private final String[] authors;
+        private final String[] texts;
+
+        private Block(ByteBuffer raw, int size) {
+            this.size = size;
+            this.timestamps = new long[size];
+            this.indexes = new int[size];
+            this.pauses = new long[size];
+            this.authors = new String[size];
+            this.texts = new String[size];
+            for (int i = 0; i < size; i++) {
+                timestamps[i] = raw.getLong();
+                indexes[i] = raw.getInt();
+                pauses[i] = raw.getLong();
+                authors[i] = readString(raw);
+                texts[i] = readString(raw);
+            }
+        }
+
+        private Message message(int i) {
+            return new Message(indexes[i], timestamps[i], authors[i], texts[i]);
+        }
+
+        /**
+         * First position whose (timestamp, index) is not less than the given one.
+         */
+        private int lowerBound(long timestamp, int index) {
+            int low = 0;
+            int high = size;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (compare(timestamps[mid], indexes[mid], timestamp, index) < 0) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            return low;
+        }
+
+        /**
+         * First position whose (timestamp, index) is greater than the given one.
+         */
+        private int upperBound(long timestamp, int index) {
+            int low = 0;
+            int high = size;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (compare(timestamps[mid], indexes[mid], timestamp, index) <= 0) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            return low;
+        }
+
+        private static String readString(ByteBuffer raw) {
+            int length = raw.getInt();
+            if (length < 0) {
+                return null;
+            }
+            String string = new String(raw.array(), raw.position(), length, StandardCharsets.UTF_8);
+            raw.position(raw.position() + length);
+            return string;
+        }
+    }
+}
@@ -0,0 +1,168 @@
+package org.wayneyu.chat.archive;
+
+import org.wayneyu.chat.model.Message;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.Deflater;
+
+/**
+ * Writes a segment, see {@link Segment} for the format, to a temporary file that {@link #commit()} moves into place,
+ * so readers never see a partial segment. Messages are appended in (timestamp, index) order.
+ */
+public class SegmentWriter implements Closeable {
+
+    static final int BLOCK_BYTES = 64 * 1024;
+
+    private final Path path;
+    private final Path tmp;
+    private final FileChannel channel;
+    private final long startTime;
+    private final long endTime;
+    private final ByteArrayOutputStream block = new ByteArrayOutputStream(BLOCK_BYTES + 1024);
+    private final DataOutputStream blockOut = new DataOutputStream(block);
+    private final ByteArrayOutputStream index = new ByteArrayOutputStream();
+    private final DataOutputStream indexOut = new DataOutputStream(index);
+    private final Deflater deflater = new Deflater();
+    private long position;
+    private int blockCount;
+    private int messageCount;
+    private int blockMessages;
+    private long firstTimestamp;
+    private int firstIndex;
+    private Message last;
+    private boolean committed;
+    private final Runnable onCommit;
+
+    SegmentWriter(Path path, int roomId, long startTime, long endTime, long archivedAt, Runnable onCommit) throws IOException {
+        if (startTime >= endTime) {
+            throw new IllegalArgumentException(String.format("Empty segment range [%d, %d)", startTime, endTime));
+        }
+        this.path = path;
+        this.tmp = path.resolveSibling(path.getFileName() + ".tmp");
+        this.startTime = startTime;
+        this.endTime = endTime;
+        this.onCommit = onCommit;
+        this.channel = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+        ByteBuffer header = ByteBuffer.allocate(Segment.HEADER_BYTES);
+        header.putInt(Segment.MAGIC).putInt(Segment.VERSION).putInt(roomId)
+                .putLong(startTime).putLong(endTime).putLong(archivedAt);
+        header.flip();
+        write(header);
+    }
+
+    /**
+     * @throws IllegalArgumentException if the message is outside the segment's range or not after the previous one
+     */
+    public void append(Message message, long pause) throws IOException {
+        if (message.getTimestamp() < startTime || message.getTimestamp() >= endTime) {
+            throw new IllegalArgumentException(String.format("Message at %d outside of segment range [%d, %d)",
+                    message.getTimestamp(), startTime, endTime));
+        }
+        if (last != null && Segment.compare(message.getTimestamp(), message.getIndex(), last.getTimestamp(), last.getIndex()) <= 0) {
+            throw new IllegalArgumentException("Messages must be appended in rowkey order");
+        }
+        if (blockMessages == 0) {
+            firstTimestamp = message.getTimestamp();
+            firstIndex = message.getIndex();
+        }
+        blockOut.writeLong(message.getTimestamp());
+        blockOut.writeInt(message.getIndex());
+        blockOut.writeLong(pause);
+        writeString(message.getAuthor());
+        writeString(message.getMessage());
+        blockMessages++;
+        messageCount++;
+        last = message;
+        if (block.size() >= BLOCK_BYTES) {
+            flushBlock();
+        }
+    }
+
+    public int getMessageCount() {
+        return messageCount;
+    }
+
+    /**
+     * Writes the index, syncs the file and moves it into place.
+     */
+    public Segment commit() throws IOException {
+        flushBlock();
+        long indexOffset = position;
+        write(ByteBuffer.wrap(index.toByteArray()));
+        ByteBuffer footer = ByteBuffer.allocate(Segment.FOOTER_BYTES);
+        footer.putLong(indexOffset).putInt(blockCount).putInt(messageCount).putInt(Segment.MAGIC);
+        footer.flip();
+        write(footer);
+        channel.force(true);
+        channel.close();
+        Files.move(tmp, path, StandardCopyOption.ATOMIC_MOVE);
+        committed = true;
+        onCommit.run();
+        return Segment.open(path);
+    }
+
+    /**
+     * Deletes the temporary file unless committed.
+     */
+    @Override
+    public void close() throws IOException {
+        deflater.end();
+        if (!committed) {
+            channel.close();
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    private void writeString(String string) throws IOException {
+        if (string == null) {
+            blockOut.writeInt(-1);
+            return;
+        }
+        byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+        blockOut.writeInt(bytes.length);
+        blockOut.write(bytes);
+    }
+
+    private void flushBlock() throws IOException {
+        if (blockMessages == 0) {
+            return;
+        }
+        byte[] raw = block.toByteArray();
+        deflater.reset();
+        deflater.setInput(raw);
+        deflater.finish();
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream(raw.length / 2);
+        byte[] buffer = new byte[8192];
+        while (!deflater.finished()) {
+            compressed.write(buffer, 0, deflater.deflate(buffer));
+        }
+        indexOut.writeLong(firstTimestamp);
+        indexOut.writeInt(firstIndex);
+        indexOut.writeLong(last.getTimestamp());
+        indexOut.writeInt(last.getIndex());
+        indexOut.writeLong(position);
+        indexOut.writeInt(compressed.size());
+        indexOut.writeInt(raw.length);
+        indexOut.writeInt(blockMessages);
+        write(ByteBuffer.wrap(compressed.toByteArray()));
+        block.reset();
+        blockMessages = 0;
+        blockCount++;
+    }
+
+    private void write(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer);
+        }
+    }
+}
@@ -0,0 +1,161 @@
+package org.wayneyu.chat.db;
+
+import org.apache.hadoop.hbase.client.Increment;
+import org.apache.hadoop.hbase.client.Put;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.client.Row;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.wayneyu.chat.model.AuthorActivity;
+import org.wayneyu.chat.model.RoomActivity;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * Per room, per time bucket activity of each author.
+ *
+ * Stats schema
+ * row                      column
+ * chatRoomId|bucketStart   author:{author}       // messages of the author in the bucket
+ *                          first:{author}        // timestamp of the author's first message in the bucket
+ *                          last:{author}         // timestamp of the author's last message in the bucket
+ *
+ * Counts are incremented. first and last are put with the cell timestamp set to Long.MAX_VALUE - 1 - timestamp and
+ * timestamp respectively, so that the single version HBase keeps is the earliest and the latest message without
+ * reading the row (Long.MAX_VALUE itself would be replaced by the server time). Messages with negative timestamps
+ * are only counted.
+ *
+ * A rollup collects the messages of one room, either to write them or to aggregate a range from stats rows and
+ * messages.
+ */
+class ActivityRollup {
+
+    static final long DEFAULT_BUCKET_MILLIS = 60 * 60 * 1000;
+
+    static final String AUTHOR_COLUMN_FAMILY = "author";
+    static final String FIRST_COLUMN_FAMILY = "first";
+    static final String LAST_COLUMN_FAMILY = "last";
+
+    private static class Activity {
+        private long messages;
+        private long first = Long.MAX_VALUE;
+        private long last = Long.MIN_VALUE;
+
+        private void add(long messages, long first, long last) {
+            this.messages += messages;
+            this.first = Math.min(this.first, first);
+            this.last = Math.max(this.last, last);
+        }
+    }
+
+    private final long bucketMillis;
+    private final Map<Long, Map<String, Activity>> buckets = new TreeMap<>();
+
+    ActivityRollup(long bucketMillis) {
+        this.bucketMillis = bucketMillis;
+    }
+
+    static byte[] rowkey(int roomId, long bucketStart) {
+        return RowkeyCodec.messageKeyPrefix(roomId, bucketStart);
+    }
+
+    long bucketStart(long timestamp) {
+        return Math.floorDiv(timestamp, bucketMillis) * bucketMillis;
+    }
+
+    /**
+     * First bucket boundary at or after the timestamp.
+     */
+    long bucketCeiling(long timestamp) {
+        long start = bucketStart(timestamp);
+        return start == timestamp ? start : start + bucketMillis;
+    }
+
+    /**
+     * Null authors are kept as the empty string, which is also how they read back from HBase.
+     */
+    void addMessage(String author, long timestamp) {
+        activity(bucketStart(timestamp), author == null ? "" : author).add(1, timestamp, timestamp);
+    }
+
+    /**
+     * Adds a stats row read back from HBase.
+     */
+    void addRow(Result row) {
+        long bucket = RowkeyCodec.decodeTimestamp(row.getRow(), 0);
+        byte[] firstFamily = Bytes.toBytes(FIRST_COLUMN_FAMILY);
+        byte[] lastFamily = Bytes.toBytes(LAST_COLUMN_FAMILY);
+        NavigableMap<byte[], byte[]> counts = row.getFamilyMap(Bytes.toBytes(AUTHOR_COLUMN_FAMILY));
+        if (counts == null) {
+            return;
+        }
+        for (Map.Entry<byte[], byte[]> count : counts.entrySet()) {
+            byte[] qualifier = count.getKey();
+            byte[] first = row.getValue(firstFamily, qualifier);
+            byte[] last = row.getValue(lastFamily, qualifier);
+            // first and last are missing for negative timestamps, which are only counted
+            activity(bucket, Bytes.toString(qualifier)).add(Bytes.toLong(count.getValue()),
+                    first != null ? Bytes.toLong(first) : bucket,
+                    last != null ? Bytes.toLong(last) : bucket + bucketMillis - 1);
+        }
+    }
+
+    private Activity activity(long bucket, String author) {
+        return buckets.computeIfAbsent(bucket, k -> new HashMap<>()).computeIfAbsent(author, k -> new Activity());
+    }
+
+    List<Row> toMutations(int roomId) {
+        List<Row> mutations = new ArrayList<>();
+        for (Map.Entry<Long, Map<String, Activity>> bucket : buckets.entrySet()) {
+            byte[] rowkey = rowkey(roomId, bucket.getKey());
+            Increment increment = new Increment(rowkey);
+            Put put = new Put(rowkey);
+            for (Map.Entry<String, Activity> author : bucket.getValue().entrySet()) {
+                byte[] qualifier = Bytes.toBytes(author.getKey());
+                Activity activity = author.getValue();
+                increment.addColumn(Bytes.toBytes(AUTHOR_COLUMN_FAMILY), qualifier, activity.messages);
+                if (activity.first >= 0) {
+                    put.addColumn(Bytes.toBytes(FIRST_COLUMN_FAMILY), qualifier, Long.MAX_VALUE - 1 - activity.first, Bytes.toBytes(activity.first));
+                }
+                if (activity.last >= 0) {
+                    put.addColumn(Bytes.toBytes(LAST_COLUMN_FAMILY), qualifier, activity.last, Bytes.toBytes(activity.last));
+                }
+            }
+            mutations.add(increment);
+            if (!put.isEmpty()) {
+                mutations.add(put);
+            }
+        }
+        return mutations;
+    }
+
+    RoomActivity toActivity(int roomId, long startTime, long endTime) {
+        SortedMap<Long, Long> bucketCounts = new TreeMap<>();
+        Map<String, Activity> authors = new HashMap<>();
+        long total = 0;
+        for (Map.Entry<Long, Map<String, Activity>> bucket : buckets.entrySet()) {
+            long count = 0;
+            for (Map.Entry<String, Activity> author : bucket.getValue().entrySet()) {
+                Activity activity = author.getValue();
+                count += activity.messages;
+                authors.computeIfAbsent(author.getKey(), k -> new Activity()).add(activity.messages, activity.first, activity.last);
+            }
+            bucketCounts.put(bucket.getKey(), count);
+            total += count;
+        }
+        List<AuthorActivity> authorActivities = new ArrayList<>(authors.size());
+        for (Map.Entry<String, Activity> author : authors.entrySet()) {
+            Activity activity = author.getValue();
+            authorActivities.add(new AuthorActivity(author.getKey(), activity.messages, activity.first, activity.last));
+        }
+        authorActivities.sort((a, b) -> a.getMessageCount() != b.getMessageCount()
+                ? Long.compare(b.getMessageCount(), a.getMessageCount())
+                : a.getAuthor().compareTo(b.getAuthor()));
+        return new RoomActivity(roomId, startTime, endTime, total, bucketMillis, bucketCounts, authorActivities);
+    }
+}
@@ -1,9 +1,18 @@
 package org.wayneyu.chat.db;
 
 import org.wayneyu.chat.model.Message;
+import org.wayneyu.chat.model.MessagePage;
 import org.wayneyu.chat.model.Room;
+import org.wayneyu.chat.model.RoomActivity;
 
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 public interface ChatRepository {
 
@@ -13,8 +22,91 @@ public interface ChatRepository {
 
     List<Message> getMessages(int chatRoomId, long startTime, long endTime);
 
+    void streamMessages(int chatRoomId, long startTime, long endTime, MessageConsumer consumer) throws IOException;
+
+    /**
+     * Up to limit messages in [startTime, endTime), oldest first or newest first when reverse, continuing after
+     * the cursor of the previous page when one is given.
+     */
+    MessagePage getMessages(int chatRoomId, long startTime, long endTime, int limit, String cursor, boolean reverse);
+
+    /**
+     * First page of each room's messages in [startTime, endTime), see {@link #getMessages(int, long, long, int, String, boolean)},
+     * keyed by room id in the order of the ids. Rooms without messages in the range get an empty page.
+     */
+    default Map<Integer, MessagePage> getMessages(List<Integer> chatRoomIds, long startTime, long endTime, int limit) {
+        Map<Integer, MessagePage> pages = new LinkedHashMap<>();
+        for (int chatRoomId : new LinkedHashSet<>(chatRoomIds)) {
+            pages.put(chatRoomId, getMessages(chatRoomId, startTime, endTime, limit, null, false));
+        }
+        return pages;
+    }
+
+    /**
+     * The latest n messages of the room, oldest first. This default reads them newest first with
+     * {@link #getMessages(int, long, long, int, String, boolean)}.
+     */
+    default List<Message> getLatestMessages(int chatRoomId, int n) {
+        List<Message> latest = new ArrayList<>(getMessages(chatRoomId, Long.MIN_VALUE, Long.MAX_VALUE, n, null, true).getMessages());
+        Collections.reverse(latest);
+        return latest;
+    }
+
     Room getRoom(int id);
 
+    /**
+     * The rooms that exist among the ids, in the order of the ids.
+     */
+    default List<Room> getRooms(List<Integer> ids) {
+        List<Room> rooms = new ArrayList<>();
+        for (int id : new LinkedHashSet<>(ids)) {
+            Room room = getRoom(id);
+            if (room != null) {
+                rooms.add(room);
+            }
+        }
+        return rooms;
+    }
+
     int countLongPauses(int chatRoomId, long startTime, long endTime);
 
+    /**
+     * Up to limit messages in [startTime, endTime), oldest first, whose text has every term of the query. Terms are
+     * runs of letters and digits, compared case insensitively. This default reads every message of the range.
+     *
+     * @throws IllegalArgumentException if the query has no terms or too many
+     */
+    default List<Message> searchMessages(int chatRoomId, String query, long startTime, long endTime, int limit) {
+        MessageCursor.checkLimit(limit);
+        Set<String> terms = SearchIndex.queryTerms(query);
+        List<Message> messages = new ArrayList<>();
+        try {
+            streamMessages(chatRoomId, startTime, endTime, message -> {
+                if (messages.size() < limit && SearchIndex.matches(message, terms)) {
+                    messages.add(message);
+                }
+            });
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        return messages;
+    }
+
+    /**
+     * Messages per author and per time bucket in [startTime, endTime), with each author's first and last message,
+     * null if the room doesn't exist. This default reads every message of the range.
+     */
+    default RoomActivity getActivity(int chatRoomId, long startTime, long endTime) {
+        if (getRoom(chatRoomId) == null) {
+            return null;
+        }
+        ActivityRollup activity = new ActivityRollup(ActivityRollup.DEFAULT_BUCKET_MILLIS);
+        try {
+            streamMessages(chatRoomId, startTime, endTime, message -> activity.addMessage(message.getAuthor(), message.getTimestamp()));
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        return activity.toActivity(chatRoomId, startTime, endTime);
+    }
+
 }
\ No newline at end of file
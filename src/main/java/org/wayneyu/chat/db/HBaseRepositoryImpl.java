@@ -1,19 +1,52 @@
 package org.wayneyu.chat.db;
 
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.Cell;
 import org.apache.hadoop.hbase.TableName;
+import org.apache.hadoop.hbase.client.Delete;
+import org.apache.hadoop.hbase.client.Get;
 import org.apache.hadoop.hbase.client.Put;
 import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.client.ResultScanner;
+import org.apache.hadoop.hbase.client.RowMutations;
+import org.apache.hadoop.hbase.client.Scan;
+import org.apache.hadoop.hbase.filter.ColumnRangeFilter;
 import org.apache.hadoop.hbase.filter.CompareFilter;
+import org.apache.hadoop.hbase.filter.FilterList;
+import org.apache.hadoop.hbase.filter.FirstKeyOnlyFilter;
+import org.apache.hadoop.hbase.filter.KeyOnlyFilter;
+import org.apache.hadoop.hbase.filter.LongComparator;
+import org.apache.hadoop.hbase.filter.PageFilter;
+import org.apache.hadoop.hbase.filter.SingleColumnValueFilter;
 import org.apache.hadoop.hbase.util.Bytes;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.wayneyu.chat.archive.MessageArchive;
+import org.wayneyu.chat.archive.Segment;
+import org.wayneyu.chat.archive.SegmentWriter;
+import org.wayneyu.chat.cache.LruCache;
 import org.wayneyu.chat.hbase.HBaseService;
+import org.wayneyu.chat.metrics.Counter;
+import org.wayneyu.chat.metrics.Histogram;
+import org.wayneyu.chat.metrics.MetricRegistry;
 import org.wayneyu.chat.model.Message;
+import org.wayneyu.chat.model.MessagePage;
 import org.wayneyu.chat.model.Room;
+import org.wayneyu.chat.model.RoomActivity;
 import org.wayneyu.chat.model.RoomMeta;
 
+import javax.annotation.PostConstruct;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class HBaseRepositoryImpl implements ChatRepository {
 
@@ -24,9 +57,77 @@ public class HBaseRepositoryImpl implements ChatRepository {
     public static final String ROOM_INFO_COLUMN_FAMILY = "info";
     public static final String ROOM_META_COLUMN_FAMILY = "meta";
     public static final String MESSAGE_MESSAGE_COLUMN_FAMILY = "message";
+    public static final String MESSAGE_META_COLUMN_FAMILY = "meta";
+
+    private static final int REBUILD_BATCH_SIZE = 1000;
+
+    private static final String MERGE_LEASE_QUALIFIER = "mergeLease";
+    private static final long MERGE_LEASE_MILLIS = 30 * 1000;
+    private static final long MERGE_LEASE_RETRY_MILLIS = 10;
+    private static final int ROOM_LOCK_STRIPES = 256;
+
+    public static final String ROLLUP_BUCKET_MILLIS_KEY = "chat.rollup.bucketMillis";
+    public static final long DEFAULT_ROLLUP_BUCKET_MILLIS = 60 * 60 * 1000;
+
+    // fixed once the stats table has data, its counters can't be rebuilt from other buckets
+    public static final String STATS_BUCKET_MILLIS_KEY = "chat.stats.bucketMillis";
+    public static final long DEFAULT_STATS_BUCKET_MILLIS = ActivityRollup.DEFAULT_BUCKET_MILLIS;
+
+    public static final String SEARCH_INDEX_KEY = "chat.search.indexMessages";
+    // candidates up to which the postings of the next term are probed with Gets instead of scanned
+    private static final int MAX_SEARCH_PROBES = 1000;
+
+    public static final String ROOM_CACHE_MAX_SIZE_KEY = "chat.cache.rooms.maxSize";
+    public static final int DEFAULT_ROOM_CACHE_MAX_SIZE = 10000;
+    public static final String ROOM_CACHE_TTL_MILLIS_KEY = "chat.cache.rooms.ttlMillis";
+    public static final long DEFAULT_ROOM_CACHE_TTL_MILLIS = 60 * 1000;
+
+    public static final String MULTI_ROOM_PARALLELISM_KEY = "chat.messages.multiRoomParallelism";
+    public static final int DEFAULT_MULTI_ROOM_PARALLELISM = 8;
+
+    public static final String RANGE_PARALLELISM_KEY = "chat.messages.rangeParallelism";
+    public static final int DEFAULT_RANGE_PARALLELISM = 4;
+    public static final String RANGE_READER_THREADS_KEY = "chat.messages.rangeReaderThreads";
+    public static final int DEFAULT_RANGE_READER_THREADS = 16;
+    public static final String SUB_RANGE_MILLIS_KEY = "chat.messages.subRangeMillis";
+    public static final long DEFAULT_SUB_RANGE_MILLIS = 7 * 24 * 60 * 60 * 1000L;
+    private static final int SUB_RANGE_CHUNK_ROWS = 500;
+    private static final int SUB_RANGE_QUEUED_CHUNKS = 2;
+    // how often a consumer waiting on a sub-range checks whether its scan failed
+    private static final long SUB_RANGE_POLL_MILLIS = 100;
+    // how long a scan waits for a consumer that doesn't take its chunks before giving the thread back
+    private static final long SUB_RANGE_OFFER_TIMEOUT_MILLIS = 30 * 1000;
+    private static final List<Message> END_OF_SUB_RANGE = Collections.unmodifiableList(new ArrayList<>());
+
+    // false writes the four cell layout, for rolling upgrades from versions that can't read message:m
+    public static final String COMPACT_MESSAGES_KEY = "chat.message.compactCells";
 
     private String roomTableName;
     private String messageTableName;
+    private String rollupTableName;
+    private long rollupBucketMillis;
+    private String statsTableName;
+    private long statsBucketMillis;
+    private String indexTableName;
+    private boolean indexMessages;
+    private MessageKeySpace messageKeys;
+    private boolean compactMessages;
+    private ExecutorService roomReaders;
+    private int rangeParallelism;
+    private long subRangeMillis;
+    private ExecutorService rangeReaders;
+    // null unless chat.archive.dir is set
+    private MessageArchive archive;
+
+    private static final Histogram BATCH_SIZES = MetricRegistry.getDefault().sizes("chat_messages_batch_size",
+            "Messages per batch written to HBase");
+    private static final Counter OUT_OF_ORDER_BATCHES = MetricRegistry.getDefault().counter("chat_messages_out_of_order_batches_total",
+            "Batches written before the last message of their room, which read the stored rows around them");
+
+    // room info and meta are cached separately, meta changes with every addMessages
+    private LruCache<Integer, Room> roomCache;
+    private LruCache<Integer, RoomMeta> roomMetaCache;
+    private final Object[] roomLocks = new Object[ROOM_LOCK_STRIPES];
 
     static {
         hbase = new HBaseService();
@@ -34,42 +135,148 @@ public class HBaseRepositoryImpl implements ChatRepository {
     }
 
     public HBaseRepositoryImpl(String roomTableName, String messageTableName) {
+        this(roomTableName, messageTableName, messageTableName + "_ROLLUP");
+    }
+
+    public HBaseRepositoryImpl(String roomTableName, String messageTableName, String rollupTableName) {
+        this(roomTableName, messageTableName, rollupTableName, messageTableName + "_STATS");
+    }
+
+    public HBaseRepositoryImpl(String roomTableName, String messageTableName, String rollupTableName, String statsTableName) {
         this.roomTableName = roomTableName;
         this.messageTableName = messageTableName;
-        createTables();
+        this.rollupTableName = rollupTableName;
+        this.statsTableName = statsTableName;
+        Configuration config = hbase.getConfiguration();
+        this.rollupBucketMillis = config.getLong(ROLLUP_BUCKET_MILLIS_KEY, DEFAULT_ROLLUP_BUCKET_MILLIS);
+        this.statsBucketMillis = config.getLong(STATS_BUCKET_MILLIS_KEY, DEFAULT_STATS_BUCKET_MILLIS);
+        this.indexTableName = messageTableName + "_INDEX";
+        this.indexMessages = config.getBoolean(SEARCH_INDEX_KEY, true);
+        this.messageKeys = MessageKeySpace.create(config);
+        this.compactMessages = config.getBoolean(COMPACT_MESSAGES_KEY, true);
+        this.archive = MessageArchive.create(config);
+        int cacheSize = config.getInt(ROOM_CACHE_MAX_SIZE_KEY, DEFAULT_ROOM_CACHE_MAX_SIZE);
+        long cacheTtl = config.getLong(ROOM_CACHE_TTL_MILLIS_KEY, DEFAULT_ROOM_CACHE_TTL_MILLIS);
+        this.roomCache = new LruCache<>(cacheSize, cacheTtl);
+        this.roomMetaCache = new LruCache<>(cacheSize, cacheTtl);
+        AtomicInteger readerCount = new AtomicInteger();
+        this.roomReaders = Executors.newFixedThreadPool(config.getInt(MULTI_ROOM_PARALLELISM_KEY, DEFAULT_MULTI_ROOM_PARALLELISM), runnable -> {
+            Thread thread = new Thread(runnable, "room-reader-" + readerCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        int rangeReaderThreads = Math.max(1, config.getInt(RANGE_READER_THREADS_KEY, DEFAULT_RANGE_READER_THREADS));
+        // a single request never takes more than half of the readers
+        this.rangeParallelism = Math.min(config.getInt(RANGE_PARALLELISM_KEY, DEFAULT_RANGE_PARALLELISM), Math.max(1, rangeReaderThreads / 2));
+        this.subRangeMillis = config.getLong(SUB_RANGE_MILLIS_KEY, DEFAULT_SUB_RANGE_MILLIS);
+        AtomicInteger rangeReaderCount = new AtomicInteger();
+        this.rangeReaders = Executors.newFixedThreadPool(rangeReaderThreads, runnable -> {
+            Thread thread = new Thread(runnable, "range-reader-" + rangeReaderCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        for (int i = 0; i < roomLocks.length; i++) {
+            roomLocks[i] = new Object();
+        }
+        registerCacheMetrics("rooms", roomCache);
+        registerCacheMetrics("roomMeta", roomMetaCache);
     }
 
-    private void createTables() {
+    public Configuration getConfiguration() {
+        return hbase.getConfiguration();
+    }
+
+    private static void registerCacheMetrics(String name, LruCache<?, ?> cache) {
+        MetricRegistry metrics = MetricRegistry.getDefault();
+        metrics.counter("chat_cache_requests_total", "Lookups of in-process caches", cache::getHitCount, "cache", name, "result", "hit");
+        metrics.counter("chat_cache_requests_total", "Lookups of in-process caches", cache::getMissCount, "cache", name, "result", "miss");
+        metrics.gauge("chat_cache_entries", "Entries of in-process caches", cache::size, "cache", name);
+    }
+
+    /**
+     * Connects to HBase and creates the tables, or the column families, that are missing, checking all of them at
+     * once. The constructor doesn't talk to HBase, so a service can accept connections before this is done.
+     */
+    @PostConstruct
+    public void start() {
         try {
-            hbase.createTable(TableName.valueOf(roomTableName), new String[]{ROOM_INFO_COLUMN_FAMILY, ROOM_META_COLUMN_FAMILY});
-            hbase.createTable(TableName.valueOf(messageTableName), new String[]{MESSAGE_MESSAGE_COLUMN_FAMILY});
+            Configuration config = hbase.getConfiguration();
+            hbase.connect();
+            hbase.createTables(Arrays.asList(
+                    new HBaseService.TableSpec(TableName.valueOf(roomTableName), new String[]{ROOM_INFO_COLUMN_FAMILY, ROOM_META_COLUMN_FAMILY},
+                            TableSplits.roomSplits(config)),
+                    new HBaseService.TableSpec(TableName.valueOf(messageTableName), new String[]{MESSAGE_MESSAGE_COLUMN_FAMILY, MESSAGE_META_COLUMN_FAMILY},
+                            TableSplits.messageSplits(config, messageKeys)),
+                    new HBaseService.TableSpec(TableName.valueOf(rollupTableName), new String[]{PauseRollup.COUNT_COLUMN_FAMILY, PauseRollup.PAUSE_COLUMN_FAMILY},
+                            TableSplits.roomSplits(config)),
+                    new HBaseService.TableSpec(TableName.valueOf(statsTableName),
+                            new String[]{ActivityRollup.AUTHOR_COLUMN_FAMILY, ActivityRollup.FIRST_COLUMN_FAMILY, ActivityRollup.LAST_COLUMN_FAMILY},
+                            TableSplits.roomSplits(config)),
+                    new HBaseService.TableSpec(TableName.valueOf(indexTableName), new String[]{SearchIndex.POSTING_COLUMN_FAMILY},
+                            TableSplits.roomSplits(config))));
         } catch (IOException e) {
             logger.error("Failed to initialize HBase", e);
             throw new RuntimeException(e);
         }
     }
 
-    private String getRoomRowkey(int roomId) {
-        return Integer.toString(roomId);
+    /**
+     * Caches the region locations of all tables and the rooms' info and meta, so that the first requests for
+     * them don't wait on hbase:meta or the ROOM table.
+     */
+    public void warmUp(List<Integer> roomIds) {
+        try {
+            int regions = hbase.cacheRegionLocations(Arrays.asList(roomTableName, messageTableName, rollupTableName, statsTableName, indexTableName));
+            logger.info("Cached the locations of {} regions", regions);
+        } catch (IOException e) {
+            logger.error("Failed to cache region locations", e);
+            throw new RuntimeException(e);
+        }
+        if (!roomIds.isEmpty()) {
+            getRooms(roomIds);
+        }
+    }
+
+    private byte[] getRoomRowkey(int roomId) {
+        return RowkeyCodec.roomKey(roomId);
     }
 
-    private String getMessageRowkey(int roomId, Message message) {
-        return getMessageRowkey(roomId, message.getTimestamp());
+    private byte[] getMessageRowkey(int roomId, Message message) {
+        return messageKeys.messageKey(roomId, message.getTimestamp(), message.getIndex());
     }
 
-    private String getMessageRowkey(int roomId, long timestamp) {
-        return String.format("%010d_%013d", roomId, timestamp);
+    /**
+     * Unsalted range bound, see {@link #getMessageScanner}.
+     */
+    private byte[] getMessageRowkey(int roomId, long timestamp) {
+        return RowkeyCodec.messageKeyPrefix(roomId, timestamp);
     }
 
-    private long getTimestampFromMessageRowkey(String rowkey) {
-        return Long.parseLong(rowkey.split("_")[1]);
+    /**
+     * Scanner over the MESSAGE rows between the unsalted start and stop rows, which are the upper and lower bound
+     * for reversed scans. With salt buckets, the scan is run on each bucket and the rows are merged in key order.
+     */
+    private ResultScanner getMessageScanner(Scan scan, byte[] startRow, byte[] stopRow) throws IOException {
+        if (!messageKeys.isSalted()) {
+            scan.setStartRow(startRow);
+            scan.setStopRow(stopRow);
+            return hbase.getScanner(messageTableName, scan);
+        }
+        List<Scan> scans = new ArrayList<>(messageKeys.getBucketCount());
+        for (int bucket = 0; bucket < messageKeys.getBucketCount(); bucket++) {
+            Scan bucketScan = new Scan(scan);
+            bucketScan.setStartRow(messageKeys.salted(bucket, startRow));
+            bucketScan.setStopRow(messageKeys.salted(bucket, stopRow));
+            scans.add(bucketScan);
+        }
+        return hbase.getMergedScanner(messageTableName, scans, messageKeys.rowOrder(scan.isReversed()));
     }
 
     public void createRoom(Room room) {
         try {
-            logger.info("Creating room: " + room);
+            logger.debug("Creating room: {}", room);
 
-            Put put = new Put(Bytes.toBytes(getRoomRowkey(room.getId())));
+            Put put = new Put(getRoomRowkey(room.getId()));
             put.addColumn(Bytes.toBytes(ROOM_INFO_COLUMN_FAMILY), Bytes.toBytes("name"), Bytes.toBytes(room.getName()));
             put.addColumn(Bytes.toBytes(ROOM_INFO_COLUMN_FAMILY), Bytes.toBytes("created"), Bytes.toBytes(room.getCreated()));
             put.addColumn(Bytes.toBytes(ROOM_INFO_COLUMN_FAMILY), Bytes.toBytes("participants"), Bytes.toBytes(String.join(",", room.getParticipants())));
@@ -77,6 +284,8 @@ public class HBaseRepositoryImpl implements ChatRepository {
             put.addColumn(Bytes.toBytes(ROOM_META_COLUMN_FAMILY), Bytes.toBytes("created"), Bytes.toBytes(room.getCreated()));
             put.addColumn(Bytes.toBytes(ROOM_META_COLUMN_FAMILY), Bytes.toBytes("lastMsgTs"), Bytes.toBytes(room.getCreated()));
             hbase.putRow(roomTableName, put);
+            roomCache.put(room.getId(), new Room(room.getId(), room.getName(), room.getCreated(), room.getParticipants()));
+            roomMetaCache.put(room.getId(), new RoomMeta(0, room.getCreated(), room.getCreated()));
         } catch (IOException e) {
             logger.error("Failed to create room in HBase", e);
             throw new RuntimeException(e);
@@ -84,67 +293,658 @@ public class HBaseRepositoryImpl implements ChatRepository {
     }
 
     public void addMessages(int roomId, List<Message> messages){
+        if (messages.isEmpty()) {
+            return;
+        }
+        synchronized (roomLocks[Math.floorMod(roomId, roomLocks.length)]) {
+            addMessagesInOrder(roomId, messages);
+        }
+    }
+
+    /**
+     * Adds the messages while holding the room's lock of this process, so that its batches see each other's
+     * rows. Appends to other instances are ordered by the meta claim; merges of late batches, which rewrite the
+     * pauses of stored rows, also take the room's merge lease, see {@link #acquireMergeLease}.
+     */
+    private void addMessagesInOrder(int roomId, List<Message> messages) {
+        long lease = 0;
         try {
-            logger.info("Adding messages to room: " + roomId);
+            logger.debug("Adding {} messages to room: {}", messages.size(), roomId);
+            BATCH_SIZES.record(messages.size());
 
-            List<Put> puts = new LinkedList<>();
-            for (Message message : messages) {
-                Put put = new Put(Bytes.toBytes(getMessageRowkey(roomId, message)));
-                put.addColumn(Bytes.toBytes(MESSAGE_MESSAGE_COLUMN_FAMILY), Bytes.toBytes("index"), Bytes.toBytes(message.getIndex()));
-                put.addColumn(Bytes.toBytes(MESSAGE_MESSAGE_COLUMN_FAMILY), Bytes.toBytes("author"), Bytes.toBytes(message.getAuthor()));
-                put.addColumn(Bytes.toBytes(MESSAGE_MESSAGE_COLUMN_FAMILY), Bytes.toBytes("timestamp"), Bytes.toBytes(message.getTimestamp()));
-                put.addColumn(Bytes.toBytes(MESSAGE_MESSAGE_COLUMN_FAMILY), Bytes.toBytes("message"), Bytes.toBytes(message.getMessage()));
-                puts.add(put);
+            List<Message> batch = sortedByRowkey(messages);
+            Message firstMessage = batch.get(0);
+            Message lastMessage = batch.get(batch.size() - 1);
+            RoomMeta meta = getRoomMeta(roomId);
+            while (meta != null && lastMessage.getTimestamp() > meta.getLastMessageTimestamp()
+                    && !claimRoomMeta(roomId, meta, lastMessage.getIndex(), lastMessage.getTimestamp())) {
+                // another writer advanced the room since meta was read, the pauses must follow from its last message
+                roomMetaCache.invalidate(roomId);
+                meta = getRoomMeta(roomId);
             }
-            hbase.putRows(messageTableName, puts);
 
-            Message lastMessage = messages.get(messages.size() - 1);
-            updateRoomMetaCountAndLastMessageTs(roomId, lastMessage.getIndex(), lastMessage.getTimestamp());
+            List<Put> puts = new ArrayList<>(batch.size() + 1);
+            PauseRollup rollup = new PauseRollup(rollupBucketMillis);
+            ActivityRollup activity = new ActivityRollup(statsBucketMillis);
+            if (meta != null && firstMessage.getTimestamp() > meta.getLastMessageTimestamp()) {
+                // appending after the last known message, pauses follow from meta:lastMsgTs without reading rows
+                long previousTimestamp = meta.getLastMessageTimestamp();
+                for (Message message : batch) {
+                    long pause = message.getTimestamp() - previousTimestamp;
+                    puts.add(toMessagePut(roomId, message, pause));
+                    rollup.addMessage(message.getTimestamp(), pause);
+                    activity.addMessage(message.getAuthor(), message.getTimestamp());
+                    previousTimestamp = message.getTimestamp();
+                }
+            } else {
+                OUT_OF_ORDER_BATCHES.increment();
+                long origin = meta != null ? meta.getCreated() : firstMessage.getTimestamp();
+                if (meta != null) {
+                    lease = acquireMergeLease(roomId);
+                }
+                addOutOfOrderPuts(roomId, batch, origin, puts, rollup, activity);
+            }
+            // increments aren't idempotent: they go last, so a batch redone after a failure finds its stored rows
+            // and counts only the messages that weren't written, at worst leaving counts short but never doubled
+            hbase.mutate(messageTableName, puts);
+            if (indexMessages) {
+                hbase.mutate(indexTableName, toPostings(roomId, batch));
+            }
+            hbase.batch(rollupTableName, rollup.toIncrements(roomId));
+            hbase.batch(statsTableName, activity.toMutations(roomId));
 
         } catch (IOException e) {
             logger.error("Failed to add messages to HBase", e);
             throw new RuntimeException(e);
+        } finally {
+            if (lease != 0) {
+                releaseMergeLease(roomId, lease);
+            }
         }
     }
 
-    public List<Message> getMessages(int roomId, long startTime, long endTime) {
+    /**
+     * Takes the room's merge lease, meta:mergeLease holding the time it expires, with a check-and-mutate that
+     * only passes while no other instance holds an unexpired one. Waits for the lease otherwise, so concurrent
+     * merges of a room read each other's rows instead of applying pause changes computed from the same ones.
+     * A lease left by a writer that died expires after {@value #MERGE_LEASE_MILLIS} ms.
+     *
+     * @return the expiry of the lease taken, to release it with
+     */
+    private long acquireMergeLease(int roomId) throws IOException {
+        long deadline = System.currentTimeMillis() + 2 * MERGE_LEASE_MILLIS;
+        while (true) {
+            long now = System.currentTimeMillis();
+            long expiry = now + MERGE_LEASE_MILLIS;
+            Put put = new Put(getRoomRowkey(roomId));
+            put.addColumn(Bytes.toBytes(ROOM_META_COLUMN_FAMILY), Bytes.toBytes(MERGE_LEASE_QUALIFIER), Bytes.toBytes(expiry));
+            RowMutations mutations = new RowMutations(put.getRow());
+            mutations.add(put);
+            // free, or held by a writer whose lease ran out
+            if (hbase.checkAndMutate(roomTableName, mutations, ROOM_META_COLUMN_FAMILY, MERGE_LEASE_QUALIFIER, CompareFilter.CompareOp.EQUAL, null)
+                    || hbase.checkAndMutate(roomTableName, mutations, ROOM_META_COLUMN_FAMILY, MERGE_LEASE_QUALIFIER, CompareFilter.CompareOp.GREATER, Bytes.toBytes(now))) {
+                return expiry;
+            }
+            if (now > deadline) {
+                throw new IOException(String.format("Timed out waiting for the merge lease of room %d", roomId));
+            }
+            try {
+                Thread.sleep(MERGE_LEASE_RETRY_MILLIS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for the merge lease of room " + roomId);
+            }
+        }
+    }
+
+    /**
+     * Deletes the lease unless it expired and was taken by another writer.
+     */
+    private void releaseMergeLease(int roomId, long expiry) {
         try {
-            List<Result> results = hbase.getRowsBetween(messageTableName, MESSAGE_MESSAGE_COLUMN_FAMILY, getMessageRowkey(roomId, startTime), getMessageRowkey(roomId, endTime));
-            List<Message> messages = new LinkedList<>();
-            for (Result result : results) {
-                String author = Bytes.toString(result.getValue(Bytes.toBytes(MESSAGE_MESSAGE_COLUMN_FAMILY), Bytes.toBytes("author")));
-                long timestamp = Bytes.toLong(result.getValue(Bytes.toBytes(MESSAGE_MESSAGE_COLUMN_FAMILY), Bytes.toBytes("timestamp")));
-                int index = Bytes.toInt(result.getValue(Bytes.toBytes(MESSAGE_MESSAGE_COLUMN_FAMILY), Bytes.toBytes("index")));
-                String message = Bytes.toString(result.getValue(Bytes.toBytes(MESSAGE_MESSAGE_COLUMN_FAMILY), Bytes.toBytes("message")));
-                messages.add(new Message(index, timestamp, author, message));
+            Delete delete = new Delete(getRoomRowkey(roomId));
+            delete.addColumns(Bytes.toBytes(ROOM_META_COLUMN_FAMILY), Bytes.toBytes(MERGE_LEASE_QUALIFIER));
+            RowMutations mutations = new RowMutations(delete.getRow());
+            mutations.add(delete);
+            hbase.checkAndMutate(roomTableName, mutations, ROOM_META_COLUMN_FAMILY, MERGE_LEASE_QUALIFIER, CompareFilter.CompareOp.EQUAL, Bytes.toBytes(expiry));
+        } catch (IOException e) {
+            // expires on its own
+            logger.error("Failed to release the merge lease of room {}", roomId, e);
+        }
+    }
+
+    private static List<Put> toPostings(int roomId, List<Message> messages) {
+        List<Put> postings = new ArrayList<>();
+        for (Message message : messages) {
+            postings.addAll(SearchIndex.toPuts(roomId, message));
+        }
+        return postings;
+    }
+
+    private Put toMessagePut(int roomId, Message message, long pause) {
+        byte[] rowkey = getMessageRowkey(roomId, message);
+        return compactMessages ? MessageRows.toPut(rowkey, message, pause) : MessageRows.toCellsPut(rowkey, message, pause);
+    }
+
+    private List<Message> sortedByRowkey(List<Message> messages) {
+        TreeMap<Message, Message> sorted = new TreeMap<>(Message.ROWKEY_ORDER);
+        for (Message message : messages) {
+            sorted.put(message, message);
+        }
+        return new ArrayList<>(sorted.values());
+    }
+
+    /**
+     * Messages that are resent or arrive late land between rows that are already stored. The batch is merged
+     * with the stored rows from its predecessor up to the first row after it, so that the pauses of new rows
+     * and of stored rows whose predecessor changed are rewritten. Only messages that weren't stored yet count as activity.
+     */
+    private void addOutOfOrderPuts(int roomId, List<Message> batch, long origin, List<Put> puts, PauseRollup rollup,
+                                   ActivityRollup activity) throws IOException {
+        byte[] firstKey = RowkeyCodec.messageKey(roomId, batch.get(0).getTimestamp(), batch.get(0).getIndex());
+        Long predecessorTimestamp = findPredecessorTimestamp(roomId, firstKey);
+        long previousTimestamp = predecessorTimestamp != null ? predecessorTimestamp : origin;
+
+        Scan scan = new Scan();
+        MessageRows.addRowColumns(scan);
+        scan.addColumn(Bytes.toBytes(MESSAGE_META_COLUMN_FAMILY), Bytes.toBytes("pause"));
+        scan.setCaching(batch.size() + 1);
+        try (ResultScanner scanner = getMessageScanner(scan, firstKey, getMessageRowkey(roomId, Long.MAX_VALUE))) {
+            Result stored = scanner.next();
+            int i = 0;
+            while (i < batch.size() || stored != null) {
+                byte[] batchKey = i < batch.size() ? RowkeyCodec.messageKey(roomId, batch.get(i).getTimestamp(), batch.get(i).getIndex()) : null;
+                if (stored != null && (batchKey == null || messageKeys.compareToKey(stored.getRow(), batchKey) < 0)) {
+                    long timestamp = RowkeyCodec.decodeTimestamp(stored.getRow(), messageKeys.offset());
+                    long pause = timestamp - previousTimestamp;
+                    Long storedPause = MessageRows.getPause(stored);
+                    if (storedPause == null || storedPause != pause) {
+                        puts.add(MessageRows.toPausePut(stored.getRow(), pause));
+                        recordPause(rollup, timestamp, storedPause, pause);
+                    }
+                    previousTimestamp = timestamp;
+                    if (batchKey == null) {
+                        // first stored row after the batch, nothing further is affected
+                        break;
+                    }
+                    stored = scanner.next();
+                } else {
+                    Long storedPause = null;
+                    Message message = batch.get(i++);
+                    if (stored != null && messageKeys.compareToKey(stored.getRow(), batchKey) == 0) {
+                        storedPause = MessageRows.getPause(stored);
+                        stored = scanner.next();
+                    } else {
+                        activity.addMessage(message.getAuthor(), message.getTimestamp());
+                    }
+                    long pause = message.getTimestamp() - previousTimestamp;
+                    puts.add(toMessagePut(roomId, message, pause));
+                    recordPause(rollup, message.getTimestamp(), storedPause, pause);
+                    previousTimestamp = message.getTimestamp();
+                }
+            }
+        }
+    }
+
+    /**
+     * Rows without a stored pause have never been counted in the rollup.
+     */
+    private void recordPause(PauseRollup rollup, long timestamp, Long storedPause, long pause) {
+        if (storedPause == null) {
+            rollup.addMessage(timestamp, pause);
+        } else {
+            rollup.changePause(timestamp, storedPause, pause);
+        }
+    }
+
+    private Long findPredecessorTimestamp(int roomId, byte[] rowkey) throws IOException {
+        Scan scan = new Scan();
+        scan.setReversed(true);
+        MessageRows.addRowColumns(scan);
+        scan.setFilter(new KeyOnlyFilter());
+        scan.setCaching(2);
+        try (ResultScanner scanner = getMessageScanner(scan, rowkey, getMessageRowkey(roomId, Long.MIN_VALUE))) {
+            for (Result result : scanner) {
+                if (messageKeys.compareToKey(result.getRow(), rowkey) < 0) {
+                    return RowkeyCodec.decodeTimestamp(result.getRow(), messageKeys.offset());
+                }
             }
+        }
+        return null;
+    }
 
-            return messages;
+    public List<Message> getMessages(int roomId, long startTime, long endTime) {
+        List<Message> messages = new ArrayList<>();
+        try {
+            streamMessages(roomId, startTime, endTime, messages::add);
         } catch (IOException e) {
             logger.error("Failed to get messages from HBase", e);
             throw new RuntimeException(e);
         }
+        return messages;
     }
 
-    public Room getRoom(int id) {
+    /**
+     * Ranges wider than {@value #SUB_RANGE_MILLIS_KEY} are split into sub-ranges, see {@link #getSubRanges}, which
+     * are scanned {@value #RANGE_PARALLELISM_KEY} at a time ahead of the consumer and passed to it in order. Each
+     * sub-range hands its rows over in chunks through a small bounded queue, so a request queues at most
+     * {@value #SUB_RANGE_QUEUED_CHUNKS} chunks of {@value #SUB_RANGE_CHUNK_ROWS} messages per sub-range whatever
+     * the room's traffic, and scanners ahead of a slow consumer wait for it like the single scan does, for up to
+     * {@value #SUB_RANGE_OFFER_TIMEOUT_MILLIS} ms per chunk before the read fails and frees their threads.
+     */
+    public void streamMessages(int roomId, long startTime, long endTime, MessageConsumer consumer) throws IOException {
+        List<long[]> ranges;
+        ResultScanner scanner = null;
         try {
-            Result result = hbase.getRow(roomTableName, getRoomRowkey(id), ROOM_INFO_COLUMN_FAMILY);
-            if (result.isEmpty()) {
-                return null;
+            ranges = getSubRanges(roomId, startTime, endTime);
+            if (ranges.size() == 1) {
+                Scan scan = new Scan();
+                scan.addFamily(Bytes.toBytes(MESSAGE_MESSAGE_COLUMN_FAMILY));
+                scanner = getMessageScanner(scan, getMessageRowkey(roomId, startTime), getMessageRowkey(roomId, endTime));
+            }
+        } catch (IOException e) {
+            logger.error("Failed to open message scanner in HBase", e);
+            throw new RuntimeException(e);
+        }
+        MessageArchive.Cursor archived = archive != null && archive.overlaps(roomId, startTime, endTime)
+                ? archive.iterator(roomId, startTime, endTime) : null;
+        if (scanner != null) {
+            try {
+                for (Result result : scanner) {
+                    acceptMerged(MessageRows.toMessage(result, messageKeys.offset()), archived, consumer);
+                }
+            } finally {
+                scanner.close();
+            }
+        } else {
+            streamSubRanges(roomId, ranges, archived, consumer);
+        }
+        while (archived != null && archived.hasNext()) {
+            consumer.accept(archived.next());
+        }
+    }
+
+    /**
+     * Passes the archived messages before the row's message on, then the row's message, which replaces an
+     * archived message with the same key.
+     */
+    private static void acceptMerged(Message message, MessageArchive.Cursor archived, MessageConsumer consumer) throws IOException {
+        if (archived != null) {
+            while (archived.hasNext() && Message.ROWKEY_ORDER.compare(archived.peek(), message) < 0) {
+                consumer.accept(archived.next());
+            }
+            if (archived.hasNext() && Message.ROWKEY_ORDER.compare(archived.peek(), message) == 0) {
+                // not deleted yet, or written again after it was archived
+                archived.next();
+            }
+        }
+        consumer.accept(message);
+    }
+
+    /**
+     * A sub-range being scanned on {@link #rangeReaders}, whose rows are taken from chunks in order.
+     */
+    private static class SubRangeRead {
+        private final BlockingQueue<List<Message>> chunks = new ArrayBlockingQueue<>(SUB_RANGE_QUEUED_CHUNKS);
+        private Future<?> scan;
+    }
+
+    private void streamSubRanges(int roomId, List<long[]> ranges, MessageArchive.Cursor archived, MessageConsumer consumer) throws IOException {
+        Deque<SubRangeRead> reads = new ArrayDeque<>();
+        int next = 0;
+        try {
+            while (next < ranges.size() || !reads.isEmpty()) {
+                while (next < ranges.size() && reads.size() < rangeParallelism) {
+                    long[] range = ranges.get(next++);
+                    SubRangeRead read = new SubRangeRead();
+                    read.scan = rangeReaders.submit(() -> readMessageRows(roomId, range[0], range[1], read.chunks));
+                    reads.add(read);
+                }
+                SubRangeRead read = reads.peek();
+                List<Message> chunk = takeChunk(read);
+                if (chunk == END_OF_SUB_RANGE) {
+                    reads.poll();
+                } else {
+                    for (Message message : chunk) {
+                        acceptMerged(message, archived, consumer);
+                    }
+                }
+            }
+        } finally {
+            for (SubRangeRead read : reads) {
+                read.scan.cancel(true);
+            }
+        }
+    }
+
+    /**
+     * Next chunk of the sub-range, {@link #END_OF_SUB_RANGE} once it is read. A scan that failed ends without that
+     * marker and fails the caller like the reads of its own thread.
+     */
+    private static List<Message> takeChunk(SubRangeRead read) {
+        try {
+            List<Message> chunk;
+            while ((chunk = read.chunks.poll(SUB_RANGE_POLL_MILLIS, TimeUnit.MILLISECONDS)) == null) {
+                if (read.scan.isDone() && read.chunks.isEmpty()) {
+                    await(read.scan);
+                }
+            }
+            return chunk;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while reading messages", e);
+        }
+    }
+
+    private Void readMessageRows(int roomId, long startTime, long endTime, BlockingQueue<List<Message>> chunks)
+            throws IOException, InterruptedException {
+        Scan scan = new Scan();
+        scan.addFamily(Bytes.toBytes(MESSAGE_MESSAGE_COLUMN_FAMILY));
+        List<Message> chunk = new ArrayList<>(SUB_RANGE_CHUNK_ROWS);
+        try (ResultScanner scanner = getMessageScanner(scan, getMessageRowkey(roomId, startTime), getMessageRowkey(roomId, endTime))) {
+            for (Result result : scanner) {
+                chunk.add(MessageRows.toMessage(result, messageKeys.offset()));
+                if (chunk.size() == SUB_RANGE_CHUNK_ROWS) {
+                    offerChunk(roomId, chunks, chunk);
+                    chunk = new ArrayList<>(SUB_RANGE_CHUNK_ROWS);
+                }
+            }
+        }
+        if (!chunk.isEmpty()) {
+            offerChunk(roomId, chunks, chunk);
+        }
+        offerChunk(roomId, chunks, END_OF_SUB_RANGE);
+        return null;
+    }
+
+    private static void offerChunk(int roomId, BlockingQueue<List<Message>> chunks, List<Message> chunk)
+            throws IOException, InterruptedException {
+        if (!chunks.offer(chunk, SUB_RANGE_OFFER_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+            throw new IOException(String.format("Reader of room %d took no messages for %d ms", roomId, SUB_RANGE_OFFER_TIMEOUT_MILLIS));
+        }
+    }
+
+    /**
+     * Waits for a read on {@link #rangeReaders}, failing like the reads of the calling thread.
+     */
+    private static <T> T await(Future<T> read) {
+        try {
+            return read.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while reading messages", e);
+        } catch (ExecutionException e) {
+            logger.error("Failed to read messages from HBase", e.getCause());
+            throw e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause() : new RuntimeException(e.getCause());
+        }
+    }
+
+    /**
+     * [startTime, endTime) split into sub-ranges of at most {@value #SUB_RANGE_MILLIS_KEY} between the room's
+     * creation and its last message, and at the boundaries of the MESSAGE regions holding the room, see
+     * {@link SubRanges}. A single range if it is narrower, or if {@value #RANGE_PARALLELISM_KEY} is 1.
+     */
+    private List<long[]> getSubRanges(int roomId, long startTime, long endTime) throws IOException {
+        RoomMeta meta = getRoomMeta(roomId);
+        List<long[]> ranges = Collections.singletonList(new long[]{startTime, endTime});
+        if (rangeParallelism <= 1 || meta == null) {
+            return ranges;
+        }
+        long first = meta.getCreated();
+        long last = meta.getLastMessageTimestamp();
+        if (SubRanges.split(startTime, endTime, first, last, subRangeMillis, new long[0]).size() == 1) {
+            return ranges;
+        }
+        // only salted tables have regions that don't hold the whole range of a room, but each of their buckets does
+        List<Long> boundaries = new ArrayList<>();
+        if (!messageKeys.isSalted()) {
+            for (byte[] startKey : hbase.getRegionStartKeys(messageTableName)) {
+                if (startKey.length >= RowkeyCodec.MESSAGE_KEY_PREFIX_LENGTH && RowkeyCodec.decodeRoomId(startKey, 0) == roomId) {
+                    boundaries.add(RowkeyCodec.decodeTimestamp(startKey, 0));
+                }
+            }
+        }
+        return SubRanges.split(startTime, endTime, first, last, subRangeMillis, boundaries.stream().mapToLong(Long::longValue).toArray());
+    }
+
+    /**
+     * Reads limit + 1 rows to tell whether there is a next page. PageFilter stops each region after that many rows
+     * and the scanner caching is set so that a page takes a single RPC per region.
+     */
+    public MessagePage getMessages(int roomId, long startTime, long endTime, int limit, String cursor, boolean reverse) {
+        MessageCursor.checkLimit(limit);
+        byte[] lower = getMessageRowkey(roomId, startTime);
+        byte[] upper = getMessageRowkey(roomId, endTime);
+        Scan scan;
+        if (!reverse) {
+            byte[] start = lower;
+            if (cursor != null) {
+                // smallest key after the cursor
+                byte[] afterCursor = Bytes.add(MessageCursor.decode(roomId, cursor), new byte[1]);
+                if (Bytes.compareTo(afterCursor, start) > 0) {
+                    start = afterCursor;
+                }
+            }
+            if (Bytes.compareTo(start, upper) >= 0) {
+                return new MessagePage(new ArrayList<>(), null);
+            }
+            scan = new Scan();
+            scan.setStartRow(start);
+            scan.setStopRow(upper);
+        } else {
+            // reversed scans start at the inclusive upper row and stop before the lower one
+            byte[] start = upper;
+            if (cursor != null) {
+                byte[] beforeCursor = keyBefore(MessageCursor.decode(roomId, cursor));
+                if (beforeCursor == null) {
+                    return new MessagePage(new ArrayList<>(), null);
+                }
+                if (Bytes.compareTo(beforeCursor, start) < 0) {
+                    start = beforeCursor;
+                }
+            }
+            if (Bytes.compareTo(start, lower) <= 0) {
+                return new MessagePage(new ArrayList<>(), null);
+            }
+            scan = new Scan();
+            scan.setStartRow(start);
+            scan.setStopRow(lower);
+            scan.setReversed(true);
+        }
+        scan.addFamily(Bytes.toBytes(MESSAGE_MESSAGE_COLUMN_FAMILY));
+        scan.setFilter(new PageFilter(limit + 1));
+        scan.setCaching(limit + 1);
+
+        List<Message> messages = new ArrayList<>(limit + 1);
+        try (ResultScanner scanner = getMessageScanner(scan, scan.getStartRow(), scan.getStopRow())) {
+            Result result;
+            while (messages.size() <= limit && (result = scanner.next()) != null) {
+                messages.add(MessageRows.toMessage(result, messageKeys.offset()));
+            }
+        } catch (IOException e) {
+            logger.error("Failed to get a page of messages from HBase", e);
+            throw new RuntimeException(e);
+        }
+        if (archive != null && archive.overlaps(roomId, startTime, endTime)) {
+            Message position = null;
+            if (cursor != null) {
+                byte[] key = MessageCursor.decode(roomId, cursor);
+                position = new Message(RowkeyCodec.decodeIndex(key, 0), RowkeyCodec.decodeTimestamp(key, 0), null, null);
+            }
+            List<Message> archived = reverse
+                    ? archive.readReverse(roomId, startTime, endTime, position, limit + 1)
+                    : archive.read(roomId, startTime, endTime, position, limit + 1);
+            messages = mergeArchived(messages, archived, reverse ? Message.ROWKEY_ORDER.reversed() : Message.ROWKEY_ORDER, limit + 1);
+        }
+        return MessageCursor.toPage(roomId, messages, limit);
+    }
+
+    /**
+     * Up to limit messages of both lists, which are sorted in the given order, taking the row when a message
+     * is in both.
+     */
+    private static List<Message> mergeArchived(List<Message> rows, List<Message> archived, Comparator<Message> order, int limit) {
+        List<Message> merged = new ArrayList<>(Math.min(limit, rows.size() + archived.size()));
+        int i = 0;
+        int j = 0;
+        while (merged.size() < limit && (i < rows.size() || j < archived.size())) {
+            int cmp = i == rows.size() ? 1 : j == archived.size() ? -1 : order.compare(rows.get(i), archived.get(j));
+            if (cmp <= 0) {
+                merged.add(rows.get(i++));
+                if (cmp == 0) {
+                    j++;
+                }
             } else {
-                String name = Bytes.toString(result.getValue(Bytes.toBytes(ROOM_INFO_COLUMN_FAMILY), Bytes.toBytes("name")));
-                long created = Bytes.toLong(result.getValue(Bytes.toBytes(ROOM_INFO_COLUMN_FAMILY), Bytes.toBytes("created")));
-                List<String> participants = Arrays.asList(Bytes.toString(result.getValue(Bytes.toBytes(ROOM_INFO_COLUMN_FAMILY), Bytes.toBytes("participants"))).split(","));
-                RoomMeta meta = getRoomMeta(id);
-                Room room = new Room(id, name, created, participants);
-                room.setMeta(meta);
+                merged.add(archived.get(j++));
+            }
+        }
+        return merged;
+    }
+
+    /**
+     * Largest key of the same length that sorts before the given one, null if there is none.
+     */
+    private static byte[] keyBefore(byte[] key) {
+        byte[] before = key.clone();
+        for (int i = before.length - 1; i >= 0; i--) {
+            if (before[i]-- != 0) {
+                return before;
+            }
+        }
+        return null;
+    }
+
+    public Room getRoom(int id) {
+        Room info = roomCache.get(id);
+        RoomMeta meta = roomMetaCache.get(id);
+        if (info == null) {
+            try {
+                // both families in one Get, the meta is almost always needed next
+                Result result = meta == null
+                        ? hbase.getRow(roomTableName, getRoomRowkey(id), ROOM_INFO_COLUMN_FAMILY, ROOM_META_COLUMN_FAMILY)
+                        : hbase.getRow(roomTableName, getRoomRowkey(id), ROOM_INFO_COLUMN_FAMILY);
+                if (result.isEmpty()) {
+                    return null;
+                }
+                info = toRoom(id, result);
+                roomCache.put(id, info);
+                if (meta == null) {
+                    meta = toRoomMeta(result);
+                    roomMetaCache.put(id, meta);
+                }
+            } catch (IOException e) {
+                logger.error("Failed to get room from HBase", e);
+                throw new RuntimeException(e);
+            }
+        } else if (meta == null) {
+            meta = getRoomMeta(id);
+        }
 
-                return room;
+        Room room = new Room(info.getId(), info.getName(), info.getCreated(), info.getParticipants());
+        room.setMeta(meta);
+        return room;
+    }
+
+    /**
+     * Rooms not in the caches are read with one multi-Get, instead of a Get per room.
+     */
+    @Override
+    public List<Room> getRooms(List<Integer> ids) {
+        Map<Integer, Room> infos = new HashMap<>();
+        Map<Integer, RoomMeta> metas = new HashMap<>();
+        List<Integer> readIds = new ArrayList<>();
+        List<Get> gets = new ArrayList<>();
+        Set<Integer> distinctIds = new LinkedHashSet<>(ids);
+        for (int id : distinctIds) {
+            Room info = roomCache.get(id);
+            RoomMeta meta = roomMetaCache.get(id);
+            if (info != null) {
+                infos.put(id, info);
+            }
+            if (meta != null) {
+                metas.put(id, meta);
+            }
+            if (info == null || meta == null) {
+                Get get = new Get(getRoomRowkey(id));
+                if (info == null) {
+                    get.addFamily(Bytes.toBytes(ROOM_INFO_COLUMN_FAMILY));
+                }
+                if (meta == null) {
+                    get.addFamily(Bytes.toBytes(ROOM_META_COLUMN_FAMILY));
+                }
+                readIds.add(id);
+                gets.add(get);
+            }
+        }
+        try {
+            Result[] results = hbase.getRows(roomTableName, gets);
+            for (int i = 0; i < results.length; i++) {
+                int id = readIds.get(i);
+                Result result = results[i];
+                if (result.isEmpty()) {
+                    continue;
+                }
+                if (!infos.containsKey(id)) {
+                    Room info = toRoom(id, result);
+                    roomCache.put(id, info);
+                    infos.put(id, info);
+                }
+                if (!metas.containsKey(id)) {
+                    RoomMeta meta = toRoomMeta(result);
+                    roomMetaCache.put(id, meta);
+                    metas.put(id, meta);
+                }
             }
         } catch (IOException e) {
-            logger.error("Failed to get room from HBase", e);
+            logger.error("Failed to get rooms from HBase", e);
             throw new RuntimeException(e);
         }
+
+        List<Room> rooms = new ArrayList<>();
+        for (int id : distinctIds) {
+            Room info = infos.get(id);
+            if (info != null) {
+                Room room = new Room(info.getId(), info.getName(), info.getCreated(), info.getParticipants());
+                room.setMeta(metas.get(id));
+                rooms.add(room);
+            }
+        }
+        return rooms;
+    }
+
+    /**
+     * Scans the rooms concurrently, at most {@value #MULTI_ROOM_PARALLELISM_KEY} scans at a time across all callers.
+     */
+    @Override
+    public Map<Integer, MessagePage> getMessages(List<Integer> chatRoomIds, long startTime, long endTime, int limit) {
+        MessageCursor.checkLimit(limit);
+        Map<Integer, Future<MessagePage>> scans = new LinkedHashMap<>();
+        for (int chatRoomId : new LinkedHashSet<>(chatRoomIds)) {
+            scans.put(chatRoomId, roomReaders.submit(() -> getMessages(chatRoomId, startTime, endTime, limit, null, false)));
+        }
+        Map<Integer, MessagePage> pages = new LinkedHashMap<>();
+        try {
+            for (Map.Entry<Integer, Future<MessagePage>> scan : scans.entrySet()) {
+                pages.put(scan.getKey(), scan.getValue().get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while getting messages", e);
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause() : new RuntimeException(e.getCause());
+        } finally {
+            for (Future<MessagePage> scan : scans.values()) {
+                scan.cancel(false);
+            }
+        }
+        return pages;
+    }
+
+    private Room toRoom(int id, Result result) {
+        String name = Bytes.toString(result.getValue(Bytes.toBytes(ROOM_INFO_COLUMN_FAMILY), Bytes.toBytes("name")));
+        long created = Bytes.toLong(result.getValue(Bytes.toBytes(ROOM_INFO_COLUMN_FAMILY), Bytes.toBytes("created")));
+        List<String> participants = Arrays.asList(Bytes.toString(result.getValue(Bytes.toBytes(ROOM_INFO_COLUMN_FAMILY), Bytes.toBytes("participants"))).split(","));
+        return new Room(id, name, created, participants);
     }
 
     public int countLongPauses(int chatRoomId, long startTime, long endTime) {
@@ -152,69 +952,595 @@ public class HBaseRepositoryImpl implements ChatRepository {
         if (roomMeta == null) {
             throw new RuntimeException(String.format("Could not find room meta for room id %d", chatRoomId));
         }
+        if (roomMeta.getMessageCount() == 0) {
+            return -1;
+        }
 
-        List<Long> pauses = getMessagePauses(chatRoomId, startTime, endTime);
-        int longPausesCount = 0;
-        if (pauses.isEmpty()) {
-            longPausesCount = -1;
-        } else {
-            long averagePause = (roomMeta.getLastMessageTimestamp() - roomMeta.getCreated()) / roomMeta.getMessageCount();
-            logger.info(String.format("Got pauses: %s, average pause: %d", pauses.toString(), averagePause));
-            for (long pause : pauses) {
-                if (pause > averagePause)
-                    longPausesCount++;
+        long averagePause = (roomMeta.getLastMessageTimestamp() - roomMeta.getCreated()) / roomMeta.getMessageCount();
+        try {
+            PauseRollup rollup = new PauseRollup(rollupBucketMillis);
+            long firstBucket = rollup.bucketCeiling(startTime);
+            long lastBucketEnd = rollup.bucketStart(endTime);
+            int longPausesCount;
+            if (firstBucket < lastBucketEnd) {
+                // whole buckets come from the rollup, only the partial buckets at the edges scan messages. Every row
+                // has its pause to the previous message, so their counts just add up. The edges are at most a bucket
+                // each and are scanned on this thread, they don't wait behind wide reads for a range reader
+                longPausesCount = countPausesLongerThan(chatRoomId, startTime, firstBucket, averagePause)
+                        + countRollupPausesLongerThan(chatRoomId, firstBucket, lastBucketEnd, averagePause)
+                        + countPausesLongerThan(chatRoomId, lastBucketEnd, endTime, averagePause);
+            } else {
+                longPausesCount = countPausesLongerThan(chatRoomId, startTime, endTime, averagePause);
+            }
+            if (longPausesCount == 0 && !hasMessages(chatRoomId, startTime, endTime)) {
+                return -1;
             }
+            return longPausesCount;
+        } catch (IOException e) {
+            logger.error("Failed to count long pauses in HBase", e);
+            throw new RuntimeException(e);
         }
-        return longPausesCount;
-    };
+    }
 
-    private RoomMeta getRoomMeta(int id) {
+    /**
+     * Whole buckets of the range are read from the stats table, the partial buckets at its edges from the messages.
+     */
+    @Override
+    public RoomActivity getActivity(int chatRoomId, long startTime, long endTime) {
+        if (getRoomMeta(chatRoomId) == null) {
+            return null;
+        }
         try {
-            Result result = hbase.getRow(roomTableName, getRoomRowkey(id), ROOM_META_COLUMN_FAMILY);
-            if (result.isEmpty()) {
-                return null;
+            ActivityRollup activity = new ActivityRollup(statsBucketMillis);
+            long firstBucket = activity.bucketCeiling(startTime);
+            long lastBucketEnd = activity.bucketStart(endTime);
+            if (firstBucket < lastBucketEnd) {
+                addMessageActivity(activity, chatRoomId, startTime, firstBucket);
+                Scan scan = new Scan(ActivityRollup.rowkey(chatRoomId, firstBucket), ActivityRollup.rowkey(chatRoomId, lastBucketEnd));
+                try (ResultScanner scanner = hbase.getScanner(statsTableName, scan)) {
+                    for (Result result : scanner) {
+                        activity.addRow(result);
+                    }
+                }
+                addMessageActivity(activity, chatRoomId, lastBucketEnd, endTime);
             } else {
-                int count = Bytes.toInt(result.getValue(Bytes.toBytes(ROOM_META_COLUMN_FAMILY), Bytes.toBytes("count")));
-                long created = Bytes.toLong(result.getValue(Bytes.toBytes(ROOM_META_COLUMN_FAMILY), Bytes.toBytes("created")));
-                long lastMsgTs = Bytes.toLong(result.getValue(Bytes.toBytes(ROOM_META_COLUMN_FAMILY), Bytes.toBytes("lastMsgTs")));
+                addMessageActivity(activity, chatRoomId, startTime, endTime);
+            }
+            return activity.toActivity(chatRoomId, startTime, endTime);
+        } catch (IOException e) {
+            logger.error("Failed to get room activity from HBase", e);
+            throw new RuntimeException(e);
+        }
+    }
 
-                return new RoomMeta(count, created, lastMsgTs);
+    private void addMessageActivity(ActivityRollup activity, int roomId, long startTime, long endTime) throws IOException {
+        if (startTime < endTime) {
+            streamMessages(roomId, startTime, endTime, message -> activity.addMessage(message.getAuthor(), message.getTimestamp()));
+        }
+    }
+
+    /**
+     * Intersects the postings of the query's terms, longest term first as it is likely the rarest: the postings of a
+     * term are scanned while there are many candidates, and probed with Gets once there are at most
+     * {@value #MAX_SEARCH_PROBES}. The candidates are then read with multi-Gets in order, and those whose text no
+     * longer has the terms, e.g. resent with another text, are dropped.
+     */
+    @Override
+    public List<Message> searchMessages(int chatRoomId, String query, long startTime, long endTime, int limit) {
+        MessageCursor.checkLimit(limit);
+        List<String> terms = new ArrayList<>(SearchIndex.queryTerms(query));
+        terms.sort(Comparator.comparingInt(String::length).reversed());
+        try {
+            NavigableSet<byte[]> candidates = null;
+            for (String term : terms) {
+                candidates = candidates == null || candidates.size() > MAX_SEARCH_PROBES
+                        ? scanPostings(chatRoomId, term, startTime, endTime, candidates)
+                        : probePostings(chatRoomId, term, candidates);
+                if (candidates.isEmpty()) {
+                    break;
+                }
+            }
+            Set<String> termSet = new HashSet<>(terms);
+            List<Message> messages = new ArrayList<>();
+            Iterator<byte[]> keys = candidates.iterator();
+            while (messages.size() < limit && keys.hasNext()) {
+                List<byte[]> batch = new ArrayList<>();
+                List<Get> gets = new ArrayList<>();
+                while (gets.size() < limit - messages.size() && keys.hasNext()) {
+                    byte[] key = keys.next();
+                    Get get = new Get(messageKeys.messageKey(chatRoomId, RowkeyCodec.decodeTimestamp(key, 0), RowkeyCodec.decodeIndex(key, 0)));
+                    get.addFamily(Bytes.toBytes(MESSAGE_MESSAGE_COLUMN_FAMILY));
+                    batch.add(key);
+                    gets.add(get);
+                }
+                Result[] results = hbase.getRows(messageTableName, gets);
+                for (int i = 0; i < results.length; i++) {
+                    Message message = null;
+                    if (!results[i].isEmpty()) {
+                        message = MessageRows.toMessage(results[i], messageKeys.offset());
+                    } else if (archive != null) {
+                        // postings of archived messages are kept
+                        message = archive.get(chatRoomId, RowkeyCodec.decodeTimestamp(batch.get(i), 0), RowkeyCodec.decodeIndex(batch.get(i), 0));
+                    }
+                    if (message != null && SearchIndex.matches(message, termSet)) {
+                        messages.add(message);
+                    }
+                }
             }
+            return messages;
         } catch (IOException e) {
-            logger.error("Failed to get room meta from HBase", e);
+            logger.error("Failed to search messages in HBase", e);
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Unsalted message keys of the term's postings in the range, only those among the candidates when given.
+     */
+    private NavigableSet<byte[]> scanPostings(int roomId, String term, long startTime, long endTime, Set<byte[]> candidates) throws IOException {
+        NavigableSet<byte[]> keys = new TreeSet<>(Bytes.BYTES_COMPARATOR);
+        Scan scan = new Scan(SearchIndex.rowkey(roomId, term, startTime), SearchIndex.rowkey(roomId, term, endTime));
+        scan.setFilter(new KeyOnlyFilter());
+        try (ResultScanner scanner = hbase.getScanner(indexTableName, scan)) {
+            for (Result result : scanner) {
+                byte[] row = result.getRow();
+                int offset = SearchIndex.messageKeyOffset(row);
+                byte[] key = RowkeyCodec.messageKey(roomId, RowkeyCodec.decodeTimestamp(row, offset), RowkeyCodec.decodeIndex(row, offset));
+                if (candidates == null || candidates.contains(key)) {
+                    keys.add(key);
+                }
+            }
+        }
+        return keys;
+    }
+
+    private NavigableSet<byte[]> probePostings(int roomId, String term, NavigableSet<byte[]> candidates) throws IOException {
+        List<byte[]> probed = new ArrayList<>(candidates);
+        List<Get> gets = new ArrayList<>(probed.size());
+        for (byte[] key : probed) {
+            Get get = new Get(SearchIndex.rowkey(roomId, term, RowkeyCodec.decodeTimestamp(key, 0), RowkeyCodec.decodeIndex(key, 0)));
+            get.setFilter(new KeyOnlyFilter());
+            gets.add(get);
+        }
+        Result[] results = hbase.getRows(indexTableName, gets);
+        NavigableSet<byte[]> keys = new TreeSet<>(Bytes.BYTES_COMPARATOR);
+        for (int i = 0; i < results.length; i++) {
+            if (!results[i].isEmpty()) {
+                keys.add(probed.get(i));
+            }
+        }
+        return keys;
+    }
+
+    /**
+     * Writes the postings of every message in the room, e.g. for messages added before they were indexed or while
+     * {@value #SEARCH_INDEX_KEY} was off. Postings of text that was replaced are not removed, searches skip them.
+     */
+    public void rebuildSearchIndex(int roomId) {
+        List<Put> postings = new ArrayList<>();
+        try {
+            streamMessages(roomId, Long.MIN_VALUE, Long.MAX_VALUE, message -> {
+                postings.addAll(SearchIndex.toPuts(roomId, message));
+                if (postings.size() >= REBUILD_BATCH_SIZE) {
+                    hbase.putRows(indexTableName, postings);
+                    postings.clear();
+                }
+            });
+            hbase.putRows(indexTableName, postings);
+        } catch (IOException e) {
+            logger.error("Failed to rebuild the search index in HBase", e);
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Narrow scan of meta:pause where the region servers only return rows whose pause exceeds the threshold.
+     * Archived messages are counted with the pause they were archived with, unless their row is still there.
+     */
+    private int countPausesLongerThan(int roomId, long startTime, long endTime, long threshold) throws IOException {
+        return countPausesLongerThan(roomId, startTime, endTime, threshold, Long.MAX_VALUE);
+    }
+
+    /**
+     * Same, only counting pauses of at most maxPause.
+     */
+    private int countPausesLongerThan(int roomId, long startTime, long endTime, long threshold, long maxPause) throws IOException {
+        if (startTime >= endTime) {
+            return 0;
+        }
+        byte[] family = Bytes.toBytes(MESSAGE_META_COLUMN_FAMILY);
+        byte[] qualifier = Bytes.toBytes("pause");
+        if (archive != null && archive.overlaps(roomId, startTime, endTime)) {
+            return countArchivedPausesLongerThan(roomId, startTime, endTime, threshold, maxPause);
+        }
+        SingleColumnValueFilter filter = new SingleColumnValueFilter(family, qualifier, CompareFilter.CompareOp.GREATER, new LongComparator(threshold));
+        filter.setFilterIfMissing(true);
+
+        Scan scan = new Scan();
+        scan.addColumn(family, qualifier);
+        if (maxPause == Long.MAX_VALUE) {
+            scan.setFilter(filter);
+        } else {
+            SingleColumnValueFilter ceiling = new SingleColumnValueFilter(family, qualifier, CompareFilter.CompareOp.LESS_OR_EQUAL, new LongComparator(maxPause));
+            ceiling.setFilterIfMissing(true);
+            scan.setFilter(new FilterList(FilterList.Operator.MUST_PASS_ALL, filter, ceiling));
+        }
+        int count = 0;
+        try (ResultScanner scanner = getMessageScanner(scan, getMessageRowkey(roomId, startTime), getMessageRowkey(roomId, endTime))) {
+            for (Result result = scanner.next(); result != null; result = scanner.next()) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Reads the pause of every row in the range, few once it is archived, to count messages that are both archived
+     * and still or again in HBase once, by their row.
+     */
+    private int countArchivedPausesLongerThan(int roomId, long startTime, long endTime, long threshold, long maxPause) throws IOException {
+        Scan scan = new Scan();
+        MessageRows.addRowColumns(scan);
+        scan.addColumn(Bytes.toBytes(MESSAGE_META_COLUMN_FAMILY), Bytes.toBytes("pause"));
+        Set<Message> rows = new TreeSet<>(Message.ROWKEY_ORDER);
+        int count = 0;
+        try (ResultScanner scanner = getMessageScanner(scan, getMessageRowkey(roomId, startTime), getMessageRowkey(roomId, endTime))) {
+            for (Result result : scanner) {
+                byte[] row = result.getRow();
+                rows.add(new Message(RowkeyCodec.decodeIndex(row, messageKeys.offset()), RowkeyCodec.decodeTimestamp(row, messageKeys.offset()), null, null));
+                Long pause = MessageRows.getPause(result);
+                if (pause != null && pause > threshold && pause <= maxPause) {
+                    count++;
+                }
+            }
+        }
+        return count + archive.countPausesLongerThan(roomId, startTime, endTime, threshold, maxPause,
+                (timestamp, index) -> rows.contains(new Message(index, timestamp, null, null)));
+    }
+
+    /**
+     * Sums the bins above the threshold's bin. Pauses in the threshold's bin may fall on either side of it, so
+     * they are counted exactly from meta:pause, scanning only the buckets that have any.
+     */
+    private int countRollupPausesLongerThan(int roomId, long firstBucket, long lastBucketEnd, long threshold) throws IOException {
+        int thresholdBin = PauseRollup.bin(threshold);
+        long binMax = PauseRollup.binMax(thresholdBin);
+        Scan scan = new Scan(PauseRollup.rowkey(roomId, firstBucket), PauseRollup.rowkey(roomId, lastBucketEnd));
+        scan.addFamily(Bytes.toBytes(PauseRollup.PAUSE_COLUMN_FAMILY));
+        scan.setFilter(new ColumnRangeFilter(PauseRollup.binQualifier(thresholdBin), true, null, false));
+        long count = 0;
+        List<long[]> straddling = new ArrayList<>();
+        try (ResultScanner scanner = hbase.getScanner(rollupTableName, scan)) {
+            for (Result result : scanner) {
+                for (Cell cell : result.rawCells()) {
+                    long messages = Bytes.toLong(cell.getValueArray(), cell.getValueOffset(), cell.getValueLength());
+                    if (PauseRollup.decodeBin(cell.getQualifierArray(), cell.getQualifierOffset()) > thresholdBin) {
+                        count += messages;
+                    } else if (messages != 0 && threshold < binMax) {
+                        long bucket = RowkeyCodec.decodeTimestamp(result.getRow(), 0);
+                        long[] last = straddling.isEmpty() ? null : straddling.get(straddling.size() - 1);
+                        if (last != null && last[1] == bucket) {
+                            last[1] = bucket + rollupBucketMillis;
+                        } else {
+                            straddling.add(new long[]{bucket, bucket + rollupBucketMillis});
+                        }
+                    }
+                }
+            }
+        }
+        for (long[] range : straddling) {
+            count += countPausesLongerThan(roomId, range[0], range[1], threshold, binMax);
+        }
+        return (int) count;
+    }
+
+    /**
+     * Recomputes meta:pause of every message in the room and replaces the room's rollup rows. Writes to the
+     * room that run concurrently with a rebuild may be lost from the rollup.
+     */
+    public void rebuildPauseRollups(int roomId) {
+        RoomMeta meta = getRoomMeta(roomId);
+        if (meta == null) {
+            throw new RuntimeException(String.format("Could not find room meta for room id %d", roomId));
+        }
+        try {
+            PauseRollup rollup = new PauseRollup(rollupBucketMillis);
+            List<Put> pauses = new ArrayList<>();
+            Scan scan = new Scan();
+            MessageRows.addRowColumns(scan);
+            scan.addColumn(Bytes.toBytes(MESSAGE_META_COLUMN_FAMILY), Bytes.toBytes("pause"));
+            long previousTimestamp = meta.getCreated();
+            // archived messages count in the rollup, their segments keep the pauses they were archived with
+            MessageArchive.Cursor archived = archive != null ? archive.iterator(roomId, Long.MIN_VALUE, Long.MAX_VALUE) : null;
+            try (ResultScanner scanner = getMessageScanner(scan, getMessageRowkey(roomId, Long.MIN_VALUE), getMessageRowkey(roomId, Long.MAX_VALUE))) {
+                for (Result result : scanner) {
+                    long timestamp = RowkeyCodec.decodeTimestamp(result.getRow(), messageKeys.offset());
+                    int index = RowkeyCodec.decodeIndex(result.getRow(), messageKeys.offset());
+                    while (archived != null && archived.hasNext()
+                            && Message.ROWKEY_ORDER.compare(archived.peek(), new Message(index, timestamp, null, null)) <= 0) {
+                        Message message = archived.next();
+                        if (message.getTimestamp() != timestamp || message.getIndex() != index) {
+                            rollup.addMessage(message.getTimestamp(), message.getTimestamp() - previousTimestamp);
+                            previousTimestamp = message.getTimestamp();
+                        }
+                    }
+                    long pause = timestamp - previousTimestamp;
+                    Long storedPause = MessageRows.getPause(result);
+                    if (storedPause == null || storedPause != pause) {
+                        pauses.add(MessageRows.toPausePut(result.getRow(), pause));
+                        if (pauses.size() >= REBUILD_BATCH_SIZE) {
+                            hbase.putRows(messageTableName, pauses);
+                            pauses.clear();
+                        }
+                    }
+                    rollup.addMessage(timestamp, pause);
+                    previousTimestamp = timestamp;
+                }
+            }
+            hbase.putRows(messageTableName, pauses);
+            while (archived != null && archived.hasNext()) {
+                Message message = archived.next();
+                rollup.addMessage(message.getTimestamp(), message.getTimestamp() - previousTimestamp);
+                previousTimestamp = message.getTimestamp();
+            }
+
+            long rebuildTime = System.currentTimeMillis();
+            List<Delete> deletes = new ArrayList<>();
+            Scan rollupScan = new Scan(PauseRollup.rowkey(roomId, Long.MIN_VALUE), PauseRollup.rowkey(roomId, Long.MAX_VALUE));
+            rollupScan.setFilter(new FirstKeyOnlyFilter());
+            try (ResultScanner scanner = hbase.getScanner(rollupTableName, rollupScan)) {
+                for (Result result : scanner) {
+                    deletes.add(new Delete(result.getRow(), rebuildTime));
+                }
+            }
+            hbase.batch(rollupTableName, deletes);
+            hbase.batch(rollupTableName, rollup.toPuts(roomId, rebuildTime + 1));
+        } catch (IOException e) {
+            logger.error("Failed to rebuild pause rollups in HBase", e);
             throw new RuntimeException(e);
         }
     }
 
-    private List<Long> getMessagePauses(int roomId, long startTime, long endTime) {
+    /**
+     * Writes the room's messages from the end of its archive up to before into a new segment, see
+     * {@link MessageArchive}. The rows stay until {@link #deleteArchivedMessages}; reads take a message that is
+     * in both from its row.
+     *
+     * @return the segment, null if there is nothing to archive
+     */
+    public Segment archiveMessages(int roomId, long before) {
+        if (archive == null) {
+            throw new IllegalStateException(MessageArchive.DIR_KEY + " is not set");
+        }
+        RoomMeta meta = getRoomMeta(roomId);
+        if (meta == null) {
+            throw new RuntimeException(String.format("Could not find room meta for room id %d", roomId));
+        }
+        long from = archive.archivedBefore(roomId);
+        if (from >= before) {
+            return null;
+        }
+        List<Message> previous = archive.readReverse(roomId, Long.MIN_VALUE, from, null, 1);
+        long previousTimestamp = previous.isEmpty() ? meta.getCreated() : previous.get(0).getTimestamp();
+        Scan scan = new Scan();
+        scan.addFamily(Bytes.toBytes(MESSAGE_MESSAGE_COLUMN_FAMILY));
+        scan.addColumn(Bytes.toBytes(MESSAGE_META_COLUMN_FAMILY), Bytes.toBytes("pause"));
         try {
-            List<Result> results = hbase.getRowsBetween(messageTableName, MESSAGE_MESSAGE_COLUMN_FAMILY, getMessageRowkey(roomId, startTime), getMessageRowkey(roomId, endTime));
-            List<Long> msgTimestamps = new LinkedList<>();
-            for (Result result : results) {
-                long ts = Bytes.toLong(result.getValue(Bytes.toBytes(MESSAGE_MESSAGE_COLUMN_FAMILY), Bytes.toBytes("timestamp")));
-                msgTimestamps.add(ts);
+            if (!hasRows(roomId, from, before)) {
+                return null;
             }
+            try (SegmentWriter writer = archive.newSegment(roomId, before, System.currentTimeMillis());
+                 ResultScanner scanner = getMessageScanner(scan, getMessageRowkey(roomId, from), getMessageRowkey(roomId, before))) {
+                for (Result result : scanner) {
+                    Message message = MessageRows.toMessage(result, messageKeys.offset());
+                    Long pause = MessageRows.getPause(result);
+                    writer.append(message, pause != null ? pause : message.getTimestamp() - previousTimestamp);
+                    previousTimestamp = message.getTimestamp();
+                }
+                Segment segment = writer.commit();
+                logger.info("Archived {} messages of room {} in [{}, {})", segment.getMessageCount(), roomId, from, before);
+                return segment;
+            }
+        } catch (IOException e) {
+            logger.error("Failed to archive messages of room {}", roomId, e);
+            throw new RuntimeException(e);
+        }
+    }
 
-            List<Long> pauses = new LinkedList<>();
-            if (!msgTimestamps.isEmpty()) {
-                long lastTimestamp = msgTimestamps.get(0);
-                for (long ts: msgTimestamps) {
-                    pauses.add(ts - lastTimestamp);
-                    lastTimestamp = ts;
+    /**
+     * Deletes the rows of the segment's messages as of when they were archived, so rows written again since are
+     * kept. Search postings are kept, searches read archived messages from the segment. Readers must see the
+     * segment before, i.e. it must have been committed for longer than {@value MessageArchive#REFRESH_MILLIS_KEY}.
+     */
+    public void deleteArchivedMessages(Segment segment) {
+        int roomId = segment.getRoomId();
+        List<Delete> deletes = new ArrayList<>();
+        try {
+            Message last = null;
+            List<Message> messages;
+            while (!(messages = segment.read(segment.getStartTime(), segment.getEndTime(), last, REBUILD_BATCH_SIZE)).isEmpty()) {
+                for (Message message : messages) {
+                    deletes.add(new Delete(getMessageRowkey(roomId, message), segment.getArchivedAt()));
                 }
+                hbase.batch(messageTableName, deletes);
+                deletes.clear();
+                last = messages.get(messages.size() - 1);
             }
+        } catch (IOException e) {
+            logger.error("Failed to delete archived messages of room {}", roomId, e);
+            throw new RuntimeException(e);
+        }
+    }
 
-            return pauses;
+    /**
+     * Writes messages of a backfill to an existing room, see {@link org.wayneyu.chat.tools.ImportMessages}. Unlike
+     * {@link #addMessages} it neither reads nor updates the room meta and writes the rows without meta:pause, so
+     * batches may come in any order from any number of threads. The rows and postings are only buffered until
+     * {@link #flushImportedMessages}; {@link #finishImport} then completes the room once all its batches are in.
+     *
+     * The room's stats are incremented as with {@link #addMessages}, so importing messages twice counts them twice.
+     */
+    public void importMessages(int roomId, List<Message> messages) {
+        if (messages.isEmpty()) {
+            return;
+        }
+        if (getRoomMeta(roomId) == null) {
+            throw new RuntimeException(String.format("Could not find room meta for room id %d", roomId));
+        }
+        try {
+            List<Put> puts = new ArrayList<>(messages.size());
+            ActivityRollup activity = new ActivityRollup(statsBucketMillis);
+            for (Message message : messages) {
+                byte[] rowkey = getMessageRowkey(roomId, message);
+                puts.add(compactMessages ? MessageRows.toPut(rowkey, message) : MessageRows.toCellsPut(rowkey, message));
+                activity.addMessage(message.getAuthor(), message.getTimestamp());
+            }
+            hbase.buffer(messageTableName, puts);
+            if (indexMessages) {
+                hbase.buffer(indexTableName, toPostings(roomId, messages));
+            }
+            hbase.batch(statsTableName, activity.toMutations(roomId));
         } catch (IOException e) {
-            logger.error("Failed to get message pauses from HBase", e);
+            logger.error("Failed to import messages to HBase", e);
             throw new RuntimeException(e);
         }
     }
 
-    private void updateRoomMetaCountAndLastMessageTs(int roomId, int index, long messageTimestamp){
+    /**
+     * Sends the rows buffered by {@link #importMessages}.
+     */
+    public void flushImportedMessages() {
         try {
-            hbase.checkAndPut(roomTableName, getRoomRowkey(roomId), ROOM_META_COLUMN_FAMILY, "count", CompareFilter.CompareOp.GREATER, Bytes.toBytes(index));
-            hbase.checkAndPut(roomTableName, getRoomRowkey(roomId), ROOM_META_COLUMN_FAMILY, "lastMsgTs", CompareFilter.CompareOp.GREATER, Bytes.toBytes(messageTimestamp));
+            hbase.flush();
+        } catch (IOException e) {
+            logger.error("Failed to flush imported messages to HBase", e);
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Advances the room meta to the last imported message, if it is past meta:lastMsgTs, and computes meta:pause
+     * and the pause rollup of the room with {@link #rebuildPauseRollups}. Runs once per room after its imported
+     * messages were flushed.
+     */
+    public void finishImport(int roomId, Message last) {
+        RoomMeta meta = getRoomMeta(roomId);
+        if (meta == null) {
+            throw new RuntimeException(String.format("Could not find room meta for room id %d", roomId));
+        }
+        updateRoomMetaCountAndLastMessageTs(roomId, meta, last.getIndex(), last.getTimestamp());
+        rebuildPauseRollups(roomId);
+    }
+
+    /**
+     * Ids of all rooms, for offline tools.
+     */
+    public List<Integer> getRoomIds() {
+        Scan scan = new Scan();
+        scan.setFilter(new FirstKeyOnlyFilter());
+        List<Integer> roomIds = new ArrayList<>();
+        try (ResultScanner scanner = hbase.getScanner(roomTableName, scan)) {
+            for (Result result : scanner) {
+                roomIds.add(RowkeyCodec.decodeRoomId(result.getRow(), 0));
+            }
+        } catch (IOException e) {
+            logger.error("Failed to list rooms in HBase", e);
+            throw new RuntimeException(e);
+        }
+        return roomIds;
+    }
+
+    private boolean hasMessages(int roomId, long startTime, long endTime) throws IOException {
+        if (archive != null && !archive.read(roomId, startTime, endTime, null, 1).isEmpty()) {
+            return true;
+        }
+        return hasRows(roomId, startTime, endTime);
+    }
+
+    private boolean hasRows(int roomId, long startTime, long endTime) throws IOException {
+        Scan scan = new Scan();
+        MessageRows.addRowColumns(scan);
+        scan.setFilter(new FilterList(new FirstKeyOnlyFilter(), new KeyOnlyFilter()));
+        scan.setCaching(1);
+        try (ResultScanner scanner = getMessageScanner(scan, getMessageRowkey(roomId, startTime), getMessageRowkey(roomId, endTime))) {
+            return scanner.next() != null;
+        }
+    }
+
+    private RoomMeta getRoomMeta(int id) {
+        RoomMeta meta = roomMetaCache.get(id);
+        if (meta != null) {
+            return meta;
+        }
+        try {
+            Result result = hbase.getRow(roomTableName, getRoomRowkey(id), ROOM_META_COLUMN_FAMILY);
+            if (result.isEmpty()) {
+                return null;
+            } else {
+                meta = toRoomMeta(result);
+                roomMetaCache.put(id, meta);
+                return meta;
+            }
+        } catch (IOException e) {
+            logger.error("Failed to get room meta from HBase", e);
+            throw new RuntimeException(e);
+        }
+    }
+
+    private RoomMeta toRoomMeta(Result result) {
+        int count = Bytes.toInt(result.getValue(Bytes.toBytes(ROOM_META_COLUMN_FAMILY), Bytes.toBytes("count")));
+        long created = Bytes.toLong(result.getValue(Bytes.toBytes(ROOM_META_COLUMN_FAMILY), Bytes.toBytes("created")));
+        long lastMsgTs = Bytes.toLong(result.getValue(Bytes.toBytes(ROOM_META_COLUMN_FAMILY), Bytes.toBytes("lastMsgTs")));
+        return new RoomMeta(count, created, lastMsgTs);
+    }
+
+    /**
+     * Moves meta:count and meta:lastMsgTs from the given meta to the batch's last message with a single
+     * check-and-mutate on lastMsgTs being exactly the one the batch's pauses are computed from. Of concurrent
+     * writers, in this process or in others, only one claims the range after a lastMsgTs; the others read the meta
+     * again and redo their pauses from the claimed one.
+     *
+     * @return false if meta:lastMsgTs is no longer the given one
+     */
+    private boolean claimRoomMeta(int roomId, RoomMeta meta, int index, long messageTimestamp) throws IOException {
+        Put put = new Put(getRoomRowkey(roomId));
+        put.addColumn(Bytes.toBytes(ROOM_META_COLUMN_FAMILY), Bytes.toBytes("count"), Bytes.toBytes(index));
+        put.addColumn(Bytes.toBytes(ROOM_META_COLUMN_FAMILY), Bytes.toBytes("lastMsgTs"), Bytes.toBytes(messageTimestamp));
+        RowMutations mutations = new RowMutations(put.getRow());
+        mutations.add(put);
+
+        boolean claimed = hbase.checkAndMutate(roomTableName, mutations, ROOM_META_COLUMN_FAMILY, "lastMsgTs",
+                CompareFilter.CompareOp.EQUAL, Bytes.toBytes(meta.getLastMessageTimestamp()));
+        if (claimed) {
+            roomMetaCache.put(roomId, new RoomMeta(index, meta.getCreated(), messageTimestamp));
+        }
+        return claimed;
+    }
+
+    /**
+     * Advances meta:count and meta:lastMsgTs together with a single check-and-mutate on lastMsgTs, so concurrent
+     * writers can only move the meta forward. For backfills, whose pauses are computed afterwards; batches that do
+     * not advance lastMsgTs past the meta already known to this process skip the RPC.
+     */
+    private void updateRoomMetaCountAndLastMessageTs(int roomId, RoomMeta meta, int index, long messageTimestamp){
+        if (meta != null && messageTimestamp <= meta.getLastMessageTimestamp()) {
+            return;
+        }
+        try {
+            byte[] lastMsgTs = Bytes.toBytes(messageTimestamp);
+            Put put = new Put(getRoomRowkey(roomId));
+            put.addColumn(Bytes.toBytes(ROOM_META_COLUMN_FAMILY), Bytes.toBytes("count"), Bytes.toBytes(index));
+            put.addColumn(Bytes.toBytes(ROOM_META_COLUMN_FAMILY), Bytes.toBytes("lastMsgTs"), lastMsgTs);
+            RowMutations mutations = new RowMutations(put.getRow());
+            mutations.add(put);
+
+            boolean updated = hbase.checkAndMutate(roomTableName, mutations, ROOM_META_COLUMN_FAMILY, "lastMsgTs", CompareFilter.CompareOp.GREATER, lastMsgTs);
+            if (updated && meta != null) {
+                roomMetaCache.put(roomId, new RoomMeta(index, meta.getCreated(), messageTimestamp));
+            } else {
+                // another writer is ahead of the cached meta
+                roomMetaCache.invalidate(roomId);
+            }
         } catch (IOException e) {
             logger.error("Failed to update room meta data");
             throw new RuntimeException(e);
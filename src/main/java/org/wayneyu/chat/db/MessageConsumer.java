@@ -0,0 +1,15 @@
+package org.wayneyu.chat.db;
+
+import org.wayneyu.chat.model.Message;
+
+import java.io.IOException;
+
+/**
+ * Receives messages one at a time as they are read from the store. An IOException thrown
+ * by the consumer (e.g. the client went away) aborts the read and releases the scanner.
+ */
+public interface MessageConsumer {
+
+    void accept(Message message) throws IOException;
+
+}
@@ -0,0 +1,55 @@
+package org.wayneyu.chat.db;
+
+import org.wayneyu.chat.model.Message;
+import org.wayneyu.chat.model.MessagePage;
+
+import java.util.Base64;
+import java.util.List;
+
+/**
+ * Opaque paging cursors. A cursor is the URL-safe base64 of the message rowkey of the last message on a page,
+ * and the next page continues strictly after it in the direction of the read.
+ */
+public final class MessageCursor {
+
+    private MessageCursor() {
+    }
+
+    public static String encode(int roomId, Message last) {
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(RowkeyCodec.messageKey(roomId, last.getTimestamp(), last.getIndex()));
+    }
+
+    /**
+     * @return the message rowkey the cursor points at
+     * @throws IllegalArgumentException if the cursor is malformed or belongs to another room
+     */
+    public static byte[] decode(int roomId, String cursor) {
+        byte[] key;
+        try {
+            key = Base64.getUrlDecoder().decode(cursor);
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Invalid cursor " + cursor, e);
+        }
+        if (key.length != RowkeyCodec.MESSAGE_KEY_LENGTH || RowkeyCodec.decodeRoomId(key, 0) != roomId) {
+            throw new IllegalArgumentException("Invalid cursor " + cursor);
+        }
+        return key;
+    }
+
+    /**
+     * The page of the first limit messages read, given that up to limit + 1 were read.
+     */
+    public static MessagePage toPage(int roomId, List<Message> messages, int limit) {
+        if (messages.size() <= limit) {
+            return new MessagePage(messages, null);
+        }
+        List<Message> page = messages.subList(0, limit);
+        return new MessagePage(page, encode(roomId, page.get(limit - 1)));
+    }
+
+    public static void checkLimit(int limit) {
+        if (limit < 1) {
+            throw new IllegalArgumentException("Page limit must be positive, was " + limit);
+        }
+    }
+}
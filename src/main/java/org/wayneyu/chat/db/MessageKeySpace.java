@@ -0,0 +1,113 @@
+package org.wayneyu.chat.db;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.util.Bytes;
+
+import java.util.Comparator;
+
+/**
+ * Rowkeys of the MESSAGE table. With salt buckets, a one byte bucket derived from the message's own key is put in
+ * front of its {@link RowkeyCodec} key, so that the writes of a busy room spread over as many key ranges, and
+ * regions, as there are buckets:
+ *
+ * Salted message rowkey: bucket (1 byte) | roomId (4 bytes) | timestamp (8 bytes) | index (4 bytes)
+ *
+ * A range of a room is then read with one scan per bucket whose rows are merged on the unsalted key. Range bounds
+ * and cursors stay unsalted. The number of buckets is part of the key, so changing it means copying the table.
+ */
+public final class MessageKeySpace {
+
+    public static final String SALT_BUCKETS_KEY = "chat.message.saltBuckets";
+    public static final int MAX_SALT_BUCKETS = 256;
+
+    private final int buckets;
+
+    /**
+     * @param buckets number of salt buckets, 0 or 1 for unsalted keys
+     */
+    public MessageKeySpace(int buckets) {
+        if (buckets < 0 || buckets > MAX_SALT_BUCKETS) {
+            throw new IllegalArgumentException(String.format("%s must be between 0 and %d, was %d", SALT_BUCKETS_KEY, MAX_SALT_BUCKETS, buckets));
+        }
+        this.buckets = buckets > 1 ? buckets : 0;
+    }
+
+    public static MessageKeySpace create(Configuration config) {
+        return new MessageKeySpace(config.getInt(SALT_BUCKETS_KEY, 0));
+    }
+
+    public boolean isSalted() {
+        return buckets > 0;
+    }
+
+    public int getBucketCount() {
+        return Math.max(1, buckets);
+    }
+
+    /**
+     * Offset of the {@link RowkeyCodec} key within a rowkey.
+     */
+    public int offset() {
+        return isSalted() ? 1 : 0;
+    }
+
+    public byte[] messageKey(int roomId, long timestamp, int index) {
+        if (!isSalted()) {
+            return RowkeyCodec.messageKey(roomId, timestamp, index);
+        }
+        byte[] key = new byte[1 + RowkeyCodec.MESSAGE_KEY_LENGTH];
+        key[0] = (byte) bucket(roomId, timestamp, index);
+        RowkeyCodec.encodeMessageKey(roomId, timestamp, index, key, 1);
+        return key;
+    }
+
+    /**
+     * The unsalted key, e.g. a range bound, within the given bucket.
+     */
+    public byte[] salted(int bucket, byte[] key) {
+        return Bytes.add(new byte[]{(byte) bucket}, key);
+    }
+
+    /**
+     * Spreads consecutive messages of a room over the buckets. Resent messages keep their bucket.
+     */
+    int bucket(int roomId, long timestamp, int index) {
+        int hash = 31 * (31 * roomId + Long.hashCode(timestamp)) + index;
+        hash ^= hash >>> 16;
+        hash *= 0x85ebca6b;
+        hash ^= hash >>> 13;
+        return Math.floorMod(hash, buckets);
+    }
+
+    /**
+     * Compares a rowkey with an unsalted key.
+     */
+    int compareToKey(byte[] row, byte[] key) {
+        int offset = offset();
+        return Bytes.compareTo(row, offset, row.length - offset, key, 0, key.length);
+    }
+
+    /**
+     * Order of rows on their unsalted keys, for merging the scans of the buckets.
+     */
+    Comparator<Result> rowOrder(boolean reversed) {
+        int offset = offset();
+        Comparator<Result> order = (a, b) -> Bytes.compareTo(
+                a.getRow(), offset, a.getRow().length - offset,
+                b.getRow(), offset, b.getRow().length - offset);
+        return reversed ? order.reversed() : order;
+    }
+
+    /**
+     * Region boundaries between the buckets, spread evenly over the given number of regions.
+     */
+    public byte[][] bucketSplits(int regions) {
+        int count = Math.min(regions, getBucketCount());
+        byte[][] splits = new byte[Math.max(0, count - 1)][];
+        for (int i = 1; i < count; i++) {
+            splits[i - 1] = new byte[]{(byte) (i * getBucketCount() / count)};
+        }
+        return splits;
+    }
+}
@@ -0,0 +1,209 @@
+package org.wayneyu.chat.db;
+
+import org.apache.hadoop.hbase.Cell;
+import org.apache.hadoop.hbase.client.Put;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.client.Scan;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.wayneyu.chat.model.Message;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.wayneyu.chat.db.HBaseRepositoryImpl.MESSAGE_MESSAGE_COLUMN_FAMILY;
+import static org.wayneyu.chat.db.HBaseRepositoryImpl.MESSAGE_META_COLUMN_FAMILY;
+
+/**
+ * Cells of a MESSAGE row.
+ *
+ * Message schema
+ * row                          column
+ * chatRoomId|timestamp|index   message:m            // compact encoding, see below; rowkey salted by MessageKeySpace
+ *                              meta:pause           // millis since the previous message of the room
+ *
+ * Rows written before the compact encoding have four cells instead of message:m
+ *                              message:index
+ *                              message:author
+ *                              message:timestamp
+ *                              message:message
+ *
+ * message:m holds a version byte followed by, for version 1, the author and the message, each as a varint of its
+ * UTF-8 length + 1 (0 for null) and its bytes. Index and timestamp are read from the rowkey. Decoders ignore bytes
+ * after the fields they know, so later versions may append fields.
+ */
+final class MessageRows {
+
+    static final byte COMPACT_VERSION = 1;
+
+    private static final byte[] MESSAGE_FAMILY = Bytes.toBytes(MESSAGE_MESSAGE_COLUMN_FAMILY);
+    private static final byte[] META_FAMILY = Bytes.toBytes(MESSAGE_META_COLUMN_FAMILY);
+    private static final byte[] COMPACT_QUALIFIER = Bytes.toBytes("m");
+    private static final byte[] INDEX_QUALIFIER = Bytes.toBytes("index");
+    private static final byte[] AUTHOR_QUALIFIER = Bytes.toBytes("author");
+    private static final byte[] TIMESTAMP_QUALIFIER = Bytes.toBytes("timestamp");
+    private static final byte[] MESSAGE_QUALIFIER = Bytes.toBytes("message");
+    private static final byte[] PAUSE_QUALIFIER = Bytes.toBytes("pause");
+
+    private MessageRows() {
+    }
+
+    /**
+     * Row in the compact encoding.
+     */
+    static Put toPut(byte[] rowkey, Message message, long pause) {
+        return toPut(rowkey, message).addColumn(META_FAMILY, PAUSE_QUALIFIER, Bytes.toBytes(pause));
+    }
+
+    /**
+     * Row in the compact encoding without meta:pause, which {@link HBaseRepositoryImpl#rebuildPauseRollups} adds.
+     */
+    static Put toPut(byte[] rowkey, Message message) {
+        Put put = new Put(rowkey);
+        put.addColumn(MESSAGE_FAMILY, COMPACT_QUALIFIER, encode(message));
+        return put;
+    }
+
+    /**
+     * Row in the four cell layout, which service versions without the compact encoding can read.
+     */
+    static Put toCellsPut(byte[] rowkey, Message message, long pause) {
+        return toCellsPut(rowkey, message).addColumn(META_FAMILY, PAUSE_QUALIFIER, Bytes.toBytes(pause));
+    }
+
+    /**
+     * Row in the four cell layout without meta:pause.
+     */
+    static Put toCellsPut(byte[] rowkey, Message message) {
+        Put put = new Put(rowkey);
+        put.addColumn(MESSAGE_FAMILY, INDEX_QUALIFIER, Bytes.toBytes(message.getIndex()));
+        put.addColumn(MESSAGE_FAMILY, AUTHOR_QUALIFIER, Bytes.toBytes(message.getAuthor()));
+        put.addColumn(MESSAGE_FAMILY, TIMESTAMP_QUALIFIER, Bytes.toBytes(message.getTimestamp()));
+        put.addColumn(MESSAGE_FAMILY, MESSAGE_QUALIFIER, Bytes.toBytes(message.getMessage()));
+        return put;
+    }
+
+    static Put toPausePut(byte[] rowkey, long pause) {
+        Put put = new Put(rowkey);
+        put.addColumn(META_FAMILY, PAUSE_QUALIFIER, Bytes.toBytes(pause));
+        return put;
+    }
+
+    /**
+     * Columns of which every message row has one in either layout, for scans that only need the rowkeys.
+     */
+    static void addRowColumns(Scan scan) {
+        scan.addColumn(MESSAGE_FAMILY, COMPACT_QUALIFIER);
+        scan.addColumn(MESSAGE_FAMILY, INDEX_QUALIFIER);
+    }
+
+    /**
+     * Decodes either layout. A row rewritten in the compact encoding over the four cells reads from message:m.
+     *
+     * @param keyOffset offset of the unsalted key in the rowkey, see {@link MessageKeySpace#offset()}
+     */
+    static Message toMessage(Result result, int keyOffset) {
+        Cell compact = result.getColumnLatestCell(MESSAGE_FAMILY, COMPACT_QUALIFIER);
+        if (compact != null) {
+            byte[] row = result.getRow();
+            return decode(RowkeyCodec.decodeIndex(row, keyOffset), RowkeyCodec.decodeTimestamp(row, keyOffset),
+                    compact.getValueArray(), compact.getValueOffset(), compact.getValueLength());
+        }
+        String author = Bytes.toString(result.getValue(MESSAGE_FAMILY, AUTHOR_QUALIFIER));
+        long timestamp = Bytes.toLong(result.getValue(MESSAGE_FAMILY, TIMESTAMP_QUALIFIER));
+        int index = Bytes.toInt(result.getValue(MESSAGE_FAMILY, INDEX_QUALIFIER));
+        String message = Bytes.toString(result.getValue(MESSAGE_FAMILY, MESSAGE_QUALIFIER));
+        return new Message(index, timestamp, author, message);
+    }
+
+    /**
+     * Null when the row has no meta:pause, i.e. it was never counted in the rollup.
+     */
+    static Long getPause(Result result) {
+        byte[] pause = result.getValue(META_FAMILY, PAUSE_QUALIFIER);
+        return pause == null ? null : Bytes.toLong(pause);
+    }
+
+    static byte[] encode(Message message) {
+        byte[] author = message.getAuthor() == null ? null : message.getAuthor().getBytes(StandardCharsets.UTF_8);
+        byte[] text = message.getMessage() == null ? null : message.getMessage().getBytes(StandardCharsets.UTF_8);
+        byte[] value = new byte[1 + encodedLength(author) + encodedLength(text)];
+        value[0] = COMPACT_VERSION;
+        int offset = putString(value, 1, author);
+        putString(value, offset, text);
+        return value;
+    }
+
+    static Message decode(int index, long timestamp, byte[] value, int offset, int length) {
+        int end = offset + length;
+        if (length == 0 || value[offset] != COMPACT_VERSION) {
+            throw new RuntimeException(String.format("Unsupported message encoding version %d",
+                    length == 0 ? -1 : value[offset] & 0xff));
+        }
+        int[] position = {offset + 1};
+        String author = getString(value, position, end);
+        String message = getString(value, position, end);
+        return new Message(index, timestamp, author, message);
+    }
+
+    private static int encodedLength(byte[] string) {
+        int size = string == null ? 0 : string.length + 1;
+        return varintLength(size) + (string == null ? 0 : string.length);
+    }
+
+    private static int putString(byte[] dst, int offset, byte[] string) {
+        if (string == null) {
+            return putVarint(dst, offset, 0);
+        }
+        offset = putVarint(dst, offset, string.length + 1);
+        System.arraycopy(string, 0, dst, offset, string.length);
+        return offset + string.length;
+    }
+
+    private static String getString(byte[] src, int[] position, int end) {
+        int size = getVarint(src, position, end);
+        if (size == 0) {
+            return null;
+        }
+        int length = size - 1;
+        if (length > end - position[0]) {
+            throw new RuntimeException("Truncated message encoding");
+        }
+        String string = new String(src, position[0], length, StandardCharsets.UTF_8);
+        position[0] += length;
+        return string;
+    }
+
+    private static int varintLength(int value) {
+        int length = 1;
+        while ((value >>>= 7) != 0) {
+            length++;
+        }
+        return length;
+    }
+
+    /**
+     * Unsigned LEB128, seven bits per byte with the high bit set on all but the last byte.
+     */
+    private static int putVarint(byte[] dst, int offset, int value) {
+        while ((value & ~0x7f) != 0) {
+            dst[offset++] = (byte) ((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        dst[offset++] = (byte) value;
+        return offset;
+    }
+
+    private static int getVarint(byte[] src, int[] position, int end) {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            if (position[0] >= end) {
+                throw new RuntimeException("Truncated message encoding");
+            }
+            byte b = src[position[0]++];
+            value |= (b & 0x7f) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+        throw new RuntimeException("Malformed varint in message encoding");
+    }
+}
@@ -0,0 +1,138 @@
+package org.wayneyu.chat.db;
+
+import org.apache.hadoop.hbase.client.Increment;
+import org.apache.hadoop.hbase.client.Put;
+import org.apache.hadoop.hbase.util.Bytes;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * Per room, per time bucket rollup of message pauses.
+ *
+ * Rollup schema
+ * row                      column
+ * chatRoomId|bucketStart   count:messages        // messages with timestamp in the bucket
+ *                          pause:{bin}           // messages in the bucket with a pause in this bin
+ *
+ * Pauses are counted in {@link #BINS} log-scale bins of one byte qualifiers, bin b holding the pauses in
+ * [2^(b-1), 2^b) and bin 0 those of 0 or less, so a bucket has at most that many pause cells however many
+ * messages it holds. Pauses of the bins above a threshold's bin all exceed it; only the bin the threshold
+ * falls in needs the pauses themselves. A rollup collects changes for one room and turns them into
+ * increments (live writes) or puts (rebuilds).
+ */
+class PauseRollup {
+
+    static final String COUNT_COLUMN_FAMILY = "count";
+    static final String PAUSE_COLUMN_FAMILY = "pause";
+
+    static final int BINS = 64;
+
+    private final long bucketMillis;
+    private final Map<Long, Long> messageCounts = new TreeMap<>();
+    private final Map<Long, Map<Integer, Long>> pauseCounts = new TreeMap<>();
+
+    PauseRollup(long bucketMillis) {
+        this.bucketMillis = bucketMillis;
+    }
+
+    static byte[] rowkey(int roomId, long bucketStart) {
+        return RowkeyCodec.messageKeyPrefix(roomId, bucketStart);
+    }
+
+    static int bin(long pause) {
+        return pause <= 0 ? 0 : Long.SIZE - Long.numberOfLeadingZeros(pause);
+    }
+
+    /**
+     * Longest pause in the bin.
+     */
+    static long binMax(int bin) {
+        return bin == 0 ? 0 : bin == BINS - 1 ? Long.MAX_VALUE : (1L << bin) - 1;
+    }
+
+    static byte[] binQualifier(int bin) {
+        return new byte[]{(byte) bin};
+    }
+
+    static int decodeBin(byte[] array, int offset) {
+        return array[offset] & 0xff;
+    }
+
+    long bucketStart(long timestamp) {
+        return Math.floorDiv(timestamp, bucketMillis) * bucketMillis;
+    }
+
+    /**
+     * First bucket boundary at or after the timestamp.
+     */
+    long bucketCeiling(long timestamp) {
+        long start = bucketStart(timestamp);
+        return start == timestamp ? start : start + bucketMillis;
+    }
+
+    void addMessage(long timestamp, long pause) {
+        messageCounts.merge(bucketStart(timestamp), 1L, Long::sum);
+        addPause(timestamp, pause, 1);
+    }
+
+    void changePause(long timestamp, long oldPause, long newPause) {
+        if (bin(oldPause) != bin(newPause)) {
+            addPause(timestamp, oldPause, -1);
+            addPause(timestamp, newPause, 1);
+        }
+    }
+
+    private void addPause(long timestamp, long pause, long delta) {
+        pauseCounts.computeIfAbsent(bucketStart(timestamp), k -> new HashMap<>()).merge(bin(pause), delta, Long::sum);
+    }
+
+    List<Increment> toIncrements(int roomId) {
+        List<Increment> increments = new ArrayList<>();
+        for (Long bucket : buckets()) {
+            Increment increment = new Increment(rowkey(roomId, bucket));
+            Long messages = messageCounts.get(bucket);
+            if (messages != null) {
+                increment.addColumn(Bytes.toBytes(COUNT_COLUMN_FAMILY), Bytes.toBytes("messages"), messages);
+            }
+            for (Map.Entry<Integer, Long> bin : pauseCounts.getOrDefault(bucket, Collections.<Integer, Long>emptyMap()).entrySet()) {
+                if (bin.getValue() != 0) {
+                    increment.addColumn(Bytes.toBytes(PAUSE_COLUMN_FAMILY), binQualifier(bin.getKey()), bin.getValue());
+                }
+            }
+            if (!increment.isEmpty()) {
+                increments.add(increment);
+            }
+        }
+        return increments;
+    }
+
+    /**
+     * Absolute values, for a rollup built from all messages of a room. The cell timestamp lets the puts
+     * land after deletes of the previous rollup rows issued in the same millisecond.
+     */
+    List<Put> toPuts(int roomId, long cellTimestamp) {
+        List<Put> puts = new ArrayList<>();
+        for (Long bucket : buckets()) {
+            Put put = new Put(rowkey(roomId, bucket));
+            put.addColumn(Bytes.toBytes(COUNT_COLUMN_FAMILY), Bytes.toBytes("messages"), cellTimestamp, Bytes.toBytes(messageCounts.getOrDefault(bucket, 0L)));
+            for (Map.Entry<Integer, Long> bin : pauseCounts.getOrDefault(bucket, Collections.<Integer, Long>emptyMap()).entrySet()) {
+                put.addColumn(Bytes.toBytes(PAUSE_COLUMN_FAMILY), binQualifier(bin.getKey()), cellTimestamp, Bytes.toBytes(bin.getValue()));
+            }
+            puts.add(put);
+        }
+        return puts;
+    }
+
+    private Set<Long> buckets() {
+        Set<Long> buckets = new TreeSet<>(messageCounts.keySet());
+        buckets.addAll(pauseCounts.keySet());
+        return buckets;
+    }
+}
@@ -0,0 +1,115 @@
+package org.wayneyu.chat.db;
+
+/**
+ * Fixed-width binary rowkeys for the ROOM and MESSAGE tables.
+ *
+ * Room rowkey:    roomId (4 bytes)
+ * Message rowkey: roomId (4 bytes) | timestamp (8 bytes) | index (4 bytes)
+ *
+ * Integers are written big-endian with the sign bit flipped, so HBase's unsigned byte order
+ * matches numeric order. The encode/decode methods that take a buffer and offset do not allocate.
+ */
+public final class RowkeyCodec {
+
+    public static final int ROOM_KEY_LENGTH = 4;
+    public static final int MESSAGE_KEY_PREFIX_LENGTH = 12;
+    public static final int MESSAGE_KEY_LENGTH = 16;
+
+    private RowkeyCodec() {
+    }
+
+    public static byte[] roomKey(int roomId) {
+        byte[] key = new byte[ROOM_KEY_LENGTH];
+        encodeRoomKey(roomId, key, 0);
+        return key;
+    }
+
+    public static int encodeRoomKey(int roomId, byte[] dst, int offset) {
+        return putInt(dst, offset, roomId);
+    }
+
+    public static byte[] messageKey(int roomId, long timestamp, int index) {
+        byte[] key = new byte[MESSAGE_KEY_LENGTH];
+        encodeMessageKey(roomId, timestamp, index, key, 0);
+        return key;
+    }
+
+    public static int encodeMessageKey(int roomId, long timestamp, int index, byte[] dst, int offset) {
+        offset = encodeMessageKeyPrefix(roomId, timestamp, dst, offset);
+        return putInt(dst, offset, index);
+    }
+
+    /**
+     * Prefix shared by all messages of a room at the given timestamp. It sorts before every
+     * message key at that timestamp, so [prefix(start), prefix(end)) covers start <= t < end.
+     */
+    public static byte[] messageKeyPrefix(int roomId, long timestamp) {
+        byte[] key = new byte[MESSAGE_KEY_PREFIX_LENGTH];
+        encodeMessageKeyPrefix(roomId, timestamp, key, 0);
+        return key;
+    }
+
+    public static int encodeMessageKeyPrefix(int roomId, long timestamp, byte[] dst, int offset) {
+        offset = putInt(dst, offset, roomId);
+        return putLong(dst, offset, timestamp);
+    }
+
+    /**
+     * 8 byte encoding of a long whose unsigned byte order matches numeric order, for use in qualifiers.
+     */
+    public static byte[] sortableLong(long value) {
+        byte[] bytes = new byte[8];
+        putLong(bytes, 0, value);
+        return bytes;
+    }
+
+    public static long decodeSortableLong(byte[] src, int offset) {
+        return getLong(src, offset);
+    }
+
+    public static int decodeRoomId(byte[] key, int offset) {
+        return getInt(key, offset);
+    }
+
+    public static long decodeTimestamp(byte[] key, int offset) {
+        return getLong(key, offset + ROOM_KEY_LENGTH);
+    }
+
+    public static int decodeIndex(byte[] key, int offset) {
+        return getInt(key, offset + MESSAGE_KEY_PREFIX_LENGTH);
+    }
+
+    private static int putInt(byte[] dst, int offset, int value) {
+        value ^= Integer.MIN_VALUE;
+        dst[offset] = (byte) (value >>> 24);
+        dst[offset + 1] = (byte) (value >>> 16);
+        dst[offset + 2] = (byte) (value >>> 8);
+        dst[offset + 3] = (byte) value;
+        return offset + 4;
+    }
+
+    private static int putLong(byte[] dst, int offset, long value) {
+        value ^= Long.MIN_VALUE;
+        for (int i = 7; i >= 0; i--) {
+            dst[offset + i] = (byte) value;
+            value >>>= 8;
+        }
+        return offset + 8;
+    }
+
+    private static int getInt(byte[] src, int offset) {
+        int value = (src[offset] & 0xff) << 24
+                | (src[offset + 1] & 0xff) << 16
+                | (src[offset + 2] & 0xff) << 8
+                | (src[offset + 3] & 0xff);
+        return value ^ Integer.MIN_VALUE;
+    }
+
+    private static long getLong(byte[] src, int offset) {
+        long value = 0;
+        for (int i = 0; i < 8; i++) {
+            value = (value << 8) | (src[offset + i] & 0xff);
+        }
+        return value ^ Long.MIN_VALUE;
+    }
+}
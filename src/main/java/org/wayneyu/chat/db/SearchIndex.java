@@ -0,0 +1,137 @@
+package org.wayneyu.chat.db;
+
+import org.apache.hadoop.hbase.client.Put;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.wayneyu.chat.model.Message;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * Inverted index of message text, one row per occurrence of a term in a message.
+ *
+ * Index schema
+ * row                                      column
+ * chatRoomId|term|0x00|timestamp|index     posting:        // empty
+ *
+ * Terms are lower cased runs of letters and digits, cut at {@value #MAX_TERM_LENGTH} characters, so they never
+ * contain the 0x00 separator. The postings of a term in a room are contiguous and sorted like the room's messages,
+ * so those in a time range are read by one scan and end with the timestamp and index of the message.
+ */
+final class SearchIndex {
+
+    static final String POSTING_COLUMN_FAMILY = "posting";
+    static final int MAX_TERM_LENGTH = 64;
+    static final int MAX_QUERY_TERMS = 16;
+
+    private static final byte[] POSTING_FAMILY = Bytes.toBytes(POSTING_COLUMN_FAMILY);
+    private static final byte[] EMPTY = new byte[0];
+
+    private SearchIndex() {
+    }
+
+    /**
+     * Distinct terms of the text in order of appearance, none for null.
+     */
+    static Set<String> terms(String text) {
+        Set<String> terms = new LinkedHashSet<>();
+        if (text == null) {
+            return terms;
+        }
+        int start = -1;
+        for (int i = 0; i <= text.length(); ) {
+            int codePoint = i < text.length() ? text.codePointAt(i) : ' ';
+            if (Character.isLetterOrDigit(codePoint)) {
+                if (start < 0) {
+                    start = i;
+                }
+            } else if (start >= 0) {
+                terms.add(term(text.substring(start, i)));
+                start = -1;
+            }
+            i += Character.charCount(codePoint);
+        }
+        return terms;
+    }
+
+    private static String term(String token) {
+        String term = token.toLowerCase(Locale.ROOT);
+        if (term.length() > MAX_TERM_LENGTH) {
+            int end = MAX_TERM_LENGTH;
+            if (Character.isHighSurrogate(term.charAt(end - 1))) {
+                end--;
+            }
+            term = term.substring(0, end);
+        }
+        return term;
+    }
+
+    /**
+     * @throws IllegalArgumentException if the query has no terms or more than {@value #MAX_QUERY_TERMS}
+     */
+    static Set<String> queryTerms(String query) {
+        Set<String> terms = terms(query);
+        if (terms.isEmpty()) {
+            throw new IllegalArgumentException("The query has no terms");
+        }
+        if (terms.size() > MAX_QUERY_TERMS) {
+            throw new IllegalArgumentException(String.format("At most %d query terms, got %d", MAX_QUERY_TERMS, terms.size()));
+        }
+        return terms;
+    }
+
+    /**
+     * Whether the message's text has all the terms.
+     */
+    static boolean matches(Message message, Set<String> terms) {
+        return terms(message.getMessage()).containsAll(terms);
+    }
+
+    static List<Put> toPuts(int roomId, Message message) {
+        Set<String> terms = terms(message.getMessage());
+        List<Put> puts = new ArrayList<>(terms.size());
+        for (String term : terms) {
+            Put put = new Put(rowkey(roomId, term, message.getTimestamp(), message.getIndex()));
+            put.addColumn(POSTING_FAMILY, EMPTY, EMPTY);
+            puts.add(put);
+        }
+        return puts;
+    }
+
+    static byte[] rowkey(int roomId, String term, long timestamp, int index) {
+        byte[] prefix = termPrefix(roomId, term);
+        byte[] key = new byte[prefix.length + RowkeyCodec.MESSAGE_KEY_LENGTH - RowkeyCodec.ROOM_KEY_LENGTH];
+        System.arraycopy(prefix, 0, key, 0, prefix.length);
+        byte[] suffix = RowkeyCodec.messageKey(roomId, timestamp, index);
+        System.arraycopy(suffix, RowkeyCodec.ROOM_KEY_LENGTH, key, prefix.length, suffix.length - RowkeyCodec.ROOM_KEY_LENGTH);
+        return key;
+    }
+
+    /**
+     * Smallest rowkey of the term's postings at the timestamp, so [rowkey(startTime), rowkey(endTime)) holds the
+     * postings of startTime <= t < endTime.
+     */
+    static byte[] rowkey(int roomId, String term, long timestamp) {
+        return Bytes.add(termPrefix(roomId, term), RowkeyCodec.sortableLong(timestamp));
+    }
+
+    private static byte[] termPrefix(int roomId, String term) {
+        byte[] termBytes = term.getBytes(StandardCharsets.UTF_8);
+        byte[] prefix = new byte[RowkeyCodec.ROOM_KEY_LENGTH + termBytes.length + 1];
+        RowkeyCodec.encodeRoomKey(roomId, prefix, 0);
+        System.arraycopy(termBytes, 0, prefix, RowkeyCodec.ROOM_KEY_LENGTH, termBytes.length);
+        return prefix;
+    }
+
+    /**
+     * Offset at which the posting's timestamp and index decode like a message key's, see
+     * {@link RowkeyCodec#decodeTimestamp} and {@link RowkeyCodec#decodeIndex}.
+     */
+    static int messageKeyOffset(byte[] rowkey) {
+        return rowkey.length - RowkeyCodec.MESSAGE_KEY_LENGTH;
+    }
+}
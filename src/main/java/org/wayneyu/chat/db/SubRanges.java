@@ -0,0 +1,53 @@
+package org.wayneyu.chat.db;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeSet;
+
+/**
+ * Splits a time range of a room into consecutive sub-ranges that can be scanned independently: at multiples of
+ * width where the room has messages, and at region boundaries, so that no sub-range spans two regions.
+ */
+final class SubRanges {
+
+    /**
+     * Wider sub-ranges are used if width would give more, e.g. for a room with years of messages.
+     */
+    static final int MAX_SUB_RANGES = 1024;
+
+    private SubRanges() {
+    }
+
+    /**
+     * @param first timestamp from which the room has messages, e.g. its creation time
+     * @param last timestamp up to which the room has messages, inclusive
+     * @param boundaries timestamps of region boundaries within the room, in any order
+     * @return [start, end) pairs covering [startTime, endTime) in order, a single one if it isn't split
+     */
+    static List<long[]> split(long startTime, long endTime, long first, long last, long width, long[] boundaries) {
+        TreeSet<Long> cuts = new TreeSet<>();
+        long from = Math.max(startTime, first);
+        long to = Math.min(endTime, last + 1);
+        if (from < to && width > 0) {
+            // unsigned, the span of a range of timestamps can exceed Long.MAX_VALUE
+            long span = to - from;
+            width = Math.max(width, Long.divideUnsigned(span, MAX_SUB_RANGES) + 1);
+            for (long cut = Math.floorDiv(from, width) * width + width; cut > from && cut < to; cut += width) {
+                cuts.add(cut);
+            }
+        }
+        for (long boundary : boundaries) {
+            if (boundary > startTime && boundary < endTime) {
+                cuts.add(boundary);
+            }
+        }
+        List<long[]> ranges = new ArrayList<>(cuts.size() + 1);
+        long start = startTime;
+        for (long cut : cuts) {
+            ranges.add(new long[]{start, cut});
+            start = cut;
+        }
+        ranges.add(new long[]{start, endTime});
+        return ranges;
+    }
+}
@@ -0,0 +1,52 @@
+package org.wayneyu.chat.db;
+
+import org.apache.hadoop.conf.Configuration;
+
+import java.util.Arrays;
+
+/**
+ * Split keys for pre-splitting tables when they are created. ROOM, rollup and unsalted MESSAGE rowkeys start
+ * with the room id, so those tables are split on room ids: the configured ones, or evenly over the non-negative
+ * ids. Salted MESSAGE tables are split between salt buckets, one region per bucket unless a region count is set.
+ */
+public final class TableSplits {
+
+    public static final String REGIONS_KEY = "chat.table.regions";
+    public static final String SPLIT_ROOM_IDS_KEY = "chat.table.splitRoomIds";
+
+    private TableSplits() {
+    }
+
+    /**
+     * @return split keys, or null for a single region
+     */
+    public static byte[][] roomSplits(Configuration config) {
+        int[] roomIds = Arrays.stream(config.getInts(SPLIT_ROOM_IDS_KEY)).distinct().sorted().toArray();
+        if (roomIds.length == 0) {
+            int regions = config.getInt(REGIONS_KEY, 1);
+            if (regions <= 1) {
+                return null;
+            }
+            roomIds = new int[regions - 1];
+            for (int i = 1; i < regions; i++) {
+                roomIds[i - 1] = (int) ((long) Integer.MAX_VALUE * i / regions);
+            }
+        }
+        byte[][] splits = new byte[roomIds.length][];
+        for (int i = 0; i < roomIds.length; i++) {
+            splits[i] = RowkeyCodec.roomKey(roomIds[i]);
+        }
+        return splits;
+    }
+
+    /**
+     * @return split keys, or null for a single region
+     */
+    public static byte[][] messageSplits(Configuration config, MessageKeySpace keys) {
+        if (!keys.isSalted()) {
+            return roomSplits(config);
+        }
+        byte[][] splits = keys.bucketSplits(config.getInt(REGIONS_KEY, keys.getBucketCount()));
+        return splits.length > 0 ? splits : null;
+    }
+}
@@ -1,8 +1,8 @@
 package org.wayneyu.chat.hbase;
 
-import com.google.protobuf.ServiceException;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.hbase.HColumnDescriptor;
+import org.apache.hadoop.hbase.HRegionLocation;
 import org.apache.hadoop.hbase.HTableDescriptor;
 import org.apache.hadoop.hbase.TableName;
 import org.apache.hadoop.hbase.client.*;
@@ -10,100 +10,573 @@ import org.apache.hadoop.hbase.filter.CompareFilter;
 import org.apache.hadoop.hbase.util.Bytes;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.wayneyu.chat.metrics.Counter;
+import org.wayneyu.chat.metrics.Histogram;
+import org.wayneyu.chat.metrics.MetricRegistry;
 
 import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import java.io.IOException;
-import java.util.LinkedList;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class HBaseService {
 
     private static final Logger logger = LoggerFactory.getLogger(HBaseService.class);
 
-    private Connection connection;
+    public static final String SCAN_CACHING_KEY = "chat.scan.caching";
+    public static final int DEFAULT_SCAN_CACHING = 500;
+    public static final String SCAN_MAX_RESULT_SIZE_KEY = "chat.scan.maxResultSize";
+    public static final long DEFAULT_SCAN_MAX_RESULT_SIZE = 2 * 1024 * 1024;
+    public static final String TABLE_POOL_MAX_IDLE_KEY = "chat.table.pool.maxIdle";
+    public static final int DEFAULT_TABLE_POOL_MAX_IDLE = 32;
+    public static final String MUTATOR_WRITE_BUFFER_SIZE_KEY = "chat.mutator.writeBufferSize";
+    public static final long DEFAULT_MUTATOR_WRITE_BUFFER_SIZE = 4 * 1024 * 1024;
+    public static final String MUTATOR_FLUSH_INTERVAL_MILLIS_KEY = "chat.mutator.flushIntervalMillis";
+    public static final long DEFAULT_MUTATOR_FLUSH_INTERVAL_MILLIS = 1000;
+    public static final String MUTATOR_FLUSH_ON_WRITE_KEY = "chat.mutator.flushOnWrite";
+    public static final boolean DEFAULT_MUTATOR_FLUSH_ON_WRITE = true;
+    public static final String REGION_START_KEYS_TTL_MILLIS_KEY = "chat.regions.startKeysTtlMillis";
+    public static final long DEFAULT_REGION_START_KEYS_TTL_MILLIS = 5 * 60 * 1000;
 
+    // created on first use, see connection()
+    private volatile Connection connection;
+    private Configuration config;
+    private volatile Admin admin;
+    private final ConcurrentMap<TableName, BlockingQueue<Table>> idleTables = new ConcurrentHashMap<>();
+    private final ConcurrentMap<TableName, BufferedMutator> mutators = new ConcurrentHashMap<>();
+    private final ConcurrentMap<TableName, StartKeys> regionStartKeys = new ConcurrentHashMap<>();
+    private long regionStartKeysTtlNanos;
+    private ScheduledExecutorService mutatorFlusher;
+    private ExecutorService scanOpener;
+    private boolean flushOnWrite;
+
+    /**
+     * Logs rows the mutator gave up on and rethrows, so that {@link #flush} fails. A flush sends the rows of every
+     * caller, so only writers that don't need to know which of their rows failed, like bulk imports, share the
+     * mutators. Failures of background flushes end up in the log only.
+     */
+    private final BufferedMutator.ExceptionListener mutationFailureListener = (e, mutator) -> {
+        for (int i = 0; i < e.getNumExceptions(); i++) {
+            logger.error("Failed to write row {} to {}", Bytes.toStringBinary(e.getRow(i).getRow()), mutator.getName(), e.getCause(i));
+        }
+        throw e;
+    };
+
+    private static class StartKeys {
+        private final byte[][] keys;
+        private final long loadedAt = System.nanoTime();
+
+        private StartKeys(byte[][] keys) {
+            this.keys = keys;
+        }
+    }
+
+    private interface TableCall<T> {
+        T call(Table table) throws IOException;
+    }
+
+    private interface Call<T> {
+        T call() throws IOException;
+    }
+
+    /**
+     * Latency and failures of one kind of HBase client call.
+     */
+    private static class RpcMetrics {
+        private final Histogram latency;
+        private final Counter failures;
+
+        private RpcMetrics(String name) {
+            MetricRegistry metrics = MetricRegistry.getDefault();
+            latency = metrics.latency("chat_hbase_rpc_duration_seconds", "Duration of HBase client calls", "operation", name);
+            failures = metrics.counter("chat_hbase_rpc_failures_total", "HBase client calls that failed", "operation", name);
+        }
+
+        private <T> T time(Call<T> call) throws IOException {
+            long start = System.nanoTime();
+            try {
+                return call.call();
+            } catch (IOException | RuntimeException e) {
+                failures.increment();
+                throw e;
+            } finally {
+                latency.recordNanosSince(start);
+            }
+        }
+    }
+
+    private static final RpcMetrics GET = new RpcMetrics("get");
+    private static final RpcMetrics MULTI_GET = new RpcMetrics("multiGet");
+    private static final RpcMetrics PUT = new RpcMetrics("put");
+    private static final RpcMetrics BATCH = new RpcMetrics("batch");
+    private static final RpcMetrics CHECK_AND_MUTATE = new RpcMetrics("checkAndMutate");
+    private static final RpcMetrics OPEN_SCANNER = new RpcMetrics("openScanner");
+    private static final RpcMetrics BUFFER_MUTATIONS = new RpcMetrics("bufferMutations");
+    private static final RpcMetrics FLUSH = new RpcMetrics("flush");
+    private static final RpcMetrics REGION_START_KEYS = new RpcMetrics("regionStartKeys");
+
+    /**
+     * Reads the configuration and starts the background threads. Does not talk to HBase; the connection is
+     * opened by {@link #connect} or the first call that needs it.
+     */
     @PostConstruct
     public void init() {
-        Configuration config = org.apache.hadoop.hbase.HBaseConfiguration.create();
+        config = org.apache.hadoop.hbase.HBaseConfiguration.create();
+        flushOnWrite = config.getBoolean(MUTATOR_FLUSH_ON_WRITE_KEY, DEFAULT_MUTATOR_FLUSH_ON_WRITE);
+        regionStartKeysTtlNanos = TimeUnit.MILLISECONDS.toNanos(config.getLong(REGION_START_KEYS_TTL_MILLIS_KEY, DEFAULT_REGION_START_KEYS_TTL_MILLIS));
+        startMutatorFlusher(config.getLong(MUTATOR_FLUSH_INTERVAL_MILLIS_KEY, DEFAULT_MUTATOR_FLUSH_INTERVAL_MILLIS));
+        AtomicInteger scanOpeners = new AtomicInteger();
+        scanOpener = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "hbase-scan-opener-" + scanOpeners.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
 
-        try {
-            HBaseAdmin.checkHBaseAvailable(config);
+    /**
+     * Opens the connection unless it is open. Fails, and is tried again by the next call, while HBase can't be
+     * reached.
+     */
+    public void connect() throws IOException {
+        connection();
+    }
+
+    private Connection connection() throws IOException {
+        Connection current = connection;
+        if (current == null) {
+            synchronized (this) {
+                if (connection == null) {
+                    long start = System.nanoTime();
+                    connection = ConnectionFactory.createConnection(config);
+                    logger.info("Connected to HBase in {} ms", TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+                }
+                current = connection;
+            }
+        }
+        return current;
+    }
+
+    private Admin admin() throws IOException {
+        Admin current = admin;
+        if (current == null) {
+            synchronized (this) {
+                if (admin == null) {
+                    admin = connection().getAdmin();
+                }
+                current = admin;
+            }
+        }
+        return current;
+    }
+
+    private void startMutatorFlusher(long intervalMillis) {
+        mutatorFlusher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "hbase-mutator-flusher");
+            thread.setDaemon(true);
+            return thread;
+        });
+        mutatorFlusher.scheduleWithFixedDelay(() -> {
+            for (BufferedMutator mutator : mutators.values()) {
+                try {
+                    FLUSH.time(() -> {
+                        mutator.flush();
+                        return null;
+                    });
+                } catch (IOException e) {
+                    logger.error("Background flush to {} failed", mutator.getName(), e);
+                }
+            }
+        }, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Flushes pending mutations and releases the pooled tables, the admin and the connection.
+     */
+    @PreDestroy
+    public void close() throws IOException {
+        mutatorFlusher.shutdown();
+        scanOpener.shutdown();
+        for (BufferedMutator mutator : mutators.values()) {
+            mutator.close();
+        }
+        mutators.clear();
+        for (BlockingQueue<Table> tables : idleTables.values()) {
+            for (Table table = tables.poll(); table != null; table = tables.poll()) {
+                table.close();
+            }
+        }
+        if (admin != null) {
+            admin.close();
+        }
+        if (connection != null) {
+            connection.close();
+        }
+    }
 
-            logger.info("HBase is available");
+    public Configuration getConfiguration() {
+        return config;
+    }
 
-            connection = ConnectionFactory.createConnection(config);
+    /**
+     * Runs the call on a table handle borrowed from a per-table pool. Table handles are not thread safe,
+     * so each one is used by a single caller at a time and returned to the pool afterwards.
+     */
+    private <T> T withTable(String tableName, RpcMetrics rpc, TableCall<T> call) throws IOException {
+        TableName name = TableName.valueOf(tableName);
+        BlockingQueue<Table> idle = idleTables.computeIfAbsent(name,
+                k -> new ArrayBlockingQueue<>(config.getInt(TABLE_POOL_MAX_IDLE_KEY, DEFAULT_TABLE_POOL_MAX_IDLE)));
+        Table table = idle.poll();
+        if (table == null) {
+            table = connection().getTable(name);
+        }
+        Table borrowed = table;
+        try {
+            return rpc.time(() -> call.call(borrowed));
+        } finally {
+            if (!idle.offer(table)) {
+                table.close();
+            }
+        }
+    }
 
-            try (Admin admin = connection.getAdmin()) {
-                createTable(TableName.valueOf("table1"), new String[]{"default"});
+    private BufferedMutator getMutator(String tableName) throws IOException {
+        TableName name = TableName.valueOf(tableName);
+        BufferedMutator mutator = mutators.get(name);
+        if (mutator == null) {
+            synchronized (mutators) {
+                mutator = mutators.get(name);
+                if (mutator == null) {
+                    BufferedMutatorParams params = new BufferedMutatorParams(name)
+                            .writeBufferSize(config.getLong(MUTATOR_WRITE_BUFFER_SIZE_KEY, DEFAULT_MUTATOR_WRITE_BUFFER_SIZE))
+                            .listener(mutationFailureListener);
+                    mutator = connection().getBufferedMutator(params);
+                    mutators.put(name, mutator);
+                }
             }
+        }
+        return mutator;
+    }
 
-        } catch (IOException | ServiceException e) {
-            logger.error("Couldn't connect to HBase instance", e);
-            throw new RuntimeException(e);
+    /**
+     * Writes the mutations of a request. With {@value #MUTATOR_FLUSH_ON_WRITE_KEY} they are sent with {@link #batch}
+     * on a pooled table before this method returns, so the caller sees the failures of its own rows and of no others.
+     * Otherwise they are only buffered in the table's shared {@link BufferedMutator}, like {@link #buffer}, and
+     * failures to send them are logged.
+     */
+    public void mutate(String tableName, List<? extends Mutation> mutations) throws IOException {
+        if (flushOnWrite) {
+            batch(tableName, mutations);
+        } else {
+            buffer(tableName, mutations);
+        }
+    }
+
+    /**
+     * Queues the mutations in the table's shared {@link BufferedMutator}, to be sent with those of concurrent callers
+     * when the buffer fills, on the periodic flush or on {@link #flush}. For bulk writers that flush once they are
+     * done and treat a failure as a failure of all their writes.
+     */
+    public void buffer(String tableName, List<? extends Mutation> mutations) throws IOException {
+        BufferedMutator mutator = getMutator(tableName);
+        BUFFER_MUTATIONS.time(() -> {
+            mutator.mutate(mutations);
+            return null;
+        });
+    }
+
+    /**
+     * Sends the mutations buffered for every table.
+     */
+    public void flush() throws IOException {
+        for (BufferedMutator mutator : mutators.values()) {
+            FLUSH.time(() -> {
+                mutator.flush();
+                return null;
+            });
+        }
+    }
+
+    /**
+     * A table with its column families and the keys to pre-split it at when it is created.
+     */
+    public static class TableSpec {
+        private final TableName name;
+        private final String[] columnFamilies;
+        private final byte[][] splitKeys;
+
+        public TableSpec(TableName name, String[] columnFamilies, byte[][] splitKeys) {
+            this.name = name;
+            this.columnFamilies = columnFamilies;
+            this.splitKeys = splitKeys;
         }
     }
 
     public void createTable(TableName tableName, String[] columnFamilies) throws IOException {
-        if (!connection.getAdmin().tableExists(tableName)) {
+        createTable(tableName, columnFamilies, null);
+    }
+
+    public void createTable(TableName tableName, String[] columnFamilies, byte[][] splitKeys) throws IOException {
+        createTables(Collections.singletonList(new TableSpec(tableName, columnFamilies, splitKeys)));
+    }
 
-            logger.info("No table '{}' found. Creating one...", tableName);
+    /**
+     * Creates the tables pre-split at their keys, or adds the column families they are missing if they exist.
+     * Existing tables keep their regions. The descriptors of all tables are read with one call to the master, so
+     * checking a schema that is up to date takes a single RPC.
+     */
+    public synchronized void createTables(List<TableSpec> tables) throws IOException {
+        List<TableName> names = new ArrayList<>(tables.size());
+        for (TableSpec table : tables) {
+            names.add(table.name);
+        }
+        Map<TableName, HTableDescriptor> existing = new HashMap<>();
+        for (HTableDescriptor descriptor : admin().getTableDescriptorsByTableName(names)) {
+            existing.put(descriptor.getTableName(), descriptor);
+        }
+        for (TableSpec table : tables) {
+            HTableDescriptor tableDescriptor = existing.get(table.name);
+            if (tableDescriptor == null) {
+
+                logger.info("No table '{}' found. Creating one...", table.name);
 
-            HTableDescriptor tableDescriptor = new HTableDescriptor(tableName);
-            for (String cf: columnFamilies) {
-                tableDescriptor.addFamily(new HColumnDescriptor(Bytes.toBytes(cf)));
+                tableDescriptor = new HTableDescriptor(table.name);
+                for (String cf: table.columnFamilies) {
+                    tableDescriptor.addFamily(new HColumnDescriptor(Bytes.toBytes(cf)));
+                }
+                if (table.splitKeys != null && table.splitKeys.length > 0) {
+                    admin().createTable(tableDescriptor, table.splitKeys);
+                } else {
+                    admin().createTable(tableDescriptor);
+                }
+
+                logger.info("Created table {} with {} regions", tableDescriptor, table.splitKeys != null ? table.splitKeys.length + 1 : 1);
+            } else {
+                for (String cf: table.columnFamilies) {
+                    if (!tableDescriptor.hasFamily(Bytes.toBytes(cf))) {
+                        logger.info("Adding column family '{}' to table '{}'", cf, table.name);
+                        admin().addColumn(table.name, new HColumnDescriptor(Bytes.toBytes(cf)));
+                    }
+                }
             }
-            connection.getAdmin().createTable(tableDescriptor);
+        }
+    }
 
-            logger.info("Created table {}", tableDescriptor);
+    /**
+     * Loads the locations of all regions of the tables into the connection's cache, so that the first reads and
+     * writes go straight to the region servers instead of looking up hbase:meta first. Also caches their start
+     * keys, see {@link #getRegionStartKeys}.
+     *
+     * @return number of regions
+     */
+    public int cacheRegionLocations(List<String> tableNames) throws IOException {
+        int regions = 0;
+        for (String tableName : tableNames) {
+            TableName name = TableName.valueOf(tableName);
+            try (RegionLocator locator = connection().getRegionLocator(name)) {
+                List<HRegionLocation> locations = locator.getAllRegionLocations();
+                byte[][] startKeys = new byte[locations.size()][];
+                for (int i = 0; i < startKeys.length; i++) {
+                    startKeys[i] = locations.get(i).getRegionInfo().getStartKey();
+                }
+                regionStartKeys.put(name, new StartKeys(startKeys));
+                regions += locations.size();
+            }
         }
+        return regions;
     }
 
     public void putRow(String tableName, Put put) throws IOException {
-        Table table = connection.getTable(TableName.valueOf(tableName));
-        table.put(put);
+        withTable(tableName, PUT, table -> {
+            table.put(put);
+            return null;
+        });
     }
 
     public void putRows(String tableName, List<Put> puts) throws IOException {
-        Table table = connection.getTable(TableName.valueOf(tableName));
-        table.put(puts);
+        withTable(tableName, PUT, table -> {
+            table.put(puts);
+            return null;
+        });
+    }
+
+    /**
+     * Sends a mixed list of puts, deletes and increments in as few RPCs as the region layout allows.
+     */
+    public void batch(String tableName, List<? extends Row> actions) throws IOException {
+        if (actions.isEmpty()) {
+            return;
+        }
+        withTable(tableName, BATCH, table -> {
+            try {
+                table.batch(actions, new Object[actions.size()]);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while writing to " + tableName);
+            }
+            return null;
+        });
     }
 
-    public Result getRow(String tableName, String rowKey, String... columnFamilies) throws IOException {
-        Table table = connection.getTable(TableName.valueOf(tableName));
-        Get get = new Get(Bytes.toBytes(rowKey));
+    public Result getRow(String tableName, byte[] rowKey, String... columnFamilies) throws IOException {
+        Get get = new Get(rowKey);
         for (String cf: columnFamilies) {
             get.addFamily(Bytes.toBytes(cf));
         }
-        return table.get(get);
+        return withTable(tableName, GET, table -> table.get(get));
     }
 
-    public List<Result> getRowsBetween(String tableName, String columnFamily, String startRowKey, String endRowKey) throws IOException {
-        Table table = connection.getTable(TableName.valueOf(tableName));
-        Scan scan = new Scan(Bytes.toBytes(startRowKey), Bytes.toBytes(endRowKey));
+    /**
+     * Reads all rows in one call, which groups the Gets into one RPC per region server. The results are in the order
+     * of the Gets, empty for rows that don't exist.
+     */
+    public Result[] getRows(String tableName, List<Get> gets) throws IOException {
+        if (gets.isEmpty()) {
+            return new Result[0];
+        }
+        return withTable(tableName, MULTI_GET, table -> table.get(gets));
+    }
+
+    public List<Result> getRowsBetween(String tableName, String columnFamily, byte[] startRowKey, byte[] endRowKey) throws IOException {
+        try (ResultScanner scanner = getScanner(tableName, columnFamily, startRowKey, endRowKey)) {
+            List<Result> results = new ArrayList<>();
+            for (Result r = scanner.next(); r != null; r = scanner.next()) {
+                results.add(r);
+            }
+            return results;
+        }
+    }
+
+    /**
+     * Opens a scanner over [startRowKey, endRowKey) that fetches rows from the region servers
+     * in chunks of {@value #SCAN_CACHING_KEY} rows (bounded by {@value #SCAN_MAX_RESULT_SIZE_KEY} bytes).
+     * Callers must close the scanner, which releases the server-side lease.
+     */
+    public ResultScanner getScanner(String tableName, String columnFamily, byte[] startRowKey, byte[] endRowKey) throws IOException {
+        Scan scan = new Scan(startRowKey, endRowKey);
         scan.addFamily(Bytes.toBytes(columnFamily));
-        ResultScanner scanner = table.getScanner(scan);
-        List<Result> results = new LinkedList<>();
-        Result r = scanner.next();
-        while (r != null) {
-            results.add(r);
-            r = scanner.next();
+        return getScanner(tableName, scan);
+    }
+
+    /**
+     * Start keys of the table's regions, in order. Reading them scans hbase:meta for every region of the table, so
+     * they are cached for {@value #REGION_START_KEYS_TTL_MILLIS_KEY}; callers must not depend on them being current,
+     * e.g. use them only to spread work over regions.
+     */
+    public byte[][] getRegionStartKeys(String tableName) throws IOException {
+        TableName name = TableName.valueOf(tableName);
+        StartKeys cached = regionStartKeys.get(name);
+        if (cached != null && System.nanoTime() - cached.loadedAt < regionStartKeysTtlNanos) {
+            return cached.keys;
+        }
+        byte[][] keys = REGION_START_KEYS.time(() -> {
+            try (RegionLocator locator = connection().getRegionLocator(name)) {
+                return locator.getStartKeys();
+            }
+        });
+        regionStartKeys.put(name, new StartKeys(keys));
+        return keys;
+    }
+
+    /**
+     * Opens a scanner over every row and column family of the table, for offline tools.
+     */
+    public ResultScanner getTableScanner(String tableName) throws IOException {
+        return getScanner(tableName, new Scan());
+    }
+
+    /**
+     * Opens a scanner for the given scan, applying the configured caching and max result size
+     * unless the scan sets its own.
+     */
+    public ResultScanner getScanner(String tableName, Scan scan) throws IOException {
+        if (scan.getCaching() < 0) {
+            scan.setCaching(config.getInt(SCAN_CACHING_KEY, DEFAULT_SCAN_CACHING));
+        }
+        if (scan.getMaxResultSize() < 0) {
+            scan.setMaxResultSize(config.getLong(SCAN_MAX_RESULT_SIZE_KEY, DEFAULT_SCAN_MAX_RESULT_SIZE));
+        }
+        // the scanner only shares the connection with the table handle, so the handle goes back to the pool right away
+        return new MeteredResultScanner(withTable(tableName, OPEN_SCANNER, table -> table.getScanner(scan)));
+    }
+
+    /**
+     * Opens the scans in parallel, so that their first RPCs overlap, and merges their rows in the given order.
+     * For logical ranges whose rows are spread over several key ranges; each scan must return its rows in that order.
+     */
+    public ResultScanner getMergedScanner(String tableName, List<Scan> scans, Comparator<Result> order) throws IOException {
+        List<Future<MergingResultScanner.Source>> opening = new ArrayList<>(scans.size());
+        for (Scan scan : scans) {
+            opening.add(scanOpener.submit(() -> {
+                ResultScanner scanner = getScanner(tableName, scan);
+                try {
+                    return new MergingResultScanner.Source(scanner, scanner.next());
+                } catch (IOException | RuntimeException e) {
+                    scanner.close();
+                    throw e;
+                }
+            }));
+        }
+        List<MergingResultScanner.Source> sources = new ArrayList<>(scans.size());
+        IOException failure = null;
+        boolean interrupted = false;
+        for (Future<MergingResultScanner.Source> future : opening) {
+            // wait for every scan, so that none is left open when one fails
+            while (true) {
+                try {
+                    sources.add(future.get());
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                } catch (ExecutionException e) {
+                    failure = e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+                    break;
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+            if (failure == null) {
+                failure = new InterruptedIOException("Interrupted while opening scanners on " + tableName);
+            }
+        }
+        MergingResultScanner merged = new MergingResultScanner(sources, order);
+        if (failure != null) {
+            merged.close();
+            throw failure;
         }
-        return results;
+        return merged;
     }
 
-    public void deleteTable(String tableName) throws IOException {
-        connection.getAdmin().disableTable(TableName.valueOf(tableName));
-        connection.getAdmin().deleteTable(TableName.valueOf(tableName));
+    public synchronized void deleteTable(String tableName) throws IOException {
+        admin().disableTable(TableName.valueOf(tableName));
+        admin().deleteTable(TableName.valueOf(tableName));
     }
 
-    public void checkAndPut(String tableName, String rowKey, String columnFamily, String qualifier, CompareFilter.CompareOp compareOp, byte[] value) throws IOException {
-        Table table = connection.getTable(TableName.valueOf(tableName));
-        byte[] rk = Bytes.toBytes(rowKey);
+    /**
+     * Applies all mutations to the row atomically, in one RPC, if the compare passes. As in all HBase
+     * check-and-mutate calls the compare reads "value compareOp stored value".
+     */
+    public boolean checkAndMutate(String tableName, RowMutations mutations, String columnFamily, String qualifier, CompareFilter.CompareOp compareOp, byte[] value) throws IOException {
         byte[] cf = Bytes.toBytes(columnFamily);
         byte[] q = Bytes.toBytes(qualifier);
-        Put put = new Put(rk);
-        put.addColumn(cf, q, value);
-        table.checkAndPut(rk, cf, q, compareOp, value, put);
+        return withTable(tableName, CHECK_AND_MUTATE, table -> table.checkAndMutate(mutations.getRow(), cf, q, compareOp, value, mutations));
     }
 
 }
\ No newline at end of file
@@ -0,0 +1,71 @@
+package org.wayneyu.chat.hbase;
+
+import org.apache.hadoop.hbase.client.AbstractClientScanner;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.client.ResultScanner;
+
+import java.io.IOException;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Merges the rows of scanners that each return their rows in the same order into one scanner in that order.
+ */
+public class MergingResultScanner extends AbstractClientScanner {
+
+    static class Source {
+        private final ResultScanner scanner;
+        private Result head;
+
+        Source(ResultScanner scanner, Result head) {
+            this.scanner = scanner;
+            this.head = head;
+        }
+    }
+
+    private final List<Source> sources;
+    private final PriorityQueue<Source> heads;
+
+    MergingResultScanner(List<Source> sources, Comparator<Result> order) {
+        this.sources = sources;
+        this.heads = new PriorityQueue<>(Math.max(1, sources.size()), (a, b) -> order.compare(a.head, b.head));
+        for (Source source : sources) {
+            if (source.head != null) {
+                heads.add(source);
+            }
+        }
+    }
+
+    @Override
+    public Result next() throws IOException {
+        Source source = heads.poll();
+        if (source == null) {
+            return null;
+        }
+        Result result = source.head;
+        source.head = source.scanner.next();
+        if (source.head != null) {
+            heads.add(source);
+        }
+        return result;
+    }
+
+    @Override
+    public void close() {
+        for (Source source : sources) {
+            source.scanner.close();
+        }
+    }
+
+    @Override
+    public boolean renewLease() {
+        boolean renewed = true;
+        for (Source source : sources) {
+            if (source.scanner instanceof AbstractClientScanner) {
+                renewed &= ((AbstractClientScanner) source.scanner).renewLease();
+            }
+        }
+        return renewed;
+    }
+}
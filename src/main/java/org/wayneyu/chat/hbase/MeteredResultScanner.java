@@ -0,0 +1,68 @@
+package org.wayneyu.chat.hbase;
+
+import org.apache.hadoop.hbase.client.AbstractClientScanner;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.client.ResultScanner;
+import org.wayneyu.chat.metrics.Counter;
+import org.wayneyu.chat.metrics.Histogram;
+import org.wayneyu.chat.metrics.MetricRegistry;
+
+import java.io.IOException;
+
+/**
+ * Counts the rows and bytes a scanner returns and the time spent waiting for them, recorded per scan when it is
+ * closed. Time spent by the caller between rows isn't counted.
+ */
+class MeteredResultScanner extends AbstractClientScanner {
+
+    private static final Histogram ROWS = MetricRegistry.getDefault().sizes("chat_hbase_scan_rows",
+            "Rows returned per HBase scan");
+    private static final Histogram BYTES = MetricRegistry.getDefault().sizes("chat_hbase_scan_kilobytes",
+            "Kilobytes of cells returned per HBase scan");
+    private static final Histogram WAIT = MetricRegistry.getDefault().latency("chat_hbase_scan_wait_seconds",
+            "Time per HBase scan spent waiting for rows, including the RPCs that fetch them");
+    private static final Counter TOTAL_ROWS = MetricRegistry.getDefault().counter("chat_hbase_scanned_rows_total",
+            "Rows returned by HBase scans");
+    private static final Counter TOTAL_BYTES = MetricRegistry.getDefault().counter("chat_hbase_scanned_bytes_total",
+            "Bytes of cells returned by HBase scans");
+
+    private final ResultScanner scanner;
+    private long rows;
+    private long bytes;
+    private long waitNanos;
+    private boolean closed;
+
+    MeteredResultScanner(ResultScanner scanner) {
+        this.scanner = scanner;
+    }
+
+    @Override
+    public Result next() throws IOException {
+        long start = System.nanoTime();
+        Result result = scanner.next();
+        waitNanos += System.nanoTime() - start;
+        if (result != null) {
+            rows++;
+            bytes += Result.getTotalSizeOfCells(result);
+        }
+        return result;
+    }
+
+    @Override
+    public void close() {
+        scanner.close();
+        if (!closed) {
+            closed = true;
+            ROWS.record(rows);
+            BYTES.record(bytes / 1024);
+            WAIT.record(waitNanos);
+            TOTAL_ROWS.add(rows);
+            TOTAL_BYTES.add(bytes);
+        }
+    }
+
+    @Override
+    public boolean renewLease() {
+        return !(scanner instanceof AbstractClientScanner) || ((AbstractClientScanner) scanner).renewLease();
+    }
+}
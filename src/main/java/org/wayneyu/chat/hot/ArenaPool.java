@@ -0,0 +1,52 @@
+package org.wayneyu.chat.hot;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Direct buffers given back by evicted windows and by arenas outgrown on compaction, kept for the next window
+ * that needs one of the same capacity instead of being left for the GC to free. Arena capacities are powers of
+ * two, so a few sizes cover every window. Holds at most maxBytes, buffers beyond that are dropped.
+ */
+class ArenaPool {
+
+    private final long maxBytes;
+    private final Map<Integer, ArrayDeque<ByteBuffer>> free = new HashMap<>();
+    private long pooledBytes;
+
+    ArenaPool(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    ByteBuffer take(int capacity) {
+        ByteBuffer buffer = poll(capacity);
+        return buffer != null ? buffer : ByteBuffer.allocateDirect(capacity);
+    }
+
+    /**
+     * Takes back a buffer that no one reads or writes any more.
+     */
+    synchronized void give(ByteBuffer buffer) {
+        if (pooledBytes + buffer.capacity() > maxBytes) {
+            return;
+        }
+        buffer.clear();
+        free.computeIfAbsent(buffer.capacity(), k -> new ArrayDeque<>()).push(buffer);
+        pooledBytes += buffer.capacity();
+    }
+
+    synchronized long getPooledBytes() {
+        return pooledBytes;
+    }
+
+    private synchronized ByteBuffer poll(int capacity) {
+        ArrayDeque<ByteBuffer> buffers = free.get(capacity);
+        ByteBuffer buffer = buffers != null ? buffers.poll() : null;
+        if (buffer != null) {
+            pooledBytes -= capacity;
+        }
+        return buffer;
+    }
+}
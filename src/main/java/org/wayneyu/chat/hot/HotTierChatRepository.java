@@ -0,0 +1,459 @@
+package org.wayneyu.chat.hot;
+
+import org.apache.hadoop.conf.Configuration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.wayneyu.chat.db.ChatRepository;
+import org.wayneyu.chat.db.MessageConsumer;
+import org.wayneyu.chat.db.MessageCursor;
+import org.wayneyu.chat.db.RowkeyCodec;
+import org.wayneyu.chat.metrics.Counter;
+import org.wayneyu.chat.metrics.MetricRegistry;
+import org.wayneyu.chat.model.Message;
+import org.wayneyu.chat.model.MessagePage;
+import org.wayneyu.chat.model.Room;
+import org.wayneyu.chat.model.RoomActivity;
+import org.wayneyu.chat.model.RoomMeta;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Serves reads of each room's recent messages from memory and falls through to a backing repository for
+ * anything older. A room's window holds its messages from (lastMsgTs - windowMillis) on, is loaded from the
+ * backing repository on the first read of the room and follows the writes made through this repository.
+ * Windows of the least recently used rooms are dropped when all windows together take more than maxBytes.
+ *
+ * The windows only see writes made through this instance, so rooms must not be written by other instances
+ * while this one has them in memory.
+ *
+ * Without a backing repository all messages are kept in memory and nothing is evicted, for running the
+ * service, tests and benchmarks without HBase.
+ */
+public class HotTierChatRepository implements ChatRepository {
+
+    private static final Logger logger = LoggerFactory.getLogger(HotTierChatRepository.class);
+
+    public static final String ENABLED_KEY = "chat.hot.enabled";
+    public static final String WINDOW_MILLIS_KEY = "chat.hot.windowMillis";
+    public static final long DEFAULT_WINDOW_MILLIS = 6 * 60 * 60 * 1000;
+    public static final String MAX_BYTES_KEY = "chat.hot.maxBytes";
+    public static final long DEFAULT_MAX_BYTES = 256 * 1024 * 1024;
+    public static final String ARENA_POOL_BYTES_KEY = "chat.hot.arenaPoolBytes";
+    public static final long DEFAULT_ARENA_POOL_BYTES = 32 * 1024 * 1024;
+
+    private static final int READ_CHUNK_SIZE = 1000;
+
+    private final ChatRepository fallback;
+    private final long windowMillis;
+    private final long maxBytes;
+    private final Map<Integer, RoomWindow> windows = new LinkedHashMap<>(16, 0.75f, true);
+    private final ArenaPool arenas;
+    private final AtomicLong residentBytes = new AtomicLong();
+    private final Counter hits;
+    private final Counter misses;
+
+    /**
+     * In-memory repository without a backing store.
+     */
+    public HotTierChatRepository() {
+        this(null, Long.MAX_VALUE, Long.MAX_VALUE);
+    }
+
+    public HotTierChatRepository(ChatRepository fallback, long windowMillis, long maxBytes) {
+        this(fallback, windowMillis, maxBytes, DEFAULT_ARENA_POOL_BYTES);
+    }
+
+    public HotTierChatRepository(ChatRepository fallback, long windowMillis, long maxBytes, long arenaPoolBytes) {
+        this.fallback = fallback;
+        this.windowMillis = windowMillis;
+        this.maxBytes = maxBytes;
+        this.arenas = new ArenaPool(arenaPoolBytes);
+        MetricRegistry metrics = MetricRegistry.getDefault();
+        this.hits = metrics.counter("chat_hot_reads_total", "Reads of the hot tier", "result", "hit");
+        this.misses = metrics.counter("chat_hot_reads_total", "Reads of the hot tier", "result", "miss");
+        metrics.gauge("chat_hot_resident_bytes", "Memory of the rooms in the hot tier", residentBytes::get);
+        metrics.gauge("chat_hot_pooled_arena_bytes", "Memory of the message arenas kept for reuse", arenas::getPooledBytes);
+        metrics.gauge("chat_hot_resident_rooms", "Rooms in the hot tier", () -> {
+            synchronized (windows) {
+                return windows.size();
+            }
+        });
+    }
+
+    public static HotTierChatRepository create(ChatRepository fallback, Configuration config) {
+        return new HotTierChatRepository(fallback,
+                config.getLong(WINDOW_MILLIS_KEY, DEFAULT_WINDOW_MILLIS),
+                config.getLong(MAX_BYTES_KEY, DEFAULT_MAX_BYTES),
+                config.getLong(ARENA_POOL_BYTES_KEY, DEFAULT_ARENA_POOL_BYTES));
+    }
+
+    /**
+     * With a backing repository the room's window is dropped, and loaded again by the next read.
+     */
+    public void createRoom(Room room) {
+        RoomWindow replaced;
+        if (fallback != null) {
+            fallback.createRoom(room);
+            synchronized (windows) {
+                replaced = windows.remove(room.getId());
+            }
+        } else {
+            RoomWindow window = new RoomWindow(room.getId(), arenas);
+            window.initComplete(new Room(room.getId(), room.getName(), room.getCreated(), room.getParticipants()),
+                    new RoomMeta(0, room.getCreated(), room.getCreated()));
+            synchronized (windows) {
+                replaced = windows.put(room.getId(), window);
+            }
+            accountAndEvict(window);
+        }
+        if (replaced != null) {
+            residentBytes.addAndGet(-replaced.evict());
+            replaced.release();
+        }
+    }
+
+    /**
+     * Writes to the backing repository first, then to the room's window if it is in memory. Rooms that are not in
+     * memory are loaded by their next read, which then sees these messages in the backing repository.
+     */
+    public void addMessages(int chatRoomId, List<Message> messages) {
+        if (messages.isEmpty()) {
+            return;
+        }
+        if (fallback != null) {
+            fallback.addMessages(chatRoomId, messages);
+        }
+        RoomWindow window;
+        synchronized (windows) {
+            window = windows.get(chatRoomId);
+            if (window == null && fallback == null) {
+                window = new RoomWindow(chatRoomId, arenas);
+                window.initComplete(null, null);
+                windows.put(chatRoomId, window);
+            }
+        }
+        if (window == null) {
+            return;
+        }
+        Message lastMessage = messages.stream().max(Message.ROWKEY_ORDER).get();
+        synchronized (window) {
+            if (!window.isLoaded()) {
+                // a load in progress may have read past these messages already, it must not install what it read
+                window.recordUnloadedWrite();
+                return;
+            }
+            window.add(messages, lastMessage);
+            if (fallback != null) {
+                window.trimBefore(window.getLastTimestamp() - windowMillis);
+            }
+        }
+        accountAndEvict(window);
+    }
+
+    public List<Message> getMessages(int chatRoomId, long startTime, long endTime) {
+        List<Message> messages = new ArrayList<>();
+        try {
+            streamMessages(chatRoomId, startTime, endTime, messages::add);
+        } catch (IOException e) {
+            logger.error("Failed to get messages", e);
+            throw new RuntimeException(e);
+        }
+        return messages;
+    }
+
+    /**
+     * Copies messages out of the window in chunks, so that slow consumers don't hold up writers. If the window
+     * is trimmed past the last message sent, the rest of the range comes from the backing repository.
+     */
+    public void streamMessages(int chatRoomId, long startTime, long endTime, MessageConsumer consumer) throws IOException {
+        RoomWindow window = getWindow(chatRoomId);
+        Message last = null;
+        if (window != null) {
+            while (true) {
+                List<Message> chunk = window.read(startTime, endTime, last, READ_CHUNK_SIZE);
+                if (chunk == null) {
+                    break;
+                }
+                for (Message message : chunk) {
+                    consumer.accept(message);
+                }
+                if (chunk.size() < READ_CHUNK_SIZE) {
+                    hits.increment();
+                    return;
+                }
+                last = chunk.get(chunk.size() - 1);
+            }
+        }
+        if (fallback == null) {
+            return;
+        }
+        misses.increment();
+        Message after = last;
+        fallback.streamMessages(chatRoomId, after != null ? after.getTimestamp() : startTime, endTime, message -> {
+            if (after == null || Message.ROWKEY_ORDER.compare(message, after) > 0) {
+                consumer.accept(message);
+            }
+        });
+    }
+
+    public MessagePage getMessages(int chatRoomId, long startTime, long endTime, int limit, String cursor, boolean reverse) {
+        MessageCursor.checkLimit(limit);
+        Message position = null;
+        if (cursor != null) {
+            byte[] key = MessageCursor.decode(chatRoomId, cursor);
+            position = new Message(RowkeyCodec.decodeIndex(key, 0), RowkeyCodec.decodeTimestamp(key, 0), null, null);
+        }
+        RoomWindow window = getWindow(chatRoomId);
+        List<Message> messages = null;
+        if (window != null) {
+            messages = reverse
+                    ? window.readReverse(startTime, endTime, position, limit + 1)
+                    : window.read(startTime, endTime, position, limit + 1);
+        }
+        if (messages != null) {
+            hits.increment();
+            return MessageCursor.toPage(chatRoomId, messages, limit);
+        }
+        if (fallback == null) {
+            return new MessagePage(new ArrayList<>(), null);
+        }
+        misses.increment();
+        return fallback.getMessages(chatRoomId, startTime, endTime, limit, cursor, reverse);
+    }
+
+    /**
+     * Rooms in memory are read from their windows, the others from the backing repository in one call. Rooms are
+     * not loaded into memory by this.
+     */
+    @Override
+    public Map<Integer, MessagePage> getMessages(List<Integer> chatRoomIds, long startTime, long endTime, int limit) {
+        MessageCursor.checkLimit(limit);
+        Map<Integer, MessagePage> pages = new LinkedHashMap<>();
+        List<Integer> notResident = new ArrayList<>();
+        for (int chatRoomId : new LinkedHashSet<>(chatRoomIds)) {
+            RoomWindow window = getResidentWindow(chatRoomId);
+            List<Message> messages = window != null ? window.read(startTime, endTime, null, limit + 1) : null;
+            if (messages != null) {
+                hits.increment();
+                pages.put(chatRoomId, MessageCursor.toPage(chatRoomId, messages, limit));
+            } else if (fallback != null) {
+                misses.increment();
+                pages.put(chatRoomId, null);
+                notResident.add(chatRoomId);
+            } else {
+                pages.put(chatRoomId, new MessagePage(new ArrayList<>(), null));
+            }
+        }
+        if (!notResident.isEmpty()) {
+            pages.putAll(fallback.getMessages(notResident, startTime, endTime, limit));
+        }
+        return pages;
+    }
+
+    public Room getRoom(int id) {
+        RoomWindow window = getResidentWindow(id);
+        Room room = window != null ? window.getRoom() : null;
+        if (room != null || fallback == null) {
+            return room;
+        }
+        return fallback.getRoom(id);
+    }
+
+    /**
+     * Rooms in memory come from their windows, the others from the backing repository in one call.
+     */
+    @Override
+    public List<Room> getRooms(List<Integer> ids) {
+        Map<Integer, Room> rooms = new LinkedHashMap<>();
+        List<Integer> notResident = new ArrayList<>();
+        for (int id : new LinkedHashSet<>(ids)) {
+            RoomWindow window = getResidentWindow(id);
+            Room room = window != null ? window.getRoom() : null;
+            rooms.put(id, room);
+            if (room == null && fallback != null) {
+                notResident.add(id);
+            }
+        }
+        if (!notResident.isEmpty()) {
+            for (Room room : fallback.getRooms(notResident)) {
+                rooms.put(room.getId(), room);
+            }
+        }
+        List<Room> found = new ArrayList<>();
+        for (Room room : rooms.values()) {
+            if (room != null) {
+                found.add(room);
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Counts from the window when it covers the range, the same way HBaseRepositoryImpl does: pauses longer than
+     * the room's average pause.
+     */
+    public int countLongPauses(int chatRoomId, long startTime, long endTime) {
+        RoomWindow window = getWindow(chatRoomId);
+        RoomMeta roomMeta = window != null ? window.getMeta() : null;
+        if (roomMeta != null) {
+            if (roomMeta.getMessageCount() == 0) {
+                return -1;
+            }
+            long averagePause = (roomMeta.getLastMessageTimestamp() - roomMeta.getCreated()) / roomMeta.getMessageCount();
+            Integer count = window.countPausesLongerThan(startTime, endTime, averagePause);
+            if (count != null) {
+                hits.increment();
+                return count;
+            }
+        }
+        if (fallback == null) {
+            throw new RuntimeException(String.format("Could not find room meta for room id %d", chatRoomId));
+        }
+        misses.increment();
+        return fallback.countLongPauses(chatRoomId, startTime, endTime);
+    }
+
+    /**
+     * From the backing repository's index, the windows don't keep one.
+     */
+    @Override
+    public List<Message> searchMessages(int chatRoomId, String query, long startTime, long endTime, int limit) {
+        if (fallback == null) {
+            return ChatRepository.super.searchMessages(chatRoomId, query, startTime, endTime, limit);
+        }
+        return fallback.searchMessages(chatRoomId, query, startTime, endTime, limit);
+    }
+
+    /**
+     * From the backing repository's counters, the windows don't keep any.
+     */
+    @Override
+    public RoomActivity getActivity(int chatRoomId, long startTime, long endTime) {
+        if (fallback == null) {
+            return ChatRepository.super.getActivity(chatRoomId, startTime, endTime);
+        }
+        return fallback.getActivity(chatRoomId, startTime, endTime);
+    }
+
+    long getResidentBytes() {
+        return residentBytes.get();
+    }
+
+    boolean isResident(int roomId) {
+        synchronized (windows) {
+            return windows.containsKey(roomId);
+        }
+    }
+
+    /**
+     * The room's window if it is in memory and loaded, without loading it.
+     */
+    private RoomWindow getResidentWindow(int roomId) {
+        RoomWindow window;
+        synchronized (windows) {
+            window = windows.get(roomId);
+        }
+        return window != null && window.isLoaded() ? window : null;
+    }
+
+    /**
+     * The room's window, loaded from the backing repository if it isn't in memory yet, or null when the room
+     * doesn't exist, its window was evicted again right away or the room was written while it was being loaded.
+     * The load runs without holding the window, so writes to the room don't wait for it; it is read into a
+     * window of its own and only installed if no write came in meanwhile.
+     */
+    private RoomWindow getWindow(int roomId) {
+        RoomWindow window;
+        synchronized (windows) {
+            window = windows.get(roomId);
+            if (window == null) {
+                if (fallback == null) {
+                    return null;
+                }
+                window = new RoomWindow(roomId, arenas);
+                windows.put(roomId, window);
+            }
+        }
+        if (!window.isLoaded()) {
+            long unloadedWrites = window.getUnloadedWrites();
+            RoomWindow loaded = new RoomWindow(roomId, arenas);
+            try {
+                if (!load(loaded)) {
+                    synchronized (windows) {
+                        windows.remove(roomId, window);
+                    }
+                    residentBytes.addAndGet(-window.evict());
+                    window.release();
+                    return null;
+                }
+                if (!window.install(loaded, unloadedWrites) && !window.isLoaded()) {
+                    // written while loading, this read goes to the backing repository and the next one loads again
+                    return null;
+                }
+            } finally {
+                loaded.release();
+            }
+        }
+        accountAndEvict(window);
+        return isResident(roomId) ? window : null;
+    }
+
+    /**
+     * Fills the window with the room's messages from (lastMsgTs - windowMillis) on.
+     */
+    private boolean load(RoomWindow window) {
+        int roomId = window.getRoomId();
+        Room room = fallback.getRoom(roomId);
+        RoomMeta meta = room != null ? room.getMeta() : null;
+        if (meta == null) {
+            return false;
+        }
+        Room info = new Room(room.getId(), room.getName(), room.getCreated(), room.getParticipants());
+        long windowStart = meta.getLastMessageTimestamp() - windowMillis;
+        if (windowStart <= meta.getCreated()) {
+            window.initComplete(info, meta);
+            windowStart = Long.MIN_VALUE;
+        } else {
+            window.initFrom(info, meta, windowStart);
+        }
+        try {
+            fallback.streamMessages(roomId, windowStart, Long.MAX_VALUE, window::add);
+        } catch (IOException e) {
+            logger.error("Failed to load recent messages of room {}", roomId, e);
+            throw new RuntimeException(e);
+        }
+        logger.info("Loaded room {} into the hot tier, {} bytes", roomId, window.getBytes());
+        return true;
+    }
+
+    /**
+     * Drops the least recently used windows while the tier is over maxBytes.
+     */
+    private void accountAndEvict(RoomWindow window) {
+        if (residentBytes.addAndGet(window.takeByteDelta()) <= maxBytes) {
+            return;
+        }
+        List<RoomWindow> evicted = new ArrayList<>();
+        synchronized (windows) {
+            Iterator<RoomWindow> eldest = windows.values().iterator();
+            while (residentBytes.get() > maxBytes && eldest.hasNext()) {
+                RoomWindow next = eldest.next();
+                eldest.remove();
+                residentBytes.addAndGet(-next.evict());
+                evicted.add(next);
+                logger.debug("Evicted room {} from the hot tier", next.getRoomId());
+            }
+        }
+        // outside the map's lock, releasing waits for reads of the window
+        for (RoomWindow released : evicted) {
+            released.release();
+        }
+    }
+}
@@ -0,0 +1,121 @@
+package org.wayneyu.chat.hot;
+
+import org.wayneyu.chat.model.Message;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The latest messages of one room in a ring buffer of fixed capacity, sorted by (timestamp, index) from head on.
+ * New messages are appended at the end and push the oldest one out once the buffer is full; late messages are
+ * inserted in place, or ignored when they are older than everything a full buffer holds.
+ *
+ * The tail is complete when it holds every message of the room, so that reads of more messages than it holds
+ * can still be answered. It stops being complete once a message is pushed out.
+ */
+class RoomTail {
+
+    private final Message[] messages;
+    private int head;
+    private int size;
+    private boolean loaded;
+    private boolean complete;
+
+    RoomTail(int capacity) {
+        this.messages = new Message[capacity];
+    }
+
+    synchronized boolean isLoaded() {
+        return loaded;
+    }
+
+    /**
+     * Fills the tail with the room's latest messages read from the backing repository, oldest first.
+     *
+     * @param complete whether these are all the messages of the room
+     */
+    synchronized void load(List<Message> latest, boolean complete) {
+        this.complete = complete;
+        for (Message message : latest) {
+            add(message);
+        }
+        loaded = true;
+    }
+
+    synchronized void add(Message message) {
+        int position = lowerBound(message);
+        if (position < size && compare(get(position), message) == 0) {
+            messages[slot(position)] = message;
+            return;
+        }
+        if (size == messages.length) {
+            if (position == 0) {
+                // older than everything kept
+                complete = false;
+                return;
+            }
+            head = slot(1);
+            size--;
+            position--;
+            complete = false;
+        }
+        for (int i = size; i > position; i--) {
+            messages[slot(i)] = messages[slot(i - 1)];
+        }
+        messages[slot(position)] = message;
+        size++;
+    }
+
+    /**
+     * The latest n messages, oldest first, or null when the tail doesn't know them all.
+     */
+    synchronized List<Message> latest(int n) {
+        if (n > size && !complete) {
+            return null;
+        }
+        int count = Math.min(n, size);
+        List<Message> latest = new ArrayList<>(count);
+        for (int i = size - count; i < size; i++) {
+            latest.add(get(i));
+        }
+        return latest;
+    }
+
+    synchronized int size() {
+        return size;
+    }
+
+    private Message get(int position) {
+        return messages[slot(position)];
+    }
+
+    private int slot(int position) {
+        return (head + position) % messages.length;
+    }
+
+    /**
+     * First position whose message doesn't sort before the given one. New messages go to the end, which is
+     * checked first.
+     */
+    private int lowerBound(Message message) {
+        if (size == 0 || compare(get(size - 1), message) < 0) {
+            return size;
+        }
+        int low = 0;
+        int high = size - 1;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (compare(get(mid), message) < 0) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    private static int compare(Message a, Message b) {
+        int byTimestamp = Long.compare(a.getTimestamp(), b.getTimestamp());
+        return byTimestamp != 0 ? byTimestamp : Integer.compare(a.getIndex(), b.getIndex());
+    }
+}
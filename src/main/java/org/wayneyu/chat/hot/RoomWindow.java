@@ -0,0 +1,462 @@
+package org.wayneyu.chat.hot;
+
+import org.wayneyu.chat.model.Message;
+import org.wayneyu.chat.model.Room;
+import org.wayneyu.chat.model.RoomMeta;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The recent messages of one room, held as parallel primitive arrays sorted by (timestamp, index). Authors and
+ * message texts live in a direct buffer arena; records are [authorLength][author][messageLength][message] and
+ * offsets points at each message's record. Replaced and trimmed records stay in the arena as garbage until it
+ * is compacted on its next resize. Arenas come from and go back to an {@link ArenaPool}; the arena is only
+ * touched holding the window's lock, and a released window no longer covers any range or takes messages.
+ *
+ * Every message with timestamp >= windowStart is in the window. The pause of a message is the time since the
+ * previous one; for the first message of the window that is the predecessor timestamp, which is only known
+ * when the window starts at the room's creation or has been trimmed.
+ */
+class RoomWindow {
+
+    private static final int INITIAL_CAPACITY = 64;
+    private static final int INITIAL_ARENA_BYTES = 4096;
+    private static final int NULL_LENGTH = -1;
+
+    private final int roomId;
+    private final ArenaPool arenas;
+    private final Object accounting = new Object();
+    private Room info;
+    private RoomMeta meta;
+    private boolean loaded;
+    private boolean released;
+    // writes to the room while the window wasn't loaded, which a load running at the time may have missed
+    private long unloadedWrites;
+    private long windowStart = Long.MIN_VALUE;
+    private long predecessor;
+    private boolean predecessorKnown;
+
+    private int size;
+    private long[] timestamps = new long[INITIAL_CAPACITY];
+    private int[] indexes = new int[INITIAL_CAPACITY];
+    private int[] offsets = new int[INITIAL_CAPACITY];
+    private ByteBuffer arena;
+    private int liveBytes;
+
+    private volatile long bytes;
+    private long accountedBytes;
+    private boolean evicted;
+
+    RoomWindow(int roomId, ArenaPool arenas) {
+        this.roomId = roomId;
+        this.arenas = arenas;
+        this.arena = arenas.take(INITIAL_ARENA_BYTES);
+        this.bytes = footprint();
+    }
+
+    int getRoomId() {
+        return roomId;
+    }
+
+    synchronized boolean isLoaded() {
+        return loaded;
+    }
+
+    /**
+     * Starts the window at the room's creation, for rooms whose messages are all in the window.
+     */
+    synchronized void initComplete(Room info, RoomMeta meta) {
+        this.info = info;
+        this.meta = meta;
+        this.windowStart = Long.MIN_VALUE;
+        if (meta != null) {
+            predecessor = meta.getCreated();
+            predecessorKnown = true;
+        }
+        loaded = true;
+    }
+
+    /**
+     * Starts the window at windowStart; messages from it on are added by the caller. The pause of the first of
+     * them is unknown, so long pause counts must start after it.
+     */
+    synchronized void initFrom(Room info, RoomMeta meta, long windowStart) {
+        this.info = info;
+        this.meta = meta;
+        this.windowStart = windowStart;
+        loaded = true;
+    }
+
+    synchronized void recordUnloadedWrite() {
+        unloadedWrites++;
+    }
+
+    synchronized long getUnloadedWrites() {
+        return unloadedWrites;
+    }
+
+    /**
+     * Takes over the contents of a window loaded apart from this one, unless this one has been loaded or
+     * released meanwhile or the room was written since unloadedWrites was read. The loaded window is left
+     * with this one's arena, to be released by the caller.
+     *
+     * @return whether the contents were taken
+     */
+    synchronized boolean install(RoomWindow loaded, long unloadedWrites) {
+        if (this.loaded || released || this.unloadedWrites != unloadedWrites) {
+            return false;
+        }
+        synchronized (loaded) {
+            info = loaded.info;
+            meta = loaded.meta;
+            windowStart = loaded.windowStart;
+            predecessor = loaded.predecessor;
+            predecessorKnown = loaded.predecessorKnown;
+            size = loaded.size;
+            timestamps = loaded.timestamps;
+            indexes = loaded.indexes;
+            offsets = loaded.offsets;
+            liveBytes = loaded.liveBytes;
+            ByteBuffer empty = arena;
+            arena = loaded.arena;
+            loaded.arena = empty;
+            loaded.size = 0;
+        }
+        this.loaded = true;
+        account();
+        return true;
+    }
+
+    /**
+     * Gives the arena back to the pool. Call once the window is out of the tier.
+     */
+    synchronized void release() {
+        if (!released) {
+            released = true;
+            size = 0;
+            arenas.give(arena);
+            arena = null;
+        }
+    }
+
+    synchronized Room getRoom() {
+        if (info == null) {
+            return null;
+        }
+        Room room = new Room(info.getId(), info.getName(), info.getCreated(), info.getParticipants());
+        room.setMeta(meta);
+        return room;
+    }
+
+    synchronized RoomMeta getMeta() {
+        return meta;
+    }
+
+    /**
+     * Adds the messages of a batch the backing repository has stored, and moves meta forward the way
+     * HBaseRepositoryImpl does: to the last message of the batch, if it is newer than meta:lastMsgTs.
+     */
+    synchronized void add(List<Message> batch, Message lastMessage) {
+        for (Message message : batch) {
+            add(message);
+        }
+        if (meta != null && lastMessage.getTimestamp() > meta.getLastMessageTimestamp()) {
+            meta = new RoomMeta(lastMessage.getIndex(), meta.getCreated(), lastMessage.getTimestamp());
+        }
+    }
+
+    synchronized void add(Message message) {
+        if (released) {
+            return;
+        }
+        long timestamp = message.getTimestamp();
+        if (timestamp < windowStart) {
+            // older than the window, it can only move the first message's predecessor
+            if (predecessorKnown && timestamp > predecessor) {
+                predecessor = timestamp;
+            }
+            return;
+        }
+        int position = lowerBound(timestamp, message.getIndex());
+        if (position < size && timestamps[position] == timestamp && indexes[position] == message.getIndex()) {
+            liveBytes -= recordLength(offsets[position]);
+            offsets[position] = append(message);
+        } else {
+            ensureCapacity(size + 1);
+            int offset = append(message);
+            System.arraycopy(timestamps, position, timestamps, position + 1, size - position);
+            System.arraycopy(indexes, position, indexes, position + 1, size - position);
+            System.arraycopy(offsets, position, offsets, position + 1, size - position);
+            timestamps[position] = timestamp;
+            indexes[position] = message.getIndex();
+            offsets[position] = offset;
+            size++;
+        }
+        account();
+    }
+
+    /**
+     * Drops the messages before cutoff; the window then starts at cutoff and the pause of its first message is known.
+     */
+    synchronized void trimBefore(long cutoff) {
+        if (cutoff <= windowStart) {
+            return;
+        }
+        int drop = lowerBound(cutoff, Integer.MIN_VALUE);
+        if (drop > 0) {
+            predecessor = timestamps[drop - 1];
+            predecessorKnown = true;
+            for (int i = 0; i < drop; i++) {
+                liveBytes -= recordLength(offsets[i]);
+            }
+            size -= drop;
+            System.arraycopy(timestamps, drop, timestamps, 0, size);
+            System.arraycopy(indexes, drop, indexes, 0, size);
+            System.arraycopy(offsets, drop, offsets, 0, size);
+        }
+        windowStart = cutoff;
+        account();
+    }
+
+    synchronized long getLastTimestamp() {
+        return size > 0 ? timestamps[size - 1] : Long.MIN_VALUE;
+    }
+
+    synchronized boolean covers(long startTime) {
+        return loaded && !released && startTime >= windowStart;
+    }
+
+    /**
+     * Up to limit messages in [startTime, endTime) that sort after the given one (or from startTime when it is
+     * null), or null when the window no longer holds all of them.
+     */
+    synchronized List<Message> read(long startTime, long endTime, Message after, int limit) {
+        long from = after != null ? Math.max(after.getTimestamp(), startTime) : startTime;
+        if (!covers(from)) {
+            return null;
+        }
+        int position = lowerBound(startTime, Integer.MIN_VALUE);
+        if (after != null) {
+            position = Math.max(position, upperBound(after.getTimestamp(), after.getIndex()));
+        }
+        int end = lowerBound(endTime, Integer.MIN_VALUE);
+        List<Message> messages = new ArrayList<>();
+        for (int i = position; i < end && messages.size() < limit; i++) {
+            messages.add(toMessage(i));
+        }
+        return messages;
+    }
+
+    /**
+     * Up to limit messages in [startTime, endTime), newest first, that sort before the given one (or from endTime
+     * when it is null), or null when the window doesn't hold all of them.
+     */
+    synchronized List<Message> readReverse(long startTime, long endTime, Message before, int limit) {
+        if (!covers(startTime)) {
+            return null;
+        }
+        int position = lowerBound(endTime, Integer.MIN_VALUE);
+        if (before != null) {
+            position = Math.min(position, lowerBound(before.getTimestamp(), before.getIndex()));
+        }
+        int end = lowerBound(startTime, Integer.MIN_VALUE);
+        List<Message> messages = new ArrayList<>();
+        for (int i = position - 1; i >= end && messages.size() < limit; i--) {
+            messages.add(toMessage(i));
+        }
+        return messages;
+    }
+
+    /**
+     * Number of messages in [startTime, endTime) with a pause longer than threshold, -1 if the range has no
+     * messages, or null when the window can't tell because it doesn't cover the range or the pause of its
+     * first message is unknown.
+     */
+    synchronized Integer countPausesLongerThan(long startTime, long endTime, long threshold) {
+        if (!covers(startTime)) {
+            return null;
+        }
+        int from = lowerBound(startTime, Integer.MIN_VALUE);
+        int to = lowerBound(endTime, Integer.MIN_VALUE);
+        if (from == 0 && to > 0 && !predecessorKnown) {
+            return null;
+        }
+        if (from >= to) {
+            return -1;
+        }
+        int count = 0;
+        long previous = from > 0 ? timestamps[from - 1] : predecessor;
+        for (int i = from; i < to; i++) {
+            if (timestamps[i] - previous > threshold) {
+                count++;
+            }
+            previous = timestamps[i];
+        }
+        return count;
+    }
+
+    long getBytes() {
+        return bytes;
+    }
+
+    /**
+     * Stops this window from counting towards the tier's memory once it is no longer reachable.
+     *
+     * @return the bytes it had been counted with
+     */
+    long evict() {
+        synchronized (accounting) {
+            evicted = true;
+            return accountedBytes;
+        }
+    }
+
+    /**
+     * Change in footprint since it was last taken, zero once evicted.
+     */
+    long takeByteDelta() {
+        synchronized (accounting) {
+            if (evicted) {
+                return 0;
+            }
+            long current = bytes;
+            long delta = current - accountedBytes;
+            accountedBytes = current;
+            return delta;
+        }
+    }
+
+    private void account() {
+        bytes = footprint();
+    }
+
+    private long footprint() {
+        return (long) timestamps.length * (Long.BYTES + Integer.BYTES + Integer.BYTES) + (arena != null ? arena.capacity() : 0);
+    }
+
+    private Message toMessage(int i) {
+        ByteBuffer reader = arena.duplicate();
+        reader.position(offsets[i]);
+        String author = readString(reader);
+        String text = readString(reader);
+        return new Message(indexes[i], timestamps[i], author, text);
+    }
+
+    private static String readString(ByteBuffer reader) {
+        int length = reader.getInt();
+        if (length == NULL_LENGTH) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        reader.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private int recordLength(int offset) {
+        int authorLength = Math.max(0, arena.getInt(offset));
+        int textLength = Math.max(0, arena.getInt(offset + Integer.BYTES + authorLength));
+        return 2 * Integer.BYTES + authorLength + textLength;
+    }
+
+    private int append(Message message) {
+        byte[] author = message.getAuthor() != null ? message.getAuthor().getBytes(StandardCharsets.UTF_8) : null;
+        byte[] text = message.getMessage() != null ? message.getMessage().getBytes(StandardCharsets.UTF_8) : null;
+        int length = 2 * Integer.BYTES + (author != null ? author.length : 0) + (text != null ? text.length : 0);
+        ensureArena(length);
+        int offset = arena.position();
+        putBytes(author);
+        putBytes(text);
+        liveBytes += length;
+        return offset;
+    }
+
+    private void putBytes(byte[] bytes) {
+        if (bytes == null) {
+            arena.putInt(NULL_LENGTH);
+        } else {
+            arena.putInt(bytes.length);
+            arena.put(bytes);
+        }
+    }
+
+    /**
+     * Makes room for another record, compacting live records into a buffer sized for them when the arena is full.
+     */
+    private void ensureArena(int length) {
+        if (arena.remaining() >= length) {
+            return;
+        }
+        long needed = 2L * (liveBytes + length);
+        int capacity = INITIAL_ARENA_BYTES;
+        while (capacity < needed) {
+            if (capacity > Integer.MAX_VALUE / 2) {
+                throw new IllegalStateException("Message arena of room " + roomId + " is full");
+            }
+            capacity *= 2;
+        }
+        ByteBuffer compacted = arenas.take(capacity);
+        for (int i = 0; i < size; i++) {
+            int offset = offsets[i];
+            int recordLength = recordLength(offset);
+            ByteBuffer record = arena.duplicate();
+            record.limit(offset + recordLength).position(offset);
+            offsets[i] = compacted.position();
+            compacted.put(record);
+        }
+        arenas.give(arena);
+        arena = compacted;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity <= timestamps.length) {
+            return;
+        }
+        int grown = Math.max(capacity, timestamps.length * 2);
+        long[] newTimestamps = new long[grown];
+        int[] newIndexes = new int[grown];
+        int[] newOffsets = new int[grown];
+        System.arraycopy(timestamps, 0, newTimestamps, 0, size);
+        System.arraycopy(indexes, 0, newIndexes, 0, size);
+        System.arraycopy(offsets, 0, newOffsets, 0, size);
+        timestamps = newTimestamps;
+        indexes = newIndexes;
+        offsets = newOffsets;
+    }
+
+    /**
+     * First position whose (timestamp, index) is not less than the given one.
+     */
+    private int lowerBound(long timestamp, int index) {
+        int low = 0;
+        int high = size;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (timestamps[mid] < timestamp || (timestamps[mid] == timestamp && indexes[mid] < index)) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * First position whose (timestamp, index) is greater than the given one.
+     */
+    private int upperBound(long timestamp, int index) {
+        int low = 0;
+        int high = size;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (timestamps[mid] < timestamp || (timestamps[mid] == timestamp && indexes[mid] <= index)) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+}
@@ -0,0 +1,178 @@
+package org.wayneyu.chat.hot;
+
+import org.apache.hadoop.conf.Configuration;
+import org.wayneyu.chat.db.ChatRepository;
+import org.wayneyu.chat.db.MessageConsumer;
+import org.wayneyu.chat.db.MessageCursor;
+import org.wayneyu.chat.metrics.Counter;
+import org.wayneyu.chat.metrics.MetricRegistry;
+import org.wayneyu.chat.model.Message;
+import org.wayneyu.chat.model.MessagePage;
+import org.wayneyu.chat.model.Room;
+import org.wayneyu.chat.model.RoomActivity;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Serves the latest messages of recently read rooms from a ring buffer per room, see {@link RoomTail}. A room's
+ * tail is loaded with the delegate's latest capacity messages on the first read of the room and follows the
+ * writes made through this repository. Tails of the least recently read rooms are dropped beyond maxRooms.
+ * Reads of more than capacity messages go to the delegate.
+ *
+ * Like the hot tier, the tails only see writes made through this instance, so rooms must not be written by
+ * other instances while this one has them in memory.
+ */
+public class TailChatRepository implements ChatRepository {
+
+    public static final String ENABLED_KEY = "chat.tail.enabled";
+    public static final String CAPACITY_KEY = "chat.tail.capacity";
+    public static final int DEFAULT_CAPACITY = 100;
+    public static final String MAX_ROOMS_KEY = "chat.tail.maxRooms";
+    public static final int DEFAULT_MAX_ROOMS = 10000;
+
+    private final ChatRepository delegate;
+    private final int capacity;
+    private final Map<Integer, RoomTail> tails;
+    private final Counter hits;
+    private final Counter misses;
+
+    public TailChatRepository(ChatRepository delegate, int capacity, final int maxRooms) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Tail capacity must be positive, was " + capacity);
+        }
+        this.delegate = delegate;
+        this.capacity = capacity;
+        this.tails = new LinkedHashMap<Integer, RoomTail>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, RoomTail> eldest) {
+                return size() > maxRooms;
+            }
+        };
+        MetricRegistry metrics = MetricRegistry.getDefault();
+        this.hits = metrics.counter("chat_tail_reads_total", "Reads of the latest messages of a room", "result", "hit");
+        this.misses = metrics.counter("chat_tail_reads_total", "Reads of the latest messages of a room", "result", "miss");
+        metrics.gauge("chat_tail_resident_rooms", "Rooms with their latest messages in memory", () -> {
+            synchronized (tails) {
+                return tails.size();
+            }
+        });
+    }
+
+    public static TailChatRepository create(ChatRepository delegate, Configuration config) {
+        return new TailChatRepository(delegate,
+                config.getInt(CAPACITY_KEY, DEFAULT_CAPACITY),
+                config.getInt(MAX_ROOMS_KEY, DEFAULT_MAX_ROOMS));
+    }
+
+    /**
+     * The room's tail is dropped, and loaded again by the next read.
+     */
+    public void createRoom(Room room) {
+        delegate.createRoom(room);
+        synchronized (tails) {
+            tails.remove(room.getId());
+        }
+    }
+
+    /**
+     * Writes to the delegate first, then to the room's tail if it is in memory. Rooms that are not in memory are
+     * loaded by their next read, which then sees these messages in the delegate.
+     */
+    public void addMessages(int chatRoomId, List<Message> messages) {
+        delegate.addMessages(chatRoomId, messages);
+        RoomTail tail;
+        synchronized (tails) {
+            tail = tails.get(chatRoomId);
+        }
+        if (tail == null) {
+            return;
+        }
+        synchronized (tail) {
+            if (!tail.isLoaded()) {
+                // the load in progress reads these messages from the delegate
+                return;
+            }
+            for (Message message : messages) {
+                tail.add(message);
+            }
+        }
+    }
+
+    @Override
+    public List<Message> getLatestMessages(int chatRoomId, int n) {
+        MessageCursor.checkLimit(n);
+        if (n > capacity) {
+            misses.increment();
+            return delegate.getLatestMessages(chatRoomId, n);
+        }
+        RoomTail tail;
+        synchronized (tails) {
+            tail = tails.computeIfAbsent(chatRoomId, k -> new RoomTail(capacity));
+        }
+        synchronized (tail) {
+            if (!tail.isLoaded()) {
+                misses.increment();
+                // writes to the room wait for the load
+                List<Message> latest = delegate.getLatestMessages(chatRoomId, capacity);
+                tail.load(latest, latest.size() < capacity);
+                return tail.latest(n);
+            }
+            List<Message> latest = tail.latest(n);
+            if (latest != null) {
+                hits.increment();
+                return latest;
+            }
+        }
+        misses.increment();
+        return delegate.getLatestMessages(chatRoomId, n);
+    }
+
+    public List<Message> getMessages(int chatRoomId, long startTime, long endTime) {
+        return delegate.getMessages(chatRoomId, startTime, endTime);
+    }
+
+    public void streamMessages(int chatRoomId, long startTime, long endTime, MessageConsumer consumer) throws IOException {
+        delegate.streamMessages(chatRoomId, startTime, endTime, consumer);
+    }
+
+    public MessagePage getMessages(int chatRoomId, long startTime, long endTime, int limit, String cursor, boolean reverse) {
+        return delegate.getMessages(chatRoomId, startTime, endTime, limit, cursor, reverse);
+    }
+
+    @Override
+    public Map<Integer, MessagePage> getMessages(List<Integer> chatRoomIds, long startTime, long endTime, int limit) {
+        return delegate.getMessages(chatRoomIds, startTime, endTime, limit);
+    }
+
+    public Room getRoom(int id) {
+        return delegate.getRoom(id);
+    }
+
+    @Override
+    public List<Room> getRooms(List<Integer> ids) {
+        return delegate.getRooms(ids);
+    }
+
+    public int countLongPauses(int chatRoomId, long startTime, long endTime) {
+        return delegate.countLongPauses(chatRoomId, startTime, endTime);
+    }
+
+    @Override
+    public List<Message> searchMessages(int chatRoomId, String query, long startTime, long endTime, int limit) {
+        return delegate.searchMessages(chatRoomId, query, startTime, endTime, limit);
+    }
+
+    @Override
+    public RoomActivity getActivity(int chatRoomId, long startTime, long endTime) {
+        return delegate.getActivity(chatRoomId, startTime, endTime);
+    }
+
+    boolean isResident(int roomId) {
+        synchronized (tails) {
+            return tails.containsKey(roomId);
+        }
+    }
+}
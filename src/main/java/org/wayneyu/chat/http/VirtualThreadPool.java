@@ -0,0 +1,108 @@
+package org.wayneyu.chat.http;
+
+import org.eclipse.jetty.util.component.AbstractLifeCycle;
+import org.eclipse.jetty.util.thread.ThreadPool;
+import org.eclipse.jetty.util.thread.TryExecutor;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Jetty thread pool that runs every task on a new virtual thread, so that requests blocked on HBase don't hold
+ * a platform thread each and slow requests can't exhaust the pool.
+ *
+ * The service is compiled for Java 8, so virtual threads are looked up reflectively and are only available when
+ * running on Java 21 or later, see {@link #isSupported()}. On Java 21 to 23 a virtual thread waiting on a monitor
+ * keeps its carrier thread, which the HBase 1.2 client does while it waits for RPC responses.
+ */
+public class VirtualThreadPool extends AbstractLifeCycle implements ThreadPool, TryExecutor {
+
+    private static final ThreadFactory FACTORY = createFactory();
+
+    private final AtomicInteger threads = new AtomicInteger();
+    private final Object stopped = new Object();
+
+    public VirtualThreadPool() {
+        if (FACTORY == null) {
+            throw new UnsupportedOperationException("Virtual threads need Java 21 or later, running on " + System.getProperty("java.version"));
+        }
+    }
+
+    public static boolean isSupported() {
+        return FACTORY != null;
+    }
+
+    private static ThreadFactory createFactory() {
+        try {
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, "http-", 0L);
+            Method factory = builderClass.getMethod("factory");
+            return (ThreadFactory) factory.invoke(builder);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    @Override
+    public void execute(Runnable task) {
+        if (!isRunning()) {
+            throw new RejectedExecutionException("Thread pool is " + getState());
+        }
+        threads.incrementAndGet();
+        FACTORY.newThread(() -> {
+            try {
+                task.run();
+            } finally {
+                threads.decrementAndGet();
+            }
+        }).start();
+    }
+
+    /**
+     * Always starts the task, which lets Jetty hand off selecting to a new thread and run the task it selected
+     * on the selecting thread.
+     */
+    @Override
+    public boolean tryExecute(Runnable task) {
+        try {
+            execute(task);
+            return true;
+        } catch (RejectedExecutionException e) {
+            return false;
+        }
+    }
+
+    @Override
+    protected void doStop() throws Exception {
+        synchronized (stopped) {
+            stopped.notifyAll();
+        }
+    }
+
+    @Override
+    public void join() throws InterruptedException {
+        synchronized (stopped) {
+            while (!isStopping() && !isStopped()) {
+                stopped.wait();
+            }
+        }
+    }
+
+    @Override
+    public int getThreads() {
+        return threads.get();
+    }
+
+    @Override
+    public int getIdleThreads() {
+        return 0;
+    }
+
+    @Override
+    public boolean isLowOnThreads() {
+        return false;
+    }
+}
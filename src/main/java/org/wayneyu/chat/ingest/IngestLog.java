@@ -0,0 +1,379 @@
+package org.wayneyu.chat.ingest;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.wayneyu.chat.model.Message;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only log of message batches accepted but not yet written to the repository.
+ *
+ * The log is a sequence of segment files (ingest-{sequence}.log) made of records
+ * [payload length int][crc32 int][payload], where the payload is the room id, the number of
+ * messages and each message as index, timestamp, author and message. A segment is deleted once it
+ * is no longer appended to and every record in it has been acknowledged. Records of segments found
+ * on startup are handed back by {@link #recover()} so they can be written again.
+ *
+ * Batches that can't be written are moved with {@link #deadLetter} to dead-letter.log, in the same record
+ * format, which is kept for inspection and never replayed.
+ *
+ * Delivery is at least once: a batch whose append failed to sync has been written, and is handed back by
+ * {@link #recover()} if the process stops before its segment is deleted, as are acknowledged batches of a
+ * segment that still had others outstanding. Writing the same messages again leaves a room unchanged.
+ *
+ * With fsync, appends are group committed: records are written under a lock, and one of the appenders
+ * waiting for durability forces everything written so far while the others wait for its force to pass
+ * their record, so concurrent appends share an fsync instead of queuing for one each.
+ */
+public class IngestLog implements Closeable {
+
+    private static final Logger logger = LoggerFactory.getLogger(IngestLog.class);
+
+    private static final String SEGMENT_PREFIX = "ingest-";
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final int RECORD_HEADER_LENGTH = 8;
+    private static final String DEAD_LETTER_FILE = "dead-letter.log";
+
+    private final File dir;
+    private final long segmentBytes;
+    private final boolean fsync;
+    private final Map<Long, Segment> segments = new ConcurrentHashMap<>();
+    private final List<Batch> recovered = new ArrayList<>();
+
+    private Segment active;
+    private FileChannel activeChannel;
+    private long nextSequence;
+    // bytes appended over all segments of this process, guarded by this
+    private long written;
+
+    // a force and the close of the channel it forces, when rolling, don't overlap
+    private final Object forceLock = new Object();
+    // guarded by syncLock: bytes known to be on disk, and whether an appender is forcing them
+    private final Object syncLock = new Object();
+    private long synced;
+    private boolean syncing;
+    private final Object deadLetterLock = new Object();
+
+    private static class Segment {
+        private final long sequence;
+        private final File file;
+        private final AtomicInteger outstanding = new AtomicInteger();
+        private volatile boolean sealed;
+
+        private Segment(long sequence, File file) {
+            this.sequence = sequence;
+            this.file = file;
+        }
+    }
+
+    /**
+     * A logged batch. Acknowledge it once its messages are stored.
+     */
+    public static class Batch {
+        private final Segment segment;
+        private final int roomId;
+        private final List<Message> messages;
+
+        private Batch(Segment segment, int roomId, List<Message> messages) {
+            this.segment = segment;
+            this.roomId = roomId;
+            this.messages = messages;
+        }
+
+        public int getRoomId() {
+            return roomId;
+        }
+
+        public List<Message> getMessages() {
+            return messages;
+        }
+    }
+
+    public IngestLog(File dir, long segmentBytes, boolean fsync) throws IOException {
+        this.dir = dir;
+        this.segmentBytes = segmentBytes;
+        this.fsync = fsync;
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Could not create ingest log directory " + dir);
+        }
+
+        File[] files = dir.listFiles((d, name) -> name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX));
+        Arrays.sort(files);
+        for (File file : files) {
+            long sequence = Long.parseLong(file.getName().substring(SEGMENT_PREFIX.length(), file.getName().length() - SEGMENT_SUFFIX.length()));
+            Segment segment = new Segment(sequence, file);
+            segment.sealed = true;
+            segments.put(sequence, segment);
+            readSegment(segment);
+            nextSequence = Math.max(nextSequence, sequence + 1);
+            deleteIfDone(segment);
+        }
+        roll();
+    }
+
+    /**
+     * Batches that were logged by a previous process and never acknowledged, in log order.
+     */
+    public List<Batch> recover() {
+        return recovered;
+    }
+
+    /**
+     * Logs the batch, and with fsync returns once it is on disk.
+     */
+    public Batch append(int roomId, List<Message> messages) throws IOException {
+        ByteBuffer record = toRecord(roomId, messages);
+
+        Batch batch;
+        long end;
+        synchronized (this) {
+            long start = activeChannel.position();
+            try {
+                while (record.hasRemaining()) {
+                    activeChannel.write(record);
+                }
+            } catch (IOException e) {
+                discardPartialRecord(start, e);
+                throw e;
+            }
+            written += record.limit();
+            end = written;
+            batch = new Batch(active, roomId, messages);
+            active.outstanding.incrementAndGet();
+            if (activeChannel.position() >= segmentBytes) {
+                roll();
+            }
+        }
+        if (fsync) {
+            try {
+                sync(end);
+            } catch (IOException | RuntimeException e) {
+                // the caller is told the batch failed, so it doesn't keep the segment around for an acknowledgement
+                acknowledge(batch);
+                throw e;
+            }
+        }
+        return batch;
+    }
+
+    /**
+     * Cuts a record that failed half way off the active segment, so the records appended after it can be
+     * read back. If that fails too, the segment is rolled, and recovery stops at the partial record at its end.
+     */
+    // called holding this
+    private void discardPartialRecord(long start, IOException cause) {
+        try {
+            activeChannel.truncate(start);
+            activeChannel.position(start);
+        } catch (IOException e) {
+            logger.error("Could not truncate a partial record off {}, rolling to a new segment", active.file, e);
+            try {
+                roll();
+            } catch (IOException rollFailure) {
+                cause.addSuppressed(rollFailure);
+            }
+        }
+    }
+
+    /**
+     * Waits until the first position bytes are on disk, forcing everything written so far unless another
+     * appender is already doing so.
+     */
+    private void sync(long position) throws IOException {
+        synchronized (syncLock) {
+            while (synced < position && syncing) {
+                try {
+                    syncLock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while waiting for the ingest log to sync");
+                }
+            }
+            if (synced >= position) {
+                return;
+            }
+            syncing = true;
+        }
+        long target = -1;
+        try {
+            FileChannel channel;
+            synchronized (this) {
+                target = written;
+                channel = activeChannel;
+            }
+            synchronized (forceLock) {
+                // a closed channel was forced by roll() before it was closed
+                if (channel.isOpen()) {
+                    channel.force(false);
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            target = -1;
+            throw e;
+        } finally {
+            synchronized (syncLock) {
+                synced = Math.max(synced, target);
+                syncing = false;
+                syncLock.notifyAll();
+            }
+        }
+    }
+
+    public void acknowledge(Batch batch) {
+        batch.segment.outstanding.decrementAndGet();
+        deleteIfDone(batch.segment);
+    }
+
+    /**
+     * Appends the batch to the dead-letter file, forced to disk with fsync, and acknowledges it.
+     */
+    public void deadLetter(Batch batch) throws IOException {
+        ByteBuffer record = toRecord(batch.roomId, batch.messages);
+        synchronized (deadLetterLock) {
+            try (FileChannel channel = FileChannel.open(new File(dir, DEAD_LETTER_FILE).toPath(),
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+                while (record.hasRemaining()) {
+                    channel.write(record);
+                }
+                if (fsync) {
+                    channel.force(false);
+                }
+            }
+        }
+        acknowledge(batch);
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        synchronized (forceLock) {
+            if (fsync) {
+                activeChannel.force(false);
+            }
+            activeChannel.close();
+        }
+    }
+
+    // called holding this
+    private void roll() throws IOException {
+        Segment previous = active;
+        if (activeChannel != null) {
+            synchronized (forceLock) {
+                if (fsync) {
+                    activeChannel.force(false);
+                }
+                activeChannel.close();
+            }
+        }
+        long sequence = nextSequence++;
+        active = new Segment(sequence, new File(dir, String.format("%s%020d%s", SEGMENT_PREFIX, sequence, SEGMENT_SUFFIX)));
+        segments.put(sequence, active);
+        activeChannel = FileChannel.open(active.file.toPath(), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        if (previous != null) {
+            previous.sealed = true;
+            deleteIfDone(previous);
+        }
+    }
+
+    private void deleteIfDone(Segment segment) {
+        if (segment.sealed && segment.outstanding.get() == 0 && segments.remove(segment.sequence) != null) {
+            if (!segment.file.delete()) {
+                logger.warn("Could not delete ingest log segment {}", segment.file);
+            }
+        }
+    }
+
+    private void readSegment(Segment segment) throws IOException {
+        try (FileChannel channel = FileChannel.open(segment.file.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            while (buffer.remaining() >= RECORD_HEADER_LENGTH) {
+                int length = buffer.getInt();
+                int checksum = buffer.getInt();
+                if (length < 0 || length > buffer.remaining()) {
+                    logger.warn("Ignoring truncated record at the end of {}", segment.file);
+                    break;
+                }
+                byte[] payload = new byte[length];
+                buffer.get(payload);
+                CRC32 crc = new CRC32();
+                crc.update(payload);
+                if ((int) crc.getValue() != checksum) {
+                    if (buffer.hasRemaining()) {
+                        logger.error("Corrupt record in the middle of {}, {} bytes after it are not recovered", segment.file, buffer.remaining());
+                    } else {
+                        logger.warn("Ignoring corrupt record at the end of {}", segment.file);
+                    }
+                    break;
+                }
+                recovered.add(decode(segment, ByteBuffer.wrap(payload)));
+                segment.outstanding.incrementAndGet();
+            }
+        }
+    }
+
+    private static ByteBuffer toRecord(int roomId, List<Message> messages) throws IOException {
+        byte[] payload = encode(roomId, messages);
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_LENGTH + payload.length);
+        record.putInt(payload.length).putInt((int) crc.getValue()).put(payload).flip();
+        return record;
+    }
+
+    private static byte[] encode(int roomId, List<Message> messages) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 * messages.size());
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(roomId);
+        out.writeInt(messages.size());
+        for (Message message : messages) {
+            out.writeInt(message.getIndex());
+            out.writeLong(message.getTimestamp());
+            writeString(out, message.getAuthor());
+            writeString(out, message.getMessage());
+        }
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static Batch decode(Segment segment, ByteBuffer payload) {
+        int roomId = payload.getInt();
+        int count = payload.getInt();
+        List<Message> messages = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            int index = payload.getInt();
+            long timestamp = payload.getLong();
+            String author = readString(payload);
+            String message = readString(payload);
+            messages.add(new Message(index, timestamp, author, message));
+        }
+        return new Batch(segment, roomId, messages);
+    }
+
+    private static String readString(ByteBuffer payload) {
+        byte[] bytes = new byte[payload.getInt()];
+        payload.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
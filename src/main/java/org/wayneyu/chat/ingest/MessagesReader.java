@@ -0,0 +1,201 @@
+package org.wayneyu.chat.ingest;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.MalformedJsonException;
+import org.wayneyu.chat.db.ChatRepository;
+import org.wayneyu.chat.model.Message;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Reads a PUT /messages body, {"chatRoomId": ..., "messages": [...]}, as a stream and adds its messages to the
+ * repository in batches of at most batchSize while reading, so that batches of any size are ingested in bounded
+ * memory. Messages read before chatRoomId are held until it is read.
+ *
+ * Batches already added stay added when a later part of the body turns out to be invalid. Adding the same
+ * messages again is harmless, so clients resend the whole request.
+ *
+ * Also reads NDJSON dumps, one message with its chatRoomId per line, see {@link #readLines}.
+ */
+public final class MessagesReader {
+
+    private static final int INDEX = 1;
+    private static final int TIMESTAMP = 2;
+    private static final int AUTHOR = 4;
+    private static final int MESSAGE = 8;
+    private static final int ALL_FIELDS = INDEX | TIMESTAMP | AUTHOR | MESSAGE;
+    private static final int ROOM_ID = 16;
+
+    /**
+     * Receives the messages read, batch by batch.
+     */
+    public interface BatchConsumer {
+
+        void accept(int roomId, List<Message> messages);
+
+    }
+
+    private MessagesReader() {
+    }
+
+    /**
+     * @return number of messages added
+     * @throws IllegalArgumentException if the body is not valid
+     */
+    public static int addMessages(Reader body, ChatRepository repo, int batchSize) throws IOException {
+        return readMessages(body, repo::addMessages, batchSize);
+    }
+
+    /**
+     * Like {@link #addMessages} but passes the batches to the consumer.
+     */
+    public static int readMessages(Reader body, BatchConsumer consumer, int batchSize) throws IOException {
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("batchSize must be positive, was " + batchSize);
+        }
+        JsonReader reader = new JsonReader(body);
+        // as lenient as Gson.fromJson was
+        reader.setLenient(true);
+        int roomId = 0;
+        boolean hasRoomId = false;
+        List<Message> batch = new ArrayList<>();
+        int count = 0;
+        try {
+            reader.beginObject();
+            while (reader.hasNext()) {
+                switch (reader.nextName()) {
+                    case "chatRoomId":
+                        if (hasRoomId) {
+                            throw new IllegalArgumentException("chatRoomId is given twice");
+                        }
+                        roomId = reader.nextInt();
+                        hasRoomId = true;
+                        break;
+                    case "messages":
+                        reader.beginArray();
+                        for (int position = 0; reader.hasNext(); position++) {
+                            if (reader.peek() == JsonToken.NULL) {
+                                reader.nextNull();
+                                continue;
+                            }
+                            batch.add(readMessage(reader, position, null));
+                            if (hasRoomId && batch.size() >= batchSize) {
+                                consumer.accept(roomId, batch);
+                                count += batch.size();
+                                batch = new ArrayList<>();
+                            }
+                        }
+                        reader.endArray();
+                        break;
+                    default:
+                        reader.skipValue();
+                }
+            }
+            reader.endObject();
+        } catch (IllegalStateException | MalformedJsonException | EOFException e) {
+            throw new IllegalArgumentException("Malformed messages: " + e.getMessage(), e);
+        }
+        if (!hasRoomId) {
+            throw new IllegalArgumentException("chatRoomId is missing");
+        }
+        for (int from = 0; from < batch.size(); from += batchSize) {
+            List<Message> rest = batch.subList(from, Math.min(batch.size(), from + batchSize));
+            consumer.accept(roomId, new ArrayList<>(rest));
+            count += rest.size();
+        }
+        return count;
+    }
+
+    /**
+     * Reads an NDJSON dump, a message with its room per line, {"chatRoomId": ..., "index": ..., "timestamp": ...,
+     * "author": ..., "message": ...}, and passes each message to the consumer as soon as it is read.
+     *
+     * @return number of messages read
+     * @throws IllegalArgumentException if a line is not valid
+     */
+    public static int readLines(Reader lines, BatchConsumer consumer) throws IOException {
+        JsonReader reader = new JsonReader(lines);
+        // lenient readers take one top-level value after the other
+        reader.setLenient(true);
+        int[] roomId = new int[1];
+        int count = 0;
+        try {
+            while (true) {
+                JsonToken next;
+                try {
+                    next = reader.peek();
+                } catch (EOFException e) {
+                    // an empty dump, the reader only reports the end of the document after a value
+                    if (count == 0) {
+                        break;
+                    }
+                    throw e;
+                }
+                if (next == JsonToken.END_DOCUMENT) {
+                    break;
+                }
+                Message message = readMessage(reader, count, roomId);
+                consumer.accept(roomId[0], Collections.singletonList(message));
+                count++;
+            }
+        } catch (IllegalStateException | MalformedJsonException | EOFException e) {
+            throw new IllegalArgumentException("Malformed messages: " + e.getMessage(), e);
+        }
+        return count;
+    }
+
+    /**
+     * Reads chatRoomId into roomId too, unless it is null.
+     */
+    private static Message readMessage(JsonReader reader, int position, int[] roomId) throws IOException {
+        int index = 0;
+        long timestamp = 0;
+        String author = null;
+        String message = null;
+        int fields = 0;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            switch (reader.nextName()) {
+                case "index":
+                    index = reader.nextInt();
+                    fields |= INDEX;
+                    break;
+                case "timestamp":
+                    timestamp = reader.nextLong();
+                    fields |= TIMESTAMP;
+                    break;
+                case "author":
+                    author = reader.nextString();
+                    fields |= AUTHOR;
+                    break;
+                case "message":
+                    message = reader.nextString();
+                    fields |= MESSAGE;
+                    break;
+                case "chatRoomId":
+                    if (roomId != null) {
+                        roomId[0] = reader.nextInt();
+                        fields |= ROOM_ID;
+                        break;
+                    }
+                    // fall through
+                default:
+                    reader.skipValue();
+            }
+        }
+        reader.endObject();
+        if (roomId == null && fields != ALL_FIELDS) {
+            throw new IllegalArgumentException(String.format("messages[%d] needs index, timestamp, author and message", position));
+        }
+        if (roomId != null && fields != (ALL_FIELDS | ROOM_ID)) {
+            throw new IllegalArgumentException(String.format("record %d needs chatRoomId, index, timestamp, author and message", position + 1));
+        }
+        return new Message(index, timestamp, author, message);
+    }
+}
@@ -0,0 +1,400 @@
+package org.wayneyu.chat.ingest;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.DoNotRetryIOException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.wayneyu.chat.db.ChatRepository;
+import org.wayneyu.chat.db.MessageConsumer;
+import org.wayneyu.chat.metrics.Counter;
+import org.wayneyu.chat.metrics.MetricRegistry;
+import org.wayneyu.chat.model.Message;
+import org.wayneyu.chat.model.MessagePage;
+import org.wayneyu.chat.model.Room;
+import org.wayneyu.chat.model.RoomActivity;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Acknowledges addMessages once the batch is in the {@link IngestLog} and writes it to the delegate
+ * repository in the background. Pending messages of a room are coalesced and flushed by a bounded worker
+ * pool when maxBatchSize messages are pending or the oldest has waited maxLatencyMillis, whichever comes
+ * first. At most one flush per room is in flight, so the delegate sees each room's batches in order.
+ *
+ * Writes failing on an IOException, e.g. while HBase is unavailable, are retried every second up to maxRetries
+ * times. Other failures, like a message too large for HBase, won't pass on a retry: the logged batches of the
+ * failed write are then written one by one and those that still fail are moved to the log's dead-letter file, as
+ * are batches that ran out of retries, so that one bad batch doesn't block its room.
+ *
+ * Reads go straight to the delegate and may not see messages that are still pending.
+ */
+public class WriteBehindChatRepository implements ChatRepository, Closeable {
+
+    private static final Logger logger = LoggerFactory.getLogger(WriteBehindChatRepository.class);
+
+    public static final String ASYNC_KEY = "chat.ingest.async";
+    public static final String LOG_DIR_KEY = "chat.ingest.log.dir";
+    public static final String LOG_SEGMENT_BYTES_KEY = "chat.ingest.log.segmentBytes";
+    public static final String LOG_FSYNC_KEY = "chat.ingest.log.fsync";
+    public static final String WORKERS_KEY = "chat.ingest.workers";
+    public static final String MAX_BATCH_SIZE_KEY = "chat.ingest.maxBatchSize";
+    public static final String MAX_LATENCY_MILLIS_KEY = "chat.ingest.maxLatencyMillis";
+    public static final String MAX_PENDING_MESSAGES_KEY = "chat.ingest.maxPendingMessages";
+    public static final String MAX_RETRIES_KEY = "chat.ingest.maxRetries";
+    public static final int DEFAULT_MAX_RETRIES = 300;
+
+    private static final long RETRY_DELAY_MILLIS = 1000;
+
+    private final ChatRepository delegate;
+    private final IngestLog log;
+    private final int maxBatchSize;
+    private final long maxLatencyMillis;
+    private final int maxPendingMessages;
+    private final int maxRetries;
+    private final ExecutorService workers;
+    private final ScheduledExecutorService timer;
+    private final ConcurrentMap<Integer, RoomQueue> queues = new ConcurrentHashMap<>();
+    private final AtomicInteger pendingMessages = new AtomicInteger();
+    private final Counter rejectedMessages = MetricRegistry.getDefault().counter("chat_ingest_rejected_messages_total",
+            "Messages rejected because the ingest queue was full");
+    private final Counter failedWrites = MetricRegistry.getDefault().counter("chat_ingest_failed_writes_total",
+            "Queued batches whose write failed");
+    private final Counter deadLetterMessages = MetricRegistry.getDefault().counter("chat_ingest_dead_letter_messages_total",
+            "Messages moved to the dead-letter file because their write kept failing");
+    private volatile boolean closed;
+
+    private static class RoomQueue {
+        private final int roomId;
+        private final List<IngestLog.Batch> batches = new ArrayList<>();
+        private int size;
+        private boolean flushing;
+        private boolean timerSet;
+        // failed writes in a row, only touched by the flushing worker
+        private int retries;
+
+        private RoomQueue(int roomId) {
+            this.roomId = roomId;
+        }
+    }
+
+    public WriteBehindChatRepository(ChatRepository delegate, IngestLog log, int workers, int maxBatchSize, long maxLatencyMillis, int maxPendingMessages) {
+        this(delegate, log, workers, maxBatchSize, maxLatencyMillis, maxPendingMessages, DEFAULT_MAX_RETRIES);
+    }
+
+    public WriteBehindChatRepository(ChatRepository delegate, IngestLog log, int workers, int maxBatchSize, long maxLatencyMillis,
+                                     int maxPendingMessages, int maxRetries) {
+        this.delegate = delegate;
+        this.log = log;
+        this.maxBatchSize = maxBatchSize;
+        this.maxLatencyMillis = maxLatencyMillis;
+        this.maxPendingMessages = maxPendingMessages;
+        this.maxRetries = maxRetries;
+        this.workers = Executors.newFixedThreadPool(workers, daemonThreads("ingest-worker"));
+        this.timer = Executors.newSingleThreadScheduledExecutor(daemonThreads("ingest-timer"));
+        MetricRegistry.getDefault().gauge("chat_ingest_pending_messages", "Messages logged but not yet written",
+                pendingMessages::get);
+
+        List<IngestLog.Batch> recovered = log.recover();
+        if (!recovered.isEmpty()) {
+            logger.info("Replaying {} batches from the ingest log", recovered.size());
+            for (IngestLog.Batch batch : recovered) {
+                enqueue(batch);
+            }
+        }
+    }
+
+    public static WriteBehindChatRepository create(ChatRepository delegate, Configuration config) throws IOException {
+        IngestLog log = new IngestLog(new File(config.get(LOG_DIR_KEY, "ingest-log")),
+                config.getLong(LOG_SEGMENT_BYTES_KEY, 64 * 1024 * 1024),
+                config.getBoolean(LOG_FSYNC_KEY, true));
+        return new WriteBehindChatRepository(delegate, log,
+                config.getInt(WORKERS_KEY, 4),
+                config.getInt(MAX_BATCH_SIZE_KEY, 1000),
+                config.getLong(MAX_LATENCY_MILLIS_KEY, 50),
+                config.getInt(MAX_PENDING_MESSAGES_KEY, 100000),
+                config.getInt(MAX_RETRIES_KEY, DEFAULT_MAX_RETRIES));
+    }
+
+    private static ThreadFactory daemonThreads(String name) {
+        AtomicInteger count = new AtomicInteger();
+        return runnable -> {
+            Thread thread = new Thread(runnable, name + "-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    public void createRoom(Room room) {
+        delegate.createRoom(room);
+    }
+
+    /**
+     * @throws RejectedExecutionException when maxPendingMessages are already waiting to be written
+     */
+    public void addMessages(int chatRoomId, List<Message> messages) {
+        if (messages.isEmpty()) {
+            return;
+        }
+        if (pendingMessages.get() + messages.size() > maxPendingMessages) {
+            rejectedMessages.add(messages.size());
+            throw new RejectedExecutionException("Ingest queue is full");
+        }
+        try {
+            enqueue(log.append(chatRoomId, messages));
+        } catch (IOException e) {
+            logger.error("Failed to append messages to the ingest log", e);
+            throw new RuntimeException(e);
+        }
+    }
+
+    private void enqueue(IngestLog.Batch batch) {
+        pendingMessages.addAndGet(batch.getMessages().size());
+        RoomQueue queue = queues.computeIfAbsent(batch.getRoomId(), RoomQueue::new);
+        synchronized (queue) {
+            queue.batches.add(batch);
+            queue.size += batch.getMessages().size();
+            scheduleFlush(queue);
+        }
+    }
+
+    // called holding the queue's lock
+    private void scheduleFlush(RoomQueue queue) {
+        if (closed || queue.flushing || queue.batches.isEmpty()) {
+            return;
+        }
+        if (queue.size >= maxBatchSize) {
+            queue.flushing = true;
+            workers.execute(() -> flush(queue));
+        } else if (!queue.timerSet) {
+            queue.timerSet = true;
+            timer.schedule(() -> {
+                synchronized (queue) {
+                    queue.timerSet = false;
+                    if (!closed && !queue.flushing && !queue.batches.isEmpty()) {
+                        queue.flushing = true;
+                        workers.execute(() -> flush(queue));
+                    }
+                }
+            }, maxLatencyMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Writes up to maxBatchSize pending messages of the room (at least one logged batch) to the delegate.
+     */
+    private void flush(RoomQueue queue) {
+        List<IngestLog.Batch> batches = new ArrayList<>();
+        List<Message> messages = new ArrayList<>();
+        synchronized (queue) {
+            while (!queue.batches.isEmpty() && (messages.isEmpty() || messages.size() + queue.batches.get(0).getMessages().size() <= maxBatchSize)) {
+                IngestLog.Batch batch = queue.batches.remove(0);
+                batches.add(batch);
+                messages.addAll(batch.getMessages());
+            }
+            queue.size -= messages.size();
+        }
+
+        try {
+            delegate.addMessages(queue.roomId, messages);
+            queue.retries = 0;
+            done(batches);
+        } catch (RuntimeException e) {
+            failedWrites.increment();
+            if (isRetryable(e) && queue.retries++ < maxRetries) {
+                logger.error("Failed to write {} messages of room {}, retrying", messages.size(), queue.roomId, e);
+                retry(queue, batches);
+                return;
+            }
+            queue.retries = 0;
+            if (!isRetryable(e) && batches.size() > 1) {
+                logger.error("Failed to write {} messages of room {}, writing its {} logged batches one by one",
+                        messages.size(), queue.roomId, batches.size(), e);
+                if (!writeEach(queue, batches)) {
+                    return;
+                }
+            } else if (!deadLetter(queue, batches, e)) {
+                return;
+            }
+        }
+
+        synchronized (queue) {
+            queue.flushing = false;
+            scheduleFlush(queue);
+        }
+    }
+
+    /**
+     * Writes the batches in order, moving those that fail for good to the dead-letter file.
+     *
+     * @return false if a batch is to be retried, which was scheduled with the ones after it
+     */
+    private boolean writeEach(RoomQueue queue, List<IngestLog.Batch> batches) {
+        for (int i = 0; i < batches.size(); i++) {
+            IngestLog.Batch batch = batches.get(i);
+            try {
+                delegate.addMessages(queue.roomId, batch.getMessages());
+                done(batches.subList(i, i + 1));
+            } catch (RuntimeException e) {
+                if (isRetryable(e)) {
+                    logger.error("Failed to write {} messages of room {}, retrying", batch.getMessages().size(), queue.roomId, e);
+                    queue.retries++;
+                    retry(queue, batches.subList(i, batches.size()));
+                    return false;
+                }
+                if (!deadLetter(queue, batches.subList(i, batches.size()), batch, e)) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    private boolean deadLetter(RoomQueue queue, List<IngestLog.Batch> batches, RuntimeException failure) {
+        for (int i = 0; i < batches.size(); i++) {
+            if (!deadLetter(queue, batches.subList(i, batches.size()), batches.get(i), failure)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Moves the batch, the first of the remaining ones, to the dead-letter file. If that fails too, the remaining
+     * batches are retried.
+     */
+    private boolean deadLetter(RoomQueue queue, List<IngestLog.Batch> remaining, IngestLog.Batch batch, RuntimeException failure) {
+        try {
+            log.deadLetter(batch);
+        } catch (IOException e) {
+            logger.error("Failed to move {} messages of room {} to the dead-letter file, retrying", batch.getMessages().size(), queue.roomId, e);
+            retry(queue, remaining);
+            return false;
+        }
+        logger.error("Moved {} messages of room {} to the dead-letter file", batch.getMessages().size(), queue.roomId, failure);
+        deadLetterMessages.add(batch.getMessages().size());
+        pendingMessages.addAndGet(-batch.getMessages().size());
+        return true;
+    }
+
+    private void done(List<IngestLog.Batch> batches) {
+        for (IngestLog.Batch batch : batches) {
+            log.acknowledge(batch);
+            pendingMessages.addAndGet(-batch.getMessages().size());
+        }
+    }
+
+    /**
+     * Puts the batches back at the head of the room's queue and flushes them again after a delay.
+     */
+    private void retry(RoomQueue queue, List<IngestLog.Batch> batches) {
+        synchronized (queue) {
+            queue.batches.addAll(0, batches);
+            for (IngestLog.Batch batch : batches) {
+                queue.size += batch.getMessages().size();
+            }
+        }
+        if (!closed) {
+            timer.schedule(() -> workers.execute(() -> flush(queue)), RETRY_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Failures caused by an IOException, other than HBase's DoNotRetryIOException, may pass when tried again.
+     */
+    private static boolean isRetryable(Throwable e) {
+        for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+            if (cause instanceof DoNotRetryIOException) {
+                return false;
+            }
+            if (cause instanceof IOException) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public List<Message> getMessages(int chatRoomId, long startTime, long endTime) {
+        return delegate.getMessages(chatRoomId, startTime, endTime);
+    }
+
+    public void streamMessages(int chatRoomId, long startTime, long endTime, MessageConsumer consumer) throws IOException {
+        delegate.streamMessages(chatRoomId, startTime, endTime, consumer);
+    }
+
+    public MessagePage getMessages(int chatRoomId, long startTime, long endTime, int limit, String cursor, boolean reverse) {
+        return delegate.getMessages(chatRoomId, startTime, endTime, limit, cursor, reverse);
+    }
+
+    @Override
+    public Map<Integer, MessagePage> getMessages(List<Integer> chatRoomIds, long startTime, long endTime, int limit) {
+        return delegate.getMessages(chatRoomIds, startTime, endTime, limit);
+    }
+
+    @Override
+    public List<Message> getLatestMessages(int chatRoomId, int n) {
+        return delegate.getLatestMessages(chatRoomId, n);
+    }
+
+    public Room getRoom(int id) {
+        return delegate.getRoom(id);
+    }
+
+    @Override
+    public List<Room> getRooms(List<Integer> ids) {
+        return delegate.getRooms(ids);
+    }
+
+    public int countLongPauses(int chatRoomId, long startTime, long endTime) {
+        return delegate.countLongPauses(chatRoomId, startTime, endTime);
+    }
+
+    @Override
+    public List<Message> searchMessages(int chatRoomId, String query, long startTime, long endTime, int limit) {
+        return delegate.searchMessages(chatRoomId, query, startTime, endTime, limit);
+    }
+
+    @Override
+    public RoomActivity getActivity(int chatRoomId, long startTime, long endTime) {
+        return delegate.getActivity(chatRoomId, startTime, endTime);
+    }
+
+    /**
+     * Writes what is pending and stops the workers. Anything that could not be written stays in the log
+     * and is replayed on the next start.
+     */
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        timer.shutdownNow();
+        workers.shutdown();
+        try {
+            workers.awaitTermination(30, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        for (RoomQueue queue : queues.values()) {
+            while (!queue.batches.isEmpty()) {
+                int pending = queue.batches.size();
+                flush(queue);
+                if (queue.batches.size() >= pending) {
+                    break;
+                }
+            }
+        }
+        log.close();
+    }
+}
@@ -0,0 +1,39 @@
+package org.wayneyu.chat.live;
+
+import com.google.gson.Gson;
+import org.wayneyu.chat.model.Message;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A message with its JSON, serialized once when it is published and shared by every subscriber it is sent to.
+ */
+public class PublishedMessage {
+
+    private static final Gson gson = new Gson();
+
+    private final Message message;
+    private final String json;
+
+    public PublishedMessage(Message message) {
+        this.message = message;
+        this.json = gson.toJson(message);
+    }
+
+    public static List<PublishedMessage> of(List<Message> messages) {
+        List<PublishedMessage> published = new ArrayList<>(messages.size());
+        for (Message message : messages) {
+            published.add(new PublishedMessage(message));
+        }
+        return published;
+    }
+
+    public Message getMessage() {
+        return message;
+    }
+
+    public String getJson() {
+        return json;
+    }
+}
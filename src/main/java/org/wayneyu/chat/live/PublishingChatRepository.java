@@ -0,0 +1,84 @@
+package org.wayneyu.chat.live;
+
+import org.wayneyu.chat.db.ChatRepository;
+import org.wayneyu.chat.db.MessageConsumer;
+import org.wayneyu.chat.model.Message;
+import org.wayneyu.chat.model.MessagePage;
+import org.wayneyu.chat.model.Room;
+import org.wayneyu.chat.model.RoomActivity;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Publishes messages to the room's subscribers once the delegate has stored them, so that a subscriber catching up
+ * from the store doesn't miss messages stored before it subscribed.
+ */
+public class PublishingChatRepository implements ChatRepository {
+
+    private final ChatRepository delegate;
+    private final RoomHub hub;
+
+    public PublishingChatRepository(ChatRepository delegate, RoomHub hub) {
+        this.delegate = delegate;
+        this.hub = hub;
+    }
+
+    public void createRoom(Room room) {
+        delegate.createRoom(room);
+    }
+
+    public void addMessages(int chatRoomId, List<Message> messages) {
+        delegate.addMessages(chatRoomId, messages);
+        List<Message> sorted = new ArrayList<>(messages);
+        sorted.sort(Message.ROWKEY_ORDER);
+        hub.publish(chatRoomId, sorted);
+    }
+
+    public List<Message> getMessages(int chatRoomId, long startTime, long endTime) {
+        return delegate.getMessages(chatRoomId, startTime, endTime);
+    }
+
+    public void streamMessages(int chatRoomId, long startTime, long endTime, MessageConsumer consumer) throws IOException {
+        delegate.streamMessages(chatRoomId, startTime, endTime, consumer);
+    }
+
+    public MessagePage getMessages(int chatRoomId, long startTime, long endTime, int limit, String cursor, boolean reverse) {
+        return delegate.getMessages(chatRoomId, startTime, endTime, limit, cursor, reverse);
+    }
+
+    @Override
+    public Map<Integer, MessagePage> getMessages(List<Integer> chatRoomIds, long startTime, long endTime, int limit) {
+        return delegate.getMessages(chatRoomIds, startTime, endTime, limit);
+    }
+
+    @Override
+    public List<Message> getLatestMessages(int chatRoomId, int n) {
+        return delegate.getLatestMessages(chatRoomId, n);
+    }
+
+    public Room getRoom(int id) {
+        return delegate.getRoom(id);
+    }
+
+    @Override
+    public List<Room> getRooms(List<Integer> ids) {
+        return delegate.getRooms(ids);
+    }
+
+    public int countLongPauses(int chatRoomId, long startTime, long endTime) {
+        return delegate.countLongPauses(chatRoomId, startTime, endTime);
+    }
+
+    @Override
+    public List<Message> searchMessages(int chatRoomId, String query, long startTime, long endTime, int limit) {
+        return delegate.searchMessages(chatRoomId, query, startTime, endTime, limit);
+    }
+
+    @Override
+    public RoomActivity getActivity(int chatRoomId, long startTime, long endTime) {
+        return delegate.getActivity(chatRoomId, startTime, endTime);
+    }
+}
@@ -0,0 +1,63 @@
+package org.wayneyu.chat.live;
+
+import org.wayneyu.chat.metrics.MetricRegistry;
+import org.wayneyu.chat.model.Message;
+
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Subscribers of each room in this process. Publishing serializes the messages once and only queues them with
+ * each subscriber, closed subscribers are removed as they are met.
+ */
+public class RoomHub {
+
+    private final ConcurrentMap<Integer, Set<Subscriber>> rooms = new ConcurrentHashMap<>();
+    private final AtomicInteger subscriberCount = new AtomicInteger();
+
+    public RoomHub() {
+        MetricRegistry.getDefault().gauge("chat_live_subscribers", "Clients following rooms", subscriberCount::get);
+    }
+
+    public void subscribe(Subscriber subscriber) {
+        rooms.compute(subscriber.getRoomId(), (roomId, subscribers) -> {
+            if (subscribers == null) {
+                subscribers = new CopyOnWriteArraySet<>();
+            }
+            if (subscribers.add(subscriber)) {
+                subscriberCount.incrementAndGet();
+            }
+            return subscribers;
+        });
+    }
+
+    public void unsubscribe(Subscriber subscriber) {
+        rooms.computeIfPresent(subscriber.getRoomId(), (roomId, subscribers) -> {
+            if (subscribers.remove(subscriber)) {
+                subscriberCount.decrementAndGet();
+            }
+            return subscribers.isEmpty() ? null : subscribers;
+        });
+    }
+
+    public void publish(int roomId, List<Message> messages) {
+        Set<Subscriber> subscribers = rooms.get(roomId);
+        if (subscribers == null || messages.isEmpty()) {
+            return;
+        }
+        List<PublishedMessage> published = PublishedMessage.of(messages);
+        for (Subscriber subscriber : subscribers) {
+            if (!subscriber.offer(published)) {
+                unsubscribe(subscriber);
+            }
+        }
+    }
+
+    public int getSubscriberCount() {
+        return subscriberCount.get();
+    }
+}
@@ -0,0 +1,171 @@
+package org.wayneyu.chat.live;
+
+import org.apache.hadoop.conf.Configuration;
+import org.eclipse.jetty.websocket.api.Session;
+import org.eclipse.jetty.websocket.api.StatusCode;
+import org.eclipse.jetty.websocket.api.WriteCallback;
+import org.eclipse.jetty.websocket.api.annotations.OnWebSocketClose;
+import org.eclipse.jetty.websocket.api.annotations.OnWebSocketConnect;
+import org.eclipse.jetty.websocket.api.annotations.WebSocket;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.wayneyu.chat.db.ChatRepository;
+import org.wayneyu.chat.model.Messages;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+
+/**
+ * WebSocket following a room, /room/live?roomId=..[&since=..]. Each text frame is a {"chatRoomId": .., "messages": [...]}
+ * batch in rowkey order. With since, the stored messages from that timestamp on are sent first, on one of a bounded
+ * number of catch-up threads. Connections made before the service is ready are closed right away with
+ * TRY_AGAIN_LATER, the WebSocket upgrade doesn't pass the HTTP filters that hold back other requests.
+ */
+@WebSocket
+public class RoomSocket {
+
+    private static final Logger logger = LoggerFactory.getLogger(RoomSocket.class);
+
+    public static final String ENABLED_KEY = "chat.live.enabled";
+    public static final String MAX_PENDING_MESSAGES_KEY = "chat.live.maxPendingMessages";
+    public static final String DROP_ON_OVERFLOW_KEY = "chat.live.dropOnOverflow";
+    public static final String CATCH_UP_THREADS_KEY = "chat.live.catchUpThreads";
+
+    private final ChatRepository repository;
+    private final RoomHub hub;
+    private final BooleanSupplier ready;
+    private final int maxPending;
+    private final boolean dropOnOverflow;
+    private final int catchUpPageSize;
+    private final ExecutorService catchUps;
+    private final Map<Session, Subscriber> subscribers = new ConcurrentHashMap<>();
+
+    public RoomSocket(ChatRepository repository, RoomHub hub, BooleanSupplier ready, int maxPending, boolean dropOnOverflow,
+                      int catchUpPageSize, int catchUpThreads) {
+        this.repository = repository;
+        this.hub = hub;
+        this.ready = ready;
+        this.maxPending = maxPending;
+        this.dropOnOverflow = dropOnOverflow;
+        this.catchUpPageSize = catchUpPageSize;
+        AtomicInteger threadCount = new AtomicInteger();
+        this.catchUps = Executors.newFixedThreadPool(catchUpThreads, runnable -> {
+            Thread thread = new Thread(runnable, "live-catch-up-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public static RoomSocket create(ChatRepository repository, RoomHub hub, BooleanSupplier ready, Configuration config, int catchUpPageSize) {
+        return new RoomSocket(repository, hub, ready,
+                config.getInt(MAX_PENDING_MESSAGES_KEY, 1000),
+                config.getBoolean(DROP_ON_OVERFLOW_KEY, false),
+                catchUpPageSize,
+                config.getInt(CATCH_UP_THREADS_KEY, 4));
+    }
+
+    @OnWebSocketConnect
+    public void connected(Session session) {
+        if (!ready.getAsBoolean()) {
+            session.close(StatusCode.TRY_AGAIN_LATER, "Starting");
+            return;
+        }
+        int roomId;
+        Long since;
+        try {
+            roomId = Integer.parseInt(parameter(session, "roomId"));
+            String sinceParam = parameter(session, "since");
+            since = sinceParam != null ? Long.parseLong(sinceParam) : null;
+        } catch (NumberFormatException e) {
+            session.close(StatusCode.BAD_DATA, "roomId is missing or not a number, or since is not a number");
+            return;
+        }
+        if (repository.getRoom(roomId) == null) {
+            session.close(StatusCode.BAD_DATA, "Room not found");
+            return;
+        }
+        Subscriber subscriber = new Subscriber(roomId, new SessionSink(session), maxPending, dropOnOverflow);
+        subscribers.put(session, subscriber);
+        hub.subscribe(subscriber);
+        if (since == null) {
+            subscriber.goLive();
+            return;
+        }
+        try {
+            catchUps.execute(() -> subscriber.catchUp(repository, since, catchUpPageSize));
+        } catch (RejectedExecutionException e) {
+            subscriber.close("Shutting down");
+        }
+    }
+
+    @OnWebSocketClose
+    public void closed(Session session, int statusCode, String reason) {
+        Subscriber subscriber = subscribers.remove(session);
+        if (subscriber != null) {
+            hub.unsubscribe(subscriber);
+            subscriber.close(reason);
+        }
+    }
+
+    /**
+     * The JSON of {@link Messages}, from the messages as they were serialized when published.
+     */
+    private static String toFrame(int roomId, List<PublishedMessage> messages) {
+        StringBuilder frame = new StringBuilder("{\"chatRoomId\":").append(roomId).append(",\"messages\":[");
+        for (int i = 0; i < messages.size(); i++) {
+            if (i > 0) {
+                frame.append(',');
+            }
+            frame.append(messages.get(i).getJson());
+        }
+        return frame.append("]}").toString();
+    }
+
+    private static String parameter(Session session, String name) {
+        List<String> values = session.getUpgradeRequest().getParameterMap().get(name);
+        return values == null || values.isEmpty() ? null : values.get(0);
+    }
+
+    private class SessionSink implements Subscriber.Sink {
+
+        private final Session session;
+
+        private SessionSink(Session session) {
+            this.session = session;
+        }
+
+        @Override
+        public void send(int roomId, List<PublishedMessage> messages, Consumer<Throwable> done) {
+            if (!session.isOpen()) {
+                done.accept(new IllegalStateException("Session closed"));
+                return;
+            }
+            session.getRemote().sendString(toFrame(roomId, messages), new WriteCallback() {
+                @Override
+                public void writeFailed(Throwable x) {
+                    logger.debug("Failed to send to a subscriber of room {}", roomId, x);
+                    done.accept(x);
+                }
+
+                @Override
+                public void writeSuccess() {
+                    done.accept(null);
+                }
+            });
+        }
+
+        @Override
+        public void close(String reason) {
+            if (session.isOpen()) {
+                session.close(StatusCode.POLICY_VIOLATION, reason);
+            }
+        }
+    }
+}
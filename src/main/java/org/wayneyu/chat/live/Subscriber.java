@@ -0,0 +1,196 @@
+package org.wayneyu.chat.live;
+
+import org.wayneyu.chat.db.ChatRepository;
+import org.wayneyu.chat.metrics.Counter;
+import org.wayneyu.chat.metrics.MetricRegistry;
+import org.wayneyu.chat.model.Message;
+import org.wayneyu.chat.model.MessagePage;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.function.Consumer;
+
+/**
+ * A client following a room. Messages published to the room are queued and sent a batch at a time, each batch once
+ * the previous send completed, so a slow client never holds up publishers. A queue that would grow beyond maxPending
+ * closes the subscriber, or with dropOnOverflow drops its oldest messages. Either way the client resubscribes from
+ * the timestamp of the last message it got.
+ *
+ * A subscriber resuming from a timestamp is sent the stored messages from there first, see {@link #catchUp}, and
+ * messages published meanwhile wait in the queue. Delivery is at least once: a message stored while catching up can
+ * be sent twice, clients drop repeats by timestamp and index.
+ */
+public class Subscriber {
+
+    private static final Counter DROPPED = MetricRegistry.getDefault().counter("chat_live_dropped_messages_total",
+            "Messages dropped for subscribers that fell behind");
+    private static final Counter OVERFLOWS = MetricRegistry.getDefault().counter("chat_live_overflow_closes_total",
+            "Subscribers closed for falling behind");
+
+    /**
+     * Transport to the client.
+     */
+    public interface Sink {
+
+        /**
+         * Sends without blocking and calls done once sent, with null, or with the failure.
+         */
+        void send(int roomId, List<PublishedMessage> messages, Consumer<Throwable> done);
+
+        void close(String reason);
+    }
+
+    private final int roomId;
+    private final Sink sink;
+    private final int maxPending;
+    private final boolean dropOnOverflow;
+    private final Deque<PublishedMessage> pending = new ArrayDeque<>();
+    private boolean live;
+    private boolean sending;
+    private boolean closed;
+    private long dropped;
+
+    public Subscriber(int roomId, Sink sink, int maxPending, boolean dropOnOverflow) {
+        this.roomId = roomId;
+        this.sink = sink;
+        this.maxPending = maxPending;
+        this.dropOnOverflow = dropOnOverflow;
+    }
+
+    public int getRoomId() {
+        return roomId;
+    }
+
+    /**
+     * Queues the messages.
+     *
+     * @return false if the subscriber is closed
+     */
+    synchronized boolean offer(List<PublishedMessage> messages) {
+        if (closed) {
+            return false;
+        }
+        int overflow = pending.size() + messages.size() - maxPending;
+        if (overflow > 0) {
+            if (!dropOnOverflow) {
+                OVERFLOWS.increment();
+                close("Too far behind, resubscribe from the last message received");
+                return false;
+            }
+            dropped += overflow;
+            DROPPED.add(overflow);
+            int fromPending = Math.min(overflow, pending.size());
+            for (int i = 0; i < fromPending; i++) {
+                pending.removeFirst();
+            }
+            messages = messages.subList(overflow - fromPending, messages.size());
+        }
+        pending.addAll(messages);
+        sendNext();
+        return true;
+    }
+
+    /**
+     * Sends the stored messages of the room from the timestamp on, in pages of pageSize, waiting for each page to be
+     * sent, then starts sending published messages. Blocks, so it runs on a thread of its own.
+     */
+    public void catchUp(ChatRepository repository, long since, int pageSize) {
+        String cursor = null;
+        try {
+            do {
+                MessagePage page = repository.getMessages(roomId, since, Long.MAX_VALUE, pageSize, cursor, false);
+                if (!page.getMessages().isEmpty()) {
+                    CompletableFuture<Void> sent = new CompletableFuture<>();
+                    sink.send(roomId, PublishedMessage.of(page.getMessages()), failure -> {
+                        if (failure == null) {
+                            sent.complete(null);
+                        } else {
+                            sent.completeExceptionally(failure);
+                        }
+                    });
+                    sent.get();
+                    removePending(page.getMessages());
+                }
+                cursor = page.getNextCursor();
+            } while (cursor != null && !isClosed());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            close("Interrupted");
+            return;
+        } catch (ExecutionException | RuntimeException e) {
+            close("Failed to catch up");
+            return;
+        }
+        goLive();
+    }
+
+    /**
+     * Starts sending published messages without catching up.
+     */
+    public synchronized void goLive() {
+        live = true;
+        sendNext();
+    }
+
+    /**
+     * Published messages already sent while catching up.
+     */
+    private synchronized void removePending(List<Message> sent) {
+        if (pending.isEmpty()) {
+            return;
+        }
+        TreeSet<Message> sentKeys = new TreeSet<>(Message.ROWKEY_ORDER);
+        sentKeys.addAll(sent);
+        Iterator<PublishedMessage> it = pending.iterator();
+        while (it.hasNext()) {
+            if (sentKeys.contains(it.next().getMessage())) {
+                it.remove();
+            }
+        }
+    }
+
+    private void sendNext() {
+        if (!live || sending || closed || pending.isEmpty()) {
+            return;
+        }
+        List<PublishedMessage> batch = new ArrayList<>(pending);
+        pending.clear();
+        sending = true;
+        sink.send(roomId, batch, this::sent);
+    }
+
+    private synchronized void sent(Throwable failure) {
+        sending = false;
+        if (failure != null) {
+            close("Failed to send");
+        } else {
+            sendNext();
+        }
+    }
+
+    public synchronized void close(String reason) {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        pending.clear();
+        sink.close(reason);
+    }
+
+    public synchronized boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Messages dropped on overflow.
+     */
+    public synchronized long getDropped() {
+        return dropped;
+    }
+}
@@ -0,0 +1,81 @@
+package org.wayneyu.chat.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Distribution of non-negative values in buckets bounded by powers of two, 2^minExponent up to 2^maxExponent, and
+ * one for larger values. A value is counted in the first bucket whose bound it doesn't exceed, found with a single
+ * bit count, so recording costs about as much as incrementing two counters. Bounds are off by at most a factor of two,
+ * which is enough to tell a 2 ms query from a 40 ms one.
+ *
+ * Values are recorded in the caller's unit, e.g. nanoseconds, and multiplied by scale when exposed, e.g. 1e-9 for
+ * seconds as Prometheus expects.
+ */
+public class Histogram {
+
+    private final int minExponent;
+    private final double scale;
+    private final LongAdder[] buckets;
+    private final LongAdder sum = new LongAdder();
+
+    public Histogram(int minExponent, int maxExponent, double scale) {
+        if (minExponent < 0 || maxExponent < minExponent || maxExponent > 62) {
+            throw new IllegalArgumentException(String.format("Invalid bucket exponents %d to %d", minExponent, maxExponent));
+        }
+        this.minExponent = minExponent;
+        this.scale = scale;
+        this.buckets = new LongAdder[maxExponent - minExponent + 2];
+        for (int i = 0; i < buckets.length; i++) {
+            buckets[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * Histogram of durations recorded in nanoseconds, exposed in seconds, with bounds from 16 microseconds to 34
+     * seconds.
+     */
+    public static Histogram nanos() {
+        return new Histogram(14, 35, 1e-9);
+    }
+
+    /**
+     * Histogram of sizes, e.g. rows or messages, with bounds from 1 to about a million.
+     */
+    public static Histogram sizes() {
+        return new Histogram(0, 20, 1);
+    }
+
+    public void record(long value) {
+        // ceil(log2(value))
+        int exponent = value <= 1 ? 0 : 64 - Long.numberOfLeadingZeros(value - 1);
+        int bucket = Math.min(Math.max(0, exponent - minExponent), buckets.length - 1);
+        buckets[bucket].increment();
+        sum.add(value);
+    }
+
+    public void recordNanosSince(long startNanos) {
+        record(System.nanoTime() - startNanos);
+    }
+
+    int getBucketCount() {
+        return buckets.length;
+    }
+
+    /**
+     * Upper bound of the bucket in exposed units, infinite for the last one.
+     */
+    double getUpperBound(int bucket) {
+        return bucket < buckets.length - 1 ? (double) (1L << (minExponent + bucket)) * scale : Double.POSITIVE_INFINITY;
+    }
+
+    long getBucket(int bucket) {
+        return buckets[bucket].sum();
+    }
+
+    /**
+     * Sum of the recorded values in exposed units.
+     */
+    double getSum() {
+        return sum.sum() * scale;
+    }
+}
@@ -0,0 +1,150 @@
+package org.wayneyu.chat.metrics;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.LongSupplier;
+
+/**
+ * Named counters, histograms and gauges, written in the Prometheus text format. Metrics are looked up when a
+ * component is created and kept in fields, so recording doesn't touch the registry.
+ *
+ * Labels are given as name, value pairs. Their values must have few distinct values, e.g. routes or operations,
+ * never room ids.
+ */
+public class MetricRegistry {
+
+    private static final MetricRegistry DEFAULT = new MetricRegistry();
+
+    private enum Type {
+        COUNTER, GAUGE, HISTOGRAM;
+
+        private String text() {
+            return name().toLowerCase();
+        }
+    }
+
+    private static class Family {
+        private final Type type;
+        private final String help;
+        private final ConcurrentMap<String, Object> series = new ConcurrentHashMap<>();
+
+        private Family(Type type, String help) {
+            this.type = type;
+            this.help = help;
+        }
+    }
+
+    private final ConcurrentMap<String, Family> families = new ConcurrentHashMap<>();
+
+    /**
+     * Registry of the service, exposed on GET /metrics.
+     */
+    public static MetricRegistry getDefault() {
+        return DEFAULT;
+    }
+
+    public Counter counter(String name, String help, String... labels) {
+        return (Counter) family(name, Type.COUNTER, help).series.computeIfAbsent(labelText(labels), k -> new Counter());
+    }
+
+    /**
+     * Counter read from the supplier when written, for counts kept elsewhere. Replaces an earlier supplier with the
+     * same labels.
+     */
+    public void counter(String name, String help, LongSupplier value, String... labels) {
+        family(name, Type.COUNTER, help).series.put(labelText(labels), value);
+    }
+
+    /**
+     * Gauge read from the supplier when written. Replaces an earlier supplier with the same labels.
+     */
+    public void gauge(String name, String help, LongSupplier value, String... labels) {
+        family(name, Type.GAUGE, help).series.put(labelText(labels), value);
+    }
+
+    /**
+     * Histogram of durations in nanoseconds, see {@link Histogram#nanos()}. The name should end in _seconds.
+     */
+    public Histogram latency(String name, String help, String... labels) {
+        return (Histogram) family(name, Type.HISTOGRAM, help).series.computeIfAbsent(labelText(labels), k -> Histogram.nanos());
+    }
+
+    /**
+     * Histogram of sizes, see {@link Histogram#sizes()}.
+     */
+    public Histogram sizes(String name, String help, String... labels) {
+        return (Histogram) family(name, Type.HISTOGRAM, help).series.computeIfAbsent(labelText(labels), k -> Histogram.sizes());
+    }
+
+    private Family family(String name, Type type, String help) {
+        Family family = families.computeIfAbsent(name, k -> new Family(type, help));
+        if (family.type != type) {
+            throw new IllegalArgumentException(String.format("Metric %s is a %s, not a %s", name, family.type.text(), type.text()));
+        }
+        return family;
+    }
+
+    /**
+     * Writes all metrics in the Prometheus text exposition format, version 0.0.4.
+     */
+    public void writeTo(Writer out) throws IOException {
+        for (Map.Entry<String, Family> entry : new TreeMap<>(families).entrySet()) {
+            String name = entry.getKey();
+            Family family = entry.getValue();
+            out.write("# HELP " + name + " " + family.help.replace("\\", "\\\\").replace("\n", "\\n") + "\n");
+            out.write("# TYPE " + name + " " + family.type.text() + "\n");
+            for (Map.Entry<String, Object> series : new TreeMap<>(family.series).entrySet()) {
+                String labels = series.getKey();
+                Object metric = series.getValue();
+                if (metric instanceof Counter) {
+                    writeSample(out, name, labels, ((Counter) metric).get());
+                } else if (metric instanceof LongSupplier) {
+                    writeSample(out, name, labels, ((LongSupplier) metric).getAsLong());
+                } else {
+                    writeHistogram(out, name, labels, (Histogram) metric);
+                }
+            }
+        }
+        out.flush();
+    }
+
+    private static void writeHistogram(Writer out, String name, String labels, Histogram histogram) throws IOException {
+        long cumulative = 0;
+        for (int i = 0; i < histogram.getBucketCount(); i++) {
+            cumulative += histogram.getBucket(i);
+            double bound = histogram.getUpperBound(i);
+            String le = "le=\"" + (Double.isInfinite(bound) ? "+Inf" : Double.toString(bound)) + "\"";
+            out.write(name + "_bucket{" + (labels.isEmpty() ? le : labels + "," + le) + "} " + cumulative + "\n");
+        }
+        out.write(name + "_sum" + braces(labels) + " " + histogram.getSum() + "\n");
+        writeSample(out, name + "_count", labels, cumulative);
+    }
+
+    private static void writeSample(Writer out, String name, String labels, long value) throws IOException {
+        out.write(name + braces(labels) + " " + value + "\n");
+    }
+
+    private static String braces(String labels) {
+        return labels.isEmpty() ? "" : "{" + labels + "}";
+    }
+
+    private static String labelText(String... labels) {
+        if (labels.length % 2 != 0) {
+            throw new IllegalArgumentException("Labels must be name, value pairs");
+        }
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < labels.length; i += 2) {
+            if (i > 0) {
+                text.append(',');
+            }
+            text.append(labels[i]).append("=\"")
+                    .append(labels[i + 1].replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n"))
+                    .append('"');
+        }
+        return text.toString();
+    }
+}
@@ -0,0 +1,38 @@
+package org.wayneyu.chat.model;
+
+public class AuthorActivity {
+
+    private String author;
+    private long messageCount;
+    private long firstActivity;
+    private long lastActivity;
+
+    public AuthorActivity(String author, long messageCount, long firstActivity, long lastActivity) {
+        this.author = author;
+        this.messageCount = messageCount;
+        this.firstActivity = firstActivity;
+        this.lastActivity = lastActivity;
+    }
+
+    public String getAuthor() {
+        return author;
+    }
+
+    public long getMessageCount() {
+        return messageCount;
+    }
+
+    /**
+     * Timestamp of the author's first message in the range.
+     */
+    public long getFirstActivity() {
+        return firstActivity;
+    }
+
+    /**
+     * Timestamp of the author's last message in the range.
+     */
+    public long getLastActivity() {
+        return lastActivity;
+    }
+}
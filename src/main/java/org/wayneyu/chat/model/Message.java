@@ -1,9 +1,16 @@
 package org.wayneyu.chat.model;
 
+import java.util.Comparator;
 import java.util.Objects;
 
 public class Message {
 
+    /**
+     * The order of message rowkeys within a room, by timestamp and then index.
+     */
+    public static final Comparator<Message> ROWKEY_ORDER =
+            Comparator.comparingLong(Message::getTimestamp).thenComparingInt(Message::getIndex);
+
     private int index;
     private long timestamp;
     private String author;
@@ -0,0 +1,25 @@
+package org.wayneyu.chat.model;
+
+import java.util.List;
+
+public class MessagePage {
+
+    private List<Message> messages;
+    private String nextCursor;
+
+    public MessagePage(List<Message> messages, String nextCursor) {
+        this.messages = messages;
+        this.nextCursor = nextCursor;
+    }
+
+    public List<Message> getMessages() {
+        return messages;
+    }
+
+    /**
+     * Cursor of the page after this one, null on the last page.
+     */
+    public String getNextCursor() {
+        return nextCursor;
+    }
+}
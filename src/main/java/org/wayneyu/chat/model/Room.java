@@ -22,6 +22,7 @@ public class Room {
     public String getName(){return name;}
     public long getCreated(){return created;}
     public List<String> getParticipants(){return participants;}
+    public RoomMeta getMeta(){return meta;}
 
     public void setMeta(RoomMeta meta) {
         this.meta = meta;
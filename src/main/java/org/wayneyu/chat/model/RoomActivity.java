@@ -0,0 +1,60 @@
+package org.wayneyu.chat.model;
+
+import java.util.List;
+import java.util.SortedMap;
+
+public class RoomActivity {
+
+    private int chatRoomId;
+    private long startTime;
+    private long endTime;
+    private long messageCount;
+    private long bucketMillis;
+    private SortedMap<Long, Long> bucketMessageCounts;
+    private List<AuthorActivity> authors;
+
+    public RoomActivity(int chatRoomId, long startTime, long endTime, long messageCount, long bucketMillis,
+                        SortedMap<Long, Long> bucketMessageCounts, List<AuthorActivity> authors) {
+        this.chatRoomId = chatRoomId;
+        this.startTime = startTime;
+        this.endTime = endTime;
+        this.messageCount = messageCount;
+        this.bucketMillis = bucketMillis;
+        this.bucketMessageCounts = bucketMessageCounts;
+        this.authors = authors;
+    }
+
+    public int getChatRoomId() {
+        return chatRoomId;
+    }
+
+    public long getStartTime() {
+        return startTime;
+    }
+
+    public long getEndTime() {
+        return endTime;
+    }
+
+    public long getMessageCount() {
+        return messageCount;
+    }
+
+    public long getBucketMillis() {
+        return bucketMillis;
+    }
+
+    /**
+     * Messages per time bucket, keyed by bucket start. Buckets cut by the range only count the messages in the range.
+     */
+    public SortedMap<Long, Long> getBucketMessageCounts() {
+        return bucketMessageCounts;
+    }
+
+    /**
+     * Authors by message count, most active first.
+     */
+    public List<AuthorActivity> getAuthors() {
+        return authors;
+    }
+}
@@ -0,0 +1,68 @@
+package org.wayneyu.chat.tools;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.wayneyu.chat.archive.MessageArchive;
+import org.wayneyu.chat.archive.Segment;
+import org.wayneyu.chat.db.HBaseRepositoryImpl;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Moves messages older than olderThanMillis out of the MESSAGE table into segments of the archive in
+ * chat.archive.dir. Archives every room unless room ids are given.
+ *
+ * The rows of archived messages are deleted {@value #DELETE_DELAY_MILLIS_KEY} after all segments were written,
+ * which must be longer than {@value MessageArchive#REFRESH_MILLIS_KEY}, so that the service reads them from the
+ * segments by then.
+ *
+ * Usage: ArchiveMessages roomTable messageTable olderThanMillis [roomId ...]
+ */
+public class ArchiveMessages {
+
+    private static final Logger logger = LoggerFactory.getLogger(ArchiveMessages.class);
+
+    public static final String DELETE_DELAY_MILLIS_KEY = "chat.archive.deleteDelayMillis";
+    public static final long DEFAULT_DELETE_DELAY_MILLIS = 60 * 1000;
+
+    public static void main(String[] args) throws InterruptedException {
+        if (args.length < 3) {
+            System.err.println("Usage: ArchiveMessages roomTable messageTable olderThanMillis [roomId ...]");
+            System.exit(1);
+        }
+        HBaseRepositoryImpl repo = new HBaseRepositoryImpl(args[0], args[1]);
+        repo.start();
+        long before = System.currentTimeMillis() - Long.parseLong(args[2]);
+        long deleteDelay = repo.getConfiguration().getLong(DELETE_DELAY_MILLIS_KEY, DEFAULT_DELETE_DELAY_MILLIS);
+        long refresh = repo.getConfiguration().getLong(MessageArchive.REFRESH_MILLIS_KEY, MessageArchive.DEFAULT_REFRESH_MILLIS);
+        if (deleteDelay <= refresh) {
+            System.err.println(String.format("%s must be longer than %s", DELETE_DELAY_MILLIS_KEY, MessageArchive.REFRESH_MILLIS_KEY));
+            System.exit(1);
+        }
+
+        List<Integer> roomIds = new ArrayList<>();
+        for (int i = 3; i < args.length; i++) {
+            roomIds.add(Integer.parseInt(args[i]));
+        }
+        if (roomIds.isEmpty()) {
+            roomIds = repo.getRoomIds();
+        }
+
+        List<Segment> segments = new ArrayList<>();
+        for (int roomId : roomIds) {
+            Segment segment = repo.archiveMessages(roomId, before);
+            if (segment != null) {
+                segments.add(segment);
+            }
+        }
+        logger.info("Archived messages before {} of {} rooms, deleting their rows in {} ms", before, segments.size(), deleteDelay);
+
+        Thread.sleep(deleteDelay);
+        for (Segment segment : segments) {
+            repo.deleteArchivedMessages(segment);
+            logger.info("Deleted {} archived rows of room {}", segment.getMessageCount(), segment.getRoomId());
+        }
+        logger.info("Deleted archived rows of {} rooms", segments.size());
+    }
+}
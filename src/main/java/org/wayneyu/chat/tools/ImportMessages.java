@@ -0,0 +1,332 @@
+package org.wayneyu.chat.tools;
+
+import org.apache.hadoop.conf.Configuration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.wayneyu.chat.db.HBaseRepositoryImpl;
+import org.wayneyu.chat.hbase.HBaseService;
+import org.wayneyu.chat.ingest.MessagesReader;
+import org.wayneyu.chat.model.Message;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BinaryOperator;
+
+/**
+ * Backfills messages of existing rooms from dump files, without the per batch room meta updates of PUT /messages.
+ * Files ending in .json hold one PUT /messages body each, any other file is NDJSON with a message and its
+ * chatRoomId per line, see {@link MessagesReader#readLines}.
+ *
+ * NDJSON files are memory-mapped and split at line ends into ranges that {@value #THREADS_KEY} threads read in
+ * parallel; .json files are read by a thread each. Every thread groups the messages it reads by room and writes
+ * batches of {@value #BATCH_SIZE_KEY} with {@link HBaseRepositoryImpl#importMessages} through mutators buffering
+ * {@value #WRITE_BUFFER_SIZE_KEY} bytes. Once all files are read, each room's meta, meta:pause and pause rollup
+ * are brought up to date once with {@link HBaseRepositoryImpl#finishImport}. Messages of rooms that do not exist
+ * are skipped.
+ *
+ * Files or ranges that fail to import are logged and the others are finished regardless. Importing them again
+ * rewrites the same rows, but counts the messages imported the first time twice in the room stats.
+ *
+ * Usage: ImportMessages roomTable messageTable file ...
+ */
+public class ImportMessages {
+
+    private static final Logger logger = LoggerFactory.getLogger(ImportMessages.class);
+
+    public static final String THREADS_KEY = "chat.import.threads";
+    public static final String BATCH_SIZE_KEY = "chat.import.batchSize";
+    public static final int DEFAULT_BATCH_SIZE = 1000;
+    public static final String WRITE_BUFFER_SIZE_KEY = "chat.import.writeBufferSize";
+    public static final long DEFAULT_WRITE_BUFFER_SIZE = 64 * 1024 * 1024;
+
+    private static final long RANGE_BYTES = 64 * 1024 * 1024;
+    private static final long PROGRESS_INTERVAL_MILLIS = 10 * 1000;
+
+    private final HBaseRepositoryImpl repo;
+    private final int batchSize;
+    private final ConcurrentMap<Integer, Boolean> knownRooms = new ConcurrentHashMap<>();
+    private final ConcurrentMap<Integer, Message> lastMessages = new ConcurrentHashMap<>();
+    private final LongAdder read = new LongAdder();
+    private final LongAdder imported = new LongAdder();
+    private final LongAdder skipped = new LongAdder();
+    private final LongAdder bytesRead = new LongAdder();
+    private final LongAdder finished = new LongAdder();
+    private volatile long totalBytes;
+
+    public ImportMessages(HBaseRepositoryImpl repo, int batchSize) {
+        this.repo = repo;
+        this.batchSize = batchSize;
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        if (args.length < 3) {
+            System.err.println("Usage: ImportMessages roomTable messageTable file ...");
+            System.exit(1);
+        }
+        HBaseRepositoryImpl repo = new HBaseRepositoryImpl(args[0], args[1]);
+        repo.start();
+        Configuration config = repo.getConfiguration();
+        // read when the first write creates the mutators
+        config.setLong(HBaseService.MUTATOR_WRITE_BUFFER_SIZE_KEY, config.getLong(WRITE_BUFFER_SIZE_KEY, DEFAULT_WRITE_BUFFER_SIZE));
+        ImportMessages importer = new ImportMessages(repo, config.getInt(BATCH_SIZE_KEY, DEFAULT_BATCH_SIZE));
+
+        List<Path> files = new ArrayList<>();
+        for (int i = 2; i < args.length; i++) {
+            files.add(Paths.get(args[i]));
+        }
+
+        long start = System.nanoTime();
+        ExecutorService workers = Executors.newFixedThreadPool(config.getInt(THREADS_KEY, Runtime.getRuntime().availableProcessors()));
+        ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "import-progress");
+            thread.setDaemon(true);
+            return thread;
+        });
+        reporter.scheduleAtFixedRate(() -> importer.report(start), PROGRESS_INTERVAL_MILLIS, PROGRESS_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+        List<String> failed;
+        try {
+            failed = importer.importFiles(files, workers);
+            failed.addAll(importer.finishRooms(workers));
+        } finally {
+            workers.shutdown();
+            reporter.shutdown();
+        }
+        importer.report(start);
+        if (!failed.isEmpty()) {
+            logger.error("Failed to import {}", failed);
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Reads and writes the messages of the files.
+     *
+     * @return the files or ranges that failed
+     */
+    public List<String> importFiles(List<Path> files, ExecutorService workers) throws IOException, InterruptedException {
+        Map<String, Future<?>> tasks = new LinkedHashMap<>();
+        List<FileChannel> channels = new ArrayList<>();
+        try {
+            for (Path file : files) {
+                totalBytes += Files.size(file);
+                if (file.toString().endsWith(".json")) {
+                    tasks.put(file.toString(), workers.submit(task(() -> importMessagesFile(file))));
+                } else {
+                    FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+                    channels.add(channel);
+                    for (long[] range : splitLines(channel, RANGE_BYTES)) {
+                        tasks.put(String.format("%s bytes %d to %d", file, range[0], range[1]),
+                                workers.submit(task(() -> importLines(channel, range[0], range[1]))));
+                    }
+                }
+            }
+            return awaitAll(tasks);
+        } finally {
+            for (FileChannel channel : channels) {
+                channel.close();
+            }
+        }
+    }
+
+    /**
+     * Sends the imported rows and finishes every room imported into.
+     *
+     * @return the rooms that failed
+     */
+    public List<String> finishRooms(ExecutorService workers) throws InterruptedException {
+        repo.flushImportedMessages();
+        logger.info("Imported {} messages, finishing {} rooms", imported.sum(), lastMessages.size());
+        Map<String, Future<?>> tasks = new LinkedHashMap<>();
+        for (Map.Entry<Integer, Message> room : lastMessages.entrySet()) {
+            tasks.put("room " + room.getKey(), workers.submit(task(() -> {
+                repo.finishImport(room.getKey(), room.getValue());
+                finished.increment();
+            })));
+        }
+        return awaitAll(tasks);
+    }
+
+    private interface Task {
+        void run() throws IOException;
+    }
+
+    private static Callable<Void> task(Task task) {
+        return () -> {
+            task.run();
+            return null;
+        };
+    }
+
+    private static List<String> awaitAll(Map<String, Future<?>> tasks) throws InterruptedException {
+        List<String> failed = new ArrayList<>();
+        for (Map.Entry<String, Future<?>> task : tasks.entrySet()) {
+            try {
+                task.getValue().get();
+            } catch (ExecutionException e) {
+                logger.error("Failed to import {}", task.getKey(), e.getCause());
+                failed.add(task.getKey());
+            }
+        }
+        return failed;
+    }
+
+    private void importLines(FileChannel channel, long start, long end) throws IOException {
+        ByteBuffer lines = channel.map(FileChannel.MapMode.READ_ONLY, start, end - start);
+        Batches batches = new Batches();
+        MessagesReader.readLines(new InputStreamReader(new BufferInputStream(lines), StandardCharsets.UTF_8), batches);
+        batches.writeAll();
+        bytesRead.add(end - start);
+    }
+
+    private void importMessagesFile(Path file) throws IOException {
+        Batches batches = new Batches();
+        try (Reader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            MessagesReader.readMessages(reader, batches, batchSize);
+        }
+        batches.writeAll();
+        bytesRead.add(Files.size(file));
+    }
+
+    /**
+     * Ranges of at most rangeBytes, extended to the end of their last line, that together cover the file.
+     */
+    private static List<long[]> splitLines(FileChannel channel, long rangeBytes) throws IOException {
+        List<long[]> ranges = new ArrayList<>();
+        long size = channel.size();
+        ByteBuffer probe = ByteBuffer.allocate(8192);
+        long start = 0;
+        while (start < size) {
+            long end = start + rangeBytes < size ? nextLineStart(channel, start + rangeBytes - 1, probe) : size;
+            ranges.add(new long[]{start, end});
+            start = end;
+        }
+        return ranges;
+    }
+
+    /**
+     * Position after the first line end at or after position, the end of the file if there is none.
+     */
+    private static long nextLineStart(FileChannel channel, long position, ByteBuffer probe) throws IOException {
+        while (true) {
+            probe.clear();
+            int length = channel.read(probe, position);
+            if (length < 0) {
+                return channel.size();
+            }
+            for (int i = 0; i < length; i++) {
+                if (probe.get(i) == '\n') {
+                    return position + i + 1;
+                }
+            }
+            position += length;
+        }
+    }
+
+    private boolean isKnownRoom(int roomId) {
+        Boolean known = knownRooms.get(roomId);
+        if (known == null) {
+            known = repo.getRoom(roomId) != null;
+            if (knownRooms.putIfAbsent(roomId, known) == null && !known) {
+                logger.warn("Skipping the messages of room {}, it does not exist", roomId);
+            }
+        }
+        return known;
+    }
+
+    private void write(int roomId, List<Message> batch) {
+        repo.importMessages(roomId, batch);
+        lastMessages.merge(roomId, Collections.max(batch, Message.ROWKEY_ORDER), BinaryOperator.maxBy(Message.ROWKEY_ORDER));
+        imported.add(batch.size());
+    }
+
+    private void report(long startNanos) {
+        double seconds = Math.max(1, System.nanoTime() - startNanos) / 1e9;
+        long messages = imported.sum();
+        long bytes = bytesRead.sum();
+        logger.info(String.format("Read %d messages, %d of %d MB; imported %d messages (%.0f/s, %.1f MB/s); skipped %d; finished %d of %d rooms",
+                read.sum(), bytes >> 20, totalBytes >> 20, messages, messages / seconds, bytes / seconds / (1 << 20),
+                skipped.sum(), finished.sum(), lastMessages.size()));
+    }
+
+    /**
+     * The messages one task read, grouped by room until a room has a batch.
+     */
+    private class Batches implements MessagesReader.BatchConsumer {
+
+        private final Map<Integer, List<Message>> batches = new HashMap<>();
+
+        @Override
+        public void accept(int roomId, List<Message> messages) {
+            read.add(messages.size());
+            if (!isKnownRoom(roomId)) {
+                skipped.add(messages.size());
+                return;
+            }
+            List<Message> batch = batches.computeIfAbsent(roomId, k -> new ArrayList<>());
+            batch.addAll(messages);
+            if (batch.size() >= batchSize) {
+                batches.remove(roomId);
+                write(roomId, batch);
+            }
+        }
+
+        private void writeAll() {
+            for (Map.Entry<Integer, List<Message>> batch : batches.entrySet()) {
+                write(batch.getKey(), batch.getValue());
+            }
+            batches.clear();
+        }
+    }
+
+    /**
+     * Reads a mapped range without copying it to the heap first.
+     */
+    private static class BufferInputStream extends InputStream {
+
+        private final ByteBuffer buffer;
+
+        private BufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) {
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            int count = Math.min(length, buffer.remaining());
+            buffer.get(bytes, offset, count);
+            return count;
+        }
+    }
+}
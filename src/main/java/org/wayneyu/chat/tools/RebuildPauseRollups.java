@@ -0,0 +1,43 @@
+package org.wayneyu.chat.tools;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.wayneyu.chat.db.HBaseRepositoryImpl;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Recomputes meta:pause and the pause rollup rows for existing messages, e.g. after a
+ * {@link RowkeyMigration} or when the rollup bucket size changes. Rebuilds every room unless
+ * room ids are given.
+ *
+ * Usage: RebuildPauseRollups roomTable messageTable [roomId ...]
+ */
+public class RebuildPauseRollups {
+
+    private static final Logger logger = LoggerFactory.getLogger(RebuildPauseRollups.class);
+
+    public static void main(String[] args) {
+        if (args.length < 2) {
+            System.err.println("Usage: RebuildPauseRollups roomTable messageTable [roomId ...]");
+            System.exit(1);
+        }
+        HBaseRepositoryImpl repo = new HBaseRepositoryImpl(args[0], args[1]);
+        repo.start();
+
+        List<Integer> roomIds = new ArrayList<>();
+        for (int i = 2; i < args.length; i++) {
+            roomIds.add(Integer.parseInt(args[i]));
+        }
+        if (roomIds.isEmpty()) {
+            roomIds = repo.getRoomIds();
+        }
+
+        for (int roomId : roomIds) {
+            repo.rebuildPauseRollups(roomId);
+            logger.info("Rebuilt pause rollups of room {}", roomId);
+        }
+        logger.info("Rebuilt pause rollups of {} rooms", roomIds.size());
+    }
+}
@@ -0,0 +1,42 @@
+package org.wayneyu.chat.tools;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.wayneyu.chat.db.HBaseRepositoryImpl;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Indexes the text of existing messages for search, e.g. messages added before the index existed. Indexes every
+ * room unless room ids are given.
+ *
+ * Usage: RebuildSearchIndex roomTable messageTable [roomId ...]
+ */
+public class RebuildSearchIndex {
+
+    private static final Logger logger = LoggerFactory.getLogger(RebuildSearchIndex.class);
+
+    public static void main(String[] args) {
+        if (args.length < 2) {
+            System.err.println("Usage: RebuildSearchIndex roomTable messageTable [roomId ...]");
+            System.exit(1);
+        }
+        HBaseRepositoryImpl repo = new HBaseRepositoryImpl(args[0], args[1]);
+        repo.start();
+
+        List<Integer> roomIds = new ArrayList<>();
+        for (int i = 2; i < args.length; i++) {
+            roomIds.add(Integer.parseInt(args[i]));
+        }
+        if (roomIds.isEmpty()) {
+            roomIds = repo.getRoomIds();
+        }
+
+        for (int roomId : roomIds) {
+            repo.rebuildSearchIndex(roomId);
+            logger.info("Indexed messages of room {}", roomId);
+        }
+        logger.info("Indexed messages of {} rooms", roomIds.size());
+    }
+}
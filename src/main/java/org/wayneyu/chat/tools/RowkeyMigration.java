@@ -0,0 +1,158 @@
+package org.wayneyu.chat.tools;
+
+import org.apache.hadoop.hbase.Cell;
+import org.apache.hadoop.hbase.CellUtil;
+import org.apache.hadoop.hbase.TableName;
+import org.apache.hadoop.hbase.client.Put;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.client.ResultScanner;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.wayneyu.chat.db.MessageKeySpace;
+import org.wayneyu.chat.db.RowkeyCodec;
+import org.wayneyu.chat.db.TableSplits;
+import org.wayneyu.chat.hbase.HBaseService;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.wayneyu.chat.db.HBaseRepositoryImpl.MESSAGE_MESSAGE_COLUMN_FAMILY;
+import static org.wayneyu.chat.db.HBaseRepositoryImpl.MESSAGE_META_COLUMN_FAMILY;
+import static org.wayneyu.chat.db.HBaseRepositoryImpl.ROOM_INFO_COLUMN_FAMILY;
+import static org.wayneyu.chat.db.HBaseRepositoryImpl.ROOM_META_COLUMN_FAMILY;
+
+/**
+ * Offline copy of ROOM and MESSAGE tables keyed by the old string rowkeys, the plain room id for rooms
+ * ("1234") and the zero padded room id and timestamp for messages ("0000001234_1578283201000"), into
+ * tables keyed by {@link RowkeyCodec}.
+ * Cells are copied unchanged, including their timestamps, and each message gets its meta:pause
+ * computed from the preceding message of its room (or from the room's creation time).
+ *
+ * Usage: RowkeyMigration sourceRoomTable sourceMessageTable targetRoomTable targetMessageTable
+ */
+public class RowkeyMigration {
+
+    private static final Logger logger = LoggerFactory.getLogger(RowkeyMigration.class);
+
+    private static final int BATCH_SIZE = 1000;
+
+    private final HBaseService hbase;
+    private final MessageKeySpace messageKeys;
+    private final Map<Integer, Long> roomCreated = new HashMap<>();
+
+    public RowkeyMigration(HBaseService hbase) {
+        this.hbase = hbase;
+        this.messageKeys = MessageKeySpace.create(hbase.getConfiguration());
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length != 4) {
+            System.err.println("Usage: RowkeyMigration sourceRoomTable sourceMessageTable targetRoomTable targetMessageTable");
+            System.exit(1);
+        }
+        HBaseService hbase = new HBaseService();
+        hbase.init();
+
+        RowkeyMigration migration = new RowkeyMigration(hbase);
+        hbase.createTable(TableName.valueOf(args[2]), new String[]{ROOM_INFO_COLUMN_FAMILY, ROOM_META_COLUMN_FAMILY},
+                TableSplits.roomSplits(hbase.getConfiguration()));
+        hbase.createTable(TableName.valueOf(args[3]), new String[]{MESSAGE_MESSAGE_COLUMN_FAMILY, MESSAGE_META_COLUMN_FAMILY},
+                TableSplits.messageSplits(hbase.getConfiguration(), migration.messageKeys));
+        long rooms = migration.migrateRooms(args[0], args[2]);
+        long messages = migration.migrateMessages(args[1], args[3]);
+        logger.info("Migrated {} rooms and {} messages", rooms, messages);
+    }
+
+    public long migrateRooms(String sourceTable, String targetTable) throws IOException {
+        byte[] family = Bytes.toBytes(ROOM_META_COLUMN_FAMILY);
+        byte[] createdQualifier = Bytes.toBytes("created");
+        long count = 0;
+        List<Put> puts = new ArrayList<>(BATCH_SIZE);
+        try (ResultScanner scanner = hbase.getTableScanner(sourceTable)) {
+            for (Result result : scanner) {
+                int roomId = decodeOldRoomKey(result.getRow());
+                byte[] created = result.getValue(family, createdQualifier);
+                if (created != null) {
+                    roomCreated.put(roomId, Bytes.toLong(created));
+                }
+                puts.add(copyOf(result, RowkeyCodec.roomKey(roomId)));
+                count = flushIfFull(targetTable, puts, count);
+            }
+        }
+        return flush(targetTable, puts, count);
+    }
+
+    /**
+     * Must run after {@link #migrateRooms} so that the first message of each room gets its pause from
+     * the room's creation time. Old rowkeys sort by room and timestamp, so the predecessor of each row
+     * is the row scanned before it.
+     */
+    public long migrateMessages(String sourceTable, String targetTable) throws IOException {
+        byte[] family = Bytes.toBytes(MESSAGE_MESSAGE_COLUMN_FAMILY);
+        byte[] indexQualifier = Bytes.toBytes("index");
+        Integer currentRoomId = null;
+        long previousTimestamp = 0;
+        long count = 0;
+        List<Put> puts = new ArrayList<>(BATCH_SIZE);
+        try (ResultScanner scanner = hbase.getTableScanner(sourceTable)) {
+            for (Result result : scanner) {
+                long[] key = decodeOldMessageKey(result.getRow());
+                int roomId = (int) key[0];
+                long timestamp = key[1];
+                int index = Bytes.toInt(result.getValue(family, indexQualifier));
+                if (currentRoomId == null || roomId != currentRoomId) {
+                    currentRoomId = roomId;
+                    Long created = roomCreated.get(roomId);
+                    previousTimestamp = created != null ? created : timestamp;
+                }
+                Put put = copyOf(result, messageKeys.messageKey(roomId, timestamp, index));
+                put.addColumn(Bytes.toBytes(MESSAGE_META_COLUMN_FAMILY), Bytes.toBytes("pause"), Bytes.toBytes(timestamp - previousTimestamp));
+                previousTimestamp = timestamp;
+                puts.add(put);
+                count = flushIfFull(targetTable, puts, count);
+            }
+        }
+        return flush(targetTable, puts, count);
+    }
+
+    /**
+     * Room id of an old ROOM rowkey, written with Integer.toString; zero padded keys are read too.
+     */
+    static int decodeOldRoomKey(byte[] rowkey) {
+        return Integer.parseInt(Bytes.toString(rowkey));
+    }
+
+    /**
+     * Room id and timestamp of an old MESSAGE rowkey.
+     */
+    static long[] decodeOldMessageKey(byte[] rowkey) {
+        String[] parts = Bytes.toString(rowkey).split("_");
+        return new long[]{Integer.parseInt(parts[0]), Long.parseLong(parts[1])};
+    }
+
+    private Put copyOf(Result result, byte[] rowkey) {
+        Put put = new Put(rowkey);
+        for (Cell cell : result.rawCells()) {
+            put.addColumn(CellUtil.cloneFamily(cell), CellUtil.cloneQualifier(cell), cell.getTimestamp(), CellUtil.cloneValue(cell));
+        }
+        return put;
+    }
+
+    private long flushIfFull(String tableName, List<Put> puts, long count) throws IOException {
+        return puts.size() < BATCH_SIZE ? count : flush(tableName, puts, count);
+    }
+
+    private long flush(String tableName, List<Put> puts, long count) throws IOException {
+        if (!puts.isEmpty()) {
+            hbase.putRows(tableName, puts);
+            count += puts.size();
+            logger.info("Copied {} rows to {}", count, tableName);
+            puts.clear();
+        }
+        return count;
+    }
+}
@@ -0,0 +1,144 @@
+package org.wayneyu.chat.archive;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.wayneyu.chat.cache.LruCache;
+import org.wayneyu.chat.model.Message;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class MessageArchiveTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private MessageArchive archive;
+    private final List<Message> messages = new ArrayList<>();
+
+    @Before
+    public void setUp() throws IOException {
+        archive = new MessageArchive(folder.newFolder().toPath(), 0);
+        // two messages per timestamp, long enough texts for several blocks
+        for (int i = 0; i < 5000; i++) {
+            messages.add(new Message(i, i / 2 * 10, i % 3 == 0 ? null : "author" + i % 7, "message " + i + " with some more text to fill the blocks"));
+        }
+    }
+
+    @Test
+    public void shouldReadRangesAcrossBlocksInBothDirections() throws IOException {
+        Segment segment = write(1, 25000, 0, 5000);
+        assertEquals(5000, segment.getMessageCount());
+        assertEquals(Long.MIN_VALUE, segment.getStartTime());
+
+        assertThat(segment.read(100, 120, null, 10), contains(messages.get(20), messages.get(21), messages.get(22), messages.get(23)));
+        assertThat(segment.read(100, 120, messages.get(21), 10), contains(messages.get(22), messages.get(23)));
+        assertThat(segment.read(0, 25000, messages.get(4000), 2), contains(messages.get(4001), messages.get(4002)));
+        assertThat(segment.readReverse(100, 120, null, 10), contains(messages.get(23), messages.get(22), messages.get(21), messages.get(20)));
+        assertThat(segment.readReverse(0, 25000, messages.get(4000), 2), contains(messages.get(3999), messages.get(3998)));
+        assertEquals(messages, segment.read(Long.MIN_VALUE, Long.MAX_VALUE, null, Integer.MAX_VALUE));
+    }
+
+    @Test
+    public void shouldGetSingleMessages() throws IOException {
+        Segment segment = write(1, 25000, 0, 5000);
+
+        assertEquals(messages.get(3333), segment.get(messages.get(3333).getTimestamp(), 3333));
+        assertNull(segment.get(messages.get(3333).getTimestamp(), 3334));
+        assertNull(segment.get(25000, 0));
+    }
+
+    @Test
+    public void shouldCountPausesSkippingGivenKeys() throws IOException {
+        Segment segment = write(1, 25000, 0, 5000);
+
+        // pauses are the index, see write
+        assertEquals(899, segment.countPausesLongerThan(0, 5000, 100, Segment.KeyFilter.NONE));
+        assertEquals(898, segment.countPausesLongerThan(0, 5000, 100, (timestamp, index) -> index == 500));
+    }
+
+    @Test
+    public void shouldReadConsecutiveSegmentsOfARoom() throws IOException {
+        write(1, 10000, 0, 2000);
+        write(1, 25000, 2000, 5000);
+        write(2, 25000, 0, 10);
+
+        assertEquals(25000, archive.archivedBefore(1));
+        assertEquals(Long.MIN_VALUE, archive.archivedBefore(3));
+        assertEquals(2, archive.getSegments(1).size());
+        assertThat(archive.read(1, 9990, 10020, null, 10), contains(messages.get(1998), messages.get(1999), messages.get(2000), messages.get(2001), messages.get(2002), messages.get(2003)));
+        assertThat(archive.readReverse(1, 9990, 10010, null, 3), contains(messages.get(2001), messages.get(2000), messages.get(1999)));
+        assertEquals(messages.get(4321), archive.get(1, messages.get(4321).getTimestamp(), 4321));
+        assertTrue(archive.overlaps(1, 24990, Long.MAX_VALUE));
+        assertFalse(archive.overlaps(1, 25000, Long.MAX_VALUE));
+
+        List<Message> iterated = new ArrayList<>();
+        archive.iterator(1, Long.MIN_VALUE, Long.MAX_VALUE).forEachRemaining(iterated::add);
+        assertEquals(messages, iterated);
+    }
+
+    @Test
+    public void shouldSeeCommittedSegmentsBeforeTheNextRefresh() throws IOException {
+        archive = new MessageArchive(folder.newFolder().toPath(), 60 * 60 * 1000);
+        assertEquals(Long.MIN_VALUE, archive.archivedBefore(1));
+
+        write(1, 10000, 0, 2000);
+
+        assertEquals(10000, archive.archivedBefore(1));
+        assertEquals(1, archive.getSegments(1).size());
+    }
+
+    @Test
+    public void shouldKeepDecodedBlocksForSingleMessages() throws IOException {
+        Segment segment = write(1, 25000, 0, 5000);
+        LruCache<String, Segment.Block> blocks = new LruCache<>(10, 60 * 1000);
+
+        assertEquals(messages.get(3333), segment.get(messages.get(3333).getTimestamp(), 3333, blocks));
+        assertEquals(messages.get(3334), segment.get(messages.get(3334).getTimestamp(), 3334, blocks));
+        assertNull(segment.get(25000, 0, blocks));
+        assertEquals(1, blocks.size());
+        assertEquals(1, blocks.getHitCount());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void shouldRejectMessagesOutOfOrder() throws IOException {
+        try (SegmentWriter writer = archive.newSegment(1, 100, 0)) {
+            writer.append(messages.get(1), 0);
+            writer.append(messages.get(0), 0);
+        }
+    }
+
+    @Test
+    public void shouldNotLeaveUncommittedSegments() throws IOException {
+        try (SegmentWriter writer = archive.newSegment(1, 100, 0)) {
+            writer.append(messages.get(0), 0);
+        }
+        assertEquals(Long.MIN_VALUE, archive.archivedBefore(1));
+        assertTrue(archive.getSegments(1).isEmpty());
+        try (Stream<Path> files = Files.walk(folder.getRoot().toPath())) {
+            assertFalse(files.anyMatch(file -> file.toString().endsWith(".tmp")));
+        }
+    }
+
+    private Segment write(int roomId, long endTime, int from, int to) throws IOException {
+        try (SegmentWriter writer = archive.newSegment(roomId, endTime, 0)) {
+            for (Message message : messages.subList(from, to)) {
+                writer.append(message, message.getIndex());
+            }
+            return writer.commit();
+        }
+    }
+}
@@ -0,0 +1,58 @@
+package org.wayneyu.chat.cache;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class LruCacheTest {
+
+    private long now = 0;
+
+    private LruCache<Integer, String> cache(int maxSize, long ttlMillis) {
+        return new LruCache<Integer, String>(maxSize, ttlMillis) {
+            @Override
+            protected long now() {
+                return now;
+            }
+        };
+    }
+
+    @Test
+    public void shouldEvictLeastRecentlyUsed() {
+        LruCache<Integer, String> cache = cache(2, 1000);
+        cache.put(1, "a");
+        cache.put(2, "b");
+        cache.get(1);
+        cache.put(3, "c");
+
+        assertEquals("a", cache.get(1));
+        assertNull(cache.get(2));
+        assertEquals("c", cache.get(3));
+    }
+
+    @Test
+    public void shouldExpireEntries() {
+        LruCache<Integer, String> cache = cache(2, 1000);
+        cache.put(1, "a");
+        now = 999;
+        assertEquals("a", cache.get(1));
+        now = 1000;
+
+        assertNull(cache.get(1));
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void shouldCountHitsAndMisses() {
+        LruCache<Integer, String> cache = cache(2, 1000);
+        cache.put(1, "a");
+        cache.get(1);
+        cache.get(2);
+        cache.invalidate(1);
+        cache.get(1);
+
+        assertEquals(1, cache.getHitCount());
+        assertEquals(2, cache.getMissCount());
+    }
+}
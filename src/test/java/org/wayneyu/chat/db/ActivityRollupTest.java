@@ -0,0 +1,86 @@
+package org.wayneyu.chat.db;
+
+import org.apache.hadoop.hbase.Cell;
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.client.Increment;
+import org.apache.hadoop.hbase.client.Mutation;
+import org.apache.hadoop.hbase.client.Put;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.client.Row;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.junit.Test;
+import org.wayneyu.chat.model.AuthorActivity;
+import org.wayneyu.chat.model.RoomActivity;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class ActivityRollupTest {
+
+    @Test
+    public void shouldCountAuthorsPerBucketWithFirstAndLastAsCellTimestamps() {
+        ActivityRollup activity = new ActivityRollup(10);
+        activity.addMessage("a", 3);
+        activity.addMessage("a", 1);
+        activity.addMessage("b", 5);
+        activity.addMessage("a", 12);
+
+        List<Row> mutations = activity.toMutations(1);
+
+        assertEquals(4, mutations.size());
+        Increment first = (Increment) mutations.get(0);
+        assertEquals(Bytes.toStringBinary(ActivityRollup.rowkey(1, 0)), Bytes.toStringBinary(first.getRow()));
+        assertEquals(2L, (long) first.getFamilyMapOfLongs().get(Bytes.toBytes(ActivityRollup.AUTHOR_COLUMN_FAMILY)).get(Bytes.toBytes("a")));
+        Put put = (Put) mutations.get(1);
+        Cell firstOfA = put.get(Bytes.toBytes(ActivityRollup.FIRST_COLUMN_FAMILY), Bytes.toBytes("a")).get(0);
+        assertEquals(Long.MAX_VALUE - 2, firstOfA.getTimestamp());
+        Cell lastOfA = put.get(Bytes.toBytes(ActivityRollup.LAST_COLUMN_FAMILY), Bytes.toBytes("a")).get(0);
+        assertEquals(3, lastOfA.getTimestamp());
+        assertEquals(3, Bytes.toLong(lastOfA.getValueArray(), lastOfA.getValueOffset(), lastOfA.getValueLength()));
+    }
+
+    @Test
+    public void shouldAggregateStatsRowsAndMessages() {
+        ActivityRollup written = new ActivityRollup(10);
+        written.addMessage("a", 11);
+        written.addMessage("b", 15);
+        written.addMessage("a", 18);
+        written.addMessage(null, 19);
+
+        ActivityRollup read = new ActivityRollup(10);
+        read.addMessage("b", 7);
+        read.addRow(toResult(written.toMutations(1)));
+        read.addMessage("b", 20);
+        RoomActivity activity = read.toActivity(1, 5, 25);
+
+        assertEquals(6, activity.getMessageCount());
+        assertEquals(Long.valueOf(1), activity.getBucketMessageCounts().get(0L));
+        assertEquals(Long.valueOf(4), activity.getBucketMessageCounts().get(10L));
+        assertEquals(Long.valueOf(1), activity.getBucketMessageCounts().get(20L));
+        List<AuthorActivity> authors = activity.getAuthors();
+        assertEquals(3, authors.size());
+        assertAuthor(authors.get(0), "b", 3, 7, 20);
+        assertAuthor(authors.get(1), "a", 2, 11, 18);
+        assertAuthor(authors.get(2), "", 1, 19, 19);
+    }
+
+    private static void assertAuthor(AuthorActivity author, String name, long messages, long first, long last) {
+        assertEquals(name, author.getAuthor());
+        assertEquals(messages, author.getMessageCount());
+        assertEquals(first, author.getFirstActivity());
+        assertEquals(last, author.getLastActivity());
+    }
+
+    private static Result toResult(List<Row> mutations) {
+        List<Cell> cells = new ArrayList<>();
+        for (Row row : mutations) {
+            for (List<Cell> family : ((Mutation) row).getFamilyCellMap().values()) {
+                cells.addAll(family);
+            }
+        }
+        cells.sort(KeyValue.COMPARATOR);
+        return Result.create(cells);
+    }
+}
@@ -1,19 +1,30 @@
 package org.wayneyu.chat.db;
 
+import org.apache.hadoop.conf.Configuration;
 import org.junit.AfterClass;
+import org.junit.Before;
 import org.junit.BeforeClass;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.wayneyu.chat.archive.MessageArchive;
+import org.wayneyu.chat.archive.Segment;
 import org.wayneyu.chat.hbase.HBaseService;
 import org.wayneyu.chat.model.Message;
+import org.wayneyu.chat.model.MessagePage;
 import org.wayneyu.chat.model.Room;
+import org.wayneyu.chat.model.RoomActivity;
 
 import java.io.IOException;
 import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
 
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.Matchers.contains;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 
 public class HbaseRepositoryImplTest {
 
@@ -22,6 +33,9 @@ public class HbaseRepositoryImplTest {
     private ChatRepository repo = new HBaseRepositoryImpl(roomTableName, messageTableName);
     private static HBaseService hbase = new HBaseService();
 
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
     private static final Room room = new Room(1, "testRoom", 0, Arrays.asList("a@a.com", "b@b.com"));
 
     @BeforeClass
@@ -29,10 +43,18 @@ public class HbaseRepositoryImplTest {
         hbase.init();
     }
 
+    @Before
+    public void start() {
+        ((HBaseRepositoryImpl) repo).start();
+    }
+
     @AfterClass
     public static void tearDown() throws IOException {
         hbase.deleteTable(roomTableName);
         hbase.deleteTable(messageTableName);
+        hbase.deleteTable(messageTableName + "_ROLLUP");
+        hbase.deleteTable(messageTableName + "_STATS");
+        hbase.deleteTable(messageTableName + "_INDEX");
     }
 
     @Test
@@ -72,6 +94,20 @@ public class HbaseRepositoryImplTest {
         assertThat(actual, contains(msg1, msg2, msg3));
     }
 
+    @Test
+    public void shouldKeepMessagesWithSameTimestamp() {
+        int roomId = 7;
+        repo.createRoom(new Room(roomId, "testRoom7", 0, Arrays.asList("a@a.com", "b@b.com")));
+
+        Message msg1 = new Message(1, 5, "a@a.com", "helloA");
+        Message msg2 = new Message(2, 5, "b@b.com", "helloB");
+        repo.addMessages(roomId, Arrays.asList(msg1, msg2));
+
+        List<Message> actual = repo.getMessages(roomId, 5, 6);
+
+        assertThat(actual, contains(msg1, msg2));
+    }
+
     @Test
     public void shouldGetLongPause() {
         int roomId = Integer.MAX_VALUE;
@@ -106,4 +142,215 @@ public class HbaseRepositoryImplTest {
         assertEquals(actual, 1);
     }
 
+    @Test
+    public void shouldRecomputePauseOfMessageFollowingLateMessage() {
+        int roomId = 8;
+        repo.createRoom(new Room(roomId, "testRoom8", 0, Arrays.asList("a@a.com", "b@b.com")));
+
+        Message msg1 = new Message(1, 10, "a@a.com", "helloA");
+        Message msg2 = new Message(2, 80, "b@b.com", "late");
+        Message msg3 = new Message(3, 100, "a@a.com", "helloB");
+        repo.addMessages(roomId, Arrays.asList(msg1, msg3));
+        repo.addMessages(roomId, Arrays.asList(msg2));
+
+        int actual = repo.countLongPauses(roomId, 0, 101);
+
+        assertEquals(1, actual);
+    }
+
+    @Test
+    public void shouldCountLongPausesAcrossRollupBuckets() {
+        int roomId = 9;
+        long hour = 60 * 60 * 1000;
+        repo.createRoom(new Room(roomId, "testRoom9", 0, Arrays.asList("a@a.com", "b@b.com")));
+
+        repo.addMessages(roomId, Arrays.asList(
+                new Message(1, 1000, "a@a.com", "m1"),
+                new Message(2, hour + 1000, "b@b.com", "m2"),
+                new Message(3, 2 * hour + 500, "a@a.com", "m3")));
+        repo.addMessages(roomId, Arrays.asList(
+                new Message(4, 2 * hour + 600, "b@b.com", "m4"),
+                new Message(5, 3 * hour, "a@a.com", "m5")));
+
+        int actual = repo.countLongPauses(roomId, 500, 3 * hour + 1);
+
+        assertEquals(3, actual);
+    }
+
+    @Test
+    public void shouldTakePausesFromMessagesWrittenByAnotherInstance() {
+        int roomId = 19;
+        repo.createRoom(new Room(roomId, "testRoom19", 0, Arrays.asList("a@a.com", "b@b.com")));
+        ChatRepository otherInstance = new HBaseRepositoryImpl(roomTableName, messageTableName);
+
+        otherInstance.addMessages(roomId, Arrays.asList(new Message(1, 100, "a@a.com", "helloA")));
+        // the meta cached by repo still ends at the room's creation
+        repo.addMessages(roomId, Arrays.asList(new Message(2, 110, "b@b.com", "helloB")));
+
+        assertEquals(1, repo.countLongPauses(roomId, 0, 111));
+        assertEquals(110, repo.getRoom(roomId).getMeta().getLastMessageTimestamp());
+    }
+
+    @Test
+    public void shouldPageMessagesInBothDirections() {
+        int roomId = 10;
+        repo.createRoom(new Room(roomId, "testRoom10", 0, Arrays.asList("a@a.com", "b@b.com")));
+        Message msg1 = new Message(1, 1, "a@a.com", "m1");
+        Message msg2 = new Message(2, 2, "b@b.com", "m2");
+        Message msg3 = new Message(3, 2, "a@a.com", "m3");
+        repo.addMessages(roomId, Arrays.asList(msg1, msg2, msg3));
+
+        MessagePage first = repo.getMessages(roomId, 0, 3, 2, null, false);
+        MessagePage second = repo.getMessages(roomId, 0, 3, 2, first.getNextCursor(), false);
+        MessagePage newest = repo.getMessages(roomId, 0, 3, 2, null, true);
+        MessagePage oldest = repo.getMessages(roomId, 0, 3, 2, newest.getNextCursor(), true);
+
+        assertThat(first.getMessages(), contains(msg1, msg2));
+        assertThat(second.getMessages(), contains(msg3));
+        assertNull(second.getNextCursor());
+        assertThat(newest.getMessages(), contains(msg3, msg2));
+        assertThat(oldest.getMessages(), contains(msg1));
+        assertNull(oldest.getNextCursor());
+        assertThat(repo.getLatestMessages(roomId, 2), contains(msg2, msg3));
+        assertThat(repo.getLatestMessages(roomId, 5), contains(msg1, msg2, msg3));
+    }
+
+    @Test
+    public void shouldGetSeveralRoomsAndTheirMessages() {
+        repo.createRoom(new Room(11, "room11", 0, Arrays.asList("a@a.com")));
+        repo.createRoom(new Room(12, "room12", 0, Arrays.asList("b@b.com")));
+        Message msg1 = new Message(1, 1, "a@a.com", "helloA");
+        Message msg2 = new Message(2, 2, "a@a.com", "helloB");
+        repo.addMessages(11, Arrays.asList(msg1, msg2));
+
+        List<Room> rooms = repo.getRooms(Arrays.asList(12, 13, 11));
+        Map<Integer, MessagePage> pages = repo.getMessages(Arrays.asList(11, 12), 0, 3, 1);
+
+        assertEquals(2, rooms.size());
+        assertEquals("room12", rooms.get(0).getName());
+        assertEquals(2, rooms.get(1).getMeta().getMessageCount());
+        assertThat(pages.get(11).getMessages(), contains(msg1));
+        assertThat(repo.getMessages(11, 0, 3, 1, pages.get(11).getNextCursor(), false).getMessages(), contains(msg2));
+        assertTrue(pages.get(12).getMessages().isEmpty());
+    }
+
+    @Test
+    public void shouldGetActivityAcrossStatsBucketsWithoutCountingResentMessages() {
+        int roomId = 14;
+        long hour = 60 * 60 * 1000;
+        repo.createRoom(new Room(roomId, "room14", 0, Arrays.asList("a@a.com", "b@b.com")));
+        List<Message> batch = Arrays.asList(
+                new Message(1, 1000, "a@a.com", "m1"),
+                new Message(2, hour + 1000, "b@b.com", "m2"),
+                new Message(3, hour + 2000, "a@a.com", "m3"),
+                new Message(4, 2 * hour + 500, "b@b.com", "m4"));
+        repo.addMessages(roomId, batch);
+        repo.addMessages(roomId, batch);
+
+        RoomActivity activity = repo.getActivity(roomId, 500, 2 * hour + 501);
+
+        assertEquals(4, activity.getMessageCount());
+        assertEquals(Long.valueOf(2), activity.getBucketMessageCounts().get(hour));
+        assertEquals("a@a.com", activity.getAuthors().get(0).getAuthor());
+        assertEquals(1000, activity.getAuthors().get(0).getFirstActivity());
+        assertEquals(hour + 2000, activity.getAuthors().get(0).getLastActivity());
+        assertEquals(2 * hour + 500, activity.getAuthors().get(1).getLastActivity());
+        assertNull(repo.getActivity(Integer.MIN_VALUE, 0, hour));
+    }
+
+    @Test
+    public void shouldSearchMessagesWithAllTerms() {
+        int roomId = 15;
+        repo.createRoom(new Room(roomId, "room15", 0, Arrays.asList("a@a.com", "b@b.com")));
+        Message msg1 = new Message(1, 1, "a@a.com", "Lunch at noon?");
+        Message msg2 = new Message(2, 2, "b@b.com", "noon works, lunch it is");
+        Message msg3 = new Message(3, 3, "a@a.com", "see you at noon");
+        repo.addMessages(roomId, Arrays.asList(msg1, msg2, msg3));
+
+        assertThat(repo.searchMessages(roomId, "NOON lunch", 0, 10, 10), contains(msg1, msg2));
+        assertThat(repo.searchMessages(roomId, "noon", 2, 10, 1), contains(msg2));
+        assertTrue(repo.searchMessages(roomId, "dinner noon", 0, 10, 10).isEmpty());
+
+        repo.addMessages(roomId, Arrays.asList(new Message(1, 1, "a@a.com", "Dinner at noon?")));
+        assertThat(repo.searchMessages(roomId, "lunch", 0, 10, 10), contains(msg2));
+    }
+
+    @Test
+    public void shouldMergeArchivedMessagesWithRows() throws IOException {
+        int roomId = 16;
+        Configuration config = ((HBaseRepositoryImpl) repo).getConfiguration();
+        config.set(MessageArchive.DIR_KEY, folder.newFolder().getPath());
+        config.setLong(MessageArchive.REFRESH_MILLIS_KEY, 0);
+        HBaseRepositoryImpl archiving;
+        try {
+            archiving = new HBaseRepositoryImpl(roomTableName, messageTableName);
+        } finally {
+            config.unset(MessageArchive.DIR_KEY);
+            config.unset(MessageArchive.REFRESH_MILLIS_KEY);
+        }
+        archiving.createRoom(new Room(roomId, "room16", 0, Arrays.asList("a@a.com", "b@b.com")));
+        Message msg1 = new Message(1, 10, "a@a.com", "old lunch");
+        Message msg2 = new Message(2, 20, "b@b.com", "old dinner");
+        Message msg3 = new Message(3, 100, "a@a.com", "new lunch");
+        archiving.addMessages(roomId, Arrays.asList(msg1, msg2, msg3));
+
+        Segment segment = archiving.archiveMessages(roomId, 50);
+        assertEquals(2, segment.getMessageCount());
+        assertThat(archiving.getMessages(roomId, 0, 101), contains(msg1, msg2, msg3));
+        archiving.deleteArchivedMessages(segment);
+        Message late = new Message(4, 15, "b@b.com", "late lunch");
+        archiving.addMessages(roomId, Arrays.asList(late));
+
+        assertThat(archiving.getMessages(roomId, 0, 101), contains(msg1, late, msg2, msg3));
+        assertThat(archiving.getMessages(roomId, 0, 101, 2, null, true).getMessages(), contains(msg3, msg2));
+        MessagePage first = archiving.getMessages(roomId, 0, 101, 2, null, false);
+        assertThat(first.getMessages(), contains(msg1, late));
+        assertThat(archiving.getMessages(roomId, 0, 101, 2, first.getNextCursor(), false).getMessages(), contains(msg2, msg3));
+        assertThat(archiving.searchMessages(roomId, "lunch", 0, 101, 10), contains(msg1, late, msg3));
+        // average pause 100 / 3, only msg3 follows a longer one
+        assertEquals(1, archiving.countLongPauses(roomId, 0, 101));
+        assertNull(archiving.archiveMessages(roomId, 50));
+    }
+
+    @Test
+    public void shouldImportMessagesInAnyOrderAndFinishTheRoomOnce() {
+        int roomId = 17;
+        HBaseRepositoryImpl importing = (HBaseRepositoryImpl) repo;
+        importing.createRoom(new Room(roomId, "room17", 0, Arrays.asList("a@a.com", "b@b.com")));
+        Message msg1 = new Message(1, 10, "a@a.com", "m1");
+        Message msg2 = new Message(2, 20, "b@b.com", "m2");
+        Message msg3 = new Message(3, 100, "a@a.com", "m3");
+        importing.importMessages(roomId, Arrays.asList(msg3, msg1));
+        importing.importMessages(roomId, Arrays.asList(msg2));
+        importing.flushImportedMessages();
+        importing.finishImport(roomId, msg3);
+
+        assertThat(repo.getMessages(roomId, 0, 101), contains(msg1, msg2, msg3));
+        assertEquals(3, repo.getRoom(roomId).getMeta().getMessageCount());
+        assertEquals(100, repo.getRoom(roomId).getMeta().getLastMessageTimestamp());
+        // average pause 100 / 3, only msg3 follows a longer one
+        assertEquals(1, repo.countLongPauses(roomId, 0, 101));
+    }
+
+    @Test
+    public void shouldReadWideRangesInSubRanges() {
+        int roomId = 18;
+        Configuration config = ((HBaseRepositoryImpl) repo).getConfiguration();
+        config.setLong(HBaseRepositoryImpl.SUB_RANGE_MILLIS_KEY, 25);
+        HBaseRepositoryImpl splitting;
+        try {
+            splitting = new HBaseRepositoryImpl(roomTableName, messageTableName);
+        } finally {
+            config.unset(HBaseRepositoryImpl.SUB_RANGE_MILLIS_KEY);
+        }
+        splitting.createRoom(new Room(roomId, "room18", 0, Arrays.asList("a@a.com", "b@b.com")));
+        Message msg1 = new Message(1, 10, "a@a.com", "m1");
+        Message msg2 = new Message(2, 20, "b@b.com", "m2");
+        Message msg3 = new Message(3, 50, "a@a.com", "m3");
+        Message msg4 = new Message(4, 90, "b@b.com", "m4");
+        splitting.addMessages(roomId, Arrays.asList(msg1, msg2, msg3, msg4));
+
+        assertThat(splitting.getMessages(roomId, 0, Long.MAX_VALUE), contains(msg1, msg2, msg3, msg4));
+        assertThat(splitting.getMessages(roomId, 15, 90), contains(msg2, msg3));
+    }
 }
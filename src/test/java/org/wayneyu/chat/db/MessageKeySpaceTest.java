@@ -0,0 +1,106 @@
+package org.wayneyu.chat.db;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class MessageKeySpaceTest {
+
+    @Test
+    public void shouldKeepCodecKeysWhenUnsalted() {
+        MessageKeySpace keys = new MessageKeySpace(1);
+
+        assertFalse(keys.isSalted());
+        assertEquals(0, keys.offset());
+        assertArrayEquals(RowkeyCodec.messageKey(3, 100, 1), keys.messageKey(3, 100, 1));
+    }
+
+    @Test
+    public void shouldSpreadMessagesOfARoomOverBuckets() {
+        MessageKeySpace keys = new MessageKeySpace(8);
+        Set<Byte> buckets = new HashSet<>();
+        for (int i = 1; i <= 100; i++) {
+            byte[] key = keys.messageKey(3, 1000L * i, i);
+
+            assertEquals(RowkeyCodec.MESSAGE_KEY_LENGTH + 1, key.length);
+            assertTrue(key[0] >= 0 && key[0] < 8);
+            assertEquals(1000L * i, RowkeyCodec.decodeTimestamp(key, keys.offset()));
+            assertEquals(0, keys.compareToKey(key, RowkeyCodec.messageKey(3, 1000L * i, i)));
+            buckets.add(key[0]);
+        }
+        assertEquals(8, buckets.size());
+        assertArrayEquals(keys.messageKey(3, 5000, 5), keys.messageKey(3, 5000, 5));
+    }
+
+    @Test
+    public void shouldOrderSaltedRowsOnTheirUnsaltedKeys() {
+        MessageKeySpace keys = new MessageKeySpace(4);
+        List<Result> rows = new ArrayList<>();
+        for (int i = 10; i > 0; i--) {
+            rows.add(row(keys.messageKey(3, 1000L * i, i)));
+        }
+
+        rows.sort(keys.rowOrder(false));
+        for (int i = 0; i < rows.size(); i++) {
+            assertEquals(1000L * (i + 1), RowkeyCodec.decodeTimestamp(rows.get(i).getRow(), 1));
+        }
+        rows.sort(keys.rowOrder(true));
+        assertEquals(10000L, RowkeyCodec.decodeTimestamp(rows.get(0).getRow(), 1));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void shouldRejectTooManyBuckets() {
+        new MessageKeySpace(MessageKeySpace.MAX_SALT_BUCKETS + 1);
+    }
+
+    @Test
+    public void shouldSplitBetweenBuckets() {
+        Configuration config = new Configuration(false);
+        config.setInt(MessageKeySpace.SALT_BUCKETS_KEY, 16);
+        MessageKeySpace keys = MessageKeySpace.create(config);
+
+        assertEquals(15, TableSplits.messageSplits(config, keys).length);
+
+        config.setInt(TableSplits.REGIONS_KEY, 4);
+        byte[][] splits = TableSplits.messageSplits(config, keys);
+        assertEquals(3, splits.length);
+        assertArrayEquals(new byte[]{4}, splits[0]);
+        assertArrayEquals(new byte[]{12}, splits[2]);
+    }
+
+    @Test
+    public void shouldSplitOnRoomIds() {
+        Configuration config = new Configuration(false);
+        assertNull(TableSplits.roomSplits(config));
+
+        config.setInt(TableSplits.REGIONS_KEY, 4);
+        byte[][] splits = TableSplits.roomSplits(config);
+        assertEquals(3, splits.length);
+        for (int i = 1; i < splits.length; i++) {
+            assertTrue(Bytes.compareTo(splits[i - 1], splits[i]) < 0);
+        }
+
+        config.set(TableSplits.SPLIT_ROOM_IDS_KEY, "500,100,500");
+        splits = TableSplits.messageSplits(config, MessageKeySpace.create(config));
+        assertEquals(2, splits.length);
+        assertArrayEquals(RowkeyCodec.roomKey(100), splits[0]);
+        assertArrayEquals(RowkeyCodec.roomKey(500), splits[1]);
+    }
+
+    private static Result row(byte[] rowkey) {
+        return Result.create(new KeyValue[]{new KeyValue(rowkey, Bytes.toBytes("message"), Bytes.toBytes("index"), Bytes.toBytes(1))});
+    }
+}
@@ -0,0 +1,114 @@
+package org.wayneyu.chat.db;
+
+import org.apache.hadoop.hbase.Cell;
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.client.Put;
+import org.apache.hadoop.hbase.client.Result;
+import org.junit.Test;
+import org.wayneyu.chat.model.Message;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class MessageRowsTest {
+
+    @Test
+    public void shouldReadCompactRowsWithIndexAndTimestampFromSaltedRowkey() {
+        MessageKeySpace keys = new MessageKeySpace(16);
+        Message message = new Message(7, 1578283201000L, "jessica.doe@mail.com", "näh, 你好 😀");
+        Result row = toResult(MessageRows.toPut(keys.messageKey(1234, message.getTimestamp(), message.getIndex()), message, 60000));
+
+        assertMessage(message, MessageRows.toMessage(row, keys.offset()));
+        assertEquals(Long.valueOf(60000), MessageRows.getPause(row));
+    }
+
+    @Test
+    public void shouldReadFourCellRows() {
+        Message message = new Message(2, 1578283800000L, "colin.powel@mail.com", "not much");
+        Result row = toResult(MessageRows.toCellsPut(RowkeyCodec.messageKey(1234, message.getTimestamp(), message.getIndex()), message, 5));
+
+        assertMessage(message, MessageRows.toMessage(row, 0));
+    }
+
+    @Test
+    public void shouldLeavePauseToRebuildInRowsWithoutIt() {
+        Message message = new Message(3, 1578283900000L, "jessica.doe@mail.com", "imported");
+        byte[] rowkey = RowkeyCodec.messageKey(1234, message.getTimestamp(), message.getIndex());
+
+        assertMessage(message, MessageRows.toMessage(toResult(MessageRows.toPut(rowkey, message)), 0));
+        assertNull(MessageRows.getPause(toResult(MessageRows.toPut(rowkey, message))));
+        assertNull(MessageRows.getPause(toResult(MessageRows.toCellsPut(rowkey, message))));
+    }
+
+    @Test
+    public void shouldPreferCompactCellOverFourCells() throws IOException {
+        byte[] rowkey = RowkeyCodec.messageKey(1, 100, 1);
+        Put put = MessageRows.toCellsPut(rowkey, new Message(1, 100, "old", "old"), 0);
+        for (Cell cell : MessageRows.toPut(rowkey, new Message(1, 100, "new", "new"), 0).getFamilyCellMap().firstEntry().getValue()) {
+            put.add(cell);
+        }
+        Message read = MessageRows.toMessage(toResult(put), 0);
+
+        assertEquals("new", read.getAuthor());
+        assertEquals("new", read.getMessage());
+    }
+
+    @Test
+    public void shouldEncodeNullsEmptyAndLongStrings() {
+        StringBuilder longText = new StringBuilder();
+        for (int i = 0; i < 20000; i++) {
+            longText.append((char) ('a' + i % 26));
+        }
+        for (Message message : new Message[]{
+                new Message(1, 1, null, null),
+                new Message(1, 1, "", ""),
+                new Message(1, 1, "a", longText.toString())}) {
+            byte[] value = MessageRows.encode(message);
+            assertMessage(message, MessageRows.decode(1, 1, value, 0, value.length));
+        }
+    }
+
+    @Test
+    public void shouldBeSmallerThanFourCells() {
+        Message message = new Message(3, 1578283920000L, "colin.powel@mail.com", "what are you up to guys?");
+        byte[] rowkey = RowkeyCodec.messageKey(1234, message.getTimestamp(), message.getIndex());
+
+        long compact = Result.getTotalSizeOfCells(toResult(MessageRows.toPut(rowkey, message, 1)));
+        long cells = Result.getTotalSizeOfCells(toResult(MessageRows.toCellsPut(rowkey, message, 1)));
+        assertTrue(compact + " < " + cells / 2, compact < cells / 2);
+    }
+
+    @Test(expected = RuntimeException.class)
+    public void shouldRejectUnknownVersion() {
+        byte[] value = MessageRows.encode(new Message(1, 1, "a", "b"));
+        value[0] = 2;
+        MessageRows.decode(1, 1, value, 0, value.length);
+    }
+
+    @Test(expected = RuntimeException.class)
+    public void shouldRejectTruncatedValue() {
+        byte[] value = MessageRows.encode(new Message(1, 1, "author", "message"));
+        MessageRows.decode(1, 1, value, 0, value.length - 1);
+    }
+
+    private static void assertMessage(Message expected, Message actual) {
+        assertEquals(expected.getIndex(), actual.getIndex());
+        assertEquals(expected.getTimestamp(), actual.getTimestamp());
+        assertEquals(expected.getAuthor(), actual.getAuthor());
+        assertEquals(expected.getMessage(), actual.getMessage());
+    }
+
+    private static Result toResult(Put put) {
+        List<Cell> cells = new ArrayList<>();
+        for (List<Cell> family : put.getFamilyCellMap().values()) {
+            cells.addAll(family);
+        }
+        cells.sort(KeyValue.COMPARATOR);
+        return Result.create(cells);
+    }
+}
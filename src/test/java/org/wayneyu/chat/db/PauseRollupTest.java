@@ -0,0 +1,60 @@
+package org.wayneyu.chat.db;
+
+import org.apache.hadoop.hbase.client.Increment;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class PauseRollupTest {
+
+    @Test
+    public void shouldAlignTimestampsToBuckets() {
+        PauseRollup rollup = new PauseRollup(10);
+
+        assertEquals(10, rollup.bucketStart(19));
+        assertEquals(-10, rollup.bucketStart(-1));
+        assertEquals(20, rollup.bucketCeiling(11));
+        assertEquals(20, rollup.bucketCeiling(20));
+    }
+
+    @Test
+    public void shouldCollectIncrementsPerBucket() {
+        PauseRollup rollup = new PauseRollup(10);
+        rollup.addMessage(1, 1);
+        rollup.addMessage(5, 4);
+        rollup.addMessage(12, 7);
+        rollup.changePause(12, 7, 3);
+
+        List<Increment> increments = rollup.toIncrements(1);
+
+        assertEquals(2, increments.size());
+        assertEquals(Bytes.toStringBinary(PauseRollup.rowkey(1, 0)), Bytes.toStringBinary(increments.get(0).getRow()));
+        assertEquals(2L, (long) increments.get(0).getFamilyMapOfLongs().get(Bytes.toBytes(PauseRollup.COUNT_COLUMN_FAMILY)).get(Bytes.toBytes("messages")));
+        assertEquals(1L, (long) increments.get(1).getFamilyMapOfLongs().get(Bytes.toBytes(PauseRollup.PAUSE_COLUMN_FAMILY)).get(PauseRollup.binQualifier(PauseRollup.bin(3))));
+        assertEquals(null, increments.get(1).getFamilyMapOfLongs().get(Bytes.toBytes(PauseRollup.PAUSE_COLUMN_FAMILY)).get(PauseRollup.binQualifier(PauseRollup.bin(7))));
+    }
+
+    @Test
+    public void shouldBinPausesOnALogScale() {
+        assertEquals(0, PauseRollup.bin(-5));
+        assertEquals(0, PauseRollup.bin(0));
+        assertEquals(1, PauseRollup.bin(1));
+        assertEquals(3, PauseRollup.bin(4));
+        assertEquals(3, PauseRollup.bin(7));
+        assertEquals(PauseRollup.BINS - 1, PauseRollup.bin(Long.MAX_VALUE));
+        assertEquals(7, PauseRollup.binMax(3));
+        assertEquals(Long.MAX_VALUE, PauseRollup.binMax(PauseRollup.BINS - 1));
+        assertEquals(200, PauseRollup.decodeBin(PauseRollup.binQualifier(200), 0));
+    }
+
+    @Test
+    public void shouldOnlyCountPauseChangesAcrossBins() {
+        PauseRollup rollup = new PauseRollup(10);
+        rollup.changePause(1, 5, 6);
+
+        assertEquals(0, rollup.toIncrements(1).size());
+    }
+}
@@ -0,0 +1,50 @@
+package org.wayneyu.chat.db;
+
+import org.apache.hadoop.hbase.util.Bytes;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class RowkeyCodecTest {
+
+    @Test
+    public void shouldRoundTripMessageKey() {
+        byte[] key = RowkeyCodec.messageKey(1234, 1578283201000L, 7);
+
+        assertEquals(RowkeyCodec.MESSAGE_KEY_LENGTH, key.length);
+        assertEquals(1234, RowkeyCodec.decodeRoomId(key, 0));
+        assertEquals(1578283201000L, RowkeyCodec.decodeTimestamp(key, 0));
+        assertEquals(7, RowkeyCodec.decodeIndex(key, 0));
+    }
+
+    @Test
+    public void shouldEncodeAtOffset() {
+        byte[] buffer = new byte[RowkeyCodec.MESSAGE_KEY_LENGTH + 3];
+        int end = RowkeyCodec.encodeMessageKey(-5, -1L, Integer.MIN_VALUE, buffer, 3);
+
+        assertEquals(buffer.length, end);
+        assertEquals(-5, RowkeyCodec.decodeRoomId(buffer, 3));
+        assertEquals(-1L, RowkeyCodec.decodeTimestamp(buffer, 3));
+        assertEquals(Integer.MIN_VALUE, RowkeyCodec.decodeIndex(buffer, 3));
+    }
+
+    @Test
+    public void shouldSortKeysNumerically() {
+        assertTrue(Bytes.compareTo(RowkeyCodec.roomKey(-1), RowkeyCodec.roomKey(0)) < 0);
+        assertTrue(Bytes.compareTo(RowkeyCodec.roomKey(255), RowkeyCodec.roomKey(256)) < 0);
+        assertTrue(Bytes.compareTo(RowkeyCodec.messageKey(1, 10, 2), RowkeyCodec.messageKey(1, 11, 1)) < 0);
+        assertTrue(Bytes.compareTo(RowkeyCodec.messageKey(1, 10, 1), RowkeyCodec.messageKey(1, 10, 2)) < 0);
+        assertTrue(Bytes.compareTo(RowkeyCodec.messageKey(1, Long.MAX_VALUE, 0), RowkeyCodec.messageKey(2, 0, 0)) < 0);
+    }
+
+    @Test
+    public void shouldBoundTimeRangeWithPrefixes() {
+        byte[] start = RowkeyCodec.messageKeyPrefix(1, 10);
+        byte[] end = RowkeyCodec.messageKeyPrefix(1, 20);
+
+        assertTrue(Bytes.compareTo(start, RowkeyCodec.messageKey(1, 10, Integer.MIN_VALUE)) <= 0);
+        assertTrue(Bytes.compareTo(RowkeyCodec.messageKey(1, 19, Integer.MAX_VALUE), end) < 0);
+        assertTrue(Bytes.compareTo(RowkeyCodec.messageKey(1, 20, Integer.MIN_VALUE), end) >= 0);
+    }
+}
@@ -0,0 +1,56 @@
+package org.wayneyu.chat.db;
+
+import org.apache.hadoop.hbase.client.Put;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.junit.Test;
+import org.wayneyu.chat.model.Message;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SearchIndexTest {
+
+    @Test
+    public void shouldSplitTextIntoDistinctLowerCaseTerms() {
+        assertThat(SearchIndex.terms("Hi, what's up? HI 2day, ÉTÉ 你好"), contains("hi", "what", "s", "up", "2day", "été", "你好"));
+        assertTrue(SearchIndex.terms(null).isEmpty());
+
+        char[] longTerm = new char[100];
+        Arrays.fill(longTerm, 'a');
+        assertEquals(SearchIndex.MAX_TERM_LENGTH, SearchIndex.terms(new String(longTerm)).iterator().next().length());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void shouldRejectQueryWithoutTerms() {
+        SearchIndex.queryTerms(" ?! ");
+    }
+
+    @Test
+    public void shouldMatchMessagesWithAllTerms() {
+        Message message = new Message(1, 1, "a", "What are you up to, guys?");
+
+        assertTrue(SearchIndex.matches(message, SearchIndex.queryTerms("GUYS what")));
+        assertFalse(SearchIndex.matches(message, SearchIndex.queryTerms("guys girls")));
+    }
+
+    @Test
+    public void shouldKeepPostingsOfATermContiguousAndInTimeOrder() {
+        List<Put> puts = SearchIndex.toPuts(7, new Message(3, 1000, "a", "up up"));
+        assertEquals(1, puts.size());
+        byte[] posting = puts.get(0).getRow();
+
+        int offset = SearchIndex.messageKeyOffset(posting);
+        assertEquals(1000, RowkeyCodec.decodeTimestamp(posting, offset));
+        assertEquals(3, RowkeyCodec.decodeIndex(posting, offset));
+        assertTrue(Bytes.compareTo(SearchIndex.rowkey(7, "up", 1000), posting) <= 0);
+        assertTrue(Bytes.compareTo(posting, SearchIndex.rowkey(7, "up", 1001)) < 0);
+        // "up" postings sort before those of "upper", whatever their timestamps
+        assertTrue(Bytes.compareTo(SearchIndex.rowkey(7, "up", Long.MAX_VALUE), SearchIndex.rowkey(7, "upper", Long.MIN_VALUE)) < 0);
+    }
+}
@@ -0,0 +1,51 @@
+package org.wayneyu.chat.db;
+
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class SubRangesTest {
+
+    @Test
+    public void shouldSplitAtMultiplesOfWidthWhereTheRoomHasMessages() {
+        List<long[]> ranges = SubRanges.split(0, Long.MAX_VALUE, 150, 420, 100, new long[0]);
+
+        assertEquals(4, ranges.size());
+        assertArrayEquals(new long[]{0, 200}, ranges.get(0));
+        assertArrayEquals(new long[]{200, 300}, ranges.get(1));
+        assertArrayEquals(new long[]{300, 400}, ranges.get(2));
+        assertArrayEquals(new long[]{400, Long.MAX_VALUE}, ranges.get(3));
+    }
+
+    @Test
+    public void shouldSplitAtRegionBoundariesInsideTheRange() {
+        List<long[]> ranges = SubRanges.split(100, 500, 0, 1000, 1000, new long[]{700, 250, 100, 50});
+
+        assertEquals(2, ranges.size());
+        assertArrayEquals(new long[]{100, 250}, ranges.get(0));
+        assertArrayEquals(new long[]{250, 500}, ranges.get(1));
+    }
+
+    @Test
+    public void shouldNotSplitNarrowRanges() {
+        assertEquals(1, SubRanges.split(120, 180, 0, 1000, 100, new long[0]).size());
+        assertEquals(1, SubRanges.split(0, 1000, 0, 1000, 0, new long[0]).size());
+        assertEquals(1, SubRanges.split(500, 400, 0, 1000, 10, new long[0]).size());
+    }
+
+    @Test
+    public void shouldCoverRangeWithBoundedNumberOfSubRanges() {
+        List<long[]> ranges = SubRanges.split(Long.MIN_VALUE, Long.MAX_VALUE, Long.MIN_VALUE, Long.MAX_VALUE - 1, 1, new long[0]);
+
+        assertEquals(SubRanges.MAX_SUB_RANGES, ranges.size());
+        long start = Long.MIN_VALUE;
+        for (long[] range : ranges) {
+            assertEquals(start, range[0]);
+            start = range[1];
+        }
+        assertEquals(Long.MAX_VALUE, start);
+    }
+}
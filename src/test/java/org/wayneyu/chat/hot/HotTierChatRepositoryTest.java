@@ -0,0 +1,187 @@
+package org.wayneyu.chat.hot;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.wayneyu.chat.db.MessageConsumer;
+import org.wayneyu.chat.model.Message;
+import org.wayneyu.chat.model.MessagePage;
+import org.wayneyu.chat.model.Room;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class HotTierChatRepositoryTest {
+
+    private final Message msg1 = new Message(1, 10, "a@a.com", "helloA");
+    private final Message msg2 = new Message(2, 20, "b@b.com", "helloB");
+    private final Message msg3 = new Message(3, 100, "a@a.com", "helloC");
+
+    private HotTierChatRepository backing;
+
+    @Before
+    public void setUp() {
+        backing = new HotTierChatRepository();
+        backing.createRoom(new Room(1, "room1", 0, Arrays.asList("a@a.com", "b@b.com")));
+    }
+
+    @Test
+    public void shouldServeRoomsWithoutBackingRepository() {
+        backing.addMessages(1, Arrays.asList(msg3, msg1, msg2));
+
+        assertThat(backing.getMessages(1, 0, 101), contains(msg1, msg2, msg3));
+        assertThat(backing.getMessages(1, 11, 100), contains(msg2));
+        assertEquals(3, backing.getRoom(1).getMeta().getMessageCount());
+        // average pause 100 / 3, pauses 10, 10, 80
+        assertEquals(1, backing.countLongPauses(1, 0, 101));
+        assertEquals(-1, backing.countLongPauses(1, 21, 100));
+    }
+
+    @Test
+    public void shouldRecomputePausesAroundLateMessages() {
+        backing.addMessages(1, Arrays.asList(msg1, msg2, msg3));
+        Message late = new Message(4, 60, "b@b.com", "late");
+        backing.addMessages(1, Arrays.asList(late));
+
+        assertThat(backing.getMessages(1, 0, 101), contains(msg1, msg2, late, msg3));
+        // pauses 10, 10, 40, 40 against an average of 100 / 3
+        assertEquals(2, backing.countLongPauses(1, 0, 101));
+    }
+
+    @Test
+    public void shouldFallThroughForRangesBeforeTheWindow() {
+        backing.addMessages(1, Arrays.asList(msg1, msg2, msg3));
+        HotTierChatRepository repo = new HotTierChatRepository(backing, 50, Long.MAX_VALUE);
+
+        assertThat(repo.getMessages(1, 0, 101), contains(msg1, msg2, msg3));
+        Message msg4 = new Message(4, 200, "b@b.com", "helloD");
+        repo.addMessages(1, Arrays.asList(msg4));
+
+        assertThat(backing.getMessages(1, 0, 201), contains(msg1, msg2, msg3, msg4));
+        assertThat(repo.getMessages(1, 0, 201), contains(msg1, msg2, msg3, msg4));
+        assertThat(repo.getMessages(1, 150, 201), contains(msg4));
+        for (long start : new long[]{0, 15, 100, 150}) {
+            assertEquals(backing.countLongPauses(1, start, 201), repo.countLongPauses(1, start, 201));
+        }
+    }
+
+    @Test
+    public void shouldStreamWindowsLargerThanAChunk() {
+        List<Message> messages = new ArrayList<>();
+        for (int i = 1; i <= 2500; i++) {
+            messages.add(new Message(i, i, "a@a.com", "message " + i));
+        }
+        backing.addMessages(1, messages);
+        HotTierChatRepository repo = new HotTierChatRepository(backing, 1000, Long.MAX_VALUE);
+
+        assertEquals(messages, repo.getMessages(1, 0, 2501));
+        assertEquals(backing.countLongPauses(1, 1600, 2501), repo.countLongPauses(1, 1600, 2501));
+    }
+
+    @Test
+    public void shouldEvictLeastRecentlyUsedRooms() {
+        backing.createRoom(new Room(2, "room2", 0, Arrays.asList("a@a.com")));
+        backing.addMessages(1, Arrays.asList(msg1, msg2));
+        backing.addMessages(2, Arrays.asList(msg3));
+        HotTierChatRepository repo = new HotTierChatRepository(backing, 1000, 6000);
+
+        assertThat(repo.getMessages(1, 0, 101), contains(msg1, msg2));
+        assertTrue(repo.isResident(1));
+        assertThat(repo.getMessages(2, 0, 101), contains(msg3));
+        assertTrue(repo.isResident(2));
+        assertFalse(repo.isResident(1));
+        assertTrue(repo.getResidentBytes() <= 6000);
+    }
+
+    @Test
+    public void shouldNotInstallALoadRacedByAWrite() {
+        backing.addMessages(1, Arrays.asList(msg1, msg2));
+        HotTierChatRepository[] repo = new HotTierChatRepository[1];
+        HotTierChatRepository racing = new HotTierChatRepository() {
+            private boolean written;
+
+            @Override
+            public void streamMessages(int chatRoomId, long startTime, long endTime, MessageConsumer consumer) throws IOException {
+                backing.streamMessages(chatRoomId, startTime, endTime, consumer);
+                if (!written) {
+                    written = true;
+                    repo[0].addMessages(1, Arrays.asList(msg3));
+                }
+            }
+
+            @Override
+            public void addMessages(int chatRoomId, List<Message> messages) {
+                backing.addMessages(chatRoomId, messages);
+            }
+
+            @Override
+            public Room getRoom(int id) {
+                return backing.getRoom(id);
+            }
+        };
+        repo[0] = new HotTierChatRepository(racing, Long.MAX_VALUE, Long.MAX_VALUE);
+
+        assertThat(repo[0].getMessages(1, 0, 101), contains(msg1, msg2, msg3));
+        assertThat(repo[0].getMessages(1, 0, 101), contains(msg1, msg2, msg3));
+        assertTrue(repo[0].isResident(1));
+    }
+
+    @Test
+    public void shouldPageFromTheWindowAndFallBackBeforeIt() {
+        backing.addMessages(1, Arrays.asList(msg1, msg2, msg3));
+        HotTierChatRepository repo = new HotTierChatRepository(backing, 50, Long.MAX_VALUE);
+
+        MessagePage newest = repo.getMessages(1, 60, 101, 1, null, true);
+        MessagePage oldest = repo.getMessages(1, 0, 101, 2, null, false);
+        MessagePage rest = repo.getMessages(1, 0, 101, 2, oldest.getNextCursor(), false);
+
+        assertThat(newest.getMessages(), contains(msg3));
+        assertNull(newest.getNextCursor());
+        assertThat(oldest.getMessages(), contains(msg1, msg2));
+        assertThat(rest.getMessages(), contains(msg3));
+        assertNull(rest.getNextCursor());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void shouldRejectCursorsOfOtherRooms() {
+        backing.addMessages(1, Arrays.asList(msg1, msg2));
+        String cursor = backing.getMessages(1, 0, 101, 1, null, false).getNextCursor();
+
+        backing.getMessages(2, 0, 101, 1, cursor, false);
+    }
+
+    @Test
+    public void shouldReadSeveralRoomsFromWindowsAndBackingRepository() {
+        backing.createRoom(new Room(2, "room2", 0, Arrays.asList("b@b.com")));
+        backing.addMessages(1, Arrays.asList(msg1, msg2, msg3));
+        backing.addMessages(2, Arrays.asList(msg2));
+        HotTierChatRepository repo = new HotTierChatRepository(backing, Long.MAX_VALUE, Long.MAX_VALUE);
+        repo.getRoom(1);
+        repo.getMessages(1, 0, 1);
+        assertTrue(repo.isResident(1));
+
+        List<Room> rooms = repo.getRooms(Arrays.asList(2, 3, 1, 2));
+        assertEquals(2, rooms.size());
+        assertEquals("room2", rooms.get(0).getName());
+        assertEquals("room1", rooms.get(1).getName());
+        assertEquals(3, rooms.get(1).getMeta().getMessageCount());
+        assertFalse(repo.isResident(2));
+
+        Map<Integer, MessagePage> pages = repo.getMessages(Arrays.asList(2, 1, 3), 15, 101, 1);
+        assertThat(pages.keySet(), contains(2, 1, 3));
+        assertThat(pages.get(1).getMessages(), contains(msg2));
+        assertThat(repo.getMessages(1, 15, 101, 1, pages.get(1).getNextCursor(), false).getMessages(), contains(msg3));
+        assertThat(pages.get(2).getMessages(), contains(msg2));
+        assertNull(pages.get(2).getNextCursor());
+        assertTrue(pages.get(3).getMessages().isEmpty());
+    }
+}
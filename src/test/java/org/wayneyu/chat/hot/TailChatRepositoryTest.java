@@ -0,0 +1,121 @@
+package org.wayneyu.chat.hot;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.wayneyu.chat.model.Message;
+import org.wayneyu.chat.model.Room;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.empty;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TailChatRepositoryTest {
+
+    private final Message msg1 = new Message(1, 10, "a@a.com", "helloA");
+    private final Message msg2 = new Message(2, 20, "b@b.com", "helloB");
+    private final Message msg3 = new Message(3, 30, "a@a.com", "helloC");
+    private final Message msg4 = new Message(4, 40, "b@b.com", "helloD");
+    private final Message msg5 = new Message(5, 50, "a@a.com", "helloE");
+
+    private int backingReads;
+    private HotTierChatRepository backing;
+    private TailChatRepository repo;
+
+    @Before
+    public void setUp() {
+        backing = new HotTierChatRepository() {
+            @Override
+            public List<Message> getLatestMessages(int chatRoomId, int n) {
+                backingReads++;
+                return super.getLatestMessages(chatRoomId, n);
+            }
+        };
+        backing.createRoom(new Room(1, "room1", 0, Arrays.asList("a@a.com", "b@b.com")));
+        repo = new TailChatRepository(backing, 3, 10);
+    }
+
+    @Test
+    public void shouldLoadOnFirstReadAndFollowWrites() {
+        backing.addMessages(1, Arrays.asList(msg1, msg2));
+
+        assertThat(repo.getLatestMessages(1, 2), contains(msg1, msg2));
+        repo.addMessages(1, Arrays.asList(msg4, msg3));
+        assertThat(repo.getLatestMessages(1, 3), contains(msg2, msg3, msg4));
+        assertThat(repo.getLatestMessages(1, 1), contains(msg4));
+        assertEquals(1, backingReads);
+    }
+
+    @Test
+    public void shouldPushOutOldestAndReadLargerRangesFromDelegate() {
+        repo.getLatestMessages(1, 1);
+        repo.addMessages(1, Arrays.asList(msg1, msg2, msg3, msg4, msg5));
+
+        assertThat(repo.getLatestMessages(1, 3), contains(msg3, msg4, msg5));
+        assertEquals(1, backingReads);
+        assertThat(repo.getLatestMessages(1, 4), contains(msg2, msg3, msg4, msg5));
+        assertEquals(2, backingReads);
+    }
+
+    @Test
+    public void shouldInsertLateMessagesAndIgnoreOlderThanTheTail() {
+        backing.addMessages(1, Arrays.asList(msg1, msg3, msg5));
+        repo.getLatestMessages(1, 3);
+        repo.addMessages(1, Arrays.asList(msg4, msg2));
+
+        assertThat(repo.getLatestMessages(1, 3), contains(msg3, msg4, msg5));
+        assertEquals(1, backingReads);
+        Message replaced = new Message(4, 40, "b@b.com", "edited");
+        repo.addMessages(1, Arrays.asList(replaced));
+        assertThat(repo.getLatestMessages(1, 2), contains(replaced, msg5));
+    }
+
+    @Test
+    public void shouldServeRoomsSmallerThanTheTail() {
+        assertThat(repo.getLatestMessages(1, 3), empty());
+        repo.addMessages(1, Arrays.asList(msg1, msg2));
+
+        assertThat(repo.getLatestMessages(1, 3), contains(msg1, msg2));
+        assertEquals(1, backingReads);
+    }
+
+    @Test
+    public void shouldDropTailOfRecreatedRoom() {
+        repo.getLatestMessages(1, 3);
+        assertTrue(repo.isResident(1));
+
+        repo.createRoom(new Room(1, "room1", 0, Arrays.asList("a@a.com")));
+        assertFalse(repo.isResident(1));
+    }
+
+    @Test
+    public void shouldKeepMostRecentlyReadRooms() {
+        for (int roomId = 1; roomId <= 11; roomId++) {
+            repo.getLatestMessages(roomId, 1);
+        }
+        assertFalse(repo.isResident(1));
+        assertTrue(repo.isResident(11));
+    }
+
+    @Test
+    public void shouldRingAroundManyTimes() {
+        repo.getLatestMessages(1, 1);
+        List<Message> messages = new ArrayList<>();
+        for (int i = 1; i <= 100; i++) {
+            messages.add(new Message(i, i, "a@a.com", "message " + i));
+            repo.addMessages(1, messages.subList(i - 1, i));
+        }
+        assertThat(repo.getLatestMessages(1, 3), contains(messages.get(97), messages.get(98), messages.get(99)));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void shouldRejectNonPositiveCount() {
+        repo.getLatestMessages(1, 0);
+    }
+}
@@ -0,0 +1,44 @@
+package org.wayneyu.chat.http;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+public class VirtualThreadPoolTest {
+
+    @Test
+    public void shouldRunBlockedTasksWithoutAThreadEach() throws Exception {
+        assumeTrue(VirtualThreadPool.isSupported());
+        VirtualThreadPool pool = new VirtualThreadPool();
+        pool.start();
+
+        int tasks = 10000;
+        CountDownLatch started = new CountDownLatch(tasks);
+        CountDownLatch release = new CountDownLatch(1);
+        for (int i = 0; i < tasks; i++) {
+            assertTrue(pool.tryExecute(() -> {
+                started.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }));
+        }
+
+        assertTrue(started.await(10, TimeUnit.SECONDS));
+        assertEquals(tasks, pool.getThreads());
+        assertFalse(pool.isLowOnThreads());
+        release.countDown();
+
+        pool.stop();
+        pool.join();
+        assertFalse(pool.tryExecute(() -> { }));
+    }
+}
@@ -0,0 +1,83 @@
+package org.wayneyu.chat.ingest;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.wayneyu.chat.model.Message;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.junit.Assert.assertEquals;
+
+public class IngestLogTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final Message msg1 = new Message(1, 1, "a@a.com", "helloA");
+    private final Message msg2 = new Message(2, 2, "b@b.com", "helloB é");
+
+    @Test
+    public void shouldRecoverUnacknowledgedBatches() throws IOException {
+        File dir = folder.newFolder();
+        IngestLog log = new IngestLog(dir, 1024, false);
+        IngestLog.Batch first = log.append(1, Arrays.asList(msg1));
+        log.append(2, Arrays.asList(msg1, msg2));
+        log.acknowledge(first);
+        log.close();
+
+        List<IngestLog.Batch> recovered = new IngestLog(dir, 1024, false).recover();
+
+        assertEquals(2, recovered.size());
+        assertEquals(1, recovered.get(0).getRoomId());
+        assertEquals(2, recovered.get(1).getRoomId());
+        assertThat(recovered.get(1).getMessages(), contains(msg1, msg2));
+    }
+
+    @Test
+    public void shouldRecoverBatchesAppendedConcurrentlyWithFsync() throws Exception {
+        File dir = folder.newFolder();
+        IngestLog log = new IngestLog(dir, 256, true);
+        ExecutorService appenders = Executors.newFixedThreadPool(8);
+        List<Future<IngestLog.Batch>> appends = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            int roomId = i;
+            appends.add(appenders.submit(() -> log.append(roomId, Arrays.asList(msg1, msg2))));
+        }
+        for (Future<IngestLog.Batch> append : appends) {
+            append.get();
+        }
+        appenders.shutdown();
+        log.close();
+
+        List<IngestLog.Batch> recovered = new IngestLog(dir, 256, true).recover();
+
+        assertEquals(200, recovered.size());
+        assertEquals(200, recovered.stream().mapToInt(IngestLog.Batch::getRoomId).distinct().count());
+    }
+
+    @Test
+    public void shouldDeleteSegmentsOnceAcknowledged() throws IOException {
+        File dir = folder.newFolder();
+        IngestLog log = new IngestLog(dir, 1, false);
+        IngestLog.Batch first = log.append(1, Arrays.asList(msg1));
+        IngestLog.Batch second = log.append(1, Arrays.asList(msg2));
+        assertEquals(3, dir.listFiles().length);
+
+        log.acknowledge(first);
+        log.acknowledge(second);
+
+        assertEquals(1, dir.listFiles().length);
+        log.close();
+        assertEquals(0, new IngestLog(dir, 1, false).recover().size());
+    }
+}
@@ -0,0 +1,108 @@
+package org.wayneyu.chat.ingest;
+
+import org.junit.Test;
+import org.wayneyu.chat.model.Message;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.Arrays;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.everyItem;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class MessagesReaderTest {
+
+    private final Message msg1 = new Message(1, 10, "a@a.com", "helloA");
+    private final Message msg2 = new Message(2, 20, "b@b.com", "hello \"B\"");
+    private final Message msg3 = new Message(3, 30, "a@a.com", "helloC");
+
+    @Test
+    public void shouldAddMessagesInBatchesWhileReading() throws IOException {
+        RecordingRepository repo = new RecordingRepository();
+        String body = "{\"chatRoomId\": 7, \"messages\": ["
+                + "{\"index\": 1, \"timestamp\": 10, \"author\": \"a@a.com\", \"message\": \"helloA\", \"extra\": [1, {}]},"
+                + "{\"message\": \"hello \\\"B\\\"\", \"author\": \"b@b.com\", \"timestamp\": 20, \"index\": 2},"
+                + "{\"index\": 3, \"timestamp\": 30, \"author\": \"a@a.com\", \"message\": \"helloC\"},"
+                + "]}";
+
+        assertEquals(3, MessagesReader.addMessages(new StringReader(body), repo, 2));
+
+        assertEquals(2, repo.batches.size());
+        assertThat(repo.roomIds, everyItem(is(7)));
+        assertThat(repo.batches.get(0), contains(msg1, msg2));
+        assertThat(repo.batches.get(1), contains(msg3));
+    }
+
+    @Test
+    public void shouldHoldMessagesUntilChatRoomIdIsRead() throws IOException {
+        RecordingRepository repo = new RecordingRepository();
+        String body = "{\"messages\": ["
+                + "{\"index\": 1, \"timestamp\": 10, \"author\": \"a@a.com\", \"message\": \"helloA\"},"
+                + "{\"index\": 2, \"timestamp\": 20, \"author\": \"b@b.com\", \"message\": \"hello \\\"B\\\"\"},"
+                + "{\"index\": 3, \"timestamp\": 30, \"author\": \"a@a.com\", \"message\": \"helloC\"}"
+                + "], \"chatRoomId\": 7}";
+
+        assertEquals(3, MessagesReader.addMessages(new StringReader(body), repo, 2));
+
+        assertThat(repo.roomIds, contains(7, 7));
+        assertEquals(Arrays.asList(Arrays.asList(msg1, msg2), Arrays.asList(msg3)), repo.batches);
+    }
+
+    @Test
+    public void shouldRejectInvalidBodies() throws IOException {
+        String[] bodies = {
+                "{\"messages\": []}",
+                "{\"chatRoomId\": 7, \"messages\": [{\"index\": 1, \"timestamp\": 10, \"author\": \"a@a.com\"}]}",
+                "{\"chatRoomId\": 7, \"messages\": [{\"index\": \"one\", \"timestamp\": 10, \"author\": \"a\", \"message\": \"m\"}]}",
+                "{\"chatRoomId\": 7, \"messages\": {}}",
+                "{\"chatRoomId\": 7, \"messages\": [{\"index\": 1",
+                "[]"
+        };
+        for (String body : bodies) {
+            try {
+                MessagesReader.addMessages(new StringReader(body), new RecordingRepository(), 10);
+                fail("Accepted " + body);
+            } catch (IllegalArgumentException e) {
+                assertTrue(e.getMessage(), !e.getMessage().isEmpty());
+            }
+        }
+    }
+
+    @Test
+    public void shouldReadMessagesOfAnyRoomLineByLine() throws IOException {
+        RecordingRepository repo = new RecordingRepository();
+        String lines = "{\"chatRoomId\": 7, \"index\": 1, \"timestamp\": 10, \"author\": \"a@a.com\", \"message\": \"helloA\"}\n"
+                + "{\"index\": 2, \"timestamp\": 20, \"author\": \"b@b.com\", \"message\": \"hello \\\"B\\\"\", \"chatRoomId\": 8}\n"
+                + "\n"
+                + "{\"chatRoomId\": 7, \"index\": 3, \"timestamp\": 30, \"author\": \"a@a.com\", \"message\": \"helloC\", \"extra\": {}}\n";
+
+        assertEquals(3, MessagesReader.readLines(new StringReader(lines), repo::addMessages));
+
+        assertThat(repo.roomIds, contains(7, 8, 7));
+        assertEquals(Arrays.asList(Arrays.asList(msg1), Arrays.asList(msg2), Arrays.asList(msg3)), repo.batches);
+        assertEquals(0, MessagesReader.readLines(new StringReader(" \n"), repo::addMessages));
+    }
+
+    @Test
+    public void shouldRejectInvalidLines() throws IOException {
+        String[] dumps = {
+                "{\"index\": 1, \"timestamp\": 10, \"author\": \"a@a.com\", \"message\": \"m\"}\n",
+                "{\"chatRoomId\": 7, \"index\": 1, \"timestamp\": 10, \"author\": \"a@a.com\"}\n",
+                "{\"chatRoomId\": 7, \"index\": 1",
+                "[]\n"
+        };
+        for (String dump : dumps) {
+            try {
+                MessagesReader.readLines(new StringReader(dump), new RecordingRepository()::addMessages);
+                fail("Accepted " + dump);
+            } catch (IllegalArgumentException e) {
+                assertTrue(e.getMessage(), !e.getMessage().isEmpty());
+            }
+        }
+    }
+}
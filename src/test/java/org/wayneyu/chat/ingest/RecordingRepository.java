@@ -0,0 +1,46 @@
+package org.wayneyu.chat.ingest;
+
+import org.wayneyu.chat.db.ChatRepository;
+import org.wayneyu.chat.db.MessageConsumer;
+import org.wayneyu.chat.model.Message;
+import org.wayneyu.chat.model.MessagePage;
+import org.wayneyu.chat.model.Room;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Keeps the batches added to it.
+ */
+class RecordingRepository implements ChatRepository {
+    final List<List<Message>> batches = Collections.synchronizedList(new ArrayList<>());
+    final List<Integer> roomIds = Collections.synchronizedList(new ArrayList<>());
+
+    public void createRoom(Room room) {
+    }
+
+    public void addMessages(int chatRoomId, List<Message> messages) {
+        roomIds.add(chatRoomId);
+        batches.add(new ArrayList<>(messages));
+    }
+
+    public List<Message> getMessages(int chatRoomId, long startTime, long endTime) {
+        return Collections.emptyList();
+    }
+
+    public void streamMessages(int chatRoomId, long startTime, long endTime, MessageConsumer consumer) {
+    }
+
+    public MessagePage getMessages(int chatRoomId, long startTime, long endTime, int limit, String cursor, boolean reverse) {
+        return new MessagePage(Collections.emptyList(), null);
+    }
+
+    public Room getRoom(int id) {
+        return null;
+    }
+
+    public int countLongPauses(int chatRoomId, long startTime, long endTime) {
+        return -1;
+    }
+}
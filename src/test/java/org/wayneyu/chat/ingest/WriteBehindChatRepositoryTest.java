@@ -0,0 +1,78 @@
+package org.wayneyu.chat.ingest;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.wayneyu.chat.model.Message;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class WriteBehindChatRepositoryTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final Message msg1 = new Message(1, 1, "a@a.com", "helloA");
+    private final Message msg2 = new Message(2, 2, "b@b.com", "helloB");
+    private final Message msg3 = new Message(3, 3, "a@a.com", "helloC");
+
+    @Test
+    public void shouldCoalesceBatchesOfARoom() throws IOException {
+        RecordingRepository delegate = new RecordingRepository();
+        WriteBehindChatRepository repo = new WriteBehindChatRepository(delegate, new IngestLog(folder.newFolder(), 1024, false), 1, 3, 60000, 100);
+
+        repo.addMessages(1, Arrays.asList(msg1));
+        repo.addMessages(1, Arrays.asList(msg2, msg3));
+        repo.close();
+
+        assertEquals(1, delegate.batches.size());
+        assertThat(delegate.batches.get(0), contains(msg1, msg2, msg3));
+    }
+
+    @Test
+    public void shouldMoveBatchesThatCannotBeWrittenToTheDeadLetterFile() throws IOException {
+        File dir = folder.newFolder();
+        RecordingRepository delegate = new RecordingRepository() {
+            @Override
+            public void addMessages(int chatRoomId, List<Message> messages) {
+                if (messages.contains(msg2)) {
+                    throw new IllegalArgumentException("KeyValue size too large");
+                }
+                super.addMessages(chatRoomId, messages);
+            }
+        };
+        WriteBehindChatRepository repo = new WriteBehindChatRepository(delegate, new IngestLog(dir, 1024, false), 1, 3, 60000, 100);
+
+        repo.addMessages(1, Arrays.asList(msg1));
+        repo.addMessages(1, Arrays.asList(msg2));
+        repo.addMessages(1, Arrays.asList(msg3));
+        repo.close();
+
+        assertEquals(2, delegate.batches.size());
+        assertThat(delegate.batches.get(0), contains(msg1));
+        assertThat(delegate.batches.get(1), contains(msg3));
+        assertTrue(new File(dir, "dead-letter.log").length() > 0);
+    }
+
+    @Test
+    public void shouldReplayLoggedBatchesOnStart() throws IOException {
+        File dir = folder.newFolder();
+        IngestLog log = new IngestLog(dir, 1024, false);
+        log.append(1, Arrays.asList(msg1, msg2));
+        log.close();
+
+        RecordingRepository delegate = new RecordingRepository();
+        new WriteBehindChatRepository(delegate, new IngestLog(dir, 1024, false), 1, 10, 60000, 100).close();
+
+        assertThat(delegate.batches.get(0), contains(msg1, msg2));
+        assertEquals(0, new IngestLog(dir, 1024, false).recover().size());
+    }
+}
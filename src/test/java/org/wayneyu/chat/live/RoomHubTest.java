@@ -0,0 +1,137 @@
+package org.wayneyu.chat.live;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.wayneyu.chat.hot.HotTierChatRepository;
+import org.wayneyu.chat.model.Message;
+import org.wayneyu.chat.model.Room;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class RoomHubTest {
+
+    private final Message msg1 = new Message(1, 10, "a@a.com", "helloA");
+    private final Message msg2 = new Message(2, 20, "b@b.com", "helloB");
+    private final Message msg3 = new Message(3, 30, "a@a.com", "helloC");
+
+    private RoomHub hub;
+    private PublishingChatRepository repo;
+
+    /**
+     * Completes sends when told to, like a client reading slowly.
+     */
+    private static class RecordingSink implements Subscriber.Sink {
+        private final List<List<Message>> sent = new ArrayList<>();
+        private final List<Consumer<Throwable>> inFlight = new ArrayList<>();
+        private boolean autoComplete = true;
+        private String closeReason;
+
+        @Override
+        public void send(int roomId, List<PublishedMessage> messages, Consumer<Throwable> done) {
+            sent.add(messages.stream().map(PublishedMessage::getMessage).collect(Collectors.toList()));
+            if (autoComplete) {
+                done.accept(null);
+            } else {
+                inFlight.add(done);
+            }
+        }
+
+        @Override
+        public void close(String reason) {
+            closeReason = reason;
+        }
+
+        private void completeAll() {
+            List<Consumer<Throwable>> done = new ArrayList<>(inFlight);
+            inFlight.clear();
+            done.forEach(callback -> callback.accept(null));
+        }
+    }
+
+    @Before
+    public void setUp() {
+        hub = new RoomHub();
+        repo = new PublishingChatRepository(new HotTierChatRepository(), hub);
+        repo.createRoom(new Room(1, "room1", 0, Arrays.asList("a@a.com", "b@b.com")));
+    }
+
+    @Test
+    public void shouldCatchUpFromStoreThenStreamPublishedMessages() {
+        repo.addMessages(1, Arrays.asList(msg2, msg1));
+        RecordingSink sink = new RecordingSink();
+        Subscriber subscriber = new Subscriber(1, sink, 10, false);
+        hub.subscribe(subscriber);
+        // published while catching up, and also found by the catch-up scan
+        repo.addMessages(1, Arrays.asList(msg3));
+
+        subscriber.catchUp(repo, 15, 1);
+        repo.addMessages(1, Arrays.asList(new Message(4, 40, "b@b.com", "live")));
+
+        assertEquals(3, sink.sent.size());
+        assertThat(sink.sent.get(0), contains(msg2));
+        assertThat(sink.sent.get(1), contains(msg3));
+        assertEquals(40, sink.sent.get(2).get(0).getTimestamp());
+    }
+
+    @Test
+    public void shouldBatchMessagesPublishedWhileSending() {
+        RecordingSink sink = new RecordingSink();
+        sink.autoComplete = false;
+        Subscriber subscriber = new Subscriber(1, sink, 10, false);
+        hub.subscribe(subscriber);
+        subscriber.goLive();
+
+        repo.addMessages(1, Arrays.asList(msg1));
+        repo.addMessages(1, Arrays.asList(msg2));
+        repo.addMessages(1, Arrays.asList(msg3));
+        assertEquals(1, sink.sent.size());
+        sink.completeAll();
+
+        assertEquals(2, sink.sent.size());
+        assertThat(sink.sent.get(1), contains(msg2, msg3));
+    }
+
+    @Test
+    public void shouldCloseSubscribersThatFallBehind() {
+        RecordingSink sink = new RecordingSink();
+        sink.autoComplete = false;
+        Subscriber subscriber = new Subscriber(1, sink, 1, false);
+        hub.subscribe(subscriber);
+        subscriber.goLive();
+
+        repo.addMessages(1, Arrays.asList(msg1));
+        repo.addMessages(1, Arrays.asList(msg2));
+        repo.addMessages(1, Arrays.asList(msg3));
+
+        assertTrue(subscriber.isClosed());
+        assertTrue(sink.closeReason.startsWith("Too far behind"));
+        assertEquals(0, hub.getSubscriberCount());
+    }
+
+    @Test
+    public void shouldDropOldestMessagesWhenAllowed() {
+        RecordingSink sink = new RecordingSink();
+        sink.autoComplete = false;
+        Subscriber subscriber = new Subscriber(1, sink, 1, true);
+        hub.subscribe(subscriber);
+        subscriber.goLive();
+
+        repo.addMessages(1, Arrays.asList(msg1));
+        repo.addMessages(1, Arrays.asList(msg2, msg3));
+        sink.completeAll();
+
+        assertFalse(subscriber.isClosed());
+        assertEquals(1, subscriber.getDropped());
+        assertThat(sink.sent.get(1), contains(msg3));
+    }
+}
@@ -0,0 +1,61 @@
+package org.wayneyu.chat.metrics;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringWriter;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.containsString;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+public class MetricRegistryTest {
+
+    @Test
+    public void shouldCountValuesInPowerOfTwoBuckets() {
+        Histogram histogram = new Histogram(2, 4, 1);
+        for (long value : new long[]{0, 4, 5, 8, 16, 17, 1000}) {
+            histogram.record(value);
+        }
+
+        assertEquals(4, histogram.getBucketCount());
+        assertEquals(2, histogram.getBucket(0));
+        assertEquals(2, histogram.getBucket(1));
+        assertEquals(1, histogram.getBucket(2));
+        assertEquals(2, histogram.getBucket(3));
+        assertEquals(16.0, histogram.getUpperBound(2), 0);
+        assertEquals(1050.0, histogram.getSum(), 0);
+    }
+
+    @Test
+    public void shouldWritePrometheusText() throws IOException {
+        MetricRegistry registry = new MetricRegistry();
+        Counter gets = registry.counter("requests_total", "Requests", "route", "/room/:id");
+        assertSame(gets, registry.counter("requests_total", "Requests", "route", "/room/:id"));
+        gets.add(3);
+        registry.gauge("queue_size", "Queued \"things\"", () -> 7);
+        Histogram latency = registry.latency("latency_seconds", "Latency", "route", "a\"b");
+        latency.record(20_000);
+        latency.record(1_000_000_000_000L);
+
+        StringWriter out = new StringWriter();
+        registry.writeTo(out);
+        String text = out.toString();
+
+        assertThat(text, containsString("# TYPE requests_total counter\nrequests_total{route=\"/room/:id\"} 3\n"));
+        assertThat(text, containsString("# HELP queue_size Queued \"things\"\n# TYPE queue_size gauge\nqueue_size 7\n"));
+        assertThat(text, containsString("# TYPE latency_seconds histogram\n"));
+        assertThat(text, containsString("latency_seconds_bucket{route=\"a\\\"b\",le=\"1.6384E-5\"} 0\n"));
+        assertThat(text, containsString("latency_seconds_bucket{route=\"a\\\"b\",le=\"3.2768E-5\"} 1\n"));
+        assertThat(text, containsString("latency_seconds_bucket{route=\"a\\\"b\",le=\"+Inf\"} 2\n"));
+        assertThat(text, containsString("latency_seconds_count{route=\"a\\\"b\"} 2\n"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void shouldRejectMetricOfAnotherType() {
+        MetricRegistry registry = new MetricRegistry();
+        registry.counter("things", "Things");
+        registry.sizes("things", "Things");
+    }
+}
@@ -0,0 +1,95 @@
+package org.wayneyu.chat.tools;
+
+import org.apache.hadoop.hbase.Cell;
+import org.apache.hadoop.hbase.CellUtil;
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.client.AbstractClientScanner;
+import org.apache.hadoop.hbase.client.Put;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.client.ResultScanner;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.junit.Before;
+import org.junit.Test;
+import org.wayneyu.chat.db.RowkeyCodec;
+import org.wayneyu.chat.hbase.HBaseService;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class RowkeyMigrationTest {
+
+    /**
+     * Scans rows given per table and keeps the rows put.
+     */
+    private static class InMemoryHBase extends HBaseService {
+        private final Map<String, List<Result>> tables = new HashMap<>();
+        private final Map<String, List<Put>> puts = new HashMap<>();
+
+        @Override
+        public ResultScanner getTableScanner(String tableName) {
+            Iterator<Result> rows = tables.get(tableName).iterator();
+            return new AbstractClientScanner() {
+                @Override
+                public Result next() {
+                    return rows.hasNext() ? rows.next() : null;
+                }
+
+                @Override
+                public void close() {
+                }
+
+                @Override
+                public boolean renewLease() {
+                    return true;
+                }
+            };
+        }
+
+        @Override
+        public void putRows(String tableName, List<Put> rows) {
+            puts.computeIfAbsent(tableName, k -> new ArrayList<>()).addAll(rows);
+        }
+    }
+
+    private final InMemoryHBase hbase = new InMemoryHBase();
+
+    @Before
+    public void init() {
+        hbase.init();
+    }
+
+    private static Result row(String rowkey, String family, String qualifier, byte[] value) {
+        return Result.create(new Cell[]{new KeyValue(Bytes.toBytes(rowkey), Bytes.toBytes(family), Bytes.toBytes(qualifier), 1L, value)});
+    }
+
+    @Test
+    public void shouldMigrateUnpaddedRoomKeys() throws Exception {
+        hbase.tables.put("ROOM", Arrays.asList(row("1234", "meta", "created", Bytes.toBytes(100L))));
+        hbase.tables.put("MESSAGE", Arrays.asList(row("0000001234_0000000000150", "message", "index", Bytes.toBytes(1))));
+        RowkeyMigration migration = new RowkeyMigration(hbase);
+
+        assertEquals(1, migration.migrateRooms("ROOM", "ROOM_V2"));
+        assertEquals(1, migration.migrateMessages("MESSAGE", "MESSAGE_V2"));
+
+        assertArrayEquals(RowkeyCodec.roomKey(1234), hbase.puts.get("ROOM_V2").get(0).getRow());
+        Put message = hbase.puts.get("MESSAGE_V2").get(0);
+        assertArrayEquals(RowkeyCodec.messageKey(1234, 150, 1), message.getRow());
+        // paused from the room's creation, found through the unpadded room key
+        Cell pause = message.get(Bytes.toBytes("meta"), Bytes.toBytes("pause")).get(0);
+        assertEquals(50, Bytes.toLong(CellUtil.cloneValue(pause)));
+    }
+
+    @Test
+    public void shouldDecodeOldKeys() {
+        assertEquals(1234, RowkeyMigration.decodeOldRoomKey(Bytes.toBytes("1234")));
+        assertEquals(1234, RowkeyMigration.decodeOldRoomKey(Bytes.toBytes("0000001234")));
+        assertArrayEquals(new long[]{1234, 1578283201000L}, RowkeyMigration.decodeOldMessageKey(Bytes.toBytes("0000001234_1578283201000")));
+    }
+}